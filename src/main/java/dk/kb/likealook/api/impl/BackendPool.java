@@ -0,0 +1,406 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.util.yaml.YAML;
+import dk.kb.webservice.exception.ServiceException;
+import dk.kb.webservice.exception.ServiceUnavailableServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+/**
+ * A group of {@link RemoteBackend}s providing the same service, such as multiple instances of
+ * {@code face-search-server.wls} running on different ports.
+ *
+ * Calls are sent to the available backend with the least outstanding calls. Backends where the
+ * {@link CircuitBreaker} is open are ejected until the breaker allows a probe call.
+ *
+ * If hedging is enabled, a second call is sent to another backend when the first call has not returned within the
+ * given percentile of recent response times. The first successful response is used and the other is discarded.
+ * Hedging lowers tail latency at the cost of extra load on the backends.
+ *
+ * The class is thread safe.
+ */
+public class BackendPool {
+    private static final Logger log = LoggerFactory.getLogger(BackendPool.class);
+
+    public static final String URLS_KEY = ".urls";
+    public static final String HEDGE_ENABLED_KEY = ".hedge.enabled";
+    public static final boolean HEDGE_ENABLED_DEFAULT = false;
+    public static final String HEDGE_PERCENTILE_KEY = ".hedge.percentile";
+    public static final int HEDGE_PERCENTILE_DEFAULT = 95;
+    public static final String HEDGE_MIN_DELAY_KEY = ".hedge.mindelay";
+    public static final int HEDGE_MIN_DELAY_DEFAULT = 50; // ms
+
+    // Hedging is not performed before there are enough samples to estimate the percentile
+    static final int MIN_SAMPLES = 20;
+    static final int MAX_SAMPLES = 256;
+    // The percentile is recalculated for every this many samples
+    static final int RECALCULATE_INTERVAL = 16;
+
+    private final String name;
+    private final List<RemoteBackend> backends;
+    private final boolean hedge;
+    private final int hedgePercentile;
+    private final int hedgeMinDelayMS;
+
+    private final AtomicInteger next = new AtomicInteger(0);
+    private final LatencyWindow latencies;
+    private final AtomicLong calls = new AtomicLong(0);
+    private final AtomicLong hedges = new AtomicLong(0);
+    private final AtomicLong hedgeWins = new AtomicLong(0);
+
+    /**
+     * Create a pool from configuration. The backends are taken from {@code urls} if present, else from
+     * {@code url}. All other settings, such as timeouts and circuit breaker, are shared between the backends.
+     * @param name human readable name for the pool, used for logging and error messages.
+     * @param conf configuration for the pool.
+     * @param keyPrefix the prefix for the keys in conf, e.g. {@code .remote}.
+     * @return a pool or null if no URLs were configured.
+     */
+    public static BackendPool create(String name, YAML conf, String keyPrefix) {
+        List<String> urls = conf.getList(keyPrefix + URLS_KEY, new ArrayList<>());
+        if (urls.isEmpty()) {
+            String url = conf.getString(keyPrefix + RemoteBackend.URL_KEY, null);
+            if (url == null) {
+                return null;
+            }
+            urls = Collections.singletonList(url);
+        }
+        List<RemoteBackend> backends = new ArrayList<>(urls.size());
+        for (int i = 0 ; i < urls.size() ; i++) {
+            String backendName = urls.size() == 1 ? name : name + "#" + i;
+            backends.add(new RemoteBackend(
+                    backendName, urls.get(i),
+                    conf.getInteger(keyPrefix + RemoteBackend.CONNECT_TIMEOUT_KEY, RemoteBackend.CONNECT_TIMEOUT_DEFAULT),
+                    conf.getInteger(keyPrefix + RemoteBackend.READ_TIMEOUT_KEY, RemoteBackend.READ_TIMEOUT_DEFAULT),
+                    new CircuitBreaker(
+                            backendName,
+                            conf.getInteger(keyPrefix + CircuitBreaker.MAX_INFLIGHT_KEY,
+                                            CircuitBreaker.MAX_INFLIGHT_DEFAULT),
+                            conf.getInteger(keyPrefix + CircuitBreaker.FAILURES_KEY, CircuitBreaker.FAILURES_DEFAULT),
+                            conf.getInteger(keyPrefix + CircuitBreaker.OPEN_TIME_KEY,
+                                            CircuitBreaker.OPEN_TIME_DEFAULT))));
+        }
+        return new BackendPool(name, backends,
+                               conf.getBoolean(keyPrefix + HEDGE_ENABLED_KEY, HEDGE_ENABLED_DEFAULT),
+                               conf.getInteger(keyPrefix + HEDGE_PERCENTILE_KEY, HEDGE_PERCENTILE_DEFAULT),
+                               conf.getInteger(keyPrefix + HEDGE_MIN_DELAY_KEY, HEDGE_MIN_DELAY_DEFAULT));
+    }
+
+    /**
+     * @param name            human readable name for the pool, used for logging and error messages.
+     * @param backends        at least 1 backend.
+     * @param hedge           if true, hedged calls are issued when there are at least 2 backends.
+     * @param hedgePercentile the percentile (1-100) of recent response times to wait before issuing a hedged call.
+     * @param hedgeMinDelayMS the minimum number of milliseconds to wait before issuing a hedged call.
+     */
+    public BackendPool(String name, List<RemoteBackend> backends,
+                       boolean hedge, int hedgePercentile, int hedgeMinDelayMS) {
+        if (backends.isEmpty()) {
+            throw new IllegalArgumentException("No backends given for " + name);
+        }
+        this.name = name;
+        this.backends = new ArrayList<>(backends);
+        this.hedge = hedge && backends.size() > 1;
+        this.hedgePercentile = hedgePercentile;
+        latencies = new LatencyWindow(MAX_SAMPLES, hedgePercentile);
+        this.hedgeMinDelayMS = hedgeMinDelayMS;
+        log.info("Created " + this);
+    }
+
+    /**
+     * @return the backends in the pool.
+     */
+    public List<RemoteBackend> getBackends() {
+        return Collections.unmodifiableList(backends);
+    }
+
+    /**
+     * Perform a HTTP GET on a backend and wait for the response, using the configured timeouts.
+     * @param uriBuilder creates the full URI for the request from the base URL of the selected backend.
+     * @return the response body.
+     * @throws ServiceException if the response could not be retrieved, if the status was not 200 or if no backends
+     *                          were available.
+     */
+    public InputStream get(Function<String, URI> uriBuilder) {
+        return get(uriBuilder, Long.MAX_VALUE);
+    }
+
+    /**
+     * Perform a HTTP GET on a backend and wait for the response.
+     * @param uriBuilder creates the full URI for the request from the base URL of the selected backend.
+     * @param deadline   the time, as {@link System#currentTimeMillis()}, where the call is abandoned. If this is
+     *                   later than the configured timeouts allows, the timeouts are used.
+     * @return the response body.
+     * @throws ServiceException if the response could not be retrieved before the deadline, if the status was not
+     *                          200 or if no backends were available.
+     */
+    public InputStream get(Function<String, URI> uriBuilder, long deadline) {
+        return call(uriBuilder, RemoteBackend::getAsync, deadline);
+    }
+
+    /**
+     * Perform a HTTP POST on a backend with the given content as body and wait for the response, using the
+     * configured timeouts.
+     * @param uriBuilder  creates the full URI for the request from the base URL of the selected backend.
+     * @param content     the body for the request.
+     * @param contentType the MIME type for the content.
+     * @return the response body.
+     * @throws ServiceException if the response could not be retrieved, if the status was not 200 or if no backends
+     *                          were available.
+     */
+    public InputStream post(Function<String, URI> uriBuilder, byte[] content, String contentType) {
+        return post(uriBuilder, content, contentType, Long.MAX_VALUE);
+    }
+
+    /**
+     * Perform a HTTP POST on a backend with the given content as body and wait for the response.
+     * @param uriBuilder  creates the full URI for the request from the base URL of the selected backend.
+     * @param content     the body for the request.
+     * @param contentType the MIME type for the content.
+     * @param deadline    the time, as {@link System#currentTimeMillis()}, where the call is abandoned. If this is
+     *                    later than the configured timeouts allows, the timeouts are used.
+     * @return the response body.
+     * @throws ServiceException if the response could not be retrieved before the deadline, if the status was not
+     *                          200 or if no backends were available.
+     */
+    public InputStream post(Function<String, URI> uriBuilder, byte[] content, String contentType, long deadline) {
+        return call(uriBuilder, (backend, uri, callDeadline) ->
+                backend.postAsync(uri, content, contentType, callDeadline), deadline);
+    }
+
+    /**
+     * An asynchronous call to a specific backend.
+     */
+    @FunctionalInterface
+    interface Call {
+        CompletableFuture<InputStream> send(RemoteBackend backend, URI uri, long deadline);
+    }
+
+    InputStream call(Function<String, URI> uriBuilder, Call call, long deadline) {
+        calls.incrementAndGet();
+        RemoteBackend primary = select(null);
+        if (primary == null) {
+            throw new ServiceUnavailableServiceException(
+                    "All " + backends.size() + " backends for " + name + " are temporarily unavailable");
+        }
+        URI primaryURI = uriBuilder.apply(primary.getURL());
+        final long callDeadline = Math.min(deadline, System.currentTimeMillis() + primary.getTimeoutMS());
+        CompletableFuture<InputStream> first = timedSend(primary, primaryURI, call, callDeadline);
+
+        long hedgeDelay = getHedgeDelay();
+        if (hedgeDelay < 0) {
+            return primary.await(first, primaryURI, callDeadline);
+        }
+        try {
+            return first.get(Math.min(hedgeDelay, Math.max(0, callDeadline - System.currentTimeMillis())),
+                             TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            // Expected: Continue with hedging below
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return primary.await(first, primaryURI, callDeadline); // Fails immediately due to the interrupt flag
+        } catch (ExecutionException e) {
+            return primary.await(first, primaryURI, callDeadline); // Rethrows as a ServiceException
+        }
+
+        RemoteBackend secondary = select(primary);
+        if (secondary == null) {
+            return primary.await(first, primaryURI, callDeadline);
+        }
+        URI secondaryURI = uriBuilder.apply(secondary.getURL());
+        long hedgeCount = hedges.incrementAndGet();
+        log.debug("Hedging call to {} with {} after {}ms ({} hedges)",
+                  primary.getName(), secondary.getName(), hedgeDelay, hedgeCount);
+        CompletableFuture<InputStream> second = timedSend(secondary, secondaryURI, call, callDeadline);
+        return primary.await(firstSuccessful(first, second), primaryURI, callDeadline);
+    }
+
+    /**
+     * @return a future that completes with the first successful result or fails if both calls fails.
+     *         The stream from the unused successful result is closed.
+     */
+    private CompletableFuture<InputStream> firstSuccessful(
+            CompletableFuture<InputStream> first, CompletableFuture<InputStream> second) {
+        CompletableFuture<InputStream> result = new CompletableFuture<>();
+        AtomicInteger failed = new AtomicInteger(0);
+        for (CompletableFuture<InputStream> call : Arrays.asList(first, second)) {
+            call.whenComplete((stream, exception) -> {
+                if (exception == null) {
+                    if (!result.complete(stream)) {
+                        closeQuietly(stream);
+                    } else if (call == second) {
+                        hedgeWins.incrementAndGet();
+                    }
+                } else if (failed.incrementAndGet() == 2) {
+                    result.completeExceptionally(exception);
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * Send the call and record the latency.
+     * @return a future for the response. If the future is cancelled, typically because the caller has given up,
+     *         a late response is closed so that the connection is released.
+     */
+    private CompletableFuture<InputStream> timedSend(RemoteBackend backend, URI uri, Call call, long deadline) {
+        final long startTime = System.nanoTime();
+        CompletableFuture<InputStream> result = new CompletableFuture<>();
+        call.send(backend, uri, deadline).whenComplete((stream, exception) -> {
+            if (exception != null) {
+                result.completeExceptionally(exception);
+                return;
+            }
+            latencies.add((System.nanoTime() - startTime) / 1000000L);
+            if (!result.complete(stream)) {
+                closeQuietly(stream);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Select the available backend with the least outstanding calls. Ties are resolved round robin.
+     * @param exclude a backend that should not be selected. Can be null.
+     * @return the selected backend or null if no backends were available.
+     */
+    RemoteBackend select(RemoteBackend exclude) {
+        RemoteBackend best = null;
+        int bestLoad = Integer.MAX_VALUE;
+        int start = Math.floorMod(next.getAndIncrement(), backends.size());
+        for (int i = 0 ; i < backends.size() ; i++) {
+            RemoteBackend backend = backends.get((start + i) % backends.size());
+            if (backend == exclude || !backend.getBreaker().isAvailable()) {
+                continue;
+            }
+            int load = backend.getBreaker().getInflight();
+            if (load < bestLoad) {
+                best = backend;
+                bestLoad = load;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * @return the number of milliseconds to wait before issuing a hedged call or -1 if hedging should not be done.
+     */
+    long getHedgeDelay() {
+        if (!hedge) {
+            return -1;
+        }
+        long percentile = latencies.getPercentile();
+        return percentile < 0 ? -1 : Math.max(hedgeMinDelayMS, percentile);
+    }
+
+    private static void closeQuietly(InputStream stream) {
+        try {
+            stream.close();
+        } catch (IOException e) {
+            log.debug("Exception closing unused response stream", e);
+        }
+    }
+
+    /**
+     * @return the number of hedged calls that has been issued.
+     */
+    public long getHedges() {
+        return hedges.get();
+    }
+
+    /**
+     * @return human readable statistics for the pool and its backends.
+     */
+    public String getStats() {
+        return "calls=" + calls.get() + ", hedges=" + hedges.get() + ", hedgeWins=" + hedgeWins.get() +
+               ", p" + hedgePercentile + "=" + latencies.getPercentile() + "ms, backends=[" +
+               backends.stream()
+                       .map(backend -> backend.getName() + "(" + backend.getBreaker().getState() + ", " +
+                                       backend.getBreaker().getStats() + ")")
+                       .collect(Collectors.joining(", ")) + "]";
+    }
+
+    @Override
+    public String toString() {
+        return "BackendPool(name='" + name + "', urls=" +
+               backends.stream().map(RemoteBackend::getURL).collect(Collectors.toList()) +
+               ", hedge=" + hedge + ", hedgePercentile=" + hedgePercentile + ", hedgeMinDelay=" + hedgeMinDelayMS +
+               "ms)";
+    }
+
+    /**
+     * Fixed size window of the most recent response times. The percentile is read for every call, so it is
+     * calculated when samples are added, for every {@link #RECALCULATE_INTERVAL} samples, instead of when read.
+     */
+    static class LatencyWindow {
+        private final long[] samples;
+        private final long[] sorted;
+        private final int percentile;
+        private int size = 0;
+        private int pos = 0;
+        private int added = 0;
+        private volatile long cachedPercentile = -1;
+
+        /**
+         * @param maxSamples the number of samples in the window.
+         * @param percentile 1-100.
+         */
+        LatencyWindow(int maxSamples, int percentile) {
+            samples = new long[maxSamples];
+            sorted = new long[maxSamples];
+            this.percentile = percentile;
+        }
+
+        synchronized void add(long ms) {
+            samples[pos] = ms;
+            pos = (pos + 1) % samples.length;
+            size = Math.min(size + 1, samples.length);
+            added++;
+            if (size >= MIN_SAMPLES && (cachedPercentile < 0 || added >= RECALCULATE_INTERVAL)) {
+                added = 0;
+                System.arraycopy(samples, 0, sorted, 0, size);
+                Arrays.sort(sorted, 0, size);
+                cachedPercentile = sorted[Math.min(size - 1, (int) Math.ceil(percentile / 100.0 * size) - 1)];
+            }
+        }
+
+        /**
+         * @return the percentile of the response times in the window, as of the last recalculation, or -1 if
+         *         there are less than {@link #MIN_SAMPLES} samples.
+         */
+        long getPercentile() {
+            return cachedPercentile;
+        }
+    }
+}
@@ -0,0 +1,457 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import dk.kb.likealook.config.ServiceConfig;
+import dk.kb.likealook.model.SimilarResponseDto;
+import dk.kb.util.yaml.YAML;
+import dk.kb.webservice.exception.InvalidArgumentServiceException;
+import dk.kb.webservice.exception.NotFoundServiceException;
+import org.apache.cxf.jaxrs.ext.multipart.Attachment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.StreamingOutput;
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Similarity search for many images in a single request.
+ *
+ * The inputs are read sequentially by the requesting thread while the searches, including image decoding, face
+ * detection and feature extraction, are performed by a shared pool of threads. The responses are streamed as
+ * <a href="http://ndjson.org/">newline delimited JSON</a>, one {@link SimilarResponseDto} for each input, in the
+ * order that the searches complete. A failed search does not stop the batch: The response for the input has no
+ * elements and a technote describing the problem.
+ *
+ * The names given by the client, such as file names, are only used as labels: They are returned as sourceID in the
+ * responses, while the images are stored under generated IDs, so that batches cannot overwrite each other's
+ * ephemerals.
+ *
+ * Settings are under {@code .likealook.batch}, see {@code like-a-look-behaviour.yaml} for details.
+ */
+public class BatchHandler {
+    private static final Logger log = LoggerFactory.getLogger(BatchHandler.class);
+
+    public static final String BATCH_KEY = ".likealook.batch";
+    public static final String THREADS_KEY = ".threads";
+    public static final int THREADS_DEFAULT = 0; // 0 = number of processors
+    public static final String INFLIGHT_KEY = ".inflight";
+    public static final int INFLIGHT_DEFAULT = 0; // 0 = 2 * threads
+    public static final String ZIP_MAXENTRIES_KEY = ".zip.maxentries";
+    public static final int ZIP_MAXENTRIES_DEFAULT = 1000;
+    public static final String ZIP_MAXENTRYMB_KEY = ".zip.maxentrymb";
+    public static final int ZIP_MAXENTRYMB_DEFAULT = 50;
+
+    private static final byte[] ZIP_MAGIC = new byte[]{'P', 'K', 3, 4};
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private static BatchHandler instance;
+
+    private final ExecutorService executor;
+    private final int threads;
+    private final int inflight;
+    private final int zipMaxEntries;
+    private final int zipMaxEntryBytes;
+
+    public static synchronized BatchHandler getInstance() {
+        if (instance == null) {
+            instance = new BatchHandler();
+        }
+        return instance;
+    }
+
+    public BatchHandler() {
+        this(ServiceConfig.getConfig());
+    }
+    public BatchHandler(YAML config) {
+        int threads = config.getInteger(BATCH_KEY + THREADS_KEY, THREADS_DEFAULT);
+        this.threads = threads <= 0 ? Runtime.getRuntime().availableProcessors() : threads;
+        int inflight = config.getInteger(BATCH_KEY + INFLIGHT_KEY, INFLIGHT_DEFAULT);
+        this.inflight = inflight <= 0 ? 2 * this.threads : inflight;
+        zipMaxEntries = config.getInteger(BATCH_KEY + ZIP_MAXENTRIES_KEY, ZIP_MAXENTRIES_DEFAULT);
+        zipMaxEntryBytes = (int) Math.min(Integer.MAX_VALUE - 8, config.getInteger(
+                BATCH_KEY + ZIP_MAXENTRYMB_KEY, ZIP_MAXENTRYMB_DEFAULT) * 1024L * 1024);
+        AtomicInteger threadCount = new AtomicInteger(0);
+        executor = Executors.newFixedThreadPool(this.threads, runnable -> {
+            Thread thread = new Thread(runnable, "batch-search-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        log.info("Created " + this);
+    }
+
+    /**
+     * Stop the threads. Called when the service is shut down.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.executor.shutdownNow();
+            instance = null;
+        }
+    }
+
+    /**
+     * Search for similar images for all inputs. The search is performed when the result is written.
+     * @param inputs   the images to search for. These are closed after use.
+     * @param searcher performs the search for a single image.
+     * @return a stream of newline delimited JSON, with a {@link SimilarResponseDto} for each input.
+     */
+    public static StreamingOutput findSimilar(Inputs inputs, ImageSearcher searcher) {
+        return out -> getInstance().process(inputs, searcher, out);
+    }
+
+    private void process(Inputs inputs, ImageSearcher searcher, OutputStream out) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        CompletionService<SimilarResponseDto> completion = new ExecutorCompletionService<>(executor);
+        Set<Future<SimilarResponseDto>> pending = new HashSet<>();
+        int processed = 0;
+        try (Inputs autoClose = inputs) {
+            Input input;
+            while ((input = inputs.next()) != null) {
+                // Only a limited number of inputs are read ahead, as they might be held in memory
+                while (pending.size() >= inflight) {
+                    writeNext(completion, pending, out);
+                    processed++;
+                }
+                final Input job = input;
+                pending.add(completion.submit(() -> search(job, searcher)));
+                // Deliver finished responses as soon as possible
+                Future<SimilarResponseDto> done;
+                while ((done = completion.poll()) != null) {
+                    write(done, pending, out);
+                    processed++;
+                }
+            }
+            while (!pending.isEmpty()) {
+                writeNext(completion, pending, out);
+                processed++;
+            }
+        } finally {
+            // No-op if everything was written. Frees up the threads if the client disconnected
+            pending.forEach(future -> future.cancel(true));
+        }
+        log.debug("Processed batch of {} images in {}ms", processed, System.currentTimeMillis()-startTime);
+    }
+
+    private static SimilarResponseDto search(Input input, ImageSearcher searcher) {
+        try (InputStream image = input.open()) {
+            if (image == null) {
+                throw new NotFoundServiceException("The image '" + input.getLabel() + "' could not be located");
+            }
+            return searcher.findSimilar(image).sourceID(input.getLabel());
+        } catch (Exception e) {
+            log.warn("Unable to find similar images for '" + input.getLabel() + "' in batch", e);
+            return new SimilarResponseDto()
+                    .sourceID(input.getLabel())
+                    .elements(Collections.emptyList())
+                    .technote("Error: " + e.getMessage());
+        }
+    }
+
+    private void writeNext(CompletionService<SimilarResponseDto> completion,
+                           Set<Future<SimilarResponseDto>> pending, OutputStream out) throws IOException {
+        try {
+            write(completion.take(), pending, out);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for batch search", e);
+        }
+    }
+
+    private void write(Future<SimilarResponseDto> done,
+                       Set<Future<SimilarResponseDto>> pending, OutputStream out) throws IOException {
+        pending.remove(done);
+        SimilarResponseDto response;
+        try {
+            response = done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for batch search", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Unexpected exception from batch search", e.getCause()); // search catches all
+        }
+        out.write(mapper.writeValueAsBytes(response));
+        out.write('\n');
+        out.flush();
+    }
+
+    /**
+     * Create inputs from uploaded images. ZIP files are expanded, with each entry being an image.
+     * The labels are the file names of the uploads or the ZIP entries. Uploads without a file name get the
+     * label {@code attachment_<index>}, where index is the position of the upload, starting from 0.
+     * @param attachments uploaded images and/or ZIP files with images.
+     * @return the images as inputs for a batch.
+     */
+    public static Inputs fromAttachments(List<Attachment> attachments) {
+        Iterator<Attachment> attachmentIterator = attachments.iterator();
+        return new Inputs() {
+            private Inputs zipInputs = null;
+            private int index = 0;
+
+            @Override
+            public Input next() throws IOException {
+                while (true) {
+                    if (zipInputs != null) {
+                        Input input = zipInputs.next();
+                        if (input != null) {
+                            return input;
+                        }
+                        zipInputs.close();
+                        zipInputs = null;
+                    }
+                    if (!attachmentIterator.hasNext()) {
+                        return null;
+                    }
+                    Attachment attachment = attachmentIterator.next();
+                    final int attachmentIndex = index++;
+                    String label = attachment.getContentDisposition() == null ? null :
+                            attachment.getContentDisposition().getFilename();
+                    if (label == null || label.isBlank()) {
+                        label = "attachment_" + attachmentIndex;
+                    }
+                    InputStream content = new BufferedInputStream(attachment.getDataHandler().getInputStream());
+                    if (isZIP(content)) {
+                        zipInputs = fromZIP(content);
+                    } else {
+                        return new Input(label, () -> content);
+                    }
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (zipInputs != null) {
+                    zipInputs.close();
+                }
+            }
+        };
+    }
+
+    /**
+     * Create inputs from the entries in a ZIP file, limited by {@code .likealook.batch.zip}.
+     * @param zip a stream with a ZIP file.
+     * @return the images in the ZIP file as inputs for a batch.
+     * @see #fromZIP(InputStream, int, int)
+     */
+    static Inputs fromZIP(InputStream zip) {
+        BatchHandler handler = getInstance();
+        return fromZIP(zip, handler.zipMaxEntries, handler.zipMaxEntryBytes);
+    }
+
+    /**
+     * Create inputs from the entries in a ZIP file. The labels are the entry names.
+     * As the ZIP stream is sequential, the content of each entry is read into memory by {@link Inputs#next()}.
+     * The stated size of an entry is not trusted, as the client controls it: Entries that inflate to more than
+     * maxEntryBytes give an error response instead of being read. If there are more than maxEntries entries, a
+     * single error response is given for the rest of the ZIP file.
+     * @param zip           a stream with a ZIP file.
+     * @param maxEntries    the maximum number of images to read from the ZIP file.
+     * @param maxEntryBytes the maximum size of a single image in the ZIP file.
+     * @return the images in the ZIP file as inputs for a batch.
+     */
+    static Inputs fromZIP(InputStream zip, int maxEntries, int maxEntryBytes) {
+        ZipInputStream zipStream = new ZipInputStream(zip);
+        return new Inputs() {
+            private int entries = 0;
+
+            @Override
+            public Input next() throws IOException {
+                if (entries > maxEntries) {
+                    return null;
+                }
+                ZipEntry entry;
+                while ((entry = zipStream.getNextEntry()) != null) {
+                    if (entry.isDirectory()) {
+                        continue;
+                    }
+                    final String label = entry.getName();
+                    if (++entries > maxEntries) {
+                        return new Input(label, () -> {
+                            throw new InvalidArgumentServiceException(
+                                    "The ZIP file has more than the maximum of " + maxEntries + " images. " +
+                                    "This and the following entries were skipped");
+                        });
+                    }
+                    final Upload content;
+                    try {
+                        content = Upload.read(zipStream, entry.getSize(), maxEntryBytes);
+                    } catch (IOException e) {
+                        // The rest of the entry is skipped by getNextEntry
+                        log.debug("Unable to read ZIP entry '{}': {}", label, e.getMessage());
+                        return new Input(label, () -> {
+                            throw new InvalidArgumentServiceException(
+                                    "Unable to read the ZIP entry: " + e.getMessage());
+                        });
+                    }
+                    return new Input(label, content::openStream);
+                }
+                return null;
+            }
+
+            @Override
+            public void close() throws IOException {
+                zipStream.close();
+            }
+        };
+    }
+
+    /**
+     * Create inputs from resources available from {@link ResourceHandler}, such as ephemerals from earlier calls.
+     * @param resourceIDs a list of resource IDs, separated by comma or whitespace. The IDs are used as labels.
+     * @return the resources as inputs for a batch.
+     */
+    public static Inputs fromResources(String resourceIDs) {
+        Iterator<String> ids = Arrays.stream(resourceIDs.split("[,\\s]+"))
+                .filter(id -> !id.isEmpty())
+                .collect(Collectors.toList()).iterator();
+        return new Inputs() {
+            @Override
+            public Input next() {
+                if (!ids.hasNext()) {
+                    return null;
+                }
+                String id = ids.next();
+                return new Input(id, () -> ResourceHandler.getResource(id));
+            }
+
+            @Override
+            public void close() { }
+        };
+    }
+
+    /**
+     * Concatenate inputs, reading them one after another.
+     * @param inputs zero or more inputs.
+     * @return all the inputs.
+     */
+    public static Inputs concat(Inputs... inputs) {
+        return new Inputs() {
+            private int current = 0;
+
+            @Override
+            public Input next() throws IOException {
+                for ( ; current < inputs.length ; current++) {
+                    Input input = inputs[current].next();
+                    if (input != null) {
+                        return input;
+                    }
+                }
+                return null;
+            }
+
+            @Override
+            public void close() throws IOException {
+                for (Inputs input: inputs) {
+                    input.close();
+                }
+            }
+        };
+    }
+
+    private static boolean isZIP(InputStream content) throws IOException {
+        content.mark(ZIP_MAGIC.length);
+        byte[] magic = content.readNBytes(ZIP_MAGIC.length);
+        content.reset();
+        return Arrays.equals(ZIP_MAGIC, magic);
+    }
+
+    /**
+     * Performs similarity search for a single image.
+     */
+    @FunctionalInterface
+    public interface ImageSearcher {
+        /**
+         * Names from the client are not passed on: If the image is stored, it must be under a generated ID.
+         * The sourceID of the returned response is replaced with the label of the input.
+         * @param image the image to search for.
+         * @return the similar images.
+         */
+        SimilarResponseDto findSimilar(InputStream image);
+    }
+
+    /**
+     * Sequential access to the images in a batch.
+     */
+    public interface Inputs extends Closeable {
+        /**
+         * @return the next image in the batch or null if there are no more images.
+         * @throws IOException if the next image could not be read.
+         */
+        Input next() throws IOException;
+    }
+
+    /**
+     * Delayed access to a single image. The image is opened by the thread performing the search.
+     */
+    @FunctionalInterface
+    public interface ImageOpener {
+        /**
+         * @return the image or null if it could not be located.
+         */
+        InputStream open() throws IOException;
+    }
+
+    /**
+     * A single image in a batch.
+     */
+    public static class Input {
+        private final String label;
+        private final ImageOpener opener;
+
+        /**
+         * @param label  the name for the image given by the client, returned as sourceID in the response.
+         * @param opener delivers the image.
+         */
+        public Input(String label, ImageOpener opener) {
+            this.label = label;
+            this.opener = opener;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+
+        public InputStream open() throws IOException {
+            return opener.open();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "BatchHandler(threads=" + threads + ", inflight=" + inflight + ", zipMaxEntries=" + zipMaxEntries +
+               ", zipMaxEntryBytes=" + zipMaxEntryBytes + ")";
+    }
+}
@@ -0,0 +1,222 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.webservice.exception.ServiceUnavailableServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Guards calls to a remote backend with a circuit breaker and a bulkhead.
+ *
+ * The circuit breaker is {@link State#closed} during normal operation. After {@code failureThreshold} consecutive
+ * failures it becomes {@link State#open} and all calls are rejected for {@code openMS} milliseconds. After that
+ * it becomes {@link State#half_open}, where a single probe call is allowed: If the probe succeeds the breaker is
+ * closed, if it fails the breaker is opened again.
+ *
+ * The bulkhead limits the number of concurrent calls to the backend. Calls exceeding the limit are rejected
+ * instead of waiting, so that a stalled backend does not tie up all request threads in the web server.
+ *
+ * Rejected calls result in a {@link ServiceUnavailableServiceException} (HTTP 503).
+ *
+ * The class is thread safe.
+ */
+public class CircuitBreaker {
+    private static final Logger log = LoggerFactory.getLogger(CircuitBreaker.class);
+
+    public static final String MAX_INFLIGHT_KEY = ".maxinflight";
+    public static final int MAX_INFLIGHT_DEFAULT = 20;
+    public static final String FAILURES_KEY = ".breaker.failures";
+    public static final int FAILURES_DEFAULT = 5;
+    public static final String OPEN_TIME_KEY = ".breaker.opentime";
+    public static final int OPEN_TIME_DEFAULT = 10*1000; // ms
+
+    public enum State {closed, open, half_open}
+
+    private final String name;
+    private final int maxInflight;
+    private final int failureThreshold;
+    private final long openMS;
+    private final Semaphore inflight;
+
+    // Guarded by this
+    private State state = State.closed;
+    private int consecutiveFailures = 0;
+    private long openedAt = 0;
+    private boolean probing = false;
+
+    private final AtomicInteger outstanding = new AtomicInteger(0);
+    private final AtomicLong successes = new AtomicLong(0);
+    private final AtomicLong failures = new AtomicLong(0);
+    private final AtomicLong rejectedOpen = new AtomicLong(0);
+    private final AtomicLong rejectedFull = new AtomicLong(0);
+    private final AtomicLong trips = new AtomicLong(0);
+
+    /**
+     * @param name             human readable name for the backend, used for logging and error messages.
+     * @param maxInflight      the maximum number of concurrent calls. 0 means no limit.
+     * @param failureThreshold the number of consecutive failures before the breaker opens. 0 disables the breaker.
+     * @param openMS           the number of milliseconds the breaker stays open before allowing a probe call.
+     */
+    public CircuitBreaker(String name, int maxInflight, int failureThreshold, int openMS) {
+        this.name = name;
+        this.maxInflight = maxInflight;
+        this.failureThreshold = failureThreshold;
+        this.openMS = openMS;
+        this.inflight = new Semaphore(maxInflight <= 0 ? Integer.MAX_VALUE : maxInflight);
+    }
+
+    /**
+     * Request permission for a call. If permission is given, exactly one of {@link #success()} or
+     * {@link #failure()} must be called when the call has finished.
+     * @throws ServiceUnavailableServiceException if the breaker is open or the maximum number of concurrent calls
+     *                                            has been reached.
+     */
+    public void acquire() {
+        synchronized (this) {
+            if (state == State.open) {
+                if (System.currentTimeMillis() - openedAt < openMS) {
+                    throw reject(rejectedOpen, "circuit breaker is open");
+                }
+                changeState(State.half_open);
+            }
+            if (state == State.half_open) {
+                if (probing) {
+                    throw reject(rejectedOpen, "circuit breaker is half open and waiting for probe call");
+                }
+                probing = true;
+            }
+        }
+        if (!inflight.tryAcquire()) {
+            synchronized (this) {
+                probing = false;
+            }
+            throw reject(rejectedFull, "the limit of " + maxInflight + " concurrent calls has been reached");
+        }
+        outstanding.incrementAndGet();
+    }
+
+    /**
+     * Mark a call, acquired with {@link #acquire()}, as successful.
+     */
+    public void success() {
+        outstanding.decrementAndGet();
+        inflight.release();
+        successes.incrementAndGet();
+        synchronized (this) {
+            consecutiveFailures = 0;
+            if (state != State.closed) {
+                probing = false;
+                changeState(State.closed);
+            }
+        }
+    }
+
+    /**
+     * Mark a call, acquired with {@link #acquire()}, as failed.
+     */
+    public void failure() {
+        outstanding.decrementAndGet();
+        inflight.release();
+        failures.incrementAndGet();
+        synchronized (this) {
+            consecutiveFailures++;
+            if (state == State.half_open ||
+                (state == State.closed && failureThreshold > 0 && consecutiveFailures >= failureThreshold)) {
+                probing = false;
+                openedAt = System.currentTimeMillis();
+                trips.incrementAndGet();
+                changeState(State.open);
+            }
+        }
+    }
+
+    /**
+     * @return the current state of the breaker. An open breaker is reported as open until a call is attempted
+     *         after the open time has passed.
+     */
+    public synchronized State getState() {
+        return state;
+    }
+
+    /**
+     * @return true if a call is expected to be permitted by {@link #acquire()}: The breaker is closed or ready for
+     *         a probe call and the maximum number of concurrent calls has not been reached.
+     */
+    public synchronized boolean isAvailable() {
+        switch (state) {
+            case open: return System.currentTimeMillis() - openedAt >= openMS;
+            case half_open: return !probing;
+            default: return maxInflight <= 0 || outstanding.get() < maxInflight;
+        }
+    }
+
+    /**
+     * @return the number of calls currently in progress.
+     */
+    public int getInflight() {
+        return outstanding.get();
+    }
+
+    /**
+     * @return the number of calls rejected because the breaker was open or the concurrency limit was reached.
+     */
+    public long getRejected() {
+        return rejectedOpen.get() + rejectedFull.get();
+    }
+
+    /**
+     * @return the number of times the breaker has opened.
+     */
+    public long getTrips() {
+        return trips.get();
+    }
+
+    private void changeState(State newState) {
+        if (newState == State.open) {
+            log.warn("Circuit breaker for {} changed from {} to {} after {} consecutive failures. Calls will be " +
+                     "rejected for {}ms. {}", name, state, newState, consecutiveFailures, openMS, getStats());
+        } else {
+            log.info("Circuit breaker for {} changed from {} to {}. {}", name, state, newState, getStats());
+        }
+        state = newState;
+    }
+
+    private ServiceUnavailableServiceException reject(AtomicLong counter, String reason) {
+        long rejected = counter.incrementAndGet();
+        log.debug("Rejected call to {} as {} ({} rejected)", name, reason, rejected);
+        return new ServiceUnavailableServiceException(
+                "The backend " + name + " is temporarily unavailable as " + reason);
+    }
+
+    /**
+     * @return human readable statistics for the breaker.
+     */
+    public String getStats() {
+        return "successes=" + successes.get() + ", failures=" + failures.get() + ", trips=" + trips.get() +
+               ", rejectedOpen=" + rejectedOpen.get() + ", rejectedFull=" + rejectedFull.get() +
+               ", inflight=" + getInflight();
+    }
+
+    @Override
+    public String toString() {
+        return "CircuitBreaker(name='" + name + "', state=" + getState() + ", maxInflight=" + maxInflight +
+               ", failureThreshold=" + failureThreshold + ", openTime=" + openMS + "ms, " + getStats() + ")";
+    }
+}
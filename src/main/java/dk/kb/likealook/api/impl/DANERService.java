@@ -18,9 +18,13 @@ import dk.kb.likealook.config.ServiceConfig;
 import dk.kb.likealook.model.ElementDto;
 import dk.kb.likealook.model.SimilarDto;
 import dk.kb.likealook.model.SimilarResponseDto;
+import dk.kb.likealook.similar.TopK;
 import dk.kb.util.yaml.YAML;
 import dk.kb.webservice.exception.InternalServiceException;
 import dk.kb.webservice.exception.InvalidArgumentServiceException;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
 import org.apache.cxf.helpers.IOUtils;
 import org.apache.http.client.utils.URIBuilder;
 import org.json.JSONArray;
@@ -31,22 +35,20 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.net.HttpURLConnection;
-import java.net.MalformedURLException;
-import java.net.ProtocolException;
+import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
-import java.net.URLConnection;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
 import java.util.Random;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
-import java.util.stream.StreamSupport;
 
 /**
  * Special purpose implementation for the DANER project.
@@ -61,21 +63,47 @@ public class DANERService {
     public static final String MOCK_MODE_KEY = ".implementation"; // mock / remote
     public static final String MOCK_MODE_DEFAULT = "mock";
 
-    public static final String REMOTE_V1_SERVICE_KEY = ".remote.url";
-    public static final String REMOTE_V1_SERVICE_DEFAULT = null;
+    // Multiple URLs, timeouts, concurrency limit, circuit breaker and hedging.
+    // Keys and defaults are in BackendPool, RemoteBackend and CircuitBreaker
+    public static final String REMOTE_V1_KEY = ".remote";
+    public static final String REMOTE_V2_KEY = ".remote2";
 
-    public static final String REMOTE_V2_SERVICE_KEY = ".remote2.url";
-    public static final String REMOTE_V2_SERVICE_DEFAULT = null;
+    // url: The remote service fetches the image from the ephemeral sourceURL. push: The image is sent to the service
+    public static final String REMOTE_V1_MODE_KEY = ".remote.mode";
+    public static final String REMOTE_V2_MODE_KEY = ".remote2.mode";
+    public static final String REMOTE_MODE_DEFAULT = "url";
+
+    public static final String PUSH_CONTENT_TYPE = "application/octet-stream";
+
+    public static final String EPHEMERAL_KEY = ".ephemeral";
+    public static final boolean EPHEMERAL_DEFAULT = true;
 
     public static final String REMOTE_IMAGEURL_KEY = "imageurl";
 
+    public static final String CACHE_TIMEOUT_KEY = ".cache.timeout";
+    public static final int CACHE_TIMEOUT_DEFAULT = 10*60; // seconds
+    public static final String CACHE_ENTRIES_KEY = ".cache.entries";
+    public static final int CACHE_ENTRIES_DEFAULT = 1000;
+    public static final String STATS_INTERVAL_KEY = ".stats.interval";
+    public static final int STATS_INTERVAL_DEFAULT = 5*60; // seconds
+
     public enum IMPLEMENTATION {mock, remote}
+    public enum REMOTE_MODE {url, push}
+
+    private static final JsonFactory jsonFactory = new JsonFactory();
 
     private static DANERService instance;
 
     private final IMPLEMENTATION implementation;
-    private final String remoteURL;
-    private final String remoteURL2;
+    private final BackendPool remote;
+    private final BackendPool remote2;
+    private final REMOTE_MODE remoteMode;
+    private final REMOTE_MODE remoteMode2;
+    private final boolean ephemeral;
+    private final SimilarCache cache;
+    private final ScheduledExecutorService statsLogger;
+    private String lastStatistics = null;
+    private final SingleFlight<String, SimilarResponseDto> singleFlight = new SingleFlight<>("DANERService");
 
     public static DANERService getInstance() {
         if (instance == null) {
@@ -91,45 +119,182 @@ public class DANERService {
         if (!config.containsKey(DANER_KEY)) {
             log.info("Skipping setup of DANERService as '{}' does not exist in configuration", DANER_KEY);
             implementation = null;
-            remoteURL = null;
-            remoteURL2 = null;
+            remote = null;
+            remote2 = null;
+            remoteMode = REMOTE_MODE.url;
+            remoteMode2 = REMOTE_MODE.url;
+            ephemeral = EPHEMERAL_DEFAULT;
+            cache = new SimilarCache(0, 0);
+            statsLogger = null;
             return;
         }
 
         YAML danerConf = config.getSubMap(DANER_KEY);
         implementation = IMPLEMENTATION.valueOf(danerConf.getString(MOCK_MODE_KEY, MOCK_MODE_DEFAULT));
-        remoteURL = danerConf.getString(REMOTE_V1_SERVICE_KEY, REMOTE_V1_SERVICE_DEFAULT);
-        remoteURL2 = danerConf.getString(REMOTE_V2_SERVICE_KEY, REMOTE_V2_SERVICE_DEFAULT);
+        remote = BackendPool.create("daner_v1", danerConf, REMOTE_V1_KEY);
+        remote2 = BackendPool.create("daner_v2", danerConf, REMOTE_V2_KEY);
+        remoteMode = REMOTE_MODE.valueOf(danerConf.getString(REMOTE_V1_MODE_KEY, REMOTE_MODE_DEFAULT));
+        remoteMode2 = REMOTE_MODE.valueOf(danerConf.getString(REMOTE_V2_MODE_KEY, REMOTE_MODE_DEFAULT));
+        ephemeral = danerConf.getBoolean(EPHEMERAL_KEY, EPHEMERAL_DEFAULT);
+        cache = new SimilarCache(danerConf.getInteger(CACHE_TIMEOUT_KEY, CACHE_TIMEOUT_DEFAULT),
+                                 danerConf.getInteger(CACHE_ENTRIES_KEY, CACHE_ENTRIES_DEFAULT));
+        int statsInterval = danerConf.getInteger(STATS_INTERVAL_KEY, STATS_INTERVAL_DEFAULT);
+        if (statsInterval > 0) {
+            statsLogger = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "daner-stats");
+                thread.setDaemon(true);
+                return thread;
+            });
+            statsLogger.scheduleWithFixedDelay(this::logStatistics, statsInterval, statsInterval, TimeUnit.SECONDS);
+        } else {
+            statsLogger = null;
+        }
         log.info("Created " + this);
     }
 
+    /**
+     * Stop the logging of statistics. Called when the service is shut down.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            if (instance.statsLogger != null) {
+                instance.statsLogger.shutdownNow();
+            }
+            instance = null;
+        }
+    }
+
+    /**
+     * @return the counters for the cache of remote results and for the coalescing of identical remote calls,
+     *         in human readable form.
+     */
+    String getStatistics() {
+        final long hits = cache.getHits();
+        final long lookups = hits + cache.getMisses();
+        return "cache hits=" + hits + ", misses=" + (lookups - hits) +
+               ", hitRate=" + (lookups == 0 ? 0 : hits * 100 / lookups) + "%, entries=" + cache.size() +
+               ", remote calls executed=" + singleFlight.getExecuted() +
+               ", coalesced=" + singleFlight.getCoalesced() + ", inFlight=" + singleFlight.getInFlight();
+    }
+
+    /**
+     * Log the statistics at INFO level if they changed since last time.
+     */
+    private void logStatistics() {
+        String statistics = getStatistics();
+        if (!statistics.equals(lastStatistics)) {
+            log.info("DANERService statistics: {}", statistics);
+            lastStatistics = statistics;
+        }
+    }
+
     public static SimilarResponseDto findSimilar(
             String collection, InputStream imageStream, String sourceID, Integer maxMatches) {
+        return findSimilar(collection, imageStream, sourceID, maxMatches, RequestDeadline.fromNow());
+    }
+
+    /**
+     * Find similar images in one of the DANER collections.
+     * @param collection  {@code daner_mock}, {@code daner_v1} or {@code daner_v2}.
+     * @param imageStream the image to find similars for. Not used for {@code daner_mock}.
+     * @param sourceID    optional ID for the image.
+     * @param maxMatches  the maximum number of similars for each face.
+     * @param deadline    the time, as {@link System#currentTimeMillis()}, where processing is abandoned.
+     * @return the similars for each face in the image.
+     * @throws dk.kb.webservice.exception.TimeoutServiceException if the deadline was exceeded.
+     */
+    public static SimilarResponseDto findSimilar(
+            String collection, InputStream imageStream, String sourceID, Integer maxMatches, long deadline) {
+        return findSimilar(collection, imageStream == null ? null : Upload.read(imageStream),
+                           sourceID, maxMatches, deadline);
+    }
+
+    /**
+     * Find similar images in one of the DANER collections.
+     * @param collection  {@code daner_mock}, {@code daner_v1} or {@code daner_v2}.
+     * @param upload      the image to find similars for. Not used for {@code daner_mock}.
+     * @param sourceID    optional ID for the image.
+     * @param maxMatches  the maximum number of similars for each face.
+     * @param deadline    the time, as {@link System#currentTimeMillis()}, where processing is abandoned.
+     * @return the similars for each face in the image.
+     * @throws dk.kb.webservice.exception.TimeoutServiceException if the deadline was exceeded.
+     */
+    public static SimilarResponseDto findSimilar(
+            String collection, Upload upload, String sourceID, Integer maxMatches, long deadline) {
         log.info("findSimilar(collection={}, ..., sourceID={}, maxMatches={}) called",
                  collection, sourceID, maxMatches);
 
         maxMatches = maxMatches == null ? 10 : maxMatches;
+        if (maxMatches < 1) {
+            throw new InvalidArgumentServiceException("maxMatches must be at least 1 but was " + maxMatches);
+        }
 
         switch (collection) {
             case "daner_mock": return findSimilarMock(sourceID, maxMatches);
             case "daner_v1":
             case "daner_v2": {
-                try {
+                if (upload == null) {
+                    throw new InvalidArgumentServiceException("An image must be uploaded for '" + collection + "'");
+                }
+                final byte[] image = upload.getContent();
+                RequestDeadline.check(deadline, "reading the uploaded image");
+                final boolean push = ("daner_v1".equals(collection) ?
+                        getInstance().remoteMode : getInstance().remoteMode2) == REMOTE_MODE.push;
+                // In url mode the remote service fetches the ephemeral. In push mode it is only used for display.
+                // In fetch once mode the remote service gets single use URLs and the ephemeral is only for display
+                final boolean fetchOnce = !push && ResourceHandler.isFetchOnce();
+                String sourceURL = null;
+                if (fetchOnce) {
+                    String displayID = ResourceHandler.createDisplayEphemeral(sourceID, upload);
+                    if (displayID != null) {
+                        sourceID = displayID;
+                        sourceURL = ResourceHandler.getResourceURL(ResourceHandler.EPHEMERAL + "/" + sourceID);
+                    }
+                    RequestDeadline.check(deadline, "storing the ephemeral image");
+                } else if (!push || getInstance().ephemeral) {
                     // TODO: Append image extension (jpg/png)
                     sourceID = sourceID == null || sourceID.isBlank() ?
-                            ResourceHandler.createEphemeral(imageStream) :
-                            ResourceHandler.createEphemeral(sourceID, imageStream);
-                } catch (IOException e) {
-                    String message = "findSimilarDANER encountered IOException while reading source image";
-                    log.warn(message, e);
-                    throw new InvalidArgumentServiceException(message, e);
+                            ResourceHandler.createEphemeral(upload) :
+                            ResourceHandler.createEphemeral(sourceID, upload);
+                    sourceURL = ResourceHandler.getResourceURL(ResourceHandler.EPHEMERAL + "/" + sourceID);
+                    RequestDeadline.check(deadline, "storing the ephemeral image");
                 }
 
-                //byte[] sourceImage = ResourceHandler.getEphemeral(sourceID).getContent();
-                final String sourceURL = ResourceHandler.getResourceURL(ResourceHandler.EPHEMERAL + "/" + sourceID);
-                return "daner_v1".equals(collection) ?
-                        findSimilarRemoteMulti(sourceID, sourceURL, maxMatches) :
-                        findSimilarRemoteMultiV2(sourceID, sourceURL, maxMatches);
+                final String imageHash = upload.getSHA256();
+                SimilarResponseDto cached = getInstance().cache.get(collection, imageHash, maxMatches);
+                if (cached != null) {
+                    return cached
+                            .sourceID(sourceID)
+                            .sourceURL(sourceURL)
+                            .technote(cached.getTechnote() + " (cached)");
+                }
+                // Identical concurrent requests shares a single remote call
+                final String requestSourceID = sourceID;
+                final String requestSourceURL = sourceURL;
+                final int requestMaxMatches = maxMatches;
+                SingleFlight.Result<SimilarResponseDto> result = getInstance().singleFlight.execute(
+                        collection + ":" + imageHash + ":" + maxMatches, () -> {
+                            // Single use URLs that are not fetched, e.g. due to timeouts, are removed when done
+                            try (ResourceHandler.FetchTokens tokens =
+                                         fetchOnce ? ResourceHandler.createFetchTokens(upload) : null) {
+                                Supplier<String> imageURL = tokens == null ? () -> requestSourceURL : tokens::nextURL;
+                                SimilarResponseDto remoteResponse = "daner_v1".equals(collection) ?
+                                        findSimilarRemoteMulti(requestSourceID, requestSourceURL, imageURL,
+                                                               push ? image : null, requestMaxMatches, deadline) :
+                                        findSimilarRemoteMultiV2(requestSourceID, requestSourceURL, imageURL,
+                                                                 push ? image : null, requestMaxMatches, deadline);
+                                getInstance().cache.put(collection, imageHash, requestMaxMatches, remoteResponse);
+                                return remoteResponse;
+                            }
+                        }, deadline);
+                SimilarResponseDto response = result.getValue();
+                if (!result.isLeader()) { // The response is shared with the leader and must not be modified
+                    return SimilarCache.copy(response, maxMatches)
+                            .sourceID(sourceID)
+                            .sourceURL(sourceURL)
+                            .technote(response.getTechnote() + " (coalesced)");
+                }
+                return response;
             }
             default: throw new InternalServiceException("DANER implementation '" + collection + "' is not known");
         }
@@ -193,201 +358,284 @@ public class DANERService {
     /* ************************************************************************************************************** */
 
     static SimilarResponseDto findSimilarRemoteMultiV2(String sourceID, String sourceURL, Integer maxMatches) {
-        if (getInstance().remoteURL2 == null) {
+        return findSimilarRemoteMultiV2(sourceID, sourceURL, null, maxMatches, RequestDeadline.fromNow());
+    }
+
+    /**
+     * Call the v2 service.
+     * @param sourceID   the ID for the image.
+     * @param sourceURL  the URL for the image. Used by the remote service if image is null.
+     * @param image      if not null, the image is sent to the remote service in the request body.
+     * @param maxMatches the maximum number of similars for each face.
+     * @param deadline   the time, as {@link System#currentTimeMillis()}, where the call is abandoned.
+     * @return the similars for each face in the image.
+     */
+    static SimilarResponseDto findSimilarRemoteMultiV2(
+            String sourceID, String sourceURL, byte[] image, Integer maxMatches, long deadline) {
+        return findSimilarRemoteMultiV2(sourceID, sourceURL, () -> sourceURL, image, maxMatches, deadline);
+    }
+
+    /**
+     * Call the v2 service.
+     * @param sourceID   the ID for the image.
+     * @param sourceURL  the URL for displaying the image.
+     * @param imageURL   delivers the URL for the image for each call to the remote service. Used if image is null.
+     * @param image      if not null, the image is sent to the remote service in the request body.
+     * @param maxMatches the maximum number of similars for each face.
+     * @param deadline   the time, as {@link System#currentTimeMillis()}, where the call is abandoned.
+     * @return the similars for each face in the image.
+     */
+    static SimilarResponseDto findSimilarRemoteMultiV2(
+            String sourceID, String sourceURL, Supplier<String> imageURL, byte[] image, Integer maxMatches,
+            long deadline) {
+        if (getInstance().remote2 == null) {
             throw new InternalServiceException("daner_v2 remote key is not configured");
         }
         return new SimilarResponseDto()
                 .sourceID(sourceID)
                 .sourceURL(sourceURL)
                 .technote("Facial similarity by daner_v2 (remote call to Java wrapped Wolfram script)")
-                .elements(multiResponseV2ToDto(httpGetRequestV2(sourceURL, maxMatches)));
+                .elements(multiResponseV2ToDto(httpRequestV2(imageURL, image, maxMatches, deadline), maxMatches,
+                                               deadline));
     }
 
-    private static InputStream httpGetRequestV2(String sourceURL, Integer maxMatches) {
+    private static InputStream httpRequestV2(
+            Supplier<String> imageURL, byte[] image, Integer maxMatches, long deadline) {
         // http://localhost:8234/daner-face-search/v1/similarFaces?imageURL=http%3A%2F%2Flocalhost%3A8234%2Fdaner-face-search%2Fthispersondoesnotexist.com.jpg&maxMatches=10
-        final URL getURL;
-        try {
-            URIBuilder urlBuilder = new URIBuilder(getInstance().remoteURL2).addParameter("imageURL", sourceURL);
-            if (maxMatches != null) {
-                urlBuilder.addParameter("maxMatches", maxMatches.toString());
+        Function<String, URI> uriBuilder = remoteURL -> {
+            String sourceURL = image == null ? imageURL.get() : null;
+            try {
+                URIBuilder urlBuilder = new URIBuilder(remoteURL);
+                if (image == null) {
+                    urlBuilder.addParameter("imageURL", sourceURL);
+                }
+                if (maxMatches != null) {
+                    urlBuilder.addParameter("maxMatches", maxMatches.toString());
+                }
+                return urlBuilder.build();
+            } catch (URISyntaxException e) {
+                throw new InternalServiceException(
+                        "Unable to build URL to remote call for image '" + sourceURL + "' and maxMatches " +
+                        maxMatches, e);
             }
-            getURL = urlBuilder.build().toURL();
-        } catch (URISyntaxException | MalformedURLException e) {
-            throw new InternalServiceException(
-                    "Unable to build URL to remote call for image '" + sourceURL + "' and maxMatches " + maxMatches, e);
-        }
-        log.debug("Calling HTTP GET for '" + getURL + "'");
-        //final String getURL = getInstance().remoteURL + "/?imageurl=http://localhost/pmd.png";
-        try {
-            URLConnection conn = getURL.openConnection();
-            return conn.getInputStream();
-        } catch (Exception e) {
-            log.warn("Exception calling '{}'", getURL, e);
-            throw new InternalServiceException("Exception calling '" + getURL + "'");
-        }
+        };
+        return image == null ?
+                getInstance().remote2.get(uriBuilder, deadline) :
+                getInstance().remote2.post(uriBuilder, image, PUSH_CONTENT_TYPE, deadline);
     }
 
-    private static List<ElementDto> multiResponseV2ToDto(InputStream response) {
-        JSONObject json;
-        try {
-            json = new JSONObject(IOUtils.toString(response, "utf-8"));
+    static List<ElementDto> multiResponseV2ToDto(InputStream response, int maxMatches) {
+        return multiResponseV2ToDto(response, maxMatches, RequestDeadline.fromNow());
+    }
+
+    static List<ElementDto> multiResponseV2ToDto(InputStream response, int maxMatches, long deadline) {
+        // {"technote":"Wolfram script through Java","imageURL":"http://localhost:8234/daner-face-search/thispersondoesnotexist.com.jpg","faces":[{"boundingBox":null,"similars":[{"distance":54.06735012891766,"id":"DP032144"},{"distance":54.07278819251751,"id":"DP010461"},{"distance":57.71844987155849,"id":"DP036224"},{"distance":57.75755779511265,"id":"DP039198"},{"distance":58.682492068468754,"id":"DP032419"},{"distance":59.09122417712019,"id":"DP014344"},{"distance":59.886375295850556,"id":"DP017944"},{"distance":60.3829732735677,"id":"DP017734"},{"distance":60.6063962670953,"id":"DP019333"},{"distance":61.03964990454093,"id":"DP011139"}],"index":0}]}
+        List<FaceMatches> faces = new ArrayList<>();
+        try (JsonParser json = jsonFactory.createParser(response)) {
+            expect(json, json.nextToken(), JsonToken.START_OBJECT);
+            while (json.nextToken() == JsonToken.FIELD_NAME) {
+                String field = json.getCurrentName();
+                JsonToken value = json.nextToken();
+                if ("faces".equals(field)) {
+                    expect(json, value, JsonToken.START_ARRAY);
+                    while (json.nextToken() == JsonToken.START_OBJECT) {
+                        faces.add(parseFaceV2(json, faces.size()));
+                    }
+                } else if ("error".equals(field)) {
+                    throw new InternalServiceException("daner_v2 returned error: " + json.getValueAsString());
+                } else {
+                    json.skipChildren();
+                }
+            }
         } catch (IOException e) {
-            throw logThrow("Error piping result from GET to external DANER service v2'"
-                           + getInstance().remoteURL2 + "'", e);
+            throw logThrow("Error parsing result from external DANER service v2 "
+                           + getInstance().remote2, e);
         }
-        // {"technote":"Wolfram script through Java","imageURL":"http://localhost:8234/daner-face-search/thispersondoesnotexist.com.jpg","faces":[{"boundingBox":null,"similars":[{"distance":54.06735012891766,"id":"DP032144"},{"distance":54.07278819251751,"id":"DP010461"},{"distance":57.71844987155849,"id":"DP036224"},{"distance":57.75755779511265,"id":"DP039198"},{"distance":58.682492068468754,"id":"DP032419"},{"distance":59.09122417712019,"id":"DP014344"},{"distance":59.886375295850556,"id":"DP017944"},{"distance":60.3829732735677,"id":"DP017734"},{"distance":60.6063962670953,"id":"DP019333"},{"distance":61.03964990454093,"id":"DP011139"}],"index":0}]}
-        return StreamSupport.stream(json.getJSONArray("faces").spliterator(), false)
-                .map(faceO -> jsonFaceToElementDto((JSONObject)faceO))
-                .collect(Collectors.toList());
+        return facesToElements(faces, maxMatches, deadline);
     }
 
     // TODO: Handle BoundingBox if present
-    private static ElementDto jsonFaceToElementDto(JSONObject face) {
+    private static FaceMatches parseFaceV2(JsonParser json, int defaultIndex) throws IOException {
         // {"boundingBox":null,"similars":[{"distance":54.06735012891766,"id":"DP032144"},{"distance":54.07278819251751,"id":"DP010461"},{"distance":57.71844987155849,"id":"DP036224"},{"distance":57.75755779511265,"id":"DP039198"},{"distance":58.682492068468754,"id":"DP032419"},{"distance":59.09122417712019,"id":"DP014344"},{"distance":59.886375295850556,"id":"DP017944"},{"distance":60.3829732735677,"id":"DP017734"},{"distance":60.6063962670953,"id":"DP019333"},{"distance":61.03964990454093,"id":"DP011139"}],"index":0}
-        return new ElementDto()
-                .index(face.getInt("index"))
-                .similars(StreamSupport.stream(face.getJSONArray("similars").spliterator(), false)
-                        .map(similarO -> jsonSimilarToSimilarDto((JSONObject)similarO))
-                        .collect(Collectors.toList()));
+        FaceMatches face = new FaceMatches(defaultIndex);
+        while (json.nextToken() == JsonToken.FIELD_NAME) {
+            String field = json.getCurrentName();
+            JsonToken value = json.nextToken();
+            if ("index".equals(field)) {
+                face.index = json.getIntValue();
+            } else if ("similars".equals(field)) {
+                expect(json, value, JsonToken.START_ARRAY);
+                parseMatches(json, face);
+            } else {
+                json.skipChildren();
+            }
+        }
+        return face;
     }
 
-    private static SimilarDto jsonSimilarToSimilarDto(JSONObject similar) {
-        // {"distance":54.06735012891766,"id":"DP032144"}
-        return DANERData.fillResponse(new SimilarDto().distance(similar.getDouble("distance")),
-                                      similar.getString("id"));
+    /**
+     * Parse an array of {@code {"id":"DP032144","distance":54.06735012891766}} into face.
+     * The parser must be positioned at the start of the array and will be positioned at the end of the array.
+     */
+    private static void parseMatches(JsonParser json, FaceMatches face) throws IOException {
+        while (json.nextToken() == JsonToken.START_OBJECT) {
+            String id = null;
+            double distance = Double.NaN;
+            while (json.nextToken() == JsonToken.FIELD_NAME) {
+                String field = json.getCurrentName();
+                json.nextToken();
+                if ("id".equals(field)) {
+                    id = json.getValueAsString();
+                } else if ("distance".equals(field)) {
+                    distance = json.getDoubleValue();
+                } else {
+                    json.skipChildren();
+                }
+            }
+            if (id == null || Double.isNaN(distance)) {
+                throw new IOException("Expected both id and distance for match at " + json.getCurrentLocation());
+            }
+            face.add(id, distance);
+        }
+        expect(json, json.currentToken(), JsonToken.END_ARRAY);
     }
 
-
-    // http://localhost:8234/daner-face-search/v1/similarFaces?imageURL=http%3A%2F%2Flocalhost%3A8234%2Fdaner-face-search%2Fthispersondoesnotexist.com.jpg&maxMatches=10
-    // {"imageURL":"http://localhost:8234/daner-face-search/thispersondoesnotexist.com.jpg","faces":[{"index":0,"boundingBox":null,"similars":[{"distance":54.06735012891766,"id":"DP032144"},{"distance":54.07278819251751,"id":"DP010461"},{"distance":57.71844987155849,"id":"DP036224"},{"distance":57.75755779511265,"id":"DP039198"},{"distance":58.682492068468754,"id":"DP032419"},{"distance":59.09122417712019,"id":"DP014344"},{"distance":59.886375295850556,"id":"DP017944"},{"distance":60.3829732735677,"id":"DP017734"},{"distance":60.6063962670953,"id":"DP019333"},{"distance":61.03964990454093,"id":"DP011139"}]}],"technote":"Wolfram script through Java"}
-
-    /* ************************************************************************************************************** */
-
-    public static SimilarResponseDto findSimilarRemoteMulti(String sourceID, String sourceURL, Integer maxMatches) {
-        return new SimilarResponseDto()
-                .sourceID(sourceID)
-                .sourceURL(sourceURL)
-                .technote("Facial similarity by daner_v1 (remote call to Wolfram backed service)")
-                .elements(multiMatchesToElements(getPersonMatchesMulti(httpGetRequest(sourceURL))));
+    private static void expect(JsonParser json, JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Expected " + expected + " but got " + actual + " at " + json.getCurrentLocation());
+        }
     }
 
-    private static List<ElementDto> multiMatchesToElements(List<List<PersonMatch>> multiMatches) {
-        AtomicInteger elementID = new AtomicInteger(0);
-        return multiMatches.stream()
-                .map(matches -> new ElementDto()
-                        .index(elementID.getAndIncrement())
-                        .similars(matchesToSimilars(matches)))
-                .collect(Collectors.toList());
+    static List<ElementDto> facesToElements(List<FaceMatches> faces, int maxMatches) {
+        return facesToElements(faces, maxMatches, RequestDeadline.fromNow());
     }
 
-    private static List<SimilarDto> matchesToSimilars(List<PersonMatch> matches) {
-        return matches.stream()
-                .map(match -> DANERData.fillResponse(new SimilarDto().distance(match.getDistance()), match.id))
-                .collect(Collectors.toList());
+    static List<ElementDto> facesToElements(List<FaceMatches> faces, int maxMatches, long deadline) {
+        RequestDeadline.check(deadline, "receiving the result from the remote service");
+        // Selecting the top matches is cheap compared to handing the faces over to the FaceSearchPool
+        List<ElementDto> elements = new ArrayList<>(faces.size());
+        for (FaceMatches face: faces) {
+            elements.add(new ElementDto()
+                                 .index(face.index)
+                                 .similars(topSimilars(face, maxMatches)));
+        }
+        return elements;
     }
 
-    private static InputStream httpGetRequest(String sourceURL) {
-        final String getURL = getInstance().remoteURL + "/?imageurl=" + sourceURL;
-        log.debug("Calling HTTP GET for '" + getURL + "'");
-        //final String getURL = getInstance().remoteURL + "/?imageurl=http://localhost/pmd.png";
-        try {
-            URLConnection conn = new URL(getURL).openConnection();
-            return conn.getInputStream();
-        } catch (Exception e) {
-            log.warn("Exception calling '{}'", getURL, e);
-            throw new InternalServiceException("Exception calling '" + getURL + "'");
+    /**
+     * Select the matches with the lowest distances using {@link TopK}. {@link SimilarDto}s are only created for
+     * the selected matches.
+     * @param face       matches in any order.
+     * @param maxMatches the maximum number of matches to select.
+     * @return at most maxMatches similars, sorted by ascending distance.
+     */
+    private static List<SimilarDto> topSimilars(FaceMatches face, int maxMatches) {
+        TopK topK = new TopK(Math.min(maxMatches, face.size));
+        for (int i = 0 ; i < face.size ; i++) {
+            topK.offer(i, (float) face.distances[i]);
         }
+        topK.sort();
+        List<SimilarDto> similars = new ArrayList<>(topK.size());
+        for (int i = 0 ; i < topK.size() ; i++) {
+            // The distance is taken from the match to avoid rounding to float
+            int match = topK.getID(i);
+            similars.add(DANERData.fillResponse(new SimilarDto().distance(face.distances[match]), face.ids[match]));
+        }
+        return similars;
     }
 
-    private static HttpURLConnection prepareGETConnection() {
-        HttpURLConnection http = prepareGenericConnection();
-        try {
-            http.setRequestMethod("GET");
-            http.setDoOutput(false);
-        } catch (ProtocolException e) {
-            throw logThrow("Internal error: Unable to set request method GET (this should not happen)", e);
+    /**
+     * The matches for a single face, held in parallel arrays.
+     */
+    static class FaceMatches {
+        private int index;
+        private int size = 0;
+        private String[] ids = new String[16];
+        private double[] distances = new double[16];
+
+        FaceMatches(int index) {
+            this.index = index;
         }
-        return http;
-    }
-    private static HttpURLConnection preparePOSTConnection() {
-        HttpURLConnection http = prepareGenericConnection();
-        try {
-            http.setRequestMethod("POST");
-            http.setDoOutput(true);
-        } catch (ProtocolException e) {
-            throw logThrow("Internal error: Unable to set request method POST (this should not happen)", e);
-        }
-        //http.addRequestProperty("Content-Type", "multipart/form-data; boundary=" + DELIMITER);
-        //http.setChunkedStreamingMode(0);
-        return http;
-    }
-    private static HttpURLConnection prepareGenericConnection() {
-        log.debug("Preparing HTTP connection to " + getInstance().remoteURL);
-        URL url;
-        try {
-            url = new URL(getInstance().remoteURL);
-        } catch (MalformedURLException e) {
-            throw logThrow("Malformed URL for remote DANER service '" + getInstance().remoteURL + "'", e);
+
+        void add(String id, double distance) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size*2);
+                distances = Arrays.copyOf(distances, size*2);
+            }
+            ids[size] = id;
+            distances[size++] = distance;
         }
-        URLConnection con;
-        try {
-            con = url.openConnection();
-        } catch (IOException e) {
-            throw logThrow("Internal error: Unable to establish connection to URL '" + getInstance().remoteURL + "'", e);
+
+        int size() {
+            return size;
         }
-        HttpURLConnection http = (HttpURLConnection)con;
-        http.setDoInput(true);
-        http.setConnectTimeout(500);
-        http.setReadTimeout(10*1000); // 10 seconds
-        return http;
     }
-    private static final String DELIMITER = "MultipartDelimiterString";
 
-    private static void httpGetString(String sourceURL, HttpURLConnection http) {
-        log.debug("GETting from external service '{}': '{}'",
-                  getInstance().remoteURL, sourceURL.length() < 400 ? sourceURL : sourceURL.substring(0, 397) + "...");
-        http.setRequestProperty(REMOTE_IMAGEURL_KEY, sourceURL);
+
+    // http://localhost:8234/daner-face-search/v1/similarFaces?imageURL=http%3A%2F%2Flocalhost%3A8234%2Fdaner-face-search%2Fthispersondoesnotexist.com.jpg&maxMatches=10
+    // {"imageURL":"http://localhost:8234/daner-face-search/thispersondoesnotexist.com.jpg","faces":[{"index":0,"boundingBox":null,"similars":[{"distance":54.06735012891766,"id":"DP032144"},{"distance":54.07278819251751,"id":"DP010461"},{"distance":57.71844987155849,"id":"DP036224"},{"distance":57.75755779511265,"id":"DP039198"},{"distance":58.682492068468754,"id":"DP032419"},{"distance":59.09122417712019,"id":"DP014344"},{"distance":59.886375295850556,"id":"DP017944"},{"distance":60.3829732735677,"id":"DP017734"},{"distance":60.6063962670953,"id":"DP019333"},{"distance":61.03964990454093,"id":"DP011139"}]}],"technote":"Wolfram script through Java"}
+
+    /* ************************************************************************************************************** */
+
+    public static SimilarResponseDto findSimilarRemoteMulti(String sourceID, String sourceURL, Integer maxMatches) {
+        return findSimilarRemoteMulti(sourceID, sourceURL, null, maxMatches, RequestDeadline.fromNow());
     }
 
-    private static void httpPostString(String content, HttpURLConnection http) {
-        log.debug("Posting to external service '{}': '{}'",
-                  getInstance().remoteURL, content.length() < 400 ? content : content.substring(0, 397) + "...");
-        try (OutputStream out = http.getOutputStream()) {
-            out.write(content.getBytes(StandardCharsets.UTF_8));
-            out.flush();
-        } catch (IOException e) {
-            throw logThrow("Error calling external DANER service '" + getInstance().remoteURL + "'", e);
-        }
+    /**
+     * Call the v1 service.
+     * @param sourceID   the ID for the image.
+     * @param sourceURL  the URL for the image. Used by the remote service if image is null.
+     * @param image      if not null, the image is sent to the remote service in the request body.
+     * @param maxMatches the maximum number of similars for each face.
+     * @param deadline   the time, as {@link System#currentTimeMillis()}, where the call is abandoned.
+     * @return the similars for each face in the image.
+     */
+    static SimilarResponseDto findSimilarRemoteMulti(
+            String sourceID, String sourceURL, byte[] image, Integer maxMatches, long deadline) {
+        return findSimilarRemoteMulti(sourceID, sourceURL, () -> sourceURL, image, maxMatches, deadline);
     }
 
-    private static void postImage(byte[] sourceImage, HttpURLConnection http) {
-        final long startTime = System.nanoTime();
-        log.debug("Posting image");
-        try (OutputStream out = http.getOutputStream()) {
-            // https://www.w3.org/Protocols/rfc1341/7_2_Multipart.html
-            out.write(("\r\n--" + DELIMITER + "\r\n").getBytes(StandardCharsets.UTF_8));
-            out.write("Content-Disposition: form-data; name=\"image\"; filename=\"masked.jpg\"\r\n\r\n"
-                              .getBytes(StandardCharsets.UTF_8));
-            out.write(sourceImage);
-            out.write(("\r\n--" + DELIMITER + "--\r\n").getBytes(StandardCharsets.UTF_8));
-            out.flush();
-            log.debug("Bytes delivered, closing output");
-        } catch (IOException e) {
-            throw logThrow("Error calling external DANER service '" + getInstance().remoteURL + "'", e);
+    /**
+     * Call the v1 service.
+     * @param sourceID   the ID for the image.
+     * @param sourceURL  the URL for displaying the image.
+     * @param imageURL   delivers the URL for the image for each call to the remote service. Used if image is null.
+     * @param image      if not null, the image is sent to the remote service in the request body.
+     * @param maxMatches the maximum number of similars for each face.
+     * @param deadline   the time, as {@link System#currentTimeMillis()}, where the call is abandoned.
+     * @return the similars for each face in the image.
+     */
+    static SimilarResponseDto findSimilarRemoteMulti(
+            String sourceID, String sourceURL, Supplier<String> imageURL, byte[] image, Integer maxMatches,
+            long deadline) {
+        return new SimilarResponseDto()
+                .sourceID(sourceID)
+                .sourceURL(sourceURL)
+                .technote("Facial similarity by daner_v1 (remote call to Wolfram backed service)")
+                .elements(facesToElements(parseMatchesMulti(httpRequest(imageURL, image, deadline)), maxMatches,
+                                          deadline));
+    }
+
+    private static InputStream httpRequest(Supplier<String> imageURL, byte[] image, long deadline) {
+        if (getInstance().remote == null) {
+            throw new InternalServiceException("daner_v1 remote key is not configured");
         }
-/*
-        int response;
-        try {
-            log.debug("Retrieving response code");
-            response = http.getResponseCode();
-            log.debug("Finished posting image in " + (System.nanoTime()-startTime)/1000000L +
-                      " ms + with response " + response);
-        } catch (IOException e) {
-            logThrow("Error retrieving response code from call to external DANER service '" +
-                                getInstance().remoteURL + "'", e);
-        }*/
+        if (image != null) {
+            return getInstance().remote.post(
+                    remoteURL -> URI.create(remoteURL + "/"), image, PUSH_CONTENT_TYPE, deadline);
+        }
+        return getInstance().remote.get(remoteURL -> {
+            String sourceURL = imageURL.get();
+            try {
+                return new URIBuilder(remoteURL + "/").addParameter(REMOTE_IMAGEURL_KEY, sourceURL).build();
+            } catch (URISyntaxException e) {
+                throw new InternalServiceException(
+                        "Unable to build URL to remote call for image '" + sourceURL + "'", e);
+            }
+        }, deadline);
     }
 
+
     private static InternalServiceException logThrow(String message, Exception e) {
         log.warn(message, e);
         return new InternalServiceException(message + e.getMessage(), e);
@@ -400,7 +648,7 @@ public class DANERService {
         try {
             response = http.getInputStream();
         } catch (IOException e) {
-            throw logThrow("Error getting result from POST to external DANER service '" + getInstance().remoteURL + "'", e);
+            throw logThrow("Error getting result from POST to external DANER service " + getInstance().remote, e);
         }
         log.debug("Finished retrieving response in " + (System.nanoTime()-startTime)/1000000L + " ms");
 
@@ -412,7 +660,7 @@ public class DANERService {
         try {
             json = IOUtils.toString(response, "utf-8");
         } catch (IOException e) {
-            throw logThrow("Error piping result from POST to external DANER service '" + getInstance().remoteURL + "'", e);
+            throw logThrow("Error piping result from POST to external DANER service " + getInstance().remote, e);
         }
 
         return json2MatchesSingle(json);
@@ -452,32 +700,12 @@ public class DANERService {
         return personMatches;
     }
 
-    private static List<List<PersonMatch>> getPersonMatchesMulti(HttpURLConnection http) {
-        final long startTime = System.nanoTime();
-        log.debug("Retrieving HTTP response");
-        InputStream response;
-        try {
-            response = http.getInputStream();
-        } catch (IOException e) {
-            throw logThrow("Error getting result from POST to external DANER service '" + getInstance().remoteURL + "'", e);
-        }
-        log.debug("Finished retrieving response in " + (System.nanoTime()-startTime)/1000000L + " ms");
-
-        return getPersonMatchesMulti(response);
-    }
-
-    private static List<List<PersonMatch>> getPersonMatchesMulti(InputStream response) {
-        String json;
-        try {
-            json = IOUtils.toString(response, "utf-8");
-        } catch (IOException e) {
-            throw logThrow("Error piping result from POST to external DANER service '" + getInstance().remoteURL + "'", e);
-        }
-
-        return json2MatchesMulti(json);
-    }
-
-    public static List<List<PersonMatch>> json2MatchesMulti(String jsonStr) {
+    /**
+     * Parse the response from the v1 service.
+     * @param response the response from the v1 service.
+     * @return the matches for each face.
+     */
+    static List<FaceMatches> parseMatchesMulti(InputStream response) {
         // [
         //	[
         //		{
@@ -494,34 +722,38 @@ public class DANERService {
         //		}
         //	]
         //]
-        JSONObject json;
-        try {
-            json = new JSONObject("{ tmp: " + jsonStr + "}");
-        } catch (JSONException e) {
-            String message = "Expected JSON array from remote DANER server, but got " +
-            (jsonStr.length() > 400 ? jsonStr.substring(0, 397) + "..." : jsonStr);
-            log.warn(message, e);
-            throw new InternalServiceException(message);
-        }
-        JSONArray jsonArray = json.getJSONArray("tmp");
-
-        List<List<PersonMatch>> personMatchesMajor = new ArrayList<>(jsonArray.length());
-        for (int m = 0 ; m < jsonArray.length() ; m++) {
-            JSONArray portraits = jsonArray.getJSONArray(m);
-            List<PersonMatch> personMatches = new ArrayList<>(portraits.length());
-            for (int i = 0 ; i < portraits.length() ; i++) {
-                personMatches.add(new PersonMatch(portraits.getJSONObject(i)));
+        // or {"error":"Found no face"}
+        List<FaceMatches> faces = new ArrayList<>();
+        try (JsonParser json = jsonFactory.createParser(response)) {
+            JsonToken token = json.nextToken();
+            if (token == JsonToken.START_OBJECT) {
+                String message = null;
+                while (json.nextToken() == JsonToken.FIELD_NAME) {
+                    String field = json.getCurrentName();
+                    json.nextToken();
+                    if ("error".equals(field)) {
+                        message = json.getValueAsString();
+                    }
+                    json.skipChildren();
+                }
+                throw new InternalServiceException("daner_v1 returned error: " + message);
+            }
+            expect(json, token, JsonToken.START_ARRAY);
+            while (json.nextToken() == JsonToken.START_ARRAY) {
+                FaceMatches face = new FaceMatches(faces.size());
+                parseMatches(json, face);
+                faces.add(face);
             }
-            personMatchesMajor.add(personMatches);
+            expect(json, json.currentToken(), JsonToken.END_ARRAY);
+        } catch (IOException e) {
+            throw logThrow("Error parsing result from external DANER service " + getInstance().remote, e);
         }
-        return personMatchesMajor;
+        return faces;
     }
 
-    public static class PersonMatch implements Comparable<PersonMatch> {
+    public static class PersonMatch {
         public final String id;
         public final double distance;
-        private static final Comparator<PersonMatch> comparator =
-                Comparator.comparing(PersonMatch::getDistance).thenComparing(PersonMatch::getId);
 
         public PersonMatch(JSONObject json) {
             //			"id":"DP002205",
@@ -534,11 +766,6 @@ public class DANERService {
             this.distance = distance;
         }
 
-        @Override
-        public int compareTo(PersonMatch o) {
-            return comparator.compare(this, o);
-        }
-
         public String getId() {
             return id;
         }
@@ -555,7 +782,9 @@ public class DANERService {
 
     @Override
     public String toString() {
-        return "DANERService(impl=" + implementation + ", remoteServiceURL=" + remoteURL + ")";
+        return "DANERService(impl=" + implementation + ", remote=" + remote + ", mode=" + remoteMode +
+               ", remote2=" + remote2 + ", mode2=" + remoteMode2 + ", ephemeral=" + ephemeral +
+               ", cache=" + cache + ", singleFlight=" + singleFlight + ")";
     }
 }
 
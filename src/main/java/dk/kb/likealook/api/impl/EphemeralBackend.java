@@ -0,0 +1,88 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.likealook.api.impl.ResourceHandler.Ephemeral;
+
+/**
+ * Storage for {@link Ephemeral}s, selected with {@code resources.ephemeral.backend}.
+ *
+ * {@link EphemeralStore} holds the ephemerals in the JVM and {@link SharedFolderBackend} holds them in a folder that
+ * is shared between instances of the service, so that any instance behind a load balancer can deliver them.
+ * A networked store, such as a key-value server, can be added by implementing this interface.
+ *
+ * Implementations must be thread safe. {@link #get(String)} must deliver a {@link Ephemeral#isSingleUse() single use}
+ * entry at most once, also when multiple instances share the backend.
+ */
+public interface EphemeralBackend extends AutoCloseable {
+
+    /**
+     * @return true if ephemerals are stored.
+     */
+    boolean isEnabled();
+
+    /**
+     * @return true if ephemerals without a given ID should use the SHA-256 of their content as ID.
+     */
+    boolean isDedup();
+
+    /**
+     * @return true if the ephemerals are available to all instances of the service, so requests for ephemerals
+     *         created by other instances should not be redirected.
+     */
+    default boolean isShared() {
+        return false;
+    }
+
+    /**
+     * Store the ephemeral, replacing any existing ephemeral with the same ID.
+     * @param ephemeral the ephemeral to store.
+     * @return true if the ephemeral was stored.
+     */
+    boolean put(Ephemeral ephemeral);
+
+    /**
+     * @param ephemeral an ephemeral that might be stored.
+     * @return true if the size of the ephemeral is within the limits of the backend.
+     */
+    boolean fits(Ephemeral ephemeral);
+
+    /**
+     * Retrieve an ephemeral. If the ephemeral is single use, it is removed from the backend.
+     * @param id the ID of an ephemeral.
+     * @return the ephemeral with the given ID or null if it is not present, is expired or has already been used.
+     */
+    Ephemeral get(String id);
+
+    /**
+     * Check if an ephemeral is available without retrieving it, so single use entries are not used.
+     * @param id the ID of an ephemeral.
+     * @return true if the ephemeral is present and not expired.
+     */
+    boolean contains(String id);
+
+    /**
+     * Remove an ephemeral.
+     * @param id the ID of an ephemeral.
+     * @return true if the ephemeral was removed.
+     */
+    boolean remove(String id);
+
+    /**
+     * Release resources held by the backend. Called when the service is shut down.
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,550 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.likealook.api.impl.ResourceHandler.Ephemeral;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Thread safe in-memory holder of {@link Ephemeral}s, bounded by age, number of entries and total number of bytes.
+ *
+ * Lookups do not modify the store. When an entry is added and the store exceeds maxEntries or maxBytes, the oldest
+ * entries are evicted until the store is within bounds again. Entries older than maxAgeSeconds, or their own
+ * {@link Ephemeral#getMaxAgeSeconds()} if that is lower, are not delivered and are removed by a background sweeper,
+ * running every sweepSeconds.
+ *
+ * {@link Ephemeral#isSingleUse() Single use} entries are removed when they are retrieved with {@link #get(String)}.
+ *
+ * If dedup is enabled, entries with a {@link Ephemeral#getContentHash()} share their content with other entries
+ * with the same hash. The shared content is reference counted and only counts once towards maxBytes.
+ *
+ * If spilling is enabled with {@link #spill(Path, int, long)}, entries of spillThreshold bytes or more are written
+ * once to the spill folder and memory mapped, so that their content is not held on the heap. Spilled entries count
+ * towards maxSpillBytes instead of maxBytes and their files are deleted when they are removed from the store.
+ */
+public class EphemeralStore implements EphemeralBackend {
+    private static final Logger log = LoggerFactory.getLogger(EphemeralStore.class);
+
+    private static final String SPILL_PREFIX = "ephemeral_";
+    private static final String SPILL_SUFFIX = ".bin";
+
+    private final int maxAgeSeconds;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final boolean dedup;
+
+    // Spilling is configured after construction with spill(...) and is disabled if spillFolder is null
+    private Path spillFolder = null;
+    private int spillThreshold = Integer.MAX_VALUE;
+    private long maxSpillBytes = 0;
+
+    private final Map<String, Ephemeral> ephemerals = new ConcurrentHashMap<>();
+    // Content shared by entries with the same content hash
+    private final Map<String, SharedContent> contents = new ConcurrentHashMap<>();
+    // Insertion order, used for eviction and expiration. May hold entries that have already been removed
+    private final Queue<Ephemeral> order = new ConcurrentLinkedQueue<>();
+    private final ScheduledExecutorService sweeper;
+
+    private final AtomicLong bytes = new AtomicLong(0);
+    private final AtomicLong spillBytes = new AtomicLong(0);
+    private final AtomicLong spilled = new AtomicLong(0);
+    private final AtomicLong added = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicLong expirations = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicLong deduplicated = new AtomicLong(0);
+    private final AtomicLong singleUses = new AtomicLong(0);
+
+    /**
+     * Create a store without deduplication.
+     * @see #EphemeralStore(int, int, long, int, boolean)
+     */
+    public EphemeralStore(int maxAgeSeconds, int maxEntries, long maxBytes, int sweepSeconds) {
+        this(maxAgeSeconds, maxEntries, maxBytes, sweepSeconds, false);
+    }
+
+    /**
+     * @param maxAgeSeconds the maximum number of seconds to keep an entry. 0 disables the store.
+     * @param maxEntries    the maximum number of entries to keep. 0 disables the store.
+     * @param maxBytes      the maximum number of bytes for the content of all entries. 0 disables the store.
+     * @param sweepSeconds  how often to remove expired entries. 0 disables the sweeper.
+     * @param dedup         if true, entries with the same content hash share their content.
+     */
+    public EphemeralStore(int maxAgeSeconds, int maxEntries, long maxBytes, int sweepSeconds, boolean dedup) {
+        this.maxAgeSeconds = maxAgeSeconds;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.dedup = dedup;
+        if (isEnabled() && sweepSeconds > 0) {
+            sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ephemeral-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sweeper.scheduleWithFixedDelay(this::sweep, sweepSeconds, sweepSeconds, TimeUnit.SECONDS);
+        } else {
+            sweeper = null;
+        }
+        log.info("Created " + this);
+    }
+
+    /**
+     * Enable spilling of large entries to files. Must be called before any entries are added.
+     * Existing spill files in the folder, left from a previous run, are deleted.
+     * @param folder    the folder for the files, preferably on tmpfs or a fast local disk.
+     * @param threshold entries of this size in bytes or larger are spilled.
+     * @param maxBytes  the maximum number of bytes for the content of all spilled entries.
+     * @return the store, for chaining.
+     * @throws IOException if the folder could not be created or cleaned.
+     */
+    public EphemeralStore spill(Path folder, int threshold, long maxBytes) throws IOException {
+        Files.createDirectories(folder);
+        try (DirectoryStream<Path> stale = Files.newDirectoryStream(folder, SPILL_PREFIX + "*" + SPILL_SUFFIX)) {
+            for (Path file: stale) {
+                Files.deleteIfExists(file);
+            }
+        }
+        this.spillFolder = folder;
+        this.spillThreshold = threshold;
+        this.maxSpillBytes = maxBytes;
+        log.info("Enabled spilling of ephemerals of {} bytes or more to '{}': {}", threshold, folder, this);
+        return this;
+    }
+
+    /**
+     * @return true if ephemerals are stored.
+     */
+    @Override
+    public boolean isEnabled() {
+        return maxAgeSeconds > 0 && maxEntries > 0 && maxBytes > 0;
+    }
+
+    /**
+     * @return true if entries with the same content hash share their content.
+     */
+    @Override
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    /**
+     * Add the ephemeral to the store, replacing any existing entry with the same ID, and evict the oldest entries
+     * if the store is out of bounds. Ephemerals larger than maxBytes, or maxSpillBytes if they are to be spilled,
+     * are not stored.
+     *
+     * If dedup is enabled and content with the same hash is already stored, the ephemeral is stored with the
+     * existing content and its own content is discarded.
+     * @param ephemeral the ephemeral to store.
+     * @return true if the ephemeral was stored.
+     */
+    @Override
+    public boolean put(Ephemeral ephemeral) {
+        if (!isEnabled()) {
+            return false;
+        }
+        if (!fits(ephemeral)) {
+            rejected.incrementAndGet();
+            log.warn("Unable to store ephemeral '{}' of {} bytes as it is larger than the limit of {} bytes",
+                     ephemeral.getId(), ephemeral.getSize(), isSpillable(ephemeral) ? maxSpillBytes : maxBytes);
+            return false;
+        }
+        ephemeral = retain(ephemeral);
+        Ephemeral old = ephemerals.put(ephemeral.getId(), ephemeral);
+        if (old != null) {
+            order.remove(old);
+            release(old);
+        }
+        order.add(ephemeral);
+        added.incrementAndGet();
+        evict();
+        return true;
+    }
+
+    /**
+     * Large ephemerals that are spilled to disk are limited by maxSpillBytes, all other ephemerals by maxBytes.
+     */
+    @Override
+    public boolean fits(Ephemeral ephemeral) {
+        return ephemeral.getSize() <= (isSpillable(ephemeral) ? maxSpillBytes : maxBytes);
+    }
+
+    /**
+     * Retrieve an ephemeral. If the ephemeral is single use, it is removed from the store.
+     * @param id the ID of an ephemeral.
+     * @return the ephemeral with the given ID or null if it is not present, is expired or has already been used.
+     */
+    @Override
+    public Ephemeral get(String id) {
+        Ephemeral ephemeral = ephemerals.get(id);
+        if (ephemeral == null || isExpired(ephemeral)) {
+            return null;
+        }
+        if (ephemeral.isSingleUse()) {
+            if (!remove(ephemeral)) {
+                return null; // Used by another caller
+            }
+            singleUses.incrementAndGet();
+        }
+        return ephemeral;
+    }
+
+    /**
+     * @param id the ID of an ephemeral.
+     * @return true if the ephemeral is present and not expired. This does not use single use ephemerals.
+     */
+    @Override
+    public boolean contains(String id) {
+        Ephemeral ephemeral = ephemerals.get(id);
+        return ephemeral != null && !isExpired(ephemeral);
+    }
+
+    /**
+     * Remove the ephemeral with the given ID, if present.
+     * @param id the ID of an ephemeral.
+     * @return true if the ephemeral was removed.
+     */
+    @Override
+    public boolean remove(String id) {
+        Ephemeral ephemeral = ephemerals.get(id);
+        return ephemeral != null && remove(ephemeral);
+    }
+
+    private boolean isExpired(Ephemeral ephemeral) {
+        return ephemeral.isTooOld(ephemeral.getMaxAgeSeconds() < 0 ?
+                                          maxAgeSeconds : Math.min(maxAgeSeconds, ephemeral.getMaxAgeSeconds()));
+    }
+
+    /**
+     * Remove the oldest entries until the store is within maxEntries and maxBytes. If only maxSpillBytes is
+     * exceeded, the oldest spilled entries are removed, so that the spill budget does not evict entries on the heap.
+     */
+    private void evict() {
+        if (!isOutOfBounds()) {
+            return;
+        }
+        synchronized (order) {
+            while (ephemerals.size() > maxEntries || bytes.get() > maxBytes) {
+                Ephemeral oldest = order.poll();
+                if (oldest == null) {
+                    break;
+                }
+                if (remove(oldest)) {
+                    evictions.incrementAndGet();
+                }
+            }
+            Iterator<Ephemeral> candidates = order.iterator();
+            while (spillBytes.get() > maxSpillBytes && candidates.hasNext()) {
+                Ephemeral candidate = candidates.next();
+                if (candidate.isSpilled()) {
+                    candidates.remove();
+                    if (remove(candidate)) {
+                        evictions.incrementAndGet();
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean isOutOfBounds() {
+        return ephemerals.size() > maxEntries || bytes.get() > maxBytes || spillBytes.get() > maxSpillBytes;
+    }
+
+    /**
+     * Remove expired entries. Called periodically by the sweeper.
+     */
+    void sweep() {
+        int removed = 0;
+        synchronized (order) {
+            // Entries can have their own max age, so all entries are checked
+            for (Ephemeral ephemeral: ephemerals.values()) {
+                if (isExpired(ephemeral) && remove(ephemeral)) {
+                    removed++;
+                }
+            }
+            order.removeIf(ephemeral -> !isPresent(ephemeral));
+        }
+        if (removed > 0) {
+            expirations.addAndGet(removed);
+            log.debug("Removed {} expired ephemerals: {}", removed, this);
+        }
+    }
+
+    private boolean isPresent(Ephemeral ephemeral) {
+        return ephemerals.get(ephemeral.getId()) == ephemeral;
+    }
+
+    private boolean remove(Ephemeral ephemeral) {
+        if (ephemerals.remove(ephemeral.getId(), ephemeral)) {
+            release(ephemeral);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Account for the content of the ephemeral. If dedup is enabled and content with the same hash is stored,
+     * the reference count for that content is incremented instead.
+     * @param ephemeral an ephemeral that is to be stored.
+     * @return the ephemeral, possibly with the existing content.
+     */
+    private Ephemeral retain(Ephemeral ephemeral) {
+        if (!dedup || ephemeral.getContentHash() == null) {
+            return account(spillIfLarge(ephemeral));
+        }
+        SharedContent shared = contents.computeIfPresent(ephemeral.getContentHash(), (hash, existing) -> {
+            existing.references++;
+            return existing;
+        });
+        if (shared != null) {
+            deduplicated.incrementAndGet();
+            return ephemeral.withContentOf(shared.holder);
+        }
+
+        // Spilling is done outside of compute, as disk I/O would block updates of other entries in the map
+        final Ephemeral candidate = spillIfLarge(ephemeral);
+        final SharedContent[] created = new SharedContent[1];
+        shared = contents.compute(ephemeral.getContentHash(), (hash, existing) -> {
+            if (existing == null) {
+                return created[0] = new SharedContent(account(candidate));
+            }
+            existing.references++;
+            return existing;
+        });
+        if (shared == created[0]) {
+            return shared.holder;
+        }
+        // Another thread stored the same content while this thread was spilling
+        if (candidate != ephemeral && candidate.isSpilled()) {
+            deleteSpillFile(candidate);
+        }
+        deduplicated.incrementAndGet();
+        return ephemeral.withContentOf(shared.holder);
+    }
+
+    /**
+     * Release the content of the ephemeral. If dedup is enabled, the content is only released when no other
+     * entries refer to it.
+     * @param ephemeral an ephemeral that has been removed from the store.
+     */
+    private void release(Ephemeral ephemeral) {
+        if (!dedup || ephemeral.getContentHash() == null) {
+            unaccount(ephemeral);
+            return;
+        }
+        contents.computeIfPresent(ephemeral.getContentHash(), (hash, existing) -> {
+            if (--existing.references > 0) {
+                return existing;
+            }
+            unaccount(existing.holder);
+            return null;
+        });
+    }
+
+    private Ephemeral account(Ephemeral ephemeral) {
+        (ephemeral.isSpilled() ? spillBytes : bytes).addAndGet(ephemeral.getSize());
+        return ephemeral;
+    }
+
+    private void unaccount(Ephemeral ephemeral) {
+        if (!ephemeral.isSpilled()) {
+            bytes.addAndGet(-ephemeral.getSize());
+            return;
+        }
+        spillBytes.addAndGet(-ephemeral.getSize());
+        deleteSpillFile(ephemeral);
+    }
+
+    private void deleteSpillFile(Ephemeral ephemeral) {
+        // Mappings of the file remain valid after deletion on POSIX systems, so ongoing deliveries are not affected
+        try {
+            Files.deleteIfExists(ephemeral.getFile());
+        } catch (IOException e) {
+            log.warn("Unable to delete spilled ephemeral '{}'", ephemeral.getFile(), e);
+        }
+    }
+
+    private boolean isSpillable(Ephemeral ephemeral) {
+        return spillFolder != null && ephemeral.getSize() >= spillThreshold;
+    }
+
+    /**
+     * Write the content of the ephemeral to a file in the spill folder and memory map it, if the ephemeral is large
+     * enough. If the content could not be written, the ephemeral is kept on the heap.
+     * @param ephemeral an ephemeral that is to be stored.
+     * @return the ephemeral, possibly with its content in a memory mapped file.
+     */
+    private Ephemeral spillIfLarge(Ephemeral ephemeral) {
+        if (!isSpillable(ephemeral) || ephemeral.isSpilled()) {
+            return ephemeral;
+        }
+        // The ID can be given by the caller, so it is not used for the file name
+        Path file = spillFolder.resolve(SPILL_PREFIX + UUID.randomUUID() + SPILL_SUFFIX);
+        try {
+            try (FileChannel channel = FileChannel.open(
+                    file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer content = ephemeral.getBuffer();
+                while (content.hasRemaining()) {
+                    channel.write(content);
+                }
+                Ephemeral spilledEphemeral = ephemeral.spilled(
+                        file, channel.map(FileChannel.MapMode.READ_ONLY, 0, ephemeral.getSize()));
+                spilled.incrementAndGet();
+                return spilledEphemeral;
+            }
+        } catch (IOException e) {
+            log.warn("Unable to spill ephemeral '{}' of {} bytes to '{}'. Keeping it on the heap",
+                     ephemeral.getId(), ephemeral.getSize(), file, e);
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e2) {
+                log.warn("Unable to delete partially written '{}'", file, e2);
+            }
+            return ephemeral;
+        }
+    }
+
+    /**
+     * Content shared by entries with the same content hash. Only accessed inside atomic map operations.
+     */
+    private static class SharedContent {
+        private final Ephemeral holder;
+        private int references = 1;
+
+        public SharedContent(Ephemeral holder) {
+            this.holder = holder;
+        }
+    }
+
+    /**
+     * Stop the sweeper and remove all entries, deleting spilled files. Called when the service is shut down.
+     */
+    @Override
+    public void close() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+        synchronized (order) {
+            ephemerals.values().forEach(this::remove);
+            order.clear();
+        }
+    }
+
+    /**
+     * @return the number of entries, including expired entries that have not yet been removed.
+     */
+    public int size() {
+        return ephemerals.size();
+    }
+
+    /**
+     * @return the number of bytes held by the entries, including expired entries that have not yet been removed.
+     */
+    public long getBytes() {
+        return bytes.get();
+    }
+
+    /**
+     * @return the number of bytes held by spilled entries, in memory mapped files.
+     */
+    public long getSpillBytes() {
+        return spillBytes.get();
+    }
+
+    /**
+     * @return the number of entries that have been spilled to files.
+     */
+    public long getSpilled() {
+        return spilled.get();
+    }
+
+    /**
+     * @return the number of entries that have been stored.
+     */
+    public long getAdded() {
+        return added.get();
+    }
+
+    /**
+     * @return the number of entries that have been removed before they expired, to make room for newer entries.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of entries that have been removed by the sweeper because they were expired.
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * @return the number of entries that were not stored because they were larger than maxBytes.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of entries that were stored using content that was already stored.
+     */
+    public long getDeduplicated() {
+        return deduplicated.get();
+    }
+
+    /**
+     * @return the number of single use entries that have been retrieved.
+     */
+    public long getSingleUses() {
+        return singleUses.get();
+    }
+
+    /**
+     * @return the number of distinct contents shared between entries. Only used if dedup is enabled.
+     */
+    public int getSharedContents() {
+        return contents.size();
+    }
+
+    @Override
+    public String toString() {
+        return "EphemeralStore(maxAgeSeconds=" + maxAgeSeconds + ", maxEntries=" + maxEntries +
+               ", maxBytes=" + maxBytes + ", dedup=" + dedup + ", spillFolder=" + spillFolder +
+               ", maxSpillBytes=" + maxSpillBytes + ", entries=" + size() + ", bytes=" + getBytes() +
+               ", spillBytes=" + getSpillBytes() + ", spilled=" + getSpilled() +
+               ", added=" + getAdded() + ", evictions=" + getEvictions() + ", expirations=" + getExpirations() +
+               ", rejected=" + getRejected() + ", deduplicated=" + getDeduplicated() +
+               ", singleUses=" + getSingleUses() + ")";
+    }
+}
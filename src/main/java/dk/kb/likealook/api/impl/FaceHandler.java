@@ -69,13 +69,24 @@ public class FaceHandler {
     }
 
     public static byte[] faceOverlay(InputStream inputStream, METHOD realMethod, String sourceID) throws IOException {
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        byte[] imageBytes;
         try {
-            IOUtils.copy(inputStream, bos);
+            imageBytes = IOUtils.toByteArray(inputStream);
         } catch (IOException e) {
             throw new InvalidArgumentServiceException("Unable to copy content of input stream");
         }
-        final MBFImage image = ImageUtilities.readMBF(new ByteArrayInputStream(bos.toByteArray()));
+        return faceOverlay(imageBytes, realMethod, sourceID);
+    }
+
+    /**
+     * Detect faces and draw their bounding boxes and indexes on the image.
+     * @param imageBytes an image. This is not modified.
+     * @param realMethod the method used for face detection.
+     * @param sourceID   optional ID for the image.
+     * @return the image with the faces marked, as JPEG.
+     */
+    public static byte[] faceOverlay(byte[] imageBytes, METHOD realMethod, String sourceID) throws IOException {
+        final MBFImage image = ImageUtilities.readMBF(new ByteArrayInputStream(imageBytes));
         List<DetectedFace> faces = detectFacesHaarList(image);
         int imageID = 0;
         for (DetectedFace face : faces) {
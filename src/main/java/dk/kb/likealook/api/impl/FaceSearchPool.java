@@ -0,0 +1,157 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.likealook.config.ServiceConfig;
+import dk.kb.util.yaml.YAML;
+import dk.kb.webservice.exception.InternalServiceException;
+import dk.kb.webservice.exception.ServiceException;
+import dk.kb.webservice.exception.TimeoutServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+/**
+ * Bounded executor for processing the faces in an image concurrently, so that the latency for a group photo is
+ * close to the latency for a single face. Only CPU heavy work, such as vector search, should be done in the pool.
+ * Cheap post-processing is faster done by the calling thread than handed over to the pool.
+ *
+ * Settings are under {@code .likealook.faces}, see {@code like-a-look-behaviour.yaml} for details.
+ */
+public class FaceSearchPool {
+    private static final Logger log = LoggerFactory.getLogger(FaceSearchPool.class);
+
+    public static final String FACES_KEY = ".likealook.faces";
+    public static final String THREADS_KEY = ".threads";
+    public static final int THREADS_DEFAULT = 0; // 0 = number of processors
+    public static final String QUEUE_KEY = ".queue";
+    public static final int QUEUE_DEFAULT = 1000;
+    public static final String TIMEOUT_KEY = ".timeout";
+    public static final int TIMEOUT_DEFAULT = 30*1000; // ms
+
+    private static FaceSearchPool instance;
+
+    private final ThreadPoolExecutor executor;
+    private final long timeout;
+
+    public static synchronized FaceSearchPool getInstance() {
+        if (instance == null) {
+            instance = new FaceSearchPool();
+        }
+        return instance;
+    }
+
+    public FaceSearchPool() {
+        this(ServiceConfig.getConfig());
+    }
+    public FaceSearchPool(YAML config) {
+        int threads = config.getInteger(FACES_KEY + THREADS_KEY, THREADS_DEFAULT);
+        threads = threads <= 0 ? Runtime.getRuntime().availableProcessors() : threads;
+        timeout = config.getInteger(FACES_KEY + TIMEOUT_KEY, TIMEOUT_DEFAULT);
+        AtomicInteger threadCount = new AtomicInteger(0);
+        // When the queue is full, the requesting thread processes the face itself. This bounds the memory use and
+        // slows down new requests instead of rejecting them
+        executor = new ThreadPoolExecutor(
+                threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(config.getInteger(FACES_KEY + QUEUE_KEY, QUEUE_DEFAULT)),
+                runnable -> {
+                    Thread thread = new Thread(runnable, "face-search-" + threadCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                },
+                new ThreadPoolExecutor.CallerRunsPolicy());
+        log.info("Created " + this);
+    }
+
+    /**
+     * Stop the threads. Called when the service is shut down.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.executor.shutdownNow();
+            instance = null;
+        }
+    }
+
+    /**
+     * Process the faces concurrently, using the configured timeout as deadline.
+     * @see #processFaces(List, BiFunction, long)
+     */
+    public static <F, R> List<R> processFaces(List<F> faces, BiFunction<Integer, F, R> processor) {
+        return processFaces(faces, processor, System.currentTimeMillis() + getInstance().timeout);
+    }
+
+    /**
+     * Process the faces concurrently and return the results in the same order as the faces.
+     * A single face is processed directly by the calling thread.
+     * @param faces     the faces in an image, in index order.
+     * @param processor called with the index and the face, producing the result for the face.
+     * @param deadline  the time, as {@link System#currentTimeMillis()}, where processing is abandoned.
+     * @return a result for each face, in index order.
+     * @throws TimeoutServiceException if the faces could not be processed before the deadline.
+     */
+    public static <F, R> List<R> processFaces(
+            List<F> faces, BiFunction<Integer, F, R> processor, long deadline) {
+        List<R> elements = new ArrayList<>(faces.size());
+        if (faces.size() == 1) {
+            elements.add(processor.apply(0, faces.get(0)));
+            return elements;
+        }
+
+        List<Future<R>> futures = new ArrayList<>(faces.size());
+        for (int index = 0 ; index < faces.size() ; index++) {
+            final int faceIndex = index;
+            futures.add(getInstance().executor.submit(() -> processor.apply(faceIndex, faces.get(faceIndex))));
+        }
+        try {
+            for (Future<R> future: futures) {
+                elements.add(future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS));
+            }
+        } catch (TimeoutException e) {
+            throw new TimeoutServiceException(
+                    "Timeout processing " + faces.size() + " faces: Only " + elements.size() +
+                    " faces were processed before the deadline");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalServiceException("Interrupted while processing " + faces.size() + " faces", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceException) {
+                throw (ServiceException) e.getCause();
+            }
+            throw new InternalServiceException("Exception processing faces", e.getCause());
+        } finally {
+            // No-op for finished futures. Frees up the threads if processing was abandoned
+            futures.forEach(future -> future.cancel(true));
+        }
+        return elements;
+    }
+
+    @Override
+    public String toString() {
+        return "FaceSearchPool(threads=" + executor.getMaximumPoolSize() +
+               ", queue=" + (executor.getQueue().size() + executor.getQueue().remainingCapacity()) +
+               ", timeout=" + timeout + "ms)";
+    }
+}
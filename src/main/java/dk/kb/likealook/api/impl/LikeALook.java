@@ -5,11 +5,11 @@ import dk.kb.likealook.config.ServiceConfig;
 import dk.kb.likealook.model.CollectionDto;
 import dk.kb.likealook.model.SimilarResponseDto;
 import dk.kb.likealook.model.SubjectDto;
+import dk.kb.likealook.similar.SearchOptions;
 import dk.kb.likealook.util.JSONArrayStream;
 import dk.kb.webservice.exception.InternalServiceException;
 import dk.kb.webservice.exception.InvalidArgumentServiceException;
 import dk.kb.webservice.exception.ServiceException;
-import org.apache.commons.io.IOUtils;
 import org.apache.cxf.jaxrs.ext.MessageContext;
 import org.apache.cxf.jaxrs.ext.multipart.Attachment;
 import org.slf4j.Logger;
@@ -30,13 +30,11 @@ import javax.ws.rs.core.SecurityContext;
 import javax.ws.rs.core.UriInfo;
 import javax.ws.rs.ext.ContextResolver;
 import javax.ws.rs.ext.Providers;
-import java.io.ByteArrayInputStream;
-import java.io.IOException;
-import java.io.InputStream;
 import java.net.URI;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.Locale;
+import java.util.stream.Collectors;
 
 // TODO: Accept JPEG & PNG, directly or base64. See teams for sample of base64
 // TODO: Consider using https://github.com/tzolov/mtcnn-java for face detection
@@ -99,7 +97,7 @@ public class LikeALook implements LikeALookApi {
     @Override
     public List<CollectionDto> collectionsGet() throws ServiceException {
         enableCORS();
-        return Arrays.asList(
+        List<CollectionDto> collections = new ArrayList<>(Arrays.asList(
                 new CollectionDto().id("daner_mock").description(
                         "Used for testing calls to the similar-service. " +
                         "Delivers randomly selected profiles from the DANER collection"),
@@ -109,7 +107,9 @@ public class LikeALook implements LikeALookApi {
                 new CollectionDto().id("daner_v2").description(
                         "Finds the most similar portraits in the DANER collection. " +
                         "Uses the Wolfram engine called directly from Java for face detection, feature extraction and and similarity distance")
-        );
+        ));
+        collections.addAll(SimilarHandler.getCollections());
+        return collections;
     }
 
     /**
@@ -123,6 +123,10 @@ public class LikeALook implements LikeALookApi {
      * 
      * @param maxMatches: The maximum number of similar images to return
      * 
+     * @param efSearch: Optional size of the candidate list for collections using a HNSW index. Higher values means better recall and slower searches
+     * 
+     * @param nprobe: Optional number of lists to search for collections using an IVF index. Higher values means better recall and slower searches
+     * 
      * @return <ul>
       *   <li>code = 200, message = "An array of metadata for similar images, including URLs for the images", response = WholeImageDto.class, responseContainer = "List"</li>
       *   </ul>
@@ -131,31 +135,105 @@ public class LikeALook implements LikeALookApi {
       * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
      */
     @Override
-    public SimilarResponseDto findSimilarWhole( Attachment imageDetail, String collection, String sourceID, Integer maxMatches) throws ServiceException {
-        if (collection == null || collection.isBlank() || "daner".equals(collection)) { // daner for backwards compatibility
-            collection = ServiceConfig.getConfig().getString(DEFAULTCOLLECTION_KEY, DEFAULTCOLLECTION_DEFAULT);
+    public SimilarResponseDto findSimilarWhole( Attachment imageDetail, String collection, String sourceID, Integer maxMatches, Integer efSearch, Integer nprobe) throws ServiceException {
+        final long deadline = RequestDeadline.fromHeaders(httpHeaders);
+        collection = resolveCollection(collection);
+        enableCORS();
+        return findSimilar(collection, "daner_mock".equals(collection) ? null : Upload.read(imageDetail),
+                           sourceID, maxMatches, new SearchOptions(efSearch, nprobe), deadline);
+    }
+
+    /**
+     * Request images similar to each of the uploaded images
+     *
+     * @param imagesDetail: The images to use as source for the similarity search. ZIP files with images are expanded
+     *
+     * @param resourceIDs: Resources to use as source for the similarity search, separated by comma or whitespace
+     *
+     * @param collection: The collection to search for similar images. If none is specified, the default collection will be used
+     *
+     * @param maxMatches: The maximum number of similar images to return for each image
+     *
+     * @param efSearch: Optional size of the candidate list for collections using a HNSW index. Higher values means better recall and slower searches
+     *
+     * @param nprobe: Optional number of lists to search for collections using an IVF index. Higher values means better recall and slower searches
+     *
+     * @return <ul>
+      *   <li>code = 200, message = "A SimilarResponse for each image as newline delimited JSON, in order of completion", response = SimilarResponseDto.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public javax.ws.rs.core.StreamingOutput findSimilarBatch(
+            List<Attachment> imagesDetail, String resourceIDs, String collection, Integer maxMatches,
+            Integer efSearch, Integer nprobe) throws ServiceException {
+        final String realCollection = resolveCollection(collection);
+        final SearchOptions options = new SearchOptions(efSearch, nprobe);
+        // The timeout applies to each image in the batch
+        final long timeoutMS = RequestDeadline.getTimeoutMS(httpHeaders);
+
+        List<BatchHandler.Inputs> inputs = new ArrayList<>();
+        if (imagesDetail != null && !imagesDetail.isEmpty()) {
+            inputs.add(BatchHandler.fromAttachments(imagesDetail));
+        }
+        if (resourceIDs != null && !resourceIDs.isBlank()) {
+            inputs.add(BatchHandler.fromResources(resourceIDs));
+        }
+        if (inputs.isEmpty()) {
+            throw new InvalidArgumentServiceException("Either images or resourceIDs must be specified");
         }
 
         enableCORS();
+        return BatchHandler.findSimilar(
+                BatchHandler.concat(inputs.toArray(new BatchHandler.Inputs[0])),
+                image -> findSimilar(realCollection, Upload.read(image), null, maxMatches, options,
+                                     System.currentTimeMillis() + timeoutMS));
+    }
+
+    /**
+     * Resolve the default collection and check that the collection is supported.
+     * @param collection a collection or null.
+     * @return the given collection or the default collection.
+     * @throws InvalidArgumentServiceException if the collection is not supported.
+     */
+    private String resolveCollection(String collection) {
+        if (collection == null || collection.isBlank() || "daner".equals(collection)) { // daner for backwards compatibility
+            collection = ServiceConfig.getConfig().getString(DEFAULTCOLLECTION_KEY, DEFAULTCOLLECTION_DEFAULT);
+        }
         switch (collection) {
             case "daner_mock":
-                return DANERService.findSimilar(collection, null, sourceID == null || sourceID.isBlank() ? "mockSource" : sourceID, maxMatches);
             case "daner_v1":
-            case "daner_v2": {
-                InputStream imageStream;
-                try {
-                    imageStream = imageDetail.getDataHandler().getInputStream();
-                } catch (IOException e) {
-                    String message = "findSimilarDANER encountered IOException while getting InputStream for image";
-                    log.warn(message, e);
-                    throw new InvalidArgumentServiceException(message, e);
+            case "daner_v2": return collection;
+            default: {
+                if (SimilarHandler.hasCollection(collection)) {
+                    return collection;
                 }
+                throw new InvalidArgumentServiceException(
+                        "The collection '" + collection + "' is unsupported. " +
+                        "Valid collections are daner_mock, daner_v1, daner_v2" +
+                        SimilarHandler.getCollections().stream()
+                                .map(c -> ", " + c.getId())
+                                .collect(Collectors.joining("")));
+            }
+        }
+    }
 
-                return DANERService.findSimilar(collection, imageStream, sourceID, maxMatches);
+    /**
+     * Find similar images in a collection that has been checked with {@link #resolveCollection(String)}.
+     */
+    private static SimilarResponseDto findSimilar(
+            String collection, Upload image, String sourceID, Integer maxMatches, SearchOptions options,
+            long deadline) {
+        switch (collection) {
+            case "daner_mock":
+                return DANERService.findSimilar(collection, (Upload) null, sourceID == null || sourceID.isBlank() ? "mockSource" : sourceID, maxMatches, deadline);
+            case "daner_v1":
+            case "daner_v2": {
+                return DANERService.findSimilar(collection, image, sourceID, maxMatches, deadline);
             }
-            default: throw new InvalidArgumentServiceException(
-                    "The collection '" + collection + "' is unsupported. " +
-                    "Valid collections are daner_mock, daner_v1 and daner_v2");
+            default: return SimilarHandler.findSimilar(collection, image, sourceID, maxMatches, options, deadline);
         }
     }
 
@@ -187,13 +265,12 @@ public class LikeALook implements LikeALookApi {
             enableCORS();
             switch (realResponse) {
                 case jpeg: {
-                    byte[] faceImage;
-                    faceImage = FaceHandler.faceOverlay(imageDetail.getDataHandler().getInputStream(), realMethod, sourceID);
-                    return (out) -> IOUtils.copy(new ByteArrayInputStream(faceImage), out);
+                    byte[] faceImage = FaceHandler.faceOverlay(Upload.read(imageDetail).getContent(), realMethod, sourceID);
+                    return (out) -> out.write(faceImage);
                 }
                 case json: {
                     return new JSONArrayStream(FaceHandler.detectFaces(
-                            imageDetail.getDataHandler().getInputStream(), realMethod, sourceID));
+                            Upload.read(imageDetail).openStream(), realMethod, sourceID));
                 }
                 default: throw new InvalidArgumentServiceException("The method '" + method + "' is not supported");
             }
@@ -238,7 +315,7 @@ public class LikeALook implements LikeALookApi {
         try {
             enableCORS();
             return SubjectHandler.detectSubjects(
-                    imageDetail.getDataHandler().getInputStream(), realMethod, sourceID, maxMatches);
+                    Upload.read(imageDetail).getContent(), realMethod, sourceID, maxMatches);
         } catch (Exception e) {
             throw handleException(e);
         }
@@ -264,19 +341,21 @@ public class LikeALook implements LikeALookApi {
     public javax.ws.rs.core.StreamingOutput getResource(String collection, String id) throws ServiceException {
         log.debug("Resolving resource '" + collection + "/" + id + "'");
         try {
-            InputStream resource = ResourceHandler.getResource(collection + "/" + id);
+            Resource resource = ResourceHandler.resolveResource(collection + "/" + id);
             if (resource == null) {
                 throw new NotFoundException(
                         "The resource from collection '" + collection + "' with id '" + id + "' could not be located. " +
                         "Collection exists: " + ResourceHandler.hasCollection(collection));
             }
-            if (id.toLowerCase(Locale.ROOT).endsWith(".jpg") || id.toLowerCase(Locale.ROOT).endsWith(".jpeg")) {
-                System.out.println("Setting JPEG");
-                httpServletResponse.setHeader(HttpHeaders.CONTENT_TYPE, "image/jpeg");
+            if (httpServletResponse != null) { // Unit testing does not initialise this
+                if (resource.getContentType() != null) {
+                    httpServletResponse.setHeader(HttpHeaders.CONTENT_TYPE, resource.getContentType());
+                }
+                httpServletResponse.setContentLengthLong(resource.getSize());
             }
             enableCORS();
             //httpServletResponse.setHeader("Content-Disposition", "inline; filename=\"" + id + "\"");
-            return (out) -> IOUtils.copy(resource, out);
+            return resource::writeTo;
         } catch (Exception e) {
             throw handleException(e);
         }
@@ -206,6 +206,10 @@ public class LikeALookApiServiceImpl implements LikeALookApi {
      * 
      * @param maxMatches: The maximum number of similar images to return
      * 
+     * @param efSearch: Optional size of the candidate list for collections using a HNSW index. Higher values means better recall and slower searches
+     * 
+     * @param nprobe: Optional number of lists to search for collections using an IVF index. Higher values means better recall and slower searches
+     * 
      * @return <ul>
       *   <li>code = 200, message = "An array of metadata for similar images, including URLs for the images", response = SimilarResponseDto.class</li>
       *   </ul>
@@ -214,7 +218,7 @@ public class LikeALookApiServiceImpl implements LikeALookApi {
       * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
      */
     @Override
-    public SimilarResponseDto findSimilarWhole( Attachment imageDetail, String collection, String sourceID, Integer maxMatches) throws ServiceException {
+    public SimilarResponseDto findSimilarWhole( Attachment imageDetail, String collection, String sourceID, Integer maxMatches, Integer efSearch, Integer nprobe) throws ServiceException {
         // TODO: Implement...
     
         
@@ -273,6 +277,42 @@ public class LikeALookApiServiceImpl implements LikeALookApi {
     
     }
 
+    /**
+     * Request images similar to each of multiple uploaded images or resources
+     * 
+     * @param images: The images to use as source for the similarity search. ZIP files with images are expanded. The sourceIDs are the file names of the images or the ZIP entries
+     * 
+     * @param resourceIDs: Resources to use as source for the similarity search, as used with the resource endpoint, e.g. \&quot;ephemeral/b1690f11-7646-43b2-9911-611c2b427f0e.jpg\&quot;. Multiple IDs are separated by comma or whitespace. The IDs are used as sourceIDs
+     * 
+     * @param collection: The collection to search for similar images. If none is specified, the default collection will be used
+     * 
+     * @param maxMatches: The maximum number of similar images to return for each image
+     * 
+     * @param efSearch: Optional size of the candidate list for collections using a HNSW index. Higher values means better recall and slower searches. If not specified, the configured default for the collection is used
+     * 
+     * @param nprobe: Optional number of lists to search for collections using an IVF index. Higher values means better recall and slower searches. If not specified, the configured default for the collection is used
+     * 
+     * @return <ul>
+      *   <li>code = 200, message = "A SimilarResponse for each image as newline delimited JSON, in order of completion", response = SimilarResponseDto.class</li>
+      *   </ul>
+      * @throws ServiceException when other http codes should be returned
+      *
+      * @implNote return will always produce a HTTP 200 code. Throw ServiceException if you need to return other codes
+     */
+    @Override
+    public javax.ws.rs.core.StreamingOutput findSimilarBatch( List<Attachment> imagesDetail, String resourceIDs, String collection, Integer maxMatches, Integer efSearch, Integer nprobe) throws ServiceException {
+        // TODO: Implement...
+    
+        
+        try{ 
+            httpServletResponse.setHeader("Content-Disposition", "inline; filename=\"filename.ext\"");
+            return output -> output.write("Magic".getBytes(java.nio.charset.StandardCharsets.UTF_8));
+        } catch (Exception e){
+            throw handleException(e);
+        }
+    
+    }
+
     /**
      * Deliver a static resource (typically an image)
      * 
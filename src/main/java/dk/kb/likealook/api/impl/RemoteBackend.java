@@ -0,0 +1,399 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.webservice.exception.InternalServiceException;
+import dk.kb.webservice.exception.ServiceException;
+import dk.kb.webservice.exception.TimeoutServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.net.http.HttpTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * HTTP access to a remote backend, such as the Wolfram based face search services.
+ *
+ * All backends share a single {@link HttpClient}, which keeps a pool of persistent (keep-alive) connections to each
+ * host, so that consecutive calls does not pay for connection setup and the number of selector threads does not grow
+ * with the number of backends. The connect timeout can only be set for the client as a whole, so backends with
+ * different connect timeouts get a client each. With the default configuration this means a single client.
+ *
+ * Calls are guarded by a {@link CircuitBreaker}, so that a stalled or failing backend results in fast rejections
+ * (HTTP 503) instead of request threads waiting for timeouts.
+ *
+ * The response body is received in full before the call completes, with the deadline covering both the headers and
+ * the body: A backend that stalls while delivering the body is disconnected at the deadline, releasing the breaker.
+ * The responses from the face search services are small JSON documents.
+ *
+ * Settings are given for each backend, see the {@code daner} section in {@code like-a-look-behaviour.yaml}.
+ */
+public class RemoteBackend {
+    private static final Logger log = LoggerFactory.getLogger(RemoteBackend.class);
+
+    public static final String URL_KEY = ".url";
+    public static final String CONNECT_TIMEOUT_KEY = ".connecttimeout";
+    public static final int CONNECT_TIMEOUT_DEFAULT = 500; // ms
+    public static final String READ_TIMEOUT_KEY = ".readtimeout";
+    public static final int READ_TIMEOUT_DEFAULT = 30*1000; // ms
+
+    /**
+     * Shared clients, keyed by connect timeout.
+     */
+    private static final Map<Duration, HttpClient> clients = new ConcurrentHashMap<>();
+
+    private final String name;
+    private final String url;
+    private final Duration connectTimeout;
+    private final Duration readTimeout;
+    private final HttpClient client;
+    private final CircuitBreaker breaker;
+
+    /**
+     * Create a backend with a {@link CircuitBreaker} using default settings.
+     * @param name             human readable name for the backend, used for logging and error messages.
+     * @param url              the base URL for the backend.
+     * @param connectTimeoutMS the timeout for establishing a connection, in milliseconds.
+     * @param readTimeoutMS    the timeout for receiving the response headers, in milliseconds.
+     */
+    public RemoteBackend(String name, String url, int connectTimeoutMS, int readTimeoutMS) {
+        this(name, url, connectTimeoutMS, readTimeoutMS,
+             new CircuitBreaker(name, CircuitBreaker.MAX_INFLIGHT_DEFAULT, CircuitBreaker.FAILURES_DEFAULT,
+                                CircuitBreaker.OPEN_TIME_DEFAULT));
+    }
+
+    /**
+     * @param name             human readable name for the backend, used for logging and error messages.
+     * @param url              the base URL for the backend.
+     * @param connectTimeoutMS the timeout for establishing a connection, in milliseconds.
+     * @param readTimeoutMS    the timeout for receiving the response headers, in milliseconds.
+     * @param breaker          guard for calls to the backend.
+     */
+    public RemoteBackend(String name, String url, int connectTimeoutMS, int readTimeoutMS, CircuitBreaker breaker) {
+        this.name = name;
+        this.breaker = breaker;
+        this.url = url;
+        this.connectTimeout = Duration.ofMillis(connectTimeoutMS);
+        this.readTimeout = Duration.ofMillis(readTimeoutMS);
+        client = getClient(connectTimeout);
+        log.info("Created " + this);
+    }
+
+    /**
+     * @param connectTimeout the timeout for establishing a connection.
+     * @return a client shared by all backends with the given connect timeout.
+     */
+    private static HttpClient getClient(Duration connectTimeout) {
+        return clients.computeIfAbsent(connectTimeout, timeout -> HttpClient.newBuilder()
+                .version(HttpClient.Version.HTTP_1_1) // The Wolfram services does not support HTTP/2
+                .connectTimeout(timeout)
+                .followRedirects(HttpClient.Redirect.NORMAL)
+                .build());
+    }
+
+    /**
+     * @return the base URL for the backend.
+     */
+    public String getURL() {
+        return url;
+    }
+
+    /**
+     * @return the maximum time for a call using the configured timeouts: connect timeout + read timeout.
+     */
+    public long getTimeoutMS() {
+        return connectTimeout.toMillis() + readTimeout.toMillis();
+    }
+
+    /**
+     * @return the name of the backend.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the guard for calls to the backend.
+     */
+    public CircuitBreaker getBreaker() {
+        return breaker;
+    }
+
+    /**
+     * Perform a HTTP GET without blocking the calling thread.
+     * @param uri the full URI for the request.
+     * @return the response body. The future fails with a {@link ServiceException} if the response could not be
+     *         retrieved, if the status was not 200 or if the call was rejected by the {@link CircuitBreaker}.
+     */
+    public CompletableFuture<InputStream> getAsync(URI uri) {
+        return getAsync(uri, System.currentTimeMillis() + getTimeoutMS());
+    }
+
+    /**
+     * Perform a HTTP GET without blocking the calling thread.
+     * @param uri      the full URI for the request.
+     * @param deadline the time, as {@link System#currentTimeMillis()}, where the call is abandoned. The read
+     *                 timeout for the request is lowered to match the deadline.
+     * @return the response body. The future fails with a {@link ServiceException} if the response could not be
+     *         retrieved, if the status was not 200 or if the call was rejected by the {@link CircuitBreaker}.
+     */
+    public CompletableFuture<InputStream> getAsync(URI uri, long deadline) {
+        return sendAsync(HttpRequest.newBuilder(uri).GET(), uri, deadline);
+    }
+
+    /**
+     * Perform a HTTP GET and wait for the response, using the configured timeouts.
+     * @param uri the full URI for the request.
+     * @return the response body.
+     * @throws ServiceException if the response could not be retrieved or if the status was not 200.
+     */
+    public InputStream get(URI uri) {
+        return get(uri, System.currentTimeMillis() + getTimeoutMS());
+    }
+
+    /**
+     * Perform a HTTP GET and wait for the response.
+     * @param uri      the full URI for the request.
+     * @param deadline the time, as {@link System#currentTimeMillis()}, where the call is abandoned.
+     * @return the response body.
+     * @throws ServiceException if the response could not be retrieved before the deadline or if the status was
+     *                          not 200.
+     */
+    public InputStream get(URI uri, long deadline) {
+        return await(getAsync(uri, deadline), uri, deadline);
+    }
+
+    /**
+     * Perform a HTTP POST with the given content as body, without blocking the calling thread.
+     * The content is sent directly from the array, without copying.
+     * @param uri         the full URI for the request.
+     * @param content     the body for the request.
+     * @param contentType the MIME type for the content.
+     * @return the response body. The future fails with a {@link ServiceException} if the response could not be
+     *         retrieved, if the status was not 200 or if the call was rejected by the {@link CircuitBreaker}.
+     */
+    public CompletableFuture<InputStream> postAsync(URI uri, byte[] content, String contentType) {
+        return postAsync(uri, content, contentType, System.currentTimeMillis() + getTimeoutMS());
+    }
+
+    /**
+     * Perform a HTTP POST with the given content as body, without blocking the calling thread.
+     * The content is sent directly from the array, without copying.
+     * @param uri         the full URI for the request.
+     * @param content     the body for the request.
+     * @param contentType the MIME type for the content.
+     * @param deadline    the time, as {@link System#currentTimeMillis()}, where the call is abandoned. The read
+     *                    timeout for the request is lowered to match the deadline.
+     * @return the response body. The future fails with a {@link ServiceException} if the response could not be
+     *         retrieved, if the status was not 200 or if the call was rejected by the {@link CircuitBreaker}.
+     */
+    public CompletableFuture<InputStream> postAsync(URI uri, byte[] content, String contentType, long deadline) {
+        return sendAsync(HttpRequest.newBuilder(uri)
+                                 .header("Content-Type", contentType)
+                                 .POST(HttpRequest.BodyPublishers.ofByteArray(content)),
+                         uri, deadline);
+    }
+
+    /**
+     * Perform a HTTP POST with the given content as body and wait for the response, using the configured timeouts.
+     * @param uri         the full URI for the request.
+     * @param content     the body for the request.
+     * @param contentType the MIME type for the content.
+     * @return the response body.
+     * @throws ServiceException if the response could not be retrieved or if the status was not 200.
+     */
+    public InputStream post(URI uri, byte[] content, String contentType) {
+        return post(uri, content, contentType, System.currentTimeMillis() + getTimeoutMS());
+    }
+
+    /**
+     * Perform a HTTP POST with the given content as body and wait for the response.
+     * @param uri         the full URI for the request.
+     * @param content     the body for the request.
+     * @param contentType the MIME type for the content.
+     * @param deadline    the time, as {@link System#currentTimeMillis()}, where the call is abandoned.
+     * @return the response body.
+     * @throws ServiceException if the response could not be retrieved before the deadline or if the status was
+     *                          not 200.
+     */
+    public InputStream post(URI uri, byte[] content, String contentType, long deadline) {
+        return await(postAsync(uri, content, contentType, deadline), uri, deadline);
+    }
+
+    private CompletableFuture<InputStream> sendAsync(HttpRequest.Builder requestBuilder, URI uri, long deadline) {
+        long remaining = deadline - System.currentTimeMillis();
+        if (remaining <= 0) {
+            return CompletableFuture.failedFuture(new TimeoutServiceException(
+                    "The deadline was exceeded before calling " + name + " for '" + uri + "'"));
+        }
+        // The read timeout also releases the connection if the caller has given up because of the deadline
+        HttpRequest request = requestBuilder.timeout(Duration.ofMillis(Math.min(readTimeout.toMillis(), remaining)))
+                .build();
+        log.debug("Calling {} {} on {}", request.method(), request.uri(), name);
+        try {
+            breaker.acquire();
+        } catch (ServiceException e) {
+            return CompletableFuture.failedFuture(e);
+        }
+        // The bookkeeping is attached to the future from the client, which is never cancelled, so that the
+        // breaker is always released. Only the result future is cancelled when the caller gives up.
+        // The request timeout only covers the headers, so the deadline for the body is enforced separately
+        CompletableFuture<InputStream> result = new CompletableFuture<>();
+        AbortableBody body = new AbortableBody();
+        client.sendAsync(request, body)
+                .orTimeout(remaining, TimeUnit.MILLISECONDS)
+                .whenComplete((response, exception) -> {
+                    if (exception instanceof TimeoutException) {
+                        body.abort();
+                    }
+                    // Client errors (4xx) are caused by the request and says nothing about the health of the backend
+                    if (exception != null || response.statusCode() >= 500) {
+                        breaker.failure();
+                    } else {
+                        breaker.success();
+                    }
+                    if (exception != null) {
+                        result.completeExceptionally(toServiceException(request.uri(), exception));
+                    } else if (response.statusCode() != 200) {
+                        result.completeExceptionally(new InternalServiceException(
+                                "Got HTTP " + response.statusCode() + " from " + name + " for '" +
+                                request.uri() + "': " + snippet(response.body())));
+                    } else {
+                        result.complete(new ByteArrayInputStream(response.body()));
+                    }
+                });
+        return result;
+    }
+
+    /**
+     * Wait for the result of an asynchronous call.
+     * @param future   an asynchronous call to the backend.
+     * @param uri      the URI for the call, used for error messages.
+     * @param deadline the time, as {@link System#currentTimeMillis()}, where the call is abandoned.
+     * @return the result of the call.
+     * @throws ServiceException if the call failed or the deadline was exceeded.
+     */
+    <T> T await(CompletableFuture<T> future, URI uri, long deadline) {
+        try {
+            return future.get(Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            future.cancel(true);
+            throw new TimeoutServiceException("Timeout calling " + name + " for '" + uri + "'");
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new InternalServiceException("Interrupted while calling " + name + " for '" + uri + "'", e);
+        } catch (ExecutionException e) {
+            throw toServiceException(uri, e.getCause());
+        }
+    }
+
+    private ServiceException toServiceException(URI uri, Throwable exception) {
+        while (exception instanceof CompletionException && exception.getCause() != null) {
+            exception = exception.getCause();
+        }
+        if (exception instanceof ServiceException) {
+            return (ServiceException) exception;
+        }
+        if (exception instanceof HttpTimeoutException || exception instanceof TimeoutException) {
+            log.warn("Timeout calling {} for '{}'", name, uri);
+            return new TimeoutServiceException("Timeout calling " + name + " for '" + uri + "'");
+        }
+        log.warn("Exception calling {} for '{}'", name, uri, exception);
+        return new InternalServiceException("Exception calling " + name + " for '" + uri + "'", exception);
+    }
+
+    private static String snippet(byte[] body) {
+        return new String(body, 0, Math.min(400, body.length), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Collects the response body in memory. The subscription is kept, so that the transfer can be aborted and the
+     * connection released when the deadline is exceeded.
+     */
+    private static class AbortableBody implements HttpResponse.BodyHandler<byte[]> {
+        private volatile Flow.Subscription subscription = null;
+        private volatile boolean aborted = false;
+
+        @Override
+        public HttpResponse.BodySubscriber<byte[]> apply(HttpResponse.ResponseInfo responseInfo) {
+            HttpResponse.BodySubscriber<byte[]> bytes = HttpResponse.BodySubscribers.ofByteArray();
+            return new HttpResponse.BodySubscriber<>() {
+                @Override
+                public CompletionStage<byte[]> getBody() {
+                    return bytes.getBody();
+                }
+
+                @Override
+                public void onSubscribe(Flow.Subscription subscription) {
+                    AbortableBody.this.subscription = subscription;
+                    bytes.onSubscribe(subscription);
+                    if (aborted) {
+                        subscription.cancel();
+                    }
+                }
+
+                @Override
+                public void onNext(List<ByteBuffer> items) {
+                    bytes.onNext(items);
+                }
+
+                @Override
+                public void onError(Throwable throwable) {
+                    bytes.onError(throwable);
+                }
+
+                @Override
+                public void onComplete() {
+                    bytes.onComplete();
+                }
+            };
+        }
+
+        /**
+         * Stop receiving the body. The connection is closed by the client.
+         */
+        void abort() {
+            aborted = true;
+            Flow.Subscription current = subscription;
+            if (current != null) {
+                current.cancel();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RemoteBackend(name='" + name + "', url='" + url + "', readTimeout=" + readTimeout.toMillis() + "ms, breaker=" + breaker + ")";
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.likealook.config.ServiceConfig;
+import dk.kb.util.yaml.YAML;
+import dk.kb.webservice.exception.InvalidArgumentServiceException;
+import dk.kb.webservice.exception.TimeoutServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.ws.rs.core.HttpHeaders;
+
+/**
+ * Overall time budget for a request.
+ *
+ * A deadline is a point in time, as {@link System#currentTimeMillis()}, where processing of the request is
+ * abandoned. It is passed as a {@code long} through the processing stages, which checks it between stages with
+ * {@link #check(long, String)} and use {@link #remainingMS(long)} as timeout for blocking calls, such as calls to
+ * remote services.
+ *
+ * The default timeout is configured under {@code .likealook.deadline} and can be overridden per request with the
+ * {@link #TIMEOUT_HEADER} HTTP header, up to the configured maximum.
+ */
+public class RequestDeadline {
+    private static final Logger log = LoggerFactory.getLogger(RequestDeadline.class);
+
+    public static final String DEADLINE_KEY = ".likealook.deadline";
+    public static final String DEFAULT_KEY = ".default";
+    public static final int DEFAULT_DEFAULT = 60*1000; // ms
+    public static final String MAX_KEY = ".max";
+    public static final int MAX_DEFAULT = 5*60*1000; // ms
+
+    // Timeout in milliseconds for the full request
+    public static final String TIMEOUT_HEADER = "X-Request-Timeout";
+
+    private static RequestDeadline instance;
+
+    private final long defaultMS;
+    private final long maxMS;
+
+    public static synchronized RequestDeadline getInstance() {
+        if (instance == null) {
+            instance = new RequestDeadline();
+        }
+        return instance;
+    }
+
+    public RequestDeadline() {
+        this(ServiceConfig.getConfig());
+    }
+    public RequestDeadline(YAML config) {
+        defaultMS = config.getInteger(DEADLINE_KEY + DEFAULT_KEY, DEFAULT_DEFAULT);
+        maxMS = config.getInteger(DEADLINE_KEY + MAX_KEY, MAX_DEFAULT);
+        log.info("Created " + this);
+    }
+
+    /**
+     * @return a deadline using the configured default timeout, starting now.
+     */
+    public static long fromNow() {
+        return System.currentTimeMillis() + getInstance().defaultMS;
+    }
+
+    /**
+     * Resolve the timeout for a request from the {@link #TIMEOUT_HEADER}, falling back to the configured default.
+     * @param headers the headers for the request. Can be null.
+     * @return the timeout in milliseconds.
+     * @throws InvalidArgumentServiceException if the header was not a positive number.
+     */
+    public static long getTimeoutMS(HttpHeaders headers) {
+        String timeout = headers == null ? null : headers.getHeaderString(TIMEOUT_HEADER);
+        return getInstance().resolveTimeout(timeout);
+    }
+
+    long resolveTimeout(String timeout) {
+        if (timeout == null || timeout.isBlank()) {
+            return defaultMS;
+        }
+        long timeoutMS;
+        try {
+            timeoutMS = Long.parseLong(timeout.trim());
+        } catch (NumberFormatException e) {
+            throw new InvalidArgumentServiceException(
+                    "The header " + TIMEOUT_HEADER + " must be a number of milliseconds but was '" + timeout + "'");
+        }
+        if (timeoutMS <= 0) {
+            throw new InvalidArgumentServiceException(
+                    "The header " + TIMEOUT_HEADER + " must be positive but was " + timeoutMS);
+        }
+        return Math.min(timeoutMS, maxMS);
+    }
+
+    /**
+     * @param headers the headers for the request. Can be null.
+     * @return a deadline starting now, using {@link #getTimeoutMS(HttpHeaders)}.
+     */
+    public static long fromHeaders(HttpHeaders headers) {
+        return System.currentTimeMillis() + getTimeoutMS(headers);
+    }
+
+    /**
+     * @param deadline the time, as {@link System#currentTimeMillis()}, where processing is abandoned.
+     * @return the number of milliseconds until the deadline, 0 if it has passed.
+     */
+    public static long remainingMS(long deadline) {
+        return Math.max(0, deadline - System.currentTimeMillis());
+    }
+
+    /**
+     * Check that the deadline has not passed.
+     * @param deadline the time, as {@link System#currentTimeMillis()}, where processing is abandoned.
+     * @param stage    the stage that has just been completed, used for the error message.
+     * @throws TimeoutServiceException if the deadline has passed.
+     */
+    public static void check(long deadline, String stage) {
+        long overdue = System.currentTimeMillis() - deadline;
+        if (overdue >= 0) {
+            throw new TimeoutServiceException("The request deadline was exceeded by " + overdue + "ms after " + stage);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RequestDeadline(default=" + defaultMS + "ms, max=" + maxMS + "ms)";
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.likealook.api.impl.ResourceHandler.Ephemeral;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * A resolved resource from {@link ResourceHandler}, with its size and content type known before delivery, so that
+ * the Content-Length can be set up front.
+ */
+public abstract class Resource {
+    // Keys are lowercase extensions without the dot
+    private static final Map<String, String> CONTENT_TYPES = Map.ofEntries(
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("png", "image/png"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("bmp", "image/bmp"),
+            Map.entry("tif", "image/tiff"),
+            Map.entry("tiff", "image/tiff"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("json", "application/json"),
+            Map.entry("csv", "text/csv"),
+            Map.entry("txt", "text/plain"));
+
+    private final String id;
+    private final long size;
+    private final String contentType;
+
+    private Resource(String id, long size, String contentType) {
+        this.id = id;
+        this.size = size;
+        this.contentType = contentType;
+    }
+
+    /**
+     * @param id   the ID of the resource.
+     * @param file the file holding the resource.
+     * @return a resource delivering the content of the file.
+     * @throws IOException if the size of the file could not be determined.
+     */
+    public static Resource of(String id, Path file) throws IOException {
+        return new FileResource(id, file, Files.size(file));
+    }
+
+    /**
+     * @param ephemeral an ephemeral.
+     * @return a resource delivering the content of the ephemeral.
+     */
+    public static Resource of(Ephemeral ephemeral) {
+        return new EphemeralResource(ephemeral);
+    }
+
+    public String getId() {
+        return id;
+    }
+
+    /**
+     * @return the number of bytes in the resource.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the MIME type of the resource or null if it is not known.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * @return a stream with the content of the resource.
+     * @throws IOException if the resource could not be opened.
+     */
+    public abstract InputStream openStream() throws IOException;
+
+    /**
+     * Write the content of the resource to the given stream, which is not closed.
+     * @param out the destination for the content.
+     * @throws IOException if the content could not be written.
+     */
+    public abstract void writeTo(OutputStream out) throws IOException;
+
+    /**
+     * @param name the name of a resource, such as {@code image_34323.jpg}.
+     * @return the MIME type for the extension of the name or null if it is not known.
+     */
+    static String getContentType(String name) {
+        int dot = name.lastIndexOf('.');
+        return dot < 0 ? null : CONTENT_TYPES.get(name.substring(dot + 1).toLowerCase(Locale.ROOT));
+    }
+
+    /**
+     * Determine the MIME type from the first bytes of the content, for ephemerals where the ID has no extension.
+     * @param content the content. The position of the buffer is not changed.
+     * @return the MIME type for the content or null if it is not recognized.
+     */
+    static String sniffContentType(ByteBuffer content) {
+        if (startsWith(content, 0, 0xFF, 0xD8, 0xFF)) {
+            return "image/jpeg";
+        }
+        if (startsWith(content, 0, 0x89, 'P', 'N', 'G')) {
+            return "image/png";
+        }
+        if (startsWith(content, 0, 'G', 'I', 'F', '8')) {
+            return "image/gif";
+        }
+        if (startsWith(content, 0, 'R', 'I', 'F', 'F') && startsWith(content, 8, 'W', 'E', 'B', 'P')) {
+            return "image/webp";
+        }
+        return null;
+    }
+
+    private static boolean startsWith(ByteBuffer content, int offset, int... magic) {
+        if (content.remaining() < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0 ; i < magic.length ; i++) {
+            if ((content.get(content.position() + offset + i) & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static class FileResource extends Resource {
+        private final Path file;
+
+        public FileResource(String id, Path file, long size) {
+            super(id, size, getContentType(file.getFileName().toString()));
+            this.file = file;
+        }
+
+        @Override
+        public InputStream openStream() throws IOException {
+            return Files.newInputStream(file);
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            try (InputStream in = Files.newInputStream(file)) {
+                long sent = in.transferTo(out);
+                if (sent < getSize()) {
+                    throw new IOException("Only " + sent + " of " + getSize() + " bytes were available " +
+                                          "from '" + file + "'. The file was probably changed during delivery");
+                }
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "FileResource(id='" + getId() + "', file='" + file + "', size=" + getSize() +
+                   ", contentType=" + getContentType() + ")";
+        }
+    }
+
+    private static class EphemeralResource extends Resource {
+        private final Ephemeral ephemeral;
+
+        public EphemeralResource(Ephemeral ephemeral) {
+            super(ephemeral.getId(), ephemeral.getSize(), getContentType(ephemeral));
+            this.ephemeral = ephemeral;
+        }
+
+        private static String getContentType(Ephemeral ephemeral) {
+            String contentType = Resource.getContentType(ephemeral.getId());
+            return contentType != null ? contentType : sniffContentType(ephemeral.getBuffer());
+        }
+
+        @Override
+        public InputStream openStream() {
+            return ephemeral.openStream();
+        }
+
+        @Override
+        public void writeTo(OutputStream out) throws IOException {
+            ephemeral.writeTo(out);
+        }
+
+        @Override
+        public String toString() {
+            return "EphemeralResource(id='" + getId() + "', size=" + getSize() +
+                   ", contentType=" + getContentType() + ", spilled=" + ephemeral.isSpilled() + ")";
+        }
+    }
+}
@@ -19,19 +19,22 @@ import dk.kb.util.yaml.YAML;
 import dk.kb.webservice.exception.InternalServiceException;
 import dk.kb.webservice.exception.InvalidArgumentServiceException;
 import dk.kb.webservice.exception.NotFoundServiceException;
-import org.apache.log4j.lf5.util.StreamUtils;
+import dk.kb.webservice.exception.RedirectServiceException;
+import dk.kb.webservice.exception.ServiceUnavailableServiceException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.UUID;
@@ -51,6 +54,31 @@ public class ResourceHandler {
     private static final int EPHEMERAL_TIMEOUT_DEFAULT = 5*60;
     private static final String EPHEMERAL_ENTRIES_KEY = ".likealook.resources.ephemeral.entries";
     private static final int EPHEMERAL_ENTRIES_DEFAULT = 100;
+    private static final String EPHEMERAL_MAXMB_KEY = ".likealook.resources.ephemeral.maxmb";
+    private static final int EPHEMERAL_MAXMB_DEFAULT = 256;
+    private static final String EPHEMERAL_SWEEP_KEY = ".likealook.resources.ephemeral.sweep";
+    private static final int EPHEMERAL_SWEEP_DEFAULT = 10;
+    private static final String EPHEMERAL_DEDUP_KEY = ".likealook.resources.ephemeral.dedup";
+    private static final boolean EPHEMERAL_DEDUP_DEFAULT = false;
+    private static final String FETCHONCE_ENABLED_KEY = ".likealook.resources.ephemeral.fetchonce.enabled";
+    private static final boolean FETCHONCE_ENABLED_DEFAULT = false;
+    private static final String FETCHONCE_DISPLAY_KEY = ".likealook.resources.ephemeral.fetchonce.display";
+    private static final int FETCHONCE_DISPLAY_DEFAULT = 30;
+    private static final String SPILL_FOLDER_KEY = ".likealook.resources.ephemeral.spill.folder";
+    private static final String SPILL_FOLDER_DEFAULT = "";
+    private static final String SPILL_THRESHOLDKB_KEY = ".likealook.resources.ephemeral.spill.thresholdkb";
+    private static final int SPILL_THRESHOLDKB_DEFAULT = 1024;
+    private static final String SPILL_MAXMB_KEY = ".likealook.resources.ephemeral.spill.maxmb";
+    private static final int SPILL_MAXMB_DEFAULT = 1024;
+    private static final String BACKEND_KEY = ".likealook.resources.ephemeral.backend";
+    private static final String BACKEND_DEFAULT = BACKEND.memory.toString();
+    private static final String BACKEND_FOLDER_KEY = ".likealook.resources.ephemeral.folder";
+    private static final String NODE_NAME_KEY = ".likealook.resources.ephemeral.node.name";
+    private static final String NODE_NAME_DEFAULT = "";
+    private static final String NODE_PEERS_KEY = ".likealook.resources.ephemeral.node.peers";
+
+    public enum BACKEND {memory, folder}
+    public static final String NODE_DELIMITER = "~"; // Between the node name and the rest of generated IDs
 
     public static final String EPHEMERAL = "ephemeral"; // Special collection with temporary content
 
@@ -59,9 +87,11 @@ public class ResourceHandler {
     private final Map<String, Path> roots = new HashMap<>();
     private final String resourceURLPrefix;
 
-    private final Map<String, Ephemeral> ephemerals;
-    private final int ephemeralMaxAgeSeconds;
-    private final int ephemeralMaxEntries;
+    private final EphemeralBackend ephemerals;
+    private final String nodeName;
+    private final Map<String, String> peers = new HashMap<>(); // node name -> resource URL prefix
+    private final boolean fetchOnce;
+    private final int fetchOnceDisplaySeconds;
 
     public ResourceHandler() {
         YAML conf = ServiceConfig.getConfig();
@@ -80,14 +110,76 @@ public class ResourceHandler {
         }
         resourceURLPrefix = conf.getString(RESOURCE_URL_PREFIX_KEY, RESOURCE_URL_PREFIX_DEFAULT);
 
-        ephemeralMaxAgeSeconds = conf.getInteger(EPHEMERAL_TIMEOUT_KEY, EPHEMERAL_TIMEOUT_DEFAULT);
-        ephemeralMaxEntries = conf.getInteger(EPHEMERAL_ENTRIES_KEY, EPHEMERAL_ENTRIES_DEFAULT);
-        ephemerals = new EphemeralCache(ephemeralMaxAgeSeconds, ephemeralMaxEntries);
+        ephemerals = createEphemeralBackend(conf);
+        nodeName = conf.getString(NODE_NAME_KEY, NODE_NAME_DEFAULT);
+        if (conf.containsKey(NODE_PEERS_KEY)) {
+            for (YAML peerConfig : conf.getYAMLList(NODE_PEERS_KEY)) {
+                peers.put(peerConfig.getString(".name"), peerConfig.getString(".urlprefix"));
+            }
+        }
+        fetchOnce = conf.getBoolean(FETCHONCE_ENABLED_KEY, FETCHONCE_ENABLED_DEFAULT);
+        fetchOnceDisplaySeconds = conf.getInteger(FETCHONCE_DISPLAY_KEY, FETCHONCE_DISPLAY_DEFAULT);
 
-        log.info("Created ResourceHandler with " + roots.size() + " roots");
+        log.info("Created ResourceHandler with " + roots.size() + " roots, node '" + nodeName + "' with " +
+                 peers.size() + " peers and ephemerals " + ephemerals);
     }
 
+    private static EphemeralBackend createEphemeralBackend(YAML conf) {
+        int timeout = conf.getInteger(EPHEMERAL_TIMEOUT_KEY, EPHEMERAL_TIMEOUT_DEFAULT);
+        int entries = conf.getInteger(EPHEMERAL_ENTRIES_KEY, EPHEMERAL_ENTRIES_DEFAULT);
+        long maxBytes = conf.getInteger(EPHEMERAL_MAXMB_KEY, EPHEMERAL_MAXMB_DEFAULT) * 1024L * 1024;
+        int sweep = conf.getInteger(EPHEMERAL_SWEEP_KEY, EPHEMERAL_SWEEP_DEFAULT);
+        boolean dedup = conf.getBoolean(EPHEMERAL_DEDUP_KEY, EPHEMERAL_DEDUP_DEFAULT);
+
+        if (BACKEND.valueOf(conf.getString(BACKEND_KEY, BACKEND_DEFAULT)) == BACKEND.folder) {
+            String folder = conf.getString(BACKEND_FOLDER_KEY);
+            try {
+                return new SharedFolderBackend(Path.of(folder), timeout, entries, maxBytes, sweep, dedup);
+            } catch (IOException e) {
+                log.warn("Unable to use shared folder '{}' for ephemerals. Falling back to memory", folder, e);
+            }
+        }
+
+        EphemeralStore store = new EphemeralStore(timeout, entries, maxBytes, sweep, dedup);
+        String spillFolder = conf.getString(SPILL_FOLDER_KEY, SPILL_FOLDER_DEFAULT);
+        if (!spillFolder.isBlank()) {
+            try {
+                store.spill(Path.of(spillFolder),
+                            conf.getInteger(SPILL_THRESHOLDKB_KEY, SPILL_THRESHOLDKB_DEFAULT) * 1024,
+                            conf.getInteger(SPILL_MAXMB_KEY, SPILL_MAXMB_DEFAULT) * 1024L * 1024);
+            } catch (IOException e) {
+                log.warn("Unable to use spill folder '{}'. All ephemerals will be held in memory", spillFolder, e);
+            }
+        }
+        return store;
+    }
+
+    /**
+     * Resolve and open the resource with the given ID.
+     * @param id the ID of a resource, either {@code collection/resource} or just {@code resource}.
+     * @return a stream with the content of the resource or null if no ID is given.
+     * @see #resolveResource(String)
+     */
     public static InputStream getResource(String id) {
+        Resource resource = resolveResource(id);
+        if (resource == null) {
+            return null;
+        }
+        try {
+            return resource.openStream();
+        } catch (IOException e) {
+            log.warn("Exception trying to stream {}", resource, e);
+            throw new InternalServiceException("Exception trying to stream '" + id + "'");
+        }
+    }
+
+    /**
+     * Resolve the resource with the given ID, with its size and content type. Throws HTTP service exceptions if the
+     * resource could not be located. Single use ephemerals are used by this call.
+     * @param id the ID of a resource, either {@code collection/resource} or just {@code resource}.
+     * @return the resource or null if no ID is given.
+     */
+    public static Resource resolveResource(String id) {
         if (id == null || id.isEmpty()) {
             return null;
         }
@@ -108,15 +200,14 @@ public class ResourceHandler {
     /**
      * Create and store an ephemeral entry with the given content.
      * @param content the content for the ephemeral entry.
-     * @return a generated ID for the entry (an UUID). This can be used with {@code getResource(ephemeral/id)}.
+     * @return a generated ID for the entry. This can be used with {@code getResource(ephemeral/id)}.
+     * @see #createEphemeral(Upload)
      */
     public static String createEphemeral(InputStream content) throws IOException {
-        if (instance.ephemeralMaxAgeSeconds <= 0 || instance.ephemeralMaxEntries == 0) {
+        if (!instance.ephemerals.isEnabled()) {
             return "EphemeralsNotEnabled";
         }
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        StreamUtils.copy(content, bos);
-        return createEphemeral(bos.toByteArray());
+        return createEphemeral(Upload.read(content, -1));
     }
 
     /**
@@ -127,12 +218,42 @@ public class ResourceHandler {
      * @return the given id or "EphemeralsNotEnabled" if ephemerals are not enabled.
      */
     public static String createEphemeral(String id, InputStream content) throws IOException {
-        if (instance.ephemeralMaxAgeSeconds <= 0 || instance.ephemeralMaxEntries == 0) {
+        if (!instance.ephemerals.isEnabled()) {
             return "EphemeralsNotEnabled";
         }
-        ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        StreamUtils.copy(content, bos);
-        return createEphemeral(id, bos.toByteArray());
+        return createEphemeral(id, Upload.read(content, -1));
+    }
+
+    /**
+     * Create and store an ephemeral entry with the content of the upload.
+     * If {@code resources.ephemeral.dedup} is enabled, the ID is the SHA-256 of the content, so that repeated
+     * uploads of the same image get the same ID and share the stored content.
+     * @param upload the content for the ephemeral entry.
+     * @return a generated ID for the entry (the SHA-256 or an UUID, prefixed with the node name if defined).
+     *         This can be used with {@code getResource(ephemeral/id)}.
+     */
+    public static String createEphemeral(Upload upload) {
+        if (!instance.ephemerals.isEnabled()) {
+            return "EphemeralsNotEnabled";
+        }
+        String id = instance.generateID(upload);
+        store(new Ephemeral(id, upload.getContent(), upload.getSHA256()));
+        return id;
+    }
+
+    /**
+     * Create and store an ephemeral entry with the given id and the content of the upload.
+     * If {@code resources.ephemeral.dedup} is enabled, the content is shared with other entries for the same image.
+     * @param id the ID for the entry - this can be used with {@code getResource(ephemeral/id)}.
+     * @param upload the content for the ephemeral entry.
+     * @return the given id or "EphemeralsNotEnabled" if ephemerals are not enabled.
+     */
+    public static String createEphemeral(String id, Upload upload) {
+        if (!instance.ephemerals.isEnabled()) {
+            return "EphemeralsNotEnabled";
+        }
+        store(new Ephemeral(id, upload.getContent(), upload.getSHA256()));
+        return id;
     }
 
     /**
@@ -141,11 +262,11 @@ public class ResourceHandler {
      * @return a generated ID for the entry (an UUID). This can be used with {@code getResource(ephemeral/id)}.
      */
     public static String createEphemeral(byte[] content) {
-        if (instance.ephemeralMaxAgeSeconds <= 0 || instance.ephemeralMaxEntries == 0) {
+        if (!instance.ephemerals.isEnabled()) {
             return "EphemeralsNotEnabled";
         }
-        Ephemeral e = new Ephemeral(content);
-        instance.ephemerals.put(e.getId(), e);
+        Ephemeral e = new Ephemeral(instance.generateID(null), content);
+        store(e);
         return e.getId();
     }
 
@@ -156,14 +277,118 @@ public class ResourceHandler {
      * @return the given id or "EphemeralsNotEnabled" if ephemerals are not enabled.
      */
     public static String createEphemeral(String id, byte[] content) {
-        if (instance.ephemeralMaxAgeSeconds <= 0 || instance.ephemeralMaxEntries == 0) {
+        if (!instance.ephemerals.isEnabled()) {
             return "EphemeralsNotEnabled";
         }
-        Ephemeral e = new Ephemeral(id, content);
-        instance.ephemerals.put(e.getId(), e);
+        store(new Ephemeral(id, content));
         return id;
     }
 
+    /**
+     * Store the ephemeral in the backend.
+     * @param ephemeral the ephemeral to store.
+     * @throws InvalidArgumentServiceException if the ephemeral is larger than the backend accepts.
+     * @throws ServiceUnavailableServiceException if the ephemeral could not be stored.
+     */
+    private static void store(Ephemeral ephemeral) {
+        if (instance.ephemerals.put(ephemeral)) {
+            return;
+        }
+        if (!instance.ephemerals.fits(ephemeral)) {
+            throw new InvalidArgumentServiceException(
+                    "The image of " + ephemeral.getSize() + " bytes is too large to be stored for delivery");
+        }
+        throw new ServiceUnavailableServiceException(
+                "Unable to store the image '" + ephemeral.getId() + "' for delivery");
+    }
+
+    /**
+     * @return true if images fetched by remote services should be delivered using {@link #createFetchTokens(Upload)}
+     *         and only kept for display with {@link #createDisplayEphemeral(String, Upload)}.
+     */
+    public static boolean isFetchOnce() {
+        return instance.fetchOnce && instance.ephemerals.isEnabled();
+    }
+
+    /**
+     * Create and store an ephemeral entry for display of the uploaded image by the caller, when the image is
+     * delivered to remote services using {@link #createFetchTokens(Upload)}. The entry is kept for
+     * {@code resources.ephemeral.fetchonce.display} seconds.
+     * @param id     the ID for the entry or null to generate an ID as {@link #createEphemeral(Upload)} does.
+     * @param upload the content for the ephemeral entry.
+     * @return the ID for the entry or null if display entries are disabled.
+     */
+    public static String createDisplayEphemeral(String id, Upload upload) {
+        if (instance.fetchOnceDisplaySeconds <= 0 || !instance.ephemerals.isEnabled()) {
+            return null;
+        }
+        if (id == null || id.isBlank()) {
+            id = instance.generateID(upload);
+        }
+        store(new Ephemeral(
+                id, upload.getContent(), upload.getSHA256(), instance.fetchOnceDisplaySeconds, false));
+        return id;
+    }
+
+    /**
+     * Create a provider of single use URLs for the uploaded image, intended for remote services that fetch the
+     * image. Each URL can be retrieved once, after which the entry is removed. Entries that have not been retrieved
+     * are removed when the FetchTokens are closed.
+     * @param upload the image to deliver.
+     * @return a provider of single use URLs. Close it when the remote calls have finished.
+     */
+    public static FetchTokens createFetchTokens(Upload upload) {
+        return new FetchTokens(upload);
+    }
+
+    /**
+     * @return the backend for ephemerals, used for statistics.
+     */
+    public static EphemeralBackend getEphemeralBackend() {
+        return instance.ephemerals;
+    }
+
+    /**
+     * Generate an ID for an ephemeral. If {@code resources.ephemeral.node.name} is defined, the ID is prefixed with
+     * the name and {@link #NODE_DELIMITER}, so that other instances can redirect requests for the ephemeral to
+     * this instance.
+     * @param upload the content for the ephemeral or null if the ID should always be random.
+     * @return the SHA-256 of the upload if dedup is enabled, else a random UUID, prefixed with the node name.
+     */
+    private String generateID(Upload upload) {
+        String id = upload != null && ephemerals.isDedup() ? upload.getSHA256() : UUID.randomUUID().toString();
+        return nodeName.isEmpty() ? id : nodeName + NODE_DELIMITER + id;
+    }
+
+    /**
+     * If the ID was generated by a peer instance and the ephemerals are not shared, the client is redirected to the
+     * peer. Called when a resource could not be located.
+     * @param id       the ID of the missing ephemeral.
+     * @param resource the resource to request from the peer.
+     * @throws RedirectServiceException if the ephemeral is held by a peer.
+     */
+    private void redirectToOwner(String id, String resource) {
+        int delimiter = id.indexOf(NODE_DELIMITER);
+        if (ephemerals.isShared() || delimiter <= 0) {
+            return;
+        }
+        String owner = id.substring(0, delimiter);
+        String urlPrefix = peers.get(owner);
+        if (urlPrefix == null || owner.equals(nodeName)) {
+            return;
+        }
+        throw new RedirectServiceException(
+                "The ephemeral '" + id + "' is held by '" + owner + "'",
+                urlPrefix.endsWith("/") ? urlPrefix + resource : urlPrefix + "/" + resource);
+    }
+
+    /**
+     * Stop the ephemeral sweeper. Called when the service is shut down.
+     */
+    public static void shutdown() {
+        instance.ephemerals.close();
+    }
+
     /**
      * @param collectionName a root.
      * @return true if the name of one of the roots matches collectionName.
@@ -180,7 +405,7 @@ public class ResourceHandler {
      */
     public static boolean hasResource(String collection, String resource) {
         if (EPHEMERAL.equals(collection)) {
-            return instance.ephemerals.containsKey(resource);
+            return instance.ephemerals.contains(resource);
         }
 
         Path root = instance.roots.get(collection);
@@ -189,33 +414,41 @@ public class ResourceHandler {
 
     /**
      * Retrieve the ephemeral resource. Throws HTTP service exceptions if the resource could not be located.
+     * If the ephemeral was created by a peer instance, a {@link RedirectServiceException} to the peer is thrown.
      * @param ephemeralID the ID of the ephemeral.
      * @return the reseource.
      */
     public static Ephemeral getEphemeral(String ephemeralID) {
-        return instance.ephemerals.get(ephemeralID);
+        Ephemeral e = instance.ephemerals.get(ephemeralID);
+        if (e == null) {
+            instance.redirectToOwner(ephemeralID, EPHEMERAL + "/" + ephemeralID);
+            throw new NotFoundServiceException("The ephemeral '" + ephemeralID + "' could not be located");
+        }
+        return e;
     }
 
-    private InputStream getUnqualifiedResource(String id) {
-        if (ephemerals.containsKey(id)) { // Theoretically it could become too old between the check and the retrieval
-            return new ByteArrayInputStream(ephemerals.get(id).content);
+    private Resource getUnqualifiedResource(String id) {
+        Ephemeral ephemeral = ephemerals.get(id);
+        if (ephemeral != null) {
+            return Resource.of(ephemeral);
         }
 
         for (Path root: roots.values()) {
             Path file = root.resolve(id);
             if (Files.exists(file)) {
                 try {
-                    return Files.newInputStream(file);
+                    return Resource.of(id, file);
                 } catch (IOException e) {
                     log.warn("Exception trying to stream file '{}' for ID '{}'", file, id, e);
                     throw new InternalServiceException("Exception trying to stream '" + id + "'");
                 }
             }
         }
+        redirectToOwner(id, id);
         throw new NotFoundServiceException("Unable to locate '" + id + "' in any resource group");
     }
 
-    private InputStream getQualifiedResource(String id) {
+    private Resource getQualifiedResource(String id) {
         String[] tokens = id.split("/");
         if (tokens.length > 2) {
             throw new InvalidArgumentServiceException("ID '" + id + "' contains more than 1 slash (/)");
@@ -223,10 +456,10 @@ public class ResourceHandler {
         return getResource(tokens[0], tokens[1]);
     }
 
-    private InputStream getResource(String collection, String resource) {
+    private Resource getResource(String collection, String resource) {
         // Ephemerals are special case
         if (EPHEMERAL.equals(collection)) {
-            return new ByteArrayInputStream(ephemerals.get(resource).getContent());
+            return Resource.of(getEphemeral(resource));
         }
         final String id = collection + "/" + resource;
 
@@ -240,7 +473,7 @@ public class ResourceHandler {
             throw new NotFoundServiceException("Unable to resolve resource '" + id + "'");
         }
         try {
-            return Files.newInputStream(file);
+            return Resource.of(id, file);
         } catch (IOException e) {
             log.warn("Exception trying to stream file '{}' for ID '{}'", file, id, e);
             throw new InternalServiceException("Exception trying to stream '" + id + "'");
@@ -249,11 +482,22 @@ public class ResourceHandler {
 
     /**
      * Holds ephemeral data with a creation time.
+     *
+     * The content is either held on the heap or, if the Ephemeral has been spilled by {@link EphemeralStore}, in a
+     * memory mapped file.
      */
     public static class Ephemeral {
+        private static final int WRITE_BUFFER = 64*1024;
+
         private final String id;
         private final Instant creationTime;
-        private final byte[] content;
+        private final byte[] content;   // null if spilled
+        private final ByteBuffer mapped; // null if not spilled
+        private final Path file;        // null if not spilled
+        private final int size;
+        private final String contentHash;
+        private final int maxAgeSeconds;
+        private final boolean singleUse;
 
         /**
          * Create an Ephemeral with a random ID (UUID).
@@ -269,9 +513,81 @@ public class ResourceHandler {
          * @param content the content to store temporarily.
          */
         public Ephemeral(String id, byte[] content) {
+            this(id, content, null);
+        }
+
+        /**
+         * Create an Ephemeral with the given ID and a hash of the content, used for sharing content between
+         * Ephemerals.
+         * @param id used for later retrieval of the content.
+         * @param content the content to store temporarily.
+         * @param contentHash the SHA-256 for the content or null if not known.
+         */
+        public Ephemeral(String id, byte[] content, String contentHash) {
+            this(id, content, contentHash, -1, false);
+        }
+
+        /**
+         * Create an Ephemeral with the given ID, a hash of the content, its own max age and the option of being
+         * removed when it has been retrieved once.
+         * @param id used for later retrieval of the content.
+         * @param content the content to store temporarily.
+         * @param contentHash the SHA-256 for the content or null if not known.
+         * @param maxAgeSeconds the maximum age for the ephemeral or -1 to use the max age for the store.
+         *                      This cannot exceed the max age for the store.
+         * @param singleUse if true, the ephemeral is removed from the store when it has been retrieved.
+         */
+        public Ephemeral(String id, byte[] content, String contentHash, int maxAgeSeconds, boolean singleUse) {
+            this(id, Instant.now(), content, null, null, content.length, contentHash, maxAgeSeconds, singleUse);
+        }
+
+        private Ephemeral(String id, Instant creationTime, byte[] content, ByteBuffer mapped, Path file, int size,
+                          String contentHash, int maxAgeSeconds, boolean singleUse) {
             this.id = id;
-            this.creationTime = Instant.now();
+            this.creationTime = creationTime;
             this.content = content;
+            this.mapped = mapped;
+            this.file = file;
+            this.size = size;
+            this.contentHash = contentHash;
+            this.maxAgeSeconds = maxAgeSeconds;
+            this.singleUse = singleUse;
+        }
+
+        /**
+         * @param source an Ephemeral holding the same content as this.
+         * @return a copy of this Ephemeral, using the content held by source.
+         */
+        Ephemeral withContentOf(Ephemeral source) {
+            return new Ephemeral(id, creationTime, source.content, source.mapped, source.file, source.size,
+                                 contentHash, maxAgeSeconds, singleUse);
+        }
+
+        /**
+         * @param file   a file with the content of this Ephemeral.
+         * @param mapped the file, memory mapped.
+         * @return a copy of this Ephemeral, using the content from the mapped file.
+         */
+        Ephemeral spilled(Path file, ByteBuffer mapped) {
+            return new Ephemeral(id, creationTime, null, mapped.asReadOnlyBuffer(), file, size,
+                                 contentHash, maxAgeSeconds, singleUse);
+        }
+
+        /**
+         * Create an Ephemeral that was stored earlier, keeping its original creation time, as read by
+         * {@link SharedFolderBackend}.
+         * @param id            the ID of the ephemeral.
+         * @param creationTime  when the ephemeral was originally created.
+         * @param content       the content of the ephemeral.
+         * @param contentHash   the SHA-256 of the content or null if not known.
+         * @param maxAgeSeconds maximum age for the ephemeral or -1 to use the max age of the store.
+         * @param singleUse     if true, the ephemeral is removed from the store when it has been retrieved.
+         * @return an ephemeral with the given content.
+         */
+        static Ephemeral stored(String id, Instant creationTime, byte[] content, String contentHash,
+                                int maxAgeSeconds, boolean singleUse) {
+            return new Ephemeral(id, creationTime, content, null, null, content.length,
+                                 contentHash, maxAgeSeconds, singleUse);
         }
 
         public String getId() {
@@ -282,8 +598,93 @@ public class ResourceHandler {
             return creationTime;
         }
 
+        /**
+         * @return the content. If the Ephemeral is spilled, this is a copy of the content on the heap.
+         *         Use {@link #getBuffer()} or {@link #openStream()} to avoid the copy.
+         */
         public byte[] getContent() {
-            return content;
+            if (content != null) {
+                return content;
+            }
+            byte[] copy = new byte[size];
+            mapped.duplicate().get(copy);
+            return copy;
+        }
+
+        /**
+         * @return a read only view of the content, without copying it.
+         */
+        public ByteBuffer getBuffer() {
+            return content != null ? ByteBuffer.wrap(content).asReadOnlyBuffer() : mapped.duplicate();
+        }
+
+        /**
+         * @return a stream with the content, without copying it.
+         */
+        public InputStream openStream() {
+            return content != null ? new ByteArrayInputStream(content) : new BufferInputStream(mapped.duplicate());
+        }
+
+        /**
+         * Write the content to the stream. Content on the heap is written with a single write from the array.
+         * Spilled content is copied from the memory mapped file through a small buffer.
+         * @param out the destination for the content. This is not closed.
+         * @throws IOException if the content could not be written.
+         */
+        public void writeTo(OutputStream out) throws IOException {
+            if (content != null) {
+                out.write(content, 0, content.length);
+                return;
+            }
+            ByteBuffer buffer = mapped.duplicate();
+            byte[] chunk = new byte[Math.min(buffer.remaining(), WRITE_BUFFER)];
+            while (buffer.hasRemaining()) {
+                int length = Math.min(chunk.length, buffer.remaining());
+                buffer.get(chunk, 0, length);
+                out.write(chunk, 0, length);
+            }
+        }
+
+        /**
+         * @return true if the content is held in a memory mapped file instead of on the heap.
+         */
+        public boolean isSpilled() {
+            return file != null;
+        }
+
+        /**
+         * @return the file holding the content if the Ephemeral is spilled, else null.
+         */
+        public Path getFile() {
+            return file;
+        }
+
+        /**
+         * @return the SHA-256 for the content or null if not known.
+         */
+        public String getContentHash() {
+            return contentHash;
+        }
+
+        /**
+         * @return the maximum age in seconds for the Ephemeral or -1 if the max age for the store is used.
+         */
+        public int getMaxAgeSeconds() {
+            return maxAgeSeconds;
+        }
+
+        /**
+         * @return true if the Ephemeral is removed from the store when it has been retrieved.
+         */
+        public boolean isSingleUse() {
+            return singleUse;
+        }
+
+        /**
+         * @return the number of bytes in the content.
+         */
+        public int getSize() {
+            return size;
         }
 
         public boolean isTooOld(int maxAgeSeconds) {
@@ -292,46 +693,78 @@ public class ResourceHandler {
     }
 
     /**
-     * Holds Ephemerals and ensures that {@link LinkedHashMap#get(Object)} does not deliver entries that are too old.
+     * Stream over a ByteBuffer, used for memory mapped Ephemerals.
      */
-    private static class EphemeralCache extends LinkedHashMap<String, Ephemeral> {
-        private final int maxSize;
-        private final int maxAgeSeconds;
+    private static class BufferInputStream extends InputStream {
+        private final ByteBuffer buffer;
 
-        public EphemeralCache(int maxAgeSeconds,int maxSize) {
-            this.maxSize = maxSize;
-            this.maxAgeSeconds = maxAgeSeconds;
+        public BufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
         }
 
         @Override
-        protected boolean removeEldestEntry(Map.Entry<String, Ephemeral> eldest) {
-            return size() > maxSize || eldest.getValue().isTooOld(maxAgeSeconds);
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xFF : -1;
         }
 
         @Override
-        public Ephemeral get(Object key) {
-            Ephemeral e = super.get(key);
-            if (e == null) {
-                throw new NotFoundServiceException("The ephemeral '" + key + "' could not be located");
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) {
+                return 0;
             }
-            if (e.isTooOld(maxAgeSeconds)) {
-                remove(key);
-                throw new NotFoundServiceException("The ephemeral '" + key + "' was expired");
+            if (!buffer.hasRemaining()) {
+                return -1;
             }
-            return e;
+            len = Math.min(len, buffer.remaining());
+            buffer.get(b, off, len);
+            return len;
         }
 
         @Override
-        public boolean containsKey(Object key) {
-            Ephemeral e = super.get(key);
-            if (e == null) {
-                return false;
-            }
-            if (e.isTooOld(maxAgeSeconds)) {
-                remove(key);
-                return false;
+        public long skip(long n) {
+            int skip = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skip);
+            return skip;
+        }
+
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+
+    /**
+     * Single use URLs for an uploaded image, one for each call to a remote service that fetches the image.
+     * Close to remove the entries that have not been retrieved.
+     */
+    public static class FetchTokens implements AutoCloseable {
+        private final Upload upload;
+        private final List<String> tokens = Collections.synchronizedList(new ArrayList<>());
+
+        private FetchTokens(Upload upload) {
+            this.upload = upload;
+        }
+
+        /**
+         * Store a single use entry for the image.
+         * @return an URL for the entry that can be retrieved once.
+         */
+        public String nextURL() {
+            String token = instance.generateID(null);
+            store(new Ephemeral(token, upload.getContent(), upload.getSHA256(), -1, true));
+            tokens.add(token);
+            return getResourceURL(EPHEMERAL + "/" + token);
+        }
+
+        /**
+         * Remove the entries that have not been retrieved.
+         */
+        @Override
+        public void close() {
+            synchronized (tokens) {
+                tokens.forEach(instance.ephemerals::remove);
+                tokens.clear();
             }
-            return true;
         }
     }
 }
@@ -0,0 +1,481 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.likealook.api.impl.ResourceHandler.Ephemeral;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link EphemeralBackend} that holds each {@link Ephemeral} as a file in a folder that is shared between instances
+ * of the service, e.g. on NFS. Any instance can deliver an ephemeral created by another instance, so the service can
+ * run behind a load balancer without sticky sessions.
+ *
+ * Files are named from the SHA-256 of the ID and are written to a temporary file that is atomically moved in place,
+ * so other instances never see partial content. Retrieved content is read onto the heap, as a memory mapping of a
+ * file on a shared file system fails hard if another instance truncates or deletes the file while the content is
+ * delivered. Checks for existence and expiration and the sweeper only read the small header at the start of the
+ * file. Single use entries are claimed
+ * by atomically moving the file to a unique name before delivery, so they are delivered at most once across all
+ * instances.
+ *
+ * maxBytes limits the size of a single entry. The number of entries and the total number of bytes are only enforced
+ * by the sweeper, which also removes expired entries and files left by instances that stopped while writing.
+ * Every instance runs its own sweeper; concurrent sweeps are harmless. Content is not shared between different IDs,
+ * but with dedup enabled, repeated uploads of the same image get the same ID and thereby the same file.
+ */
+public class SharedFolderBackend implements EphemeralBackend {
+    private static final Logger log = LoggerFactory.getLogger(SharedFolderBackend.class);
+
+    private static final int MAGIC = 0x45504831; // EPH1
+    private static final String SUFFIX = ".eph";
+    private static final String WRITING = ".writing_";
+    private static final String CLAIMED = ".claimed_";
+    private static final int FIXED_HEADER = 4 + 8 + 4 + 1;
+    private static final int HEADER_READ = 512; // Enough for all but very long IDs
+    private static final int MAX_HEADER = FIXED_HEADER + 2 + Short.MAX_VALUE + 2 + Short.MAX_VALUE;
+
+    private final Path folder;
+    private final int maxAgeSeconds;
+    private final int maxEntries;
+    private final long maxBytes;
+    private final boolean dedup;
+    private final ScheduledExecutorService sweeper;
+
+    private final AtomicLong added = new AtomicLong(0);
+    private final AtomicLong evictions = new AtomicLong(0);
+    private final AtomicLong expirations = new AtomicLong(0);
+    private final AtomicLong rejected = new AtomicLong(0);
+    private final AtomicLong singleUses = new AtomicLong(0);
+
+    /**
+     * @param folder        the shared folder. It is created if it does not exist.
+     * @param maxAgeSeconds maximum age for entries. 0 disables the backend.
+     * @param maxEntries    the maximum number of entries in the folder. 0 disables the backend.
+     * @param maxBytes      the maximum number of bytes for the content of all entries. 0 disables the backend.
+     * @param sweepSeconds  how often to remove expired entries. 0 disables the sweeper.
+     * @param dedup         if true, ephemerals without a given ID use the SHA-256 of their content as ID.
+     * @throws IOException if the folder could not be created.
+     */
+    public SharedFolderBackend(Path folder, int maxAgeSeconds, int maxEntries, long maxBytes, int sweepSeconds,
+                               boolean dedup) throws IOException {
+        this.folder = folder;
+        this.maxAgeSeconds = maxAgeSeconds;
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+        this.dedup = dedup;
+        Files.createDirectories(folder);
+        if (isEnabled() && sweepSeconds > 0) {
+            sweeper = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "ephemeral-folder-sweeper");
+                thread.setDaemon(true);
+                return thread;
+            });
+            sweeper.scheduleWithFixedDelay(this::sweep, sweepSeconds, sweepSeconds, TimeUnit.SECONDS);
+        } else {
+            sweeper = null;
+        }
+        log.info("Created " + this);
+    }
+
+    @Override
+    public boolean isEnabled() {
+        return maxAgeSeconds > 0 && maxEntries > 0 && maxBytes > 0;
+    }
+
+    @Override
+    public boolean isDedup() {
+        return dedup;
+    }
+
+    @Override
+    public boolean isShared() {
+        return true;
+    }
+
+    @Override
+    public boolean put(Ephemeral ephemeral) {
+        if (!isEnabled()) {
+            return false;
+        }
+        if (!fits(ephemeral)) {
+            rejected.incrementAndGet();
+            log.warn("Unable to store ephemeral '{}' of {} bytes as it is larger than the limit of {} bytes",
+                     ephemeral.getId(), ephemeral.getSize(), maxBytes);
+            return false;
+        }
+        Path file = getFile(ephemeral.getId());
+        Path writing = folder.resolve(file.getFileName() + WRITING + UUID.randomUUID());
+        try {
+            try (FileChannel channel = FileChannel.open(
+                    writing, StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE)) {
+                ByteBuffer header = createHeader(ephemeral);
+                ByteBuffer content = ephemeral.getBuffer();
+                while (header.hasRemaining() || content.hasRemaining()) {
+                    channel.write(new ByteBuffer[]{header, content});
+                }
+            }
+            Files.move(writing, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            rejected.incrementAndGet();
+            log.warn("Unable to store ephemeral '{}' in '{}'", ephemeral.getId(), file, e);
+            deleteQuietly(writing);
+            return false;
+        }
+        added.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public boolean fits(Ephemeral ephemeral) {
+        return ephemeral.getSize() <= maxBytes;
+    }
+
+    @Override
+    public Ephemeral get(String id) {
+        Path file = getFile(id);
+        Header header = readHeader(file);
+        if (header == null || isExpired(header)) {
+            return null;
+        }
+        if (!header.singleUse) {
+            return read(file);
+        }
+        // Claim the entry so no other thread or instance can deliver it. The file might have been replaced since
+        // the header was read, so the claimed file is checked again
+        Path claimed = folder.resolve(file.getFileName() + CLAIMED + UUID.randomUUID());
+        try {
+            Files.move(file, claimed, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            return null; // Claimed by someone else
+        } catch (IOException e) {
+            log.warn("Unable to claim single use ephemeral '{}' in '{}'", id, file, e);
+            return null;
+        }
+        Ephemeral ephemeral = read(claimed);
+        deleteQuietly(claimed);
+        if (ephemeral == null) {
+            return null;
+        }
+        singleUses.incrementAndGet();
+        return ephemeral;
+    }
+
+    @Override
+    public boolean contains(String id) {
+        Header header = readHeader(getFile(id));
+        return header != null && !isExpired(header);
+    }
+
+    @Override
+    public boolean remove(String id) {
+        try {
+            return Files.deleteIfExists(getFile(id));
+        } catch (IOException e) {
+            log.warn("Unable to remove ephemeral '{}'", id, e);
+            return false;
+        }
+    }
+
+    /**
+     * Remove expired entries and, if there are more than maxEntries or maxBytes, the oldest entries.
+     * Called periodically by the sweeper.
+     */
+    void sweep() {
+        List<Header> live = new ArrayList<>();
+        long bytes = 0;
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(folder)) {
+            for (Path file: files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(SUFFIX)) {
+                    Header header = readHeader(file);
+                    if (header == null || isExpired(header)) {
+                        if (deleteQuietly(file)) {
+                            expirations.incrementAndGet();
+                        }
+                    } else {
+                        live.add(header);
+                        bytes += header.size;
+                    }
+                } else if ((name.contains(WRITING) || name.contains(CLAIMED)) && isStale(file)) {
+                    deleteQuietly(file); // Left by an instance that stopped
+                }
+            }
+        } catch (IOException e) {
+            log.warn("Exception while sweeping '{}'", folder, e);
+            return;
+        }
+        if (live.size() <= maxEntries && bytes <= maxBytes) {
+            return;
+        }
+        live.sort(Comparator.comparing(header -> header.creationTime));
+        int entries = live.size();
+        for (Header oldest: live) {
+            if (entries <= maxEntries && bytes <= maxBytes) {
+                break;
+            }
+            if (deleteQuietly(oldest.file)) {
+                evictions.incrementAndGet();
+            }
+            entries--;
+            bytes -= oldest.size;
+        }
+    }
+
+    /**
+     * Stop the sweeper. The entries are kept, as they might be delivered by other instances.
+     */
+    @Override
+    public void close() {
+        if (sweeper != null) {
+            sweeper.shutdownNow();
+        }
+    }
+
+    private boolean isStale(Path file) {
+        try {
+            return Files.getLastModifiedTime(file).toInstant().plusSeconds(maxAgeSeconds).isBefore(Instant.now());
+        } catch (IOException e) {
+            return false; // Typically removed by another instance
+        }
+    }
+
+    private boolean isExpired(Header header) {
+        int maxAge = header.maxAgeSeconds < 0 ? maxAgeSeconds : Math.min(maxAgeSeconds, header.maxAgeSeconds);
+        return header.creationTime.plusSeconds(maxAge).isBefore(Instant.now());
+    }
+
+    /**
+     * The ID can be given by the caller, so it is hashed to get a safe file name of fixed length.
+     * @param id the ID of an ephemeral.
+     * @return the file for the ephemeral.
+     */
+    private Path getFile(String id) {
+        return folder.resolve(Upload.toHex(Upload.createDigest().digest(id.getBytes(StandardCharsets.UTF_8))) + SUFFIX);
+    }
+
+    /*
+     * The file format is
+     * int MAGIC, long creation epoch millis, int maxAgeSeconds, byte singleUse,
+     * short idLength, id as UTF-8, short hashLength, hash as UTF-8, content
+     */
+    private static ByteBuffer createHeader(Ephemeral ephemeral) {
+        byte[] id = ephemeral.getId().getBytes(StandardCharsets.UTF_8);
+        byte[] hash = ephemeral.getContentHash() == null ?
+                new byte[0] : ephemeral.getContentHash().getBytes(StandardCharsets.UTF_8);
+        if (id.length > Short.MAX_VALUE) {
+            throw new IllegalArgumentException("The ID for the ephemeral is too long: " + id.length + " bytes");
+        }
+        ByteBuffer header = ByteBuffer.allocate(FIXED_HEADER + 2 + id.length + 2 + hash.length);
+        header.putInt(MAGIC)
+                .putLong(ephemeral.getCreationTime().toEpochMilli())
+                .putInt(ephemeral.getMaxAgeSeconds())
+                .put((byte) (ephemeral.isSingleUse() ? 1 : 0))
+                .putShort((short) id.length).put(id)
+                .putShort((short) hash.length).put(hash);
+        header.flip();
+        return header;
+    }
+
+    /**
+     * The header of a stored ephemeral, read without mapping the content.
+     */
+    private static class Header {
+        private final Path file;
+        private final Instant creationTime;
+        private final int maxAgeSeconds;
+        private final boolean singleUse;
+        private final String id;
+        private final String hash;
+        private final int length; // Header bytes
+        private final long size;  // Content bytes
+
+        private Header(Path file, ByteBuffer buffer, long fileSize) {
+            this.file = file;
+            if (buffer.getInt() != MAGIC) {
+                throw new IllegalArgumentException("The file does not hold an ephemeral");
+            }
+            creationTime = Instant.ofEpochMilli(buffer.getLong());
+            maxAgeSeconds = buffer.getInt();
+            singleUse = buffer.get() == 1;
+            id = readString(buffer);
+            hash = readString(buffer);
+            length = buffer.position();
+            size = fileSize - length;
+        }
+    }
+
+    /**
+     * @param file a file with an ephemeral.
+     * @return the header of the ephemeral or null if the file does not exist or could not be read.
+     */
+    private Header readHeader(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return readHeader(channel, file);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.warn("Unable to read ephemeral header from '{}'", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * @param file a file with an ephemeral.
+     * @return the ephemeral with the content on the heap or null if the file does not exist, could not be read,
+     *         was truncated while reading or is expired.
+     */
+    private Ephemeral read(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            Header header = readHeader(channel, file);
+            if (header == null || isExpired(header)) {
+                return null;
+            }
+            if (header.size > Integer.MAX_VALUE - 8) {
+                log.warn("Unable to read ephemeral from '{}' as its size of {} bytes is too large", file, header.size);
+                return null;
+            }
+            ByteBuffer content = ByteBuffer.allocate((int) header.size);
+            while (content.hasRemaining()) {
+                if (channel.read(content, header.length + content.position()) == -1) {
+                    log.warn("Unable to read ephemeral from '{}' as it was truncated at {} of {} content bytes",
+                             file, content.position(), header.size);
+                    return null;
+                }
+            }
+            return Ephemeral.stored(header.id, header.creationTime, content.array(),
+                                    header.hash.isEmpty() ? null : header.hash, header.maxAgeSeconds,
+                                    header.singleUse);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.warn("Unable to read ephemeral from '{}'", file, e);
+            return null;
+        }
+    }
+
+    /**
+     * Read the header with positional reads of the first bytes of the file.
+     * @return the header or null if the file does not hold an ephemeral.
+     */
+    private static Header readHeader(FileChannel channel, Path file) throws IOException {
+        final long fileSize = channel.size();
+        try {
+            try {
+                return new Header(file, readStart(channel, (int) Math.min(fileSize, HEADER_READ)), fileSize);
+            } catch (BufferUnderflowException e) {
+                if (fileSize <= HEADER_READ) {
+                    throw e;
+                }
+                // Long ID: Read the full header
+                return new Header(file, readStart(channel, (int) Math.min(fileSize, MAX_HEADER)), fileSize);
+            }
+        } catch (RuntimeException e) { // Wrong MAGIC or BufferUnderflow from a truncated file
+            log.warn("Unable to parse ephemeral from '{}'", file, e);
+            return null;
+        }
+    }
+
+    private static ByteBuffer readStart(FileChannel channel, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, buffer.position()) == -1) {
+                break;
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getShort()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static boolean deleteQuietly(Path file) {
+        try {
+            return Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Unable to delete '{}'", file, e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the number of entries that have been stored by this instance.
+     */
+    public long getAdded() {
+        return added.get();
+    }
+
+    /**
+     * @return the number of entries that have been removed by the sweeper of this instance to keep the folder
+     *         within maxEntries and maxBytes.
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * @return the number of expired entries that have been removed by the sweeper of this instance.
+     */
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * @return the number of entries that could not be stored.
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * @return the number of single use entries that have been delivered by this instance.
+     */
+    public long getSingleUses() {
+        return singleUses.get();
+    }
+
+    @Override
+    public String toString() {
+        return "SharedFolderBackend(folder='" + folder + "', maxAgeSeconds=" + maxAgeSeconds +
+               ", maxEntries=" + maxEntries + ", maxBytes=" + maxBytes + ", dedup=" + dedup +
+               ", added=" + getAdded() + ", evictions=" + getEvictions() + ", expirations=" + getExpirations() +
+               ", rejected=" + getRejected() + ", singleUses=" + getSingleUses() + ")";
+    }
+}
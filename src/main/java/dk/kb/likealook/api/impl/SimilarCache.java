@@ -0,0 +1,223 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.likealook.model.ElementDto;
+import dk.kb.likealook.model.SimilarResponseDto;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.time.Instant;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+/**
+ * Cache for similarity results, keyed by the SHA-256 of the image content and the collection.
+ *
+ * Entries are evicted least recently used when there are more than maxEntries or when they are older than
+ * maxAgeSeconds. A request for fewer matches than a cached result holds is served from the cached result.
+ *
+ * The cache is thread safe.
+ */
+public class SimilarCache {
+    private static final Logger log = LoggerFactory.getLogger(SimilarCache.class);
+
+    private final int maxAgeSeconds;
+    private final int maxEntries;
+    private final Map<String, CachedResponse> cache;
+
+    private final AtomicLong hits = new AtomicLong(0);
+    private final AtomicLong misses = new AtomicLong(0);
+
+    /**
+     * @param maxAgeSeconds the maximum number of seconds to keep a result. 0 disables the cache.
+     * @param maxEntries    the maximum number of results to keep. 0 disables the cache.
+     */
+    public SimilarCache(int maxAgeSeconds, int maxEntries) {
+        this.maxAgeSeconds = maxAgeSeconds;
+        this.maxEntries = maxEntries;
+        cache = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedResponse> eldest) {
+                return size() > maxEntries || eldest.getValue().isTooOld(maxAgeSeconds);
+            }
+        };
+        log.info("Created " + this);
+    }
+
+    /**
+     * @return true if results are cached.
+     */
+    public boolean isEnabled() {
+        return maxAgeSeconds > 0 && maxEntries > 0;
+    }
+
+    /**
+     * Look up a result for the given image.
+     * @param collection the collection that was searched.
+     * @param image      the image that was used as source for the search.
+     * @param maxMatches the maximum number of similars for each element.
+     * @return a copy of the cached response, with at most maxMatches similars for each element, or null if no
+     *         result with at least maxMatches was cached.
+     */
+    public SimilarResponseDto get(String collection, byte[] image, int maxMatches) {
+        return isEnabled() ? get(collection, sha256(image), maxMatches) : null;
+    }
+
+    /**
+     * Look up a result for the given image.
+     * @param collection the collection that was searched.
+     * @param imageHash  the {@link #sha256(byte[])} for the image that was used as source for the search.
+     * @param maxMatches the maximum number of similars for each element.
+     * @return a copy of the cached response, with at most maxMatches similars for each element, or null if no
+     *         result with at least maxMatches was cached.
+     */
+    public SimilarResponseDto get(String collection, String imageHash, int maxMatches) {
+        if (!isEnabled()) {
+            return null;
+        }
+        String key = getKey(collection, imageHash);
+        CachedResponse cached;
+        synchronized (cache) {
+            cached = cache.get(key);
+            if (cached != null && cached.isTooOld(maxAgeSeconds)) {
+                cache.remove(key);
+                cached = null;
+            }
+        }
+        if (cached == null || cached.maxMatches < maxMatches) {
+            misses.incrementAndGet();
+            return null;
+        }
+        long hitCount = hits.incrementAndGet();
+        log.debug("Cache hit for '{}' in collection '{}' ({} hits, {} misses)",
+                  key, collection, hitCount, misses.get());
+        return copy(cached.response, maxMatches);
+    }
+
+    /**
+     * Add a result to the cache. If a result with more matches is already cached, that result is kept.
+     * @param collection the collection that was searched.
+     * @param image      the image that was used as source for the search.
+     * @param maxMatches the maximum number of similars for each element that was requested.
+     * @param response   the result of the search. This must not be modified after it has been added.
+     */
+    public void put(String collection, byte[] image, int maxMatches, SimilarResponseDto response) {
+        if (isEnabled()) {
+            put(collection, sha256(image), maxMatches, response);
+        }
+    }
+
+    /**
+     * Add a result to the cache. If a result with more matches is already cached, that result is kept.
+     * @param collection the collection that was searched.
+     * @param imageHash  the {@link #sha256(byte[])} for the image that was used as source for the search.
+     * @param maxMatches the maximum number of similars for each element that was requested.
+     * @param response   the result of the search. This must not be modified after it has been added.
+     */
+    public void put(String collection, String imageHash, int maxMatches, SimilarResponseDto response) {
+        if (!isEnabled()) {
+            return;
+        }
+        String key = getKey(collection, imageHash);
+        synchronized (cache) {
+            CachedResponse existing = cache.get(key);
+            if (existing == null || existing.maxMatches < maxMatches || existing.isTooOld(maxAgeSeconds)) {
+                cache.put(key, new CachedResponse(response, maxMatches));
+            }
+        }
+    }
+
+    /**
+     * @return the number of lookups that were served from the cache.
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that were not served from the cache.
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of cached results, including expired results that have not yet been evicted.
+     */
+    public int size() {
+        synchronized (cache) {
+            return cache.size();
+        }
+    }
+
+    private static String getKey(String collection, String imageHash) {
+        return collection + ":" + imageHash;
+    }
+
+    /**
+     * @param content any content.
+     * @return the SHA-256 for the content as a lowercase hex string.
+     */
+    static String sha256(byte[] content) {
+        return Upload.toHex(Upload.createDigest().digest(content));
+    }
+
+    /**
+     * Shallow copy of the response, with the similars for each element limited to maxMatches.
+     * The similars themselves are shared.
+     */
+    static SimilarResponseDto copy(SimilarResponseDto response, int maxMatches) {
+        List<ElementDto> elements = response.getElements().stream()
+                .map(element -> new ElementDto()
+                        .index(element.getIndex())
+                        .boundingBox(element.getBoundingBox())
+                        .similars(element.getSimilars().subList(0, Math.min(maxMatches, element.getSimilars().size()))))
+                .collect(Collectors.toList());
+        return new SimilarResponseDto()
+                .sourceID(response.getSourceID())
+                .sourceURL(response.getSourceURL())
+                .technote(response.getTechnote())
+                .elements(elements);
+    }
+
+    /**
+     * A response together with the maxMatches used for the request and the creation time.
+     */
+    private static class CachedResponse {
+        private final SimilarResponseDto response;
+        private final int maxMatches;
+        private final Instant creationTime;
+
+        public CachedResponse(SimilarResponseDto response, int maxMatches) {
+            this.response = response;
+            this.maxMatches = maxMatches;
+            this.creationTime = Instant.now();
+        }
+
+        public boolean isTooOld(int maxAgeSeconds) {
+            return creationTime.plusSeconds(maxAgeSeconds).isBefore(Instant.now());
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SimilarCache(maxAgeSeconds=" + maxAgeSeconds + ", maxEntries=" + maxEntries +
+               ", hits=" + hits.get() + ", misses=" + misses.get() + ")";
+    }
+}
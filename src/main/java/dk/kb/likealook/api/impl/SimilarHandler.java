@@ -14,14 +14,463 @@
  */
 package dk.kb.likealook.api.impl;
 
+import dk.kb.likealook.config.ServiceConfig;
+import dk.kb.likealook.model.CollectionDto;
+import dk.kb.likealook.model.ElementDto;
+import dk.kb.likealook.model.SimilarDto;
+import dk.kb.likealook.model.SimilarResponseDto;
+import dk.kb.likealook.similar.FeatureExtractor;
+import dk.kb.likealook.similar.FeatureIndex;
+import dk.kb.likealook.similar.FeatureVectors;
+import dk.kb.likealook.similar.FlatIndex;
+import dk.kb.likealook.similar.HNSWIndex;
+import dk.kb.likealook.similar.IVFIndex;
+import dk.kb.likealook.similar.ProductQuantizer;
+import dk.kb.likealook.similar.QuantizedIndex;
+import dk.kb.likealook.similar.Quantizer;
+import dk.kb.likealook.similar.RemoteFeatureExtractor;
+import dk.kb.likealook.similar.ScalarQuantizer;
+import dk.kb.likealook.similar.SearchOptions;
+import dk.kb.likealook.similar.TopK;
+import dk.kb.util.yaml.YAML;
+import dk.kb.webservice.exception.InternalServiceException;
+import dk.kb.webservice.exception.InvalidArgumentServiceException;
+import dk.kb.webservice.exception.TimeoutServiceException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+
 /**
+ * In-process similarity search: Feature vectors for the collections are held in memory and searched locally.
  *
+ * Collections are defined in the configuration under {@code .likealook.similar.local}, see
+ * {@code like-a-look-behaviour.yaml} for details.
  */
 public class SimilarHandler {
     private static final Logger log = LoggerFactory.getLogger(SimilarHandler.class);
 
+    public static final String SIMILAR_KEY = ".likealook.similar";
+    public static final String THREADS_KEY = ".threads";
+    public static final int THREADS_DEFAULT = 0; // 0 = number of processors
+    public static final String LOCAL_KEY = ".local";
+    public static final String HNSW_KEY = ".hnsw";
+    public static final String QUANTIZED_KEY = ".quantized";
+    public static final String IVF_KEY = ".ivf";
+
+    public static final String NAME_KEY = ".name";
+    public static final String DESCRIPTION_KEY = ".description";
+    public static final String FEATURES_KEY = ".features";
+    public static final String EXTRACTOR_URL_KEY = ".extractor.url";
+    public static final String EXTRACTOR_CONNECT_TIMEOUT_KEY = ".extractor.connecttimeout";
+    public static final int EXTRACTOR_CONNECT_TIMEOUT_DEFAULT = 500; // ms
+    public static final String EXTRACTOR_READ_TIMEOUT_KEY = ".extractor.readtimeout";
+    public static final int EXTRACTOR_READ_TIMEOUT_DEFAULT = 10*1000; // ms
+    public static final String EPHEMERAL_KEY = ".ephemeral";
+    public static final boolean EPHEMERAL_DEFAULT = false;
+
+    public static final String INDEX_TYPE_KEY = ".index.type";
+    public static final String INDEX_TYPE_DEFAULT = "flat";
+    public static final String INDEX_GRAPH_KEY = ".index.graph";
+    // HNSW settings are under .likealook.similar.hnsw and can be overridden for each collection under .index
+    public static final String M_KEY = ".m";
+    public static final String EF_CONSTRUCTION_KEY = ".efconstruction";
+    public static final String EF_SEARCH_KEY = ".efsearch";
+    // Quantization settings are under .likealook.similar.quantized and can be overridden for each collection
+    // under .index
+    public static final String INDEX_CODES_KEY = ".index.codes";
+    public static final String RERANK_KEY = ".rerank";
+    public static final String SUBSPACES_KEY = ".subspaces";
+    public static final int SUBSPACES_DEFAULT = 64;
+    // IVF settings are under .likealook.similar.ivf and can be overridden for each collection under .index
+    public static final String INDEX_LISTS_KEY = ".index.lists";
+    public static final String NLIST_KEY = ".nlist";
+    public static final String NPROBE_KEY = ".nprobe";
+
+    public enum INDEX_TYPE { flat, hnsw, sq, pq, ivf }
+
+    private static SimilarHandler instance;
+
+    private final ForkJoinPool executor;
+    private final int threads;
+    private final Map<String, LocalCollection> collections = new LinkedHashMap<>();
+    private final int hnswM;
+    private final int hnswEfConstruction;
+    private final int hnswEfSearch;
+    private final int quantizedRerank;
+    private final int pqSubspaces;
+    private final int ivfNlist;
+    private final int ivfNprobe;
+
+    public static synchronized SimilarHandler getInstance() {
+        if (instance == null) {
+            instance = new SimilarHandler();
+        }
+        return instance;
+    }
+
+    public SimilarHandler() {
+        this(ServiceConfig.getConfig());
+    }
+    public SimilarHandler(YAML config) {
+        int threads = config.getInteger(SIMILAR_KEY + THREADS_KEY, THREADS_DEFAULT);
+        this.threads = threads <= 0 ? Runtime.getRuntime().availableProcessors() : threads;
+        executor = new ForkJoinPool(this.threads);
+        hnswM = config.getInteger(SIMILAR_KEY + HNSW_KEY + M_KEY, HNSWIndex.M_DEFAULT);
+        hnswEfConstruction = config.getInteger(
+                SIMILAR_KEY + HNSW_KEY + EF_CONSTRUCTION_KEY, HNSWIndex.EF_CONSTRUCTION_DEFAULT);
+        hnswEfSearch = config.getInteger(SIMILAR_KEY + HNSW_KEY + EF_SEARCH_KEY, HNSWIndex.EF_SEARCH_DEFAULT);
+        quantizedRerank = config.getInteger(SIMILAR_KEY + QUANTIZED_KEY + RERANK_KEY, QuantizedIndex.RERANK_DEFAULT);
+        pqSubspaces = config.getInteger(SIMILAR_KEY + QUANTIZED_KEY + SUBSPACES_KEY, SUBSPACES_DEFAULT);
+        ivfNlist = config.getInteger(SIMILAR_KEY + IVF_KEY + NLIST_KEY, IVFIndex.NLIST_DEFAULT);
+        ivfNprobe = config.getInteger(SIMILAR_KEY + IVF_KEY + NPROBE_KEY, IVFIndex.NPROBE_DEFAULT);
+
+        if (!config.containsKey(SIMILAR_KEY + LOCAL_KEY)) {
+            log.info("No local similarity collections defined at '{}{}'", SIMILAR_KEY, LOCAL_KEY);
+            return;
+        }
+        for (YAML collectionConf: config.getYAMLList(SIMILAR_KEY + LOCAL_KEY)) {
+            String name = collectionConf.getString(NAME_KEY);
+            try {
+                collections.put(name, createCollection(name, collectionConf));
+            } catch (Exception e) {
+                log.warn("Unable to create local similarity collection '{}'. The collection will not be available",
+                         name, e);
+            }
+        }
+        log.info("Created " + this);
+    }
+
+    private LocalCollection createCollection(String name, YAML conf) throws IOException {
+        FeatureVectors vectors = FeatureVectors.open(Path.of(conf.getString(FEATURES_KEY)));
+        FeatureExtractor extractor = new RemoteFeatureExtractor(
+                new URL(conf.getString(EXTRACTOR_URL_KEY)),
+                conf.getInteger(EXTRACTOR_CONNECT_TIMEOUT_KEY, EXTRACTOR_CONNECT_TIMEOUT_DEFAULT),
+                conf.getInteger(EXTRACTOR_READ_TIMEOUT_KEY, EXTRACTOR_READ_TIMEOUT_DEFAULT));
+        String description = conf.getString(DESCRIPTION_KEY, "Local similarity search in " + vectors.size() +
+                                                             " feature vectors");
+        FeatureIndex index = createIndex(name, vectors, conf);
+        log.info("Memory for collection '{}' with {} vectors: {} bytes/vector for the vectors ({}), " +
+                 "{} bytes/vector for the {}",
+                 name, vectors.size(), perVector(vectors.getVectorBytes(), vectors), vectors,
+                 perVector(index.getIndexBytes(), vectors), index.getClass().getSimpleName());
+        return new LocalCollection(name, description, index, extractor,
+                                   conf.getBoolean(EPHEMERAL_KEY, EPHEMERAL_DEFAULT));
+    }
+
+    private static long perVector(long bytes, FeatureVectors vectors) {
+        return vectors.size() == 0 ? 0 : bytes / vectors.size();
+    }
+
+    private FeatureIndex createIndex(String name, FeatureVectors vectors, YAML conf) throws IOException {
+        INDEX_TYPE type = INDEX_TYPE.valueOf(conf.getString(INDEX_TYPE_KEY, INDEX_TYPE_DEFAULT));
+        switch (type) {
+            case flat: return new FlatIndex(vectors, executor, threads);
+            case hnsw: {
+                final String prefix = ".index";
+                int m = conf.getInteger(prefix + M_KEY, hnswM);
+                int efConstruction = conf.getInteger(prefix + EF_CONSTRUCTION_KEY, hnswEfConstruction);
+                int efSearch = conf.getInteger(prefix + EF_SEARCH_KEY, hnswEfSearch);
+                String graph = conf.getString(INDEX_GRAPH_KEY, null);
+                Path graphFile = graph == null ? null : Path.of(graph);
+
+                if (graphFile != null && Files.exists(graphFile)) {
+                    try {
+                        return HNSWIndex.load(graphFile, vectors, efSearch);
+                    } catch (IOException e) {
+                        log.warn("Unable to load HNSW graph for collection '{}' from '{}'. Rebuilding graph",
+                                 name, graphFile, e);
+                    }
+                }
+                log.info("Building HNSW graph for collection '{}'. This might take a while", name);
+                HNSWIndex index = HNSWIndex.build(vectors, m, efConstruction, efSearch, executor, threads);
+                if (graphFile != null) {
+                    try {
+                        index.save(graphFile);
+                    } catch (IOException e) {
+                        log.warn("Unable to store HNSW graph for collection '{}' at '{}'. The index is kept in memory " +
+                                 "and will be rebuilt on next start", name, graphFile, e);
+                    }
+                }
+                return index;
+            }
+            case sq:
+            case pq: {
+                final String prefix = ".index";
+                int rerank = conf.getInteger(prefix + RERANK_KEY, quantizedRerank);
+                int subspaces = conf.getInteger(prefix + SUBSPACES_KEY, pqSubspaces);
+                String codes = conf.getString(INDEX_CODES_KEY, null);
+                Path codesFile = codes == null ? null : Path.of(codes);
+
+                if (codesFile != null && Files.exists(codesFile)) {
+                    try {
+                        return type == INDEX_TYPE.sq ?
+                                QuantizedIndex.load(codesFile, vectors, Quantizer.TYPE_SCALAR, vectors.dimensions(),
+                                                    rerank, executor, threads) :
+                                QuantizedIndex.load(codesFile, vectors, Quantizer.TYPE_PRODUCT, subspaces,
+                                                    rerank, executor, threads);
+                    } catch (IOException e) {
+                        log.warn("Unable to load quantized index for collection '{}' from '{}'. Rebuilding index",
+                                 name, codesFile, e);
+                    }
+                }
+                log.info("Building {} index for collection '{}'. This might take a while", type, name);
+                Quantizer quantizer = type == INDEX_TYPE.sq ?
+                        ScalarQuantizer.train(vectors) :
+                        ProductQuantizer.train(vectors, subspaces, executor, new Random(87));
+                QuantizedIndex index = QuantizedIndex.build(vectors, quantizer, rerank, executor, threads);
+                if (codesFile != null) {
+                    try {
+                        index.save(codesFile);
+                    } catch (IOException e) {
+                        log.warn("Unable to store quantized index for collection '{}' at '{}'. The index is kept in memory " +
+                                 "and will be rebuilt on next start", name, codesFile, e);
+                    }
+                }
+                return index;
+            }
+            case ivf: {
+                final String prefix = ".index";
+                int nprobe = conf.getInteger(prefix + NPROBE_KEY, ivfNprobe);
+                String lists = conf.getString(INDEX_LISTS_KEY, null);
+                Path listsFile = lists == null ? null : Path.of(lists);
+
+                if (listsFile != null && Files.exists(listsFile)) {
+                    try {
+                        return IVFIndex.load(listsFile, vectors, nprobe, executor, threads);
+                    } catch (IOException e) {
+                        log.warn("Unable to load IVF index for collection '{}' from '{}'. Rebuilding index",
+                                 name, listsFile, e);
+                    }
+                }
+                log.info("Building IVF index for collection '{}'. This might take a while", name);
+                IVFIndex index = IVFIndex.build(vectors, conf.getInteger(prefix + NLIST_KEY, ivfNlist), nprobe,
+                                                executor, threads, new Random(87));
+                if (listsFile != null) {
+                    try {
+                        index.save(listsFile);
+                    } catch (IOException e) {
+                        log.warn("Unable to store IVF index for collection '{}' at '{}'. The index is kept in memory " +
+                                 "and will be rebuilt on next start", name, listsFile, e);
+                    }
+                }
+                return index;
+            }
+            default: throw new UnsupportedOperationException("The index type '" + type + "' is not supported");
+        }
+    }
+
+    /**
+     * Stop the threads used for local similarity search. Called when the service is shut down.
+     */
+    public static synchronized void shutdown() {
+        if (instance != null) {
+            instance.executor.shutdownNow();
+            instance = null;
+        }
+    }
+
+    /**
+     * @return the locally searchable collections.
+     */
+    public static List<CollectionDto> getCollections() {
+        return getInstance().collections.values().stream()
+                .map(collection -> new CollectionDto().id(collection.name).description(collection.description))
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * @param collection the name of a collection.
+     * @return true if the collection is searchable by the SimilarHandler.
+     */
+    public static boolean hasCollection(String collection) {
+        return getInstance().collections.containsKey(collection);
+    }
+
+    /**
+     * Extract features for the faces in the image and locate the most similar images in the collection.
+     * If {@code ephemeral} is enabled for the collection, the image is stored as an ephemeral so that the caller
+     * can display it.
+     * @param collection  the collection to search.
+     * @param imageStream the image to search for.
+     * @param sourceID    optional ID for the image.
+     * @param maxMatches  the maximum number of similar images for each face in the image.
+     * @param options     optional tuning of the search.
+     * @return the most similar images for each face in the image.
+     */
+    public static SimilarResponseDto findSimilar(
+            String collection, InputStream imageStream, String sourceID, Integer maxMatches, SearchOptions options) {
+        return findSimilar(collection, imageStream, sourceID, maxMatches, options, RequestDeadline.fromNow());
+    }
+
+    /**
+     * Extract features for the faces in the image and locate the most similar images in the collection.
+     * If {@code ephemeral} is enabled for the collection, the image is stored as an ephemeral so that the caller
+     * can display it.
+     * @param collection  the collection to search.
+     * @param imageStream the image to search for.
+     * @param sourceID    optional ID for the image.
+     * @param maxMatches  the maximum number of similar images for each face in the image.
+     * @param options     optional tuning of the search.
+     * @param deadline    the time, as {@link System#currentTimeMillis()}, where processing is abandoned.
+     * @return the most similar images for each face in the image.
+     * @throws dk.kb.webservice.exception.TimeoutServiceException if the deadline was exceeded.
+     */
+    public static SimilarResponseDto findSimilar(
+            String collection, InputStream imageStream, String sourceID, Integer maxMatches, SearchOptions options,
+            long deadline) {
+        return findSimilar(collection, Upload.read(imageStream), sourceID, maxMatches, options, deadline);
+    }
+
+    /**
+     * Extract features for the faces in the image and locate the most similar images in the collection.
+     * If {@code ephemeral} is enabled for the collection, the image is stored as an ephemeral so that the caller
+     * can display it.
+     * @param collection  the collection to search.
+     * @param upload      the image to search for.
+     * @param sourceID    optional ID for the image.
+     * @param maxMatches  the maximum number of similar images for each face in the image.
+     * @param options     optional tuning of the search.
+     * @param deadline    the time, as {@link System#currentTimeMillis()}, where processing is abandoned.
+     * @return the most similar images for each face in the image.
+     * @throws dk.kb.webservice.exception.TimeoutServiceException if the deadline was exceeded.
+     */
+    public static SimilarResponseDto findSimilar(
+            String collection, Upload upload, String sourceID, Integer maxMatches, SearchOptions options,
+            long deadline) {
+        final long startTime = System.currentTimeMillis();
+        LocalCollection local = getCollection(collection);
+        maxMatches = maxMatches == null ? 10 : maxMatches;
+        if (maxMatches < 1) {
+            throw new InvalidArgumentServiceException("maxMatches must be at least 1 but was " + maxMatches);
+        }
+
+        final byte[] image = upload.getContent();
+        RequestDeadline.check(deadline, "reading the uploaded image");
+        String sourceURL = null;
+        if (local.ephemeral) {
+            sourceID = sourceID == null || sourceID.isBlank() ?
+                    ResourceHandler.createEphemeral(upload) :
+                    ResourceHandler.createEphemeral(sourceID, upload);
+            sourceURL = ResourceHandler.getResourceURL(ResourceHandler.EPHEMERAL + "/" + sourceID);
+            RequestDeadline.check(deadline, "storing the ephemeral image");
+        } else if (sourceID == null || sourceID.isBlank()) {
+            sourceID = UUID.randomUUID().toString();
+        }
+
+        float[][] faces;
+        try {
+            faces = local.extractor.extract(image, sourceID, deadline);
+        } catch (SocketTimeoutException e) {
+            log.warn("Timeout extracting features for '{}' for collection '{}'", sourceID, collection);
+            throw new TimeoutServiceException(
+                    "Timeout extracting features for '" + sourceID + "' for collection '" + collection + "'");
+        } catch (IOException e) {
+            String message = "Unable to extract features for '" + sourceID + "' for collection '" + collection + "'";
+            log.warn(message, e);
+            throw new InternalServiceException(message, e);
+        }
+        RequestDeadline.check(deadline, "extracting features");
+
+        // Only the vector searches are done in the pool. Resolving the matches is cheap and done inline
+        final int matches = maxMatches;
+        List<TopK> topKs = FaceSearchPool.processFaces(
+                Arrays.asList(faces), (index, face) -> search(local, face, matches, options), deadline);
+        List<ElementDto> elements = new ArrayList<>(topKs.size());
+        for (int index = 0 ; index < topKs.size() ; index++) {
+            elements.add(new ElementDto()
+                                 .index(index)
+                                 .similars(toSimilars(local, topKs.get(index))));
+        }
+        log.debug("Found similars for {} faces in '{}' in collection '{}' in {}ms",
+                  faces.length, sourceID, collection, System.currentTimeMillis()-startTime);
+        return new SimilarResponseDto()
+                .sourceID(sourceID)
+                .sourceURL(sourceURL)
+                .technote("Facial similarity by " + collection + " (local search in " +
+                          local.index.getVectors().size() + " feature vectors using " +
+                          local.index.getClass().getSimpleName() + ")")
+                .elements(elements);
+    }
+
+    /**
+     * Locate the most similar images in the collection for the given feature vector.
+     * @param collection the collection to search.
+     * @param query      a feature vector for a face.
+     * @param maxMatches the maximum number of similar images.
+     * @param options    optional tuning of the search.
+     * @return the most similar images, sorted by ascending distance.
+     */
+    public static List<SimilarDto> findSimilar(
+            String collection, float[] query, int maxMatches, SearchOptions options) {
+        return findSimilar(getCollection(collection), query, maxMatches, options);
+    }
+
+    private static List<SimilarDto> findSimilar(
+            LocalCollection local, float[] query, int maxMatches, SearchOptions options) {
+        return toSimilars(local, search(local, query, maxMatches, options));
+    }
+
+    private static TopK search(LocalCollection local, float[] query, int maxMatches, SearchOptions options) {
+        try {
+            return local.index.search(query, maxMatches, options);
+        } catch (IllegalArgumentException e) {
+            throw new InvalidArgumentServiceException(e.getMessage(), e);
+        }
+    }
+
+    private static List<SimilarDto> toSimilars(LocalCollection local, TopK topK) {
+        FeatureVectors vectors = local.index.getVectors();
+        List<SimilarDto> similars = new ArrayList<>(topK.size());
+        for (int i = 0 ; i < topK.size() ; i++) {
+            similars.add(DANERData.fillResponse(new SimilarDto().distance((double) topK.getDistance(i)),
+                                                vectors.getID(topK.getID(i))));
+        }
+        return similars;
+    }
+
+    private static LocalCollection getCollection(String collection) {
+        LocalCollection local = getInstance().collections.get(collection);
+        if (local == null) {
+            throw new InvalidArgumentServiceException(
+                    "The collection '" + collection + "' is not available for local similarity search");
+        }
+        return local;
+    }
+
+    private static class LocalCollection {
+        private final String name;
+        private final String description;
+        private final FeatureIndex index;
+        private final FeatureExtractor extractor;
+        private final boolean ephemeral;
+
+        public LocalCollection(String name, String description, FeatureIndex index, FeatureExtractor extractor,
+                               boolean ephemeral) {
+            this.name = name;
+            this.description = description;
+            this.index = index;
+            this.extractor = extractor;
+            this.ephemeral = ephemeral;
+        }
+    }
 
+    @Override
+    public String toString() {
+        return "SimilarHandler(threads=" + threads + ", collections=" + collections.keySet() + ")";
+    }
 }
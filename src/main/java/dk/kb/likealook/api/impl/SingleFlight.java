@@ -0,0 +1,178 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.webservice.exception.InternalServiceException;
+import dk.kb.webservice.exception.ServiceException;
+import dk.kb.webservice.exception.TimeoutServiceException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * Coalesces concurrent calls for the same key, so that only one computation is performed and all callers receive
+ * the same result. This is also known as "single flight".
+ *
+ * The first caller for a given key performs the computation, while callers arriving before it has finished waits
+ * for the result. When the computation has finished, the key is released and later calls starts a new computation.
+ * Exceptions from the computation are passed to all waiting callers.
+ *
+ * As the result is shared, it must not be modified by the callers. {@link Result#isLeader()} tells whether the caller
+ * performed the computation itself or received the result from another caller.
+ *
+ * The class is thread safe.
+ */
+public class SingleFlight<K, V> {
+    private static final Logger log = LoggerFactory.getLogger(SingleFlight.class);
+
+    private final String name;
+    private final ConcurrentMap<K, CompletableFuture<V>> inFlight = new ConcurrentHashMap<>();
+
+    private final AtomicLong executed = new AtomicLong(0);
+    private final AtomicLong coalesced = new AtomicLong(0);
+
+    /**
+     * @param name human readable name, used for logging.
+     */
+    public SingleFlight(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Perform the computation or wait for an already running computation with the same key.
+     * @param key      designation of the computation. Calls with equal keys must produce equal results.
+     * @param supplier performs the computation.
+     * @return the result of the computation, shared between all callers for the same key.
+     */
+    public Result<V> execute(K key, Supplier<V> supplier) {
+        return execute(key, supplier, Long.MAX_VALUE);
+    }
+
+    /**
+     * Perform the computation or wait for an already running computation with the same key.
+     * @param key      designation of the computation. Calls with equal keys must produce equal results.
+     * @param supplier performs the computation.
+     * @param deadline the time, as {@link System#currentTimeMillis()}, where waiting for the computation of another
+     *                 caller is abandoned. Own computations are expected to respect the deadline themselves.
+     * @return the result of the computation, shared between all callers for the same key.
+     * @throws TimeoutServiceException if the computation of another caller did not finish before the deadline.
+     */
+    public Result<V> execute(K key, Supplier<V> supplier, long deadline) {
+        CompletableFuture<V> own = new CompletableFuture<>();
+        CompletableFuture<V> existing = inFlight.putIfAbsent(key, own);
+        if (existing != null) {
+            long coalescedCount = coalesced.incrementAndGet();
+            log.debug("{}: Waiting for in-flight computation for '{}' ({} coalesced calls)",
+                      name, key, coalescedCount);
+            return new Result<>(await(existing, key, deadline), false);
+        }
+
+        executed.incrementAndGet();
+        try {
+            V result = supplier.get();
+            own.complete(result);
+            return new Result<>(result, true);
+        } catch (RuntimeException | Error e) {
+            own.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(key, own);
+        }
+    }
+
+    private V await(CompletableFuture<V> future, K key, long deadline) {
+        try {
+            return future.get(RequestDeadline.remainingMS(deadline), TimeUnit.MILLISECONDS);
+        } catch (TimeoutException e) {
+            throw new TimeoutServiceException("Timeout waiting for shared computation for '" + key + "'");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InternalServiceException("Interrupted waiting for shared computation for '" + key + "'", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceException) {
+                throw (ServiceException) e.getCause();
+            }
+            throw new InternalServiceException(
+                    "Exception in shared computation for '" + key + "': " + e.getCause().getMessage(), e.getCause());
+        } catch (CancellationException e) {
+            throw new InternalServiceException("Shared computation for '" + key + "' was cancelled", e);
+        }
+    }
+
+    /**
+     * @return the number of computations that has been performed.
+     */
+    public long getExecuted() {
+        return executed.get();
+    }
+
+    /**
+     * @return the number of calls that received the result from the computation of another call.
+     */
+    public long getCoalesced() {
+        return coalesced.get();
+    }
+
+    /**
+     * @return the number of computations currently running.
+     */
+    public int getInFlight() {
+        return inFlight.size();
+    }
+
+    /**
+     * The result of a computation, together with the origin of the result.
+     */
+    public static class Result<V> {
+        private final V value;
+        private final boolean leader;
+
+        Result(V value, boolean leader) {
+            this.value = value;
+            this.leader = leader;
+        }
+
+        /**
+         * @return the result of the computation. If the caller was not the {@link #isLeader() leader}, the value is
+         *         shared with other callers.
+         */
+        public V getValue() {
+            return value;
+        }
+
+        /**
+         * @return true if the caller performed the computation, false if the caller waited for the computation of
+         *         another caller.
+         */
+        public boolean isLeader() {
+            return leader;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "SingleFlight(name='" + name + "', executed=" + executed.get() + ", coalesced=" + coalesced.get() +
+               ", inFlight=" + getInFlight() + ")";
+    }
+}
@@ -105,10 +105,28 @@ public class SubjectHandler implements Closeable {
     }
 
     public static List<SubjectDto> detectSubjects(InputStream imageStream, METHOD method, String sourceID, int maxSize) throws IOException {
+        byte[] imageBytes;
+        try {
+            imageBytes = IOUtils.toByteArray(imageStream);
+        } catch (IOException e) {
+            throw new IOException("Unable to load image stream into memory for '" + sourceID + "'");
+        }
+        return detectSubjects(imageBytes, method, sourceID, maxSize);
+    }
+
+    /**
+     * Detect the subjects of the image.
+     * @param imageBytes an image. This is not modified.
+     * @param method     the method used for subject detection.
+     * @param sourceID   optional ID for the image.
+     * @param maxSize    the maximum number of subjects to return.
+     * @return the most probable subjects for the image.
+     */
+    public static List<SubjectDto> detectSubjects(byte[] imageBytes, METHOD method, String sourceID, int maxSize) {
         if (method != METHOD.inception3) {
             throw new IllegalArgumentException("The subject detection method '" + method + "' is unsupported");
         }
-        return getInstance(method).detectSubjectsInception3(imageStream, sourceID, maxSize);
+        return getInstance(method).detectSubjectsInception3(imageBytes, sourceID, maxSize);
     }
 
     private static synchronized SubjectHandler getInstance(METHOD method) {
@@ -121,13 +139,7 @@ public class SubjectHandler implements Closeable {
         return handler;
     }
 
-    private List<SubjectDto> detectSubjectsInception3(InputStream imageStream, String sourceID, int maxSize) throws IOException {
-        byte[] imageBytes;
-        try {
-            imageBytes = IOUtils.toByteArray(imageStream);
-        } catch (IOException e) {
-            throw new IOException("Unable to load image stream into memory for '" + sourceID + "'");
-        }
+    private List<SubjectDto> detectSubjectsInception3(byte[] imageBytes, String sourceID, int maxSize) {
         try (Tensor image = Tensor.create(imageBytes)) {
             float[] labelProbabilities = executeInceptionGraph(image);
             return IntStream.range(0, Math.min(labelProbabilities.length-1, labels.size()-1))
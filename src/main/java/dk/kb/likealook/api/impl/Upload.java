@@ -0,0 +1,257 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.webservice.exception.InternalServiceException;
+import dk.kb.webservice.exception.InvalidArgumentServiceException;
+import org.apache.cxf.jaxrs.ext.multipart.Attachment;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * An uploaded image, read once into an array of exactly the size of the content. The SHA-256 of the content is
+ * calculated while reading.
+ *
+ * The same array is shared by ephemeral storage, caches, detection and the remote services, so the content must
+ * never be modified. Streams from {@link #openStream()} are recognized by {@link #read(InputStream)}, so an Upload
+ * that is passed on as a stream is not copied again.
+ */
+public class Upload {
+    private static final Logger log = LoggerFactory.getLogger(Upload.class);
+
+    private static final int MIN_CHUNK = 8192;
+    private static final int MAX_CHUNK = 1024*1024;
+    private static final int MAX_SIZE = Integer.MAX_VALUE - 8; // Max array size
+
+    private final byte[] content;
+    private final String sha256;
+
+    private Upload(byte[] content, String sha256) {
+        this.content = content;
+        this.sha256 = sha256;
+    }
+
+    /**
+     * Wrap the given content, without copying it.
+     * @param content the content of the upload. This must not be modified afterwards.
+     * @return an Upload with the given content.
+     */
+    public static Upload of(byte[] content) {
+        MessageDigest digest = createDigest();
+        digest.update(content);
+        return new Upload(content, toHex(digest.digest()));
+    }
+
+    /**
+     * Read the content of an uploaded attachment. The stated size of the attachment is used as size hint for
+     * {@link #read(InputStream, long)}.
+     * @param attachment an uploaded image.
+     * @return the content of the attachment.
+     * @throws InvalidArgumentServiceException if the attachment could not be read.
+     */
+    public static Upload read(Attachment attachment) {
+        long sizeHint = -1;
+        String contentLength = attachment.getHeader("Content-Length");
+        if (contentLength != null) {
+            try {
+                sizeHint = Long.parseLong(contentLength.trim());
+            } catch (NumberFormatException e) {
+                log.debug("Unable to parse Content-Length '{}' for attachment", contentLength);
+            }
+        }
+        try (InputStream in = attachment.getDataHandler().getInputStream()) {
+            return read(in, sizeHint);
+        } catch (IOException e) {
+            String message = "Encountered IOException while reading the uploaded image";
+            log.warn(message, e);
+            throw new InvalidArgumentServiceException(message, e);
+        }
+    }
+
+    /**
+     * Read the content of the stream. The stream is not closed.
+     * @param in a stream with the content of an upload.
+     * @return the content of the stream.
+     * @throws InvalidArgumentServiceException if the stream could not be read.
+     */
+    public static Upload read(InputStream in) {
+        try {
+            return read(in, -1);
+        } catch (IOException e) {
+            String message = "Encountered IOException while reading the uploaded image";
+            log.warn(message, e);
+            throw new InvalidArgumentServiceException(message, e);
+        }
+    }
+
+    /**
+     * Read the content of the stream. The stream is not closed.
+     *
+     * If the size is known and at most 1MB, the content is read directly into an array of that
+     * size. Else it is read into chunks of increasing size, which are copied into an array of the exact size at the
+     * end. The size hint is given by the client, so it is never trusted for allocations above 1MB:
+     * Larger arrays are only allocated as the content arrives.
+     * @param in       a stream with the content of an upload.
+     * @param sizeHint the expected number of bytes or -1 if not known.
+     * @return the content of the stream.
+     * @throws IOException if the stream could not be read.
+     */
+    public static Upload read(InputStream in, long sizeHint) throws IOException {
+        return read(in, sizeHint, MAX_SIZE);
+    }
+
+    /**
+     * Read the content of the stream, failing if it is larger than maxSize. The stream is not closed.
+     * See {@link #read(InputStream, long)} for details.
+     * @param in       a stream with the content of an upload.
+     * @param sizeHint the expected number of bytes or -1 if not known.
+     * @param maxSize  the maximum number of bytes to accept. At most {@code Integer.MAX_VALUE - 8}.
+     * @return the content of the stream.
+     * @throws IOException if the stream could not be read or was larger than maxSize.
+     */
+    public static Upload read(InputStream in, long sizeHint, int maxSize) throws IOException {
+        if (in instanceof UploadStream && ((UploadStream)in).isUnread()) {
+            Upload upload = ((UploadStream)in).getUpload();
+            if (upload.getSize() > maxSize) {
+                throw new IOException("The upload is larger than the maximum of " + maxSize + " bytes");
+            }
+            return upload;
+        }
+        maxSize = Math.min(maxSize, MAX_SIZE);
+        MessageDigest digest = createDigest();
+        List<byte[]> chunks = new ArrayList<>();
+        int total = 0;
+        byte[] chunk = new byte[Math.min(sizeHint > 0 ? (int)Math.min(sizeHint, MAX_CHUNK) : MIN_CHUNK, maxSize)];
+        int chunkFill = 0;
+        while (true) {
+            if (chunkFill == chunk.length) {
+                // Only allocate a new chunk if the stream has more content, to avoid an extra copy at the end
+                int next = in.read();
+                if (next == -1) {
+                    break;
+                }
+                if (total == maxSize) {
+                    throw new IOException("The upload is larger than the maximum of " + maxSize + " bytes");
+                }
+                chunks.add(chunk);
+                chunk = new byte[Math.min(Math.max(MIN_CHUNK, Math.min(total, MAX_CHUNK)), maxSize - total)];
+                chunk[0] = (byte)next;
+                chunkFill = 1;
+                digest.update((byte)next);
+                total++;
+            }
+            int read = in.read(chunk, chunkFill, chunk.length - chunkFill);
+            if (read == -1) {
+                break;
+            }
+            digest.update(chunk, chunkFill, read);
+            chunkFill += read;
+            total += read;
+        }
+
+        if (chunks.isEmpty() && chunkFill == chunk.length) {
+            return new Upload(chunk, toHex(digest.digest()));
+        }
+        byte[] content = new byte[total];
+        int pos = 0;
+        for (byte[] full: chunks) {
+            System.arraycopy(full, 0, content, pos, full.length);
+            pos += full.length;
+        }
+        System.arraycopy(chunk, 0, content, pos, chunkFill);
+        return new Upload(content, toHex(digest.digest()));
+    }
+
+    /**
+     * @return the content of the upload. This is shared and must not be modified.
+     */
+    public byte[] getContent() {
+        return content;
+    }
+
+    /**
+     * @return the number of bytes in the upload.
+     */
+    public int getSize() {
+        return content.length;
+    }
+
+    /**
+     * @return the SHA-256 of the content as a lowercase hex string.
+     */
+    public String getSHA256() {
+        return sha256;
+    }
+
+    /**
+     * @return a stream over the content, without copying it.
+     */
+    public InputStream openStream() {
+        return new UploadStream(this);
+    }
+
+    static MessageDigest createDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new InternalServiceException("SHA-256 is not available", e);
+        }
+    }
+
+    /**
+     * @param bytes any bytes, typically a digest.
+     * @return the bytes as a lowercase hex string.
+     */
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length*2);
+        for (byte b: bytes) {
+            hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * Stream over the content of an Upload, which makes it possible to get the Upload back.
+     */
+    private static class UploadStream extends ByteArrayInputStream {
+        private final Upload upload;
+
+        public UploadStream(Upload upload) {
+            super(upload.content);
+            this.upload = upload;
+        }
+
+        public boolean isUnread() {
+            return pos == 0;
+        }
+
+        public Upload getUpload() {
+            return upload;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "Upload(bytes=" + content.length + ", sha256=" + sha256 + ")";
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import java.nio.FloatBuffer;
+
+/**
+ * Squared Euclidean distance calculations, used by all indexes. Distance calculations dominate the cost of
+ * similarity search, so the loops are kept simple for the JIT to auto-vectorize.
+ */
+public class Distances {
+    /**
+     * Partial sums are checked against the limit for every this many dimensions.
+     */
+    public static final int LIMIT_CHECK_INTERVAL = 64;
+
+    /**
+     * @param vector any vector.
+     * @return the Euclidean length of the vector.
+     */
+    public static float norm(float[] vector) {
+        double sum = 0;
+        for (float value: vector) {
+            sum += value*value;
+        }
+        return (float) Math.sqrt(sum);
+    }
+
+    /**
+     * Calculate the squared distance between a stored vector and a query. The calculation stops early when the
+     * partial sum exceeds limit, as the result is only used for ranking.
+     * @param block  holds the stored vector.
+     * @param offset the start of the stored vector in block.
+     * @param query  the query vector, starting at index 0.
+     * @param length the number of dimensions.
+     * @param limit  the distance where the calculation can be stopped, {@link Float#MAX_VALUE} for no limit.
+     * @return the squared distance or a number above limit.
+     */
+    public static float squaredDistance(FloatBuffer block, int offset, float[] query, int length, float limit) {
+        float sum = 0f;
+        int d = 0;
+        while (d < length) {
+            final int end = Math.min(d + LIMIT_CHECK_INTERVAL, length);
+            for ( ; d < end ; d++) {
+                final float diff = block.get(offset + d) - query[d];
+                sum += diff*diff;
+            }
+            if (sum > limit) {
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * Calculate the squared distance between two stored vectors.
+     */
+    public static float squaredDistance(FloatBuffer a, int aOffset, FloatBuffer b, int bOffset, int length) {
+        float sum = 0f;
+        for (int d = 0 ; d < length ; d++) {
+            final float diff = a.get(aOffset + d) - b.get(bOffset + d);
+            sum += diff*diff;
+        }
+        return sum;
+    }
+
+    /**
+     * Calculate the squared distance between two vectors or sub-vectors on the heap. The calculation stops
+     * early when the partial sum exceeds limit.
+     */
+    public static float squaredDistance(float[] a, int aOffset, float[] b, int bOffset, int length, float limit) {
+        float sum = 0f;
+        int d = 0;
+        while (d < length) {
+            final int end = Math.min(d + LIMIT_CHECK_INTERVAL, length);
+            for ( ; d < end ; d++) {
+                final float diff = a[aOffset + d] - b[bOffset + d];
+                sum += diff*diff;
+            }
+            if (sum > limit) {
+                return sum;
+            }
+        }
+        return sum;
+    }
+
+    /**
+     * @return the squared length of the stored vector.
+     */
+    public static float squaredNorm(FloatBuffer block, int offset, int length) {
+        float sum = 0f;
+        for (int d = 0 ; d < length ; d++) {
+            final float value = block.get(offset + d);
+            sum += value*value;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,34 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import java.io.IOException;
+
+/**
+ * Extracts feature vectors for the faces in an image. The vectors must be compatible with the vectors in the
+ * collection that is searched, i.e. produced by the same network.
+ */
+public interface FeatureExtractor {
+
+    /**
+     * @param image    an image, typically JPEG or PNG.
+     * @param sourceID the ID of the image, used for logging.
+     * @param deadline the time, as {@link System#currentTimeMillis()}, where extraction is abandoned.
+     * @return a feature vector for each detected face in the image, in detection order. Empty if no faces.
+     * @throws java.net.SocketTimeoutException if the features could not be extracted before the deadline.
+     * @throws IOException if the features could not be extracted.
+     */
+    float[][] extract(byte[] image, String sourceID, long deadline) throws IOException;
+}
@@ -0,0 +1,54 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+/**
+ * Nearest neighbour search in a collection of {@link FeatureVectors}.
+ *
+ * Implementations must be thread safe for concurrent searches.
+ */
+public interface FeatureIndex {
+
+    /**
+     * Find the (approximate) k nearest vectors to the query.
+     * @param query   a vector with the same number of dimensions as the index.
+     * @param k       the number of nearest vectors to locate.
+     * @param options optional tuning of the search. Options not relevant for the index are ignored.
+     * @return the rows and the Euclidean distances for the nearest vectors, sorted by ascending distance.
+     */
+    TopK search(float[] query, int k, SearchOptions options);
+
+    /**
+     * Find the (approximate) k nearest vectors to the query, using default options.
+     * @param query   a vector with the same number of dimensions as the index.
+     * @param k       the number of nearest vectors to locate.
+     * @return the rows and the Euclidean distances for the nearest vectors, sorted by ascending distance.
+     */
+    default TopK search(float[] query, int k) {
+        return search(query, k, SearchOptions.DEFAULT);
+    }
+
+    /**
+     * @return the vectors searched by this index.
+     */
+    FeatureVectors getVectors();
+
+    /**
+     * @return the approximate number of bytes used by the index structures, not counting the vectors.
+     */
+    default long getIndexBytes() {
+        return 0;
+    }
+}
@@ -0,0 +1,484 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Binary file format for feature vectors, designed to be memory mapped with {@link FileChannel#map}.
+ * Opening a store is near-instantaneous as nothing is copied to the heap: The vectors are read directly from the
+ * page cache and JVMs on the same machine opening the same store share the physical memory.
+ *
+ * All numbers are little-endian. The layout is
+ * <pre>
+ * Header, 64 bytes
+ *   int32   magic, 0x4C414653
+ *   int32   version, currently 1
+ *   int32   dimensions
+ *   int32   vector count (n)
+ *   int64   position of the vectors, always 64
+ *   int64   position of the ID offsets
+ *   int64   position of the ID data
+ *   int64   length of the ID data in bytes
+ *   16 bytes reserved, must be 0
+ * Vectors, n * dimensions float32
+ *   The vectors, one after the other
+ * ID offsets, (n+1) int32
+ *   Start of each ID in the ID data. The last entry is the length of the ID data
+ * ID data
+ *   The IDs for the vectors in UTF-8, without delimiters
+ * </pre>
+ * The vectors are placed before the IDs so that the store can be written in a single pass from a stream of vectors.
+ * As the header is 64 bytes, the vectors are aligned to cache lines.
+ *
+ * Stores are created with {@link Writer} or by {@link #main(String[]) importing} CSV or NPY files.
+ */
+public class FeatureStore {
+    private static final Logger log = LoggerFactory.getLogger(FeatureStore.class);
+
+    public static final int MAGIC = 0x4C414653;
+    public static final int VERSION = 1;
+    public static final int HEADER_BYTES = 64;
+
+    /**
+     * Open the store as memory mapped feature vectors.
+     * @param storeFile a file created with {@link Writer}.
+     * @return vectors backed by the store.
+     * @throws IOException if the file could not be mapped or was not a valid store.
+     */
+    public static FeatureVectors open(Path storeFile) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        try (FileChannel channel = FileChannel.open(storeFile, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_BYTES) {
+                throw new IOException("The file '" + storeFile + "' is too small to be a feature store");
+            }
+            ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_BYTES)
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            if (header.getInt(0) != MAGIC) {
+                throw new IOException("The file '" + storeFile + "' is not a feature store");
+            }
+            if (header.getInt(4) != VERSION) {
+                throw new IOException("Unsupported feature store version " + header.getInt(4) + " in '" +
+                                      storeFile + "'. Supported version is " + VERSION);
+            }
+            final int dimensions = header.getInt(8);
+            final int size = header.getInt(12);
+            final long vectorsPosition = header.getLong(16);
+            final long idOffsetsPosition = header.getLong(24);
+            final long idDataPosition = header.getLong(32);
+            final long idDataLength = header.getLong(40);
+            if (dimensions <= 0 || size < 0 ||
+                vectorsPosition + (long) size * dimensions * Float.BYTES > idOffsetsPosition ||
+                idOffsetsPosition + (size + 1L) * Integer.BYTES > idDataPosition ||
+                idDataPosition + idDataLength > channel.size()) {
+                throw new IOException("Inconsistent header in feature store '" + storeFile + "'");
+            }
+
+            FloatBuffer[] blocks = mapVectors(channel, vectorsPosition, size, dimensions);
+            // Mapped IDs are resolved on demand, as only the IDs for the final results are needed
+            ByteBuffer idOffsets = channel.map(FileChannel.MapMode.READ_ONLY, idOffsetsPosition,
+                                               (size + 1L) * Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer idData = channel.map(FileChannel.MapMode.READ_ONLY, idDataPosition, idDataLength);
+            FeatureVectors vectors = new FeatureVectors(
+                    row -> getID(idOffsets, idData, row), size, dimensions, blocks, "mmap:" + storeFile);
+            log.info("Opened {} {}-dimensional feature vectors from '{}' in {}ms",
+                     size, dimensions, storeFile, System.currentTimeMillis()-startTime);
+            return vectors;
+        }
+    }
+
+    /**
+     * Map the vectors in segments below 2GB, which is the limit for a single mapping, and slice the segments into
+     * blocks of {@link FeatureVectors#BLOCK_ROWS} vectors.
+     */
+    private static FloatBuffer[] mapVectors(FileChannel channel, long position, int size, int dimensions)
+            throws IOException {
+        final long blockBytes = (long) FeatureVectors.BLOCK_ROWS * dimensions * Float.BYTES;
+        final int blocksPerSegment = (int) Math.max(1, Integer.MAX_VALUE / blockBytes);
+        FloatBuffer[] blocks = new FloatBuffer[(size + FeatureVectors.BLOCK_ROWS - 1) / FeatureVectors.BLOCK_ROWS];
+        for (int segmentStart = 0 ; segmentStart < blocks.length ; segmentStart += blocksPerSegment) {
+            final int segmentEnd = Math.min(segmentStart + blocksPerSegment, blocks.length);
+            final int segmentRows = Math.min(
+                    size - segmentStart*FeatureVectors.BLOCK_ROWS,
+                    (segmentEnd - segmentStart) * FeatureVectors.BLOCK_ROWS);
+            MappedByteBuffer segment = channel.map(FileChannel.MapMode.READ_ONLY,
+                                                   position + segmentStart * blockBytes,
+                                                   (long) segmentRows * dimensions * Float.BYTES);
+            for (int b = segmentStart ; b < segmentEnd ; b++) {
+                final int rows = Math.min(FeatureVectors.BLOCK_ROWS, size - b*FeatureVectors.BLOCK_ROWS);
+                final int offset = (int) ((b - segmentStart) * blockBytes);
+                ByteBuffer block = segment.duplicate();
+                block.position(offset).limit(offset + rows * dimensions * Float.BYTES);
+                // slice() resets the byte order, so it must be set afterwards
+                blocks[b] = block.slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+            }
+        }
+        return blocks;
+    }
+
+    private static String getID(ByteBuffer idOffsets, ByteBuffer idData, int row) {
+        final int start = idOffsets.getInt(row * Integer.BYTES);
+        final int end = idOffsets.getInt((row + 1) * Integer.BYTES);
+        byte[] utf8 = new byte[end - start];
+        ByteBuffer data = idData.duplicate();
+        data.position(start);
+        data.get(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param file any file.
+     * @return true if the file starts with the magic number for a feature store.
+     * @throws IOException if the file could not be read.
+     */
+    public static boolean isFeatureStore(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ByteBuffer magic = ByteBuffer.allocate(Integer.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+            while (magic.hasRemaining()) {
+                if (channel.read(magic) == -1) {
+                    return false;
+                }
+            }
+            return magic.getInt(0) == MAGIC;
+        }
+    }
+
+    /**
+     * Write the vectors to a store.
+     * @param vectors   the vectors to write.
+     * @param storeFile the destination.
+     * @throws IOException if the store could not be written.
+     */
+    public static void write(FeatureVectors vectors, Path storeFile) throws IOException {
+        float[] vector = new float[vectors.dimensions()];
+        try (Writer writer = new Writer(storeFile, vectors.dimensions())) {
+            for (int row = 0 ; row < vectors.size() ; row++) {
+                writer.add(vectors.getID(row), vectors.get(row, vector));
+            }
+            writer.finish();
+        }
+    }
+
+    /**
+     * Convert a text file in the format described in {@link FeatureVectors#load(Path)} to a store.
+     * The vectors are streamed, so the size of the input is not limited by the heap.
+     * @param textFile  a file with one ID and vector per line.
+     * @param storeFile the destination.
+     * @return the number of imported vectors.
+     * @throws IOException if the input could not be read or the store could not be written.
+     */
+    public static int importText(Path textFile, Path storeFile) throws IOException {
+        Writer[] writer = new Writer[1]; // The dimensions are not known before the first vector has been read
+        try {
+            FeatureVectors.readText(textFile, (id, vector) -> {
+                if (writer[0] == null) {
+                    writer[0] = new Writer(storeFile, vector.length);
+                }
+                writer[0].add(id, vector);
+            });
+            if (writer[0] == null) {
+                throw new IOException("No feature vectors in '" + textFile + "'");
+            }
+            writer[0].finish();
+            return writer[0].size();
+        } finally {
+            if (writer[0] != null) {
+                writer[0].close();
+            }
+        }
+    }
+
+    /**
+     * Convert a NumPy {@code .npy} file with a 2-dimensional little-endian float32 or float64 matrix in C order,
+     * as produced by {@code numpy.save(file, features)}, to a store.
+     * @param npyFile   a NumPy file with one vector per row.
+     * @param idsFile   a text file with one ID per line, matching the rows in the NumPy file. If null, the row
+     *                  numbers are used as IDs.
+     * @param storeFile the destination.
+     * @return the number of imported vectors.
+     * @throws IOException if the input could not be read or the store could not be written.
+     */
+    public static int importNPY(Path npyFile, Path idsFile, Path storeFile) throws IOException {
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(npyFile));
+             BufferedReader ids = idsFile == null ? null : Files.newBufferedReader(idsFile, StandardCharsets.UTF_8)) {
+            NPYHeader header = NPYHeader.read(in, npyFile);
+            final int valueBytes = header.float64 ? Double.BYTES : Float.BYTES;
+            ByteBuffer row = ByteBuffer.allocate(header.columns * valueBytes).order(ByteOrder.LITTLE_ENDIAN);
+            float[] vector = new float[header.columns];
+            try (Writer writer = new Writer(storeFile, header.columns)) {
+                for (int r = 0 ; r < header.rows ; r++) {
+                    String id = Integer.toString(r);
+                    if (ids != null && (id = ids.readLine()) == null) {
+                        throw new IOException("Got " + header.rows + " vectors from '" + npyFile + "' but only " +
+                                              r + " IDs from '" + idsFile + "'");
+                    }
+                    in.readFully(row.array());
+                    for (int d = 0 ; d < header.columns ; d++) {
+                        vector[d] = header.float64 ? (float) row.getDouble(d * valueBytes) : row.getFloat(d * valueBytes);
+                    }
+                    writer.add(id.trim(), vector);
+                }
+                writer.finish();
+            } catch (EOFException e) {
+                throw new IOException("Unexpected end of '" + npyFile + "'", e);
+            }
+            return header.rows;
+        }
+    }
+
+    /**
+     * The relevant parts of a NumPy header, see https://numpy.org/doc/stable/reference/generated/numpy.lib.format.html
+     */
+    private static class NPYHeader {
+        private static final byte[] NPY_MAGIC = new byte[]{(byte) 0x93, 'N', 'U', 'M', 'P', 'Y'};
+        private static final Pattern DESCR = Pattern.compile("'descr'\\s*:\\s*'([^']*)'");
+        private static final Pattern FORTRAN = Pattern.compile("'fortran_order'\\s*:\\s*(True|False)");
+        private static final Pattern SHAPE = Pattern.compile("'shape'\\s*:\\s*\\(\\s*(\\d+)\\s*,\\s*(\\d+)\\s*,?\\s*\\)");
+
+        private final int rows;
+        private final int columns;
+        private final boolean float64;
+
+        private NPYHeader(int rows, int columns, boolean float64) {
+            this.rows = rows;
+            this.columns = columns;
+            this.float64 = float64;
+        }
+
+        static NPYHeader read(DataInputStream in, Path npyFile) throws IOException {
+            byte[] magic = new byte[NPY_MAGIC.length];
+            in.readFully(magic);
+            for (int i = 0 ; i < magic.length ; i++) {
+                if (magic[i] != NPY_MAGIC[i]) {
+                    throw new IOException("The file '" + npyFile + "' is not a NumPy file");
+                }
+            }
+            final int major = in.readUnsignedByte();
+            in.readUnsignedByte(); // minor
+            final long headerLength = major == 1 ?
+                    Short.toUnsignedInt(Short.reverseBytes(in.readShort())) :
+                    Integer.toUnsignedLong(Integer.reverseBytes(in.readInt()));
+            byte[] headerBytes = new byte[(int) headerLength];
+            in.readFully(headerBytes);
+            String header = new String(headerBytes, major < 3 ? StandardCharsets.ISO_8859_1 : StandardCharsets.UTF_8);
+
+            Matcher descr = DESCR.matcher(header);
+            Matcher fortran = FORTRAN.matcher(header);
+            Matcher shape = SHAPE.matcher(header);
+            if (!descr.find() || !fortran.find() || !shape.find()) {
+                throw new IOException("Unable to parse NumPy header '" + header.trim() + "' in '" + npyFile + "'");
+            }
+            if ("True".equals(fortran.group(1))) {
+                throw new IOException("Fortran order is not supported for '" + npyFile + "'");
+            }
+            final String type = descr.group(1).toLowerCase(Locale.ROOT);
+            if (!"<f4".equals(type) && !"<f8".equals(type)) {
+                throw new IOException("Only little-endian float32 (<f4) and float64 (<f8) are supported, but '" +
+                                      npyFile + "' has type '" + type + "'");
+            }
+            return new NPYHeader(Integer.parseInt(shape.group(1)), Integer.parseInt(shape.group(2)),
+                                 "<f8".equals(type));
+        }
+    }
+
+    /**
+     * Import CSV or NumPy files to a feature store. Usage:
+     * <pre>
+     * FeatureStore input.csv output.features
+     * FeatureStore input.npy output.features [ids.txt]
+     * </pre>
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2 || args.length > 3) {
+            System.err.println("Usage: FeatureStore input.csv output.features");
+            System.err.println("       FeatureStore input.npy output.features [ids.txt]");
+            System.err.println("The CSV must have one vector per line: <id>,<value1>,<value2>,...");
+            System.err.println("The NPY must be a 2-dimensional float32 or float64 matrix with one vector per row, " +
+                               "with IDs in ids.txt, one per line. If no IDs are given, the row numbers are used");
+            System.exit(1);
+        }
+        final long startTime = System.currentTimeMillis();
+        Path input = Path.of(args[0]);
+        Path output = Path.of(args[1]);
+        int count = args[0].toLowerCase(Locale.ROOT).endsWith(".npy") ?
+                importNPY(input, args.length == 3 ? Path.of(args[2]) : null, output) :
+                importText(input, output);
+        System.out.println("Imported " + count + " vectors from '" + input + "' to '" + output + "' in " +
+                           (System.currentTimeMillis()-startTime)/1000 + " seconds");
+    }
+
+    /**
+     * Streaming writer for feature stores. The vectors are written directly to disk, while the IDs are kept in
+     * memory until {@link #finish()}. The store is written to a temporary file which is moved into place by
+     * {@link #finish()}. Closing the writer without calling {@link #finish()} discards the store.
+     *
+     * Not thread safe.
+     */
+    public static class Writer implements Closeable {
+        private static final int BUFFER_BYTES = 1024*1024;
+
+        private final Path storeFile;
+        private final Path tmpFile;
+        private final int dimensions;
+        private final FileChannel channel;
+        private final ByteBuffer buffer;
+        private final List<byte[]> ids = new ArrayList<>();
+        private long idDataLength = 0;
+        private boolean closed = false;
+
+        /**
+         * @param storeFile  the destination.
+         * @param dimensions the number of dimensions for all vectors.
+         * @throws IOException if the destination could not be created.
+         */
+        public Writer(Path storeFile, int dimensions) throws IOException {
+            if (dimensions <= 0) {
+                throw new IllegalArgumentException("dimensions must be positive but was " + dimensions);
+            }
+            this.storeFile = storeFile;
+            this.tmpFile = storeFile.resolveSibling(storeFile.getFileName() + ".tmp");
+            this.dimensions = dimensions;
+            channel = FileChannel.open(tmpFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                       StandardOpenOption.TRUNCATE_EXISTING);
+            buffer = ByteBuffer.allocate(Math.max(BUFFER_BYTES, dimensions * Float.BYTES))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            channel.position(HEADER_BYTES); // The header is written on close
+        }
+
+        /**
+         * @param id     the ID for the vector.
+         * @param vector the vector.
+         * @throws IOException if the vector could not be written.
+         */
+        public void add(String id, float[] vector) throws IOException {
+            if (vector.length != dimensions) {
+                throw new IllegalArgumentException(
+                        "Expected vector with " + dimensions + " dimensions but got " + vector.length +
+                        " for '" + id + "'");
+            }
+            if (ids.size() == Integer.MAX_VALUE - 1) {
+                throw new IllegalStateException("The maximum number of vectors has been reached");
+            }
+            byte[] utf8 = id.getBytes(StandardCharsets.UTF_8);
+            if (idDataLength + utf8.length > Integer.MAX_VALUE) {
+                throw new IllegalStateException("The maximum size of " + Integer.MAX_VALUE + " bytes for IDs " +
+                                                "has been reached");
+            }
+            idDataLength += utf8.length;
+            ids.add(utf8);
+
+            if (buffer.remaining() < vector.length * Float.BYTES) {
+                flush();
+            }
+            buffer.asFloatBuffer().put(vector);
+            buffer.position(buffer.position() + vector.length * Float.BYTES);
+        }
+
+        /**
+         * @return the number of added vectors.
+         */
+        public int size() {
+            return ids.size();
+        }
+
+        private void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * Write the IDs and the header and move the store into place.
+         * @throws IOException if the store could not be written.
+         */
+        public void finish() throws IOException {
+            if (closed) {
+                throw new IllegalStateException("The writer for '" + storeFile + "' has already been closed");
+            }
+            flush();
+            final long idOffsetsPosition = channel.position();
+            int offset = 0;
+            for (byte[] id: ids) {
+                if (buffer.remaining() < Integer.BYTES) {
+                    flush();
+                }
+                buffer.putInt(offset);
+                offset += id.length;
+            }
+            if (buffer.remaining() < Integer.BYTES) {
+                flush();
+            }
+            buffer.putInt(offset);
+            flush();
+
+            final long idDataPosition = channel.position();
+            for (byte[] id: ids) {
+                if (buffer.remaining() < id.length) {
+                    flush();
+                }
+                buffer.put(id);
+            }
+            flush();
+
+            buffer.putInt(MAGIC).putInt(VERSION).putInt(dimensions).putInt(ids.size());
+            buffer.putLong(HEADER_BYTES).putLong(idOffsetsPosition).putLong(idDataPosition).putLong(idDataLength);
+            buffer.put(new byte[HEADER_BYTES - buffer.position()]);
+            channel.position(0);
+            flush();
+            channel.force(true);
+            channel.close();
+            closed = true;
+            Files.move(tmpFile, storeFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log.info("Wrote {} {}-dimensional feature vectors to '{}'", ids.size(), dimensions, storeFile);
+        }
+
+        /**
+         * Discard the store if {@link #finish()} has not been called.
+         */
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            channel.close();
+            Files.deleteIfExists(tmpFile);
+        }
+    }
+}
@@ -0,0 +1,302 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.FloatBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.function.IntFunction;
+
+/**
+ * Fixed size feature vectors with IDs, held in {@link FloatBuffer} blocks.
+ *
+ * Each block holds {@link #BLOCK_ROWS} vectors laid out contiguously, so that vector {@code row} starts at offset
+ * {@code (row % BLOCK_ROWS) * dimensions} in block {@code row / BLOCK_ROWS}. Splitting in blocks avoids the 2^31
+ * element limit for Java arrays and buffers: 1 million 2048-dimensional vectors would not fit in a single block.
+ *
+ * The blocks are either backed by {@code float[]}s on the heap or by a memory mapped {@link FeatureStore} file.
+ *
+ * The structure is immutable after construction and thus thread safe.
+ */
+public class FeatureVectors {
+    private static final Logger log = LoggerFactory.getLogger(FeatureVectors.class);
+
+    public static final int BLOCK_ROWS = 1024;
+
+    private final IntFunction<String> ids;
+    private final int size;
+    private final int dimensions;
+    private final FloatBuffer[] blocks;
+    private final String source;
+    private volatile float[] norms = null;
+
+    /**
+     * Create a heap backed structure for the given amount of vectors. Fill it using {@link #set(int, float[])}.
+     * @param ids        the IDs for the vectors. The length of this array defines the number of vectors.
+     * @param dimensions the number of dimensions for each vector.
+     */
+    public FeatureVectors(String[] ids, int dimensions) {
+        this(row -> ids[row], ids.length, dimensions, createHeapBlocks(ids.length, dimensions), "heap");
+    }
+
+    /**
+     * Create a structure on top of existing blocks.
+     * @param ids        resolver for IDs.
+     * @param size       the number of vectors.
+     * @param dimensions the number of dimensions for each vector.
+     * @param blocks     {@code ceil(size/BLOCK_ROWS)} blocks, all but the last holding exactly {@link #BLOCK_ROWS}
+     *                   vectors.
+     * @param source     human readable designation of where the vectors are stored.
+     */
+    FeatureVectors(IntFunction<String> ids, int size, int dimensions, FloatBuffer[] blocks, String source) {
+        if (dimensions <= 0) {
+            throw new IllegalArgumentException("dimensions must be positive but was " + dimensions);
+        }
+        if (blocks.length != (size + BLOCK_ROWS - 1) / BLOCK_ROWS) {
+            throw new IllegalArgumentException(
+                    "Expected " + ((size + BLOCK_ROWS - 1) / BLOCK_ROWS) + " blocks for " + size +
+                    " vectors but got " + blocks.length);
+        }
+        this.ids = ids;
+        this.size = size;
+        this.dimensions = dimensions;
+        this.blocks = blocks;
+        this.source = source;
+    }
+
+    private static FloatBuffer[] createHeapBlocks(int size, int dimensions) {
+        if (dimensions <= 0) {
+            throw new IllegalArgumentException("dimensions must be positive but was " + dimensions);
+        }
+        FloatBuffer[] blocks = new FloatBuffer[(size + BLOCK_ROWS - 1) / BLOCK_ROWS];
+        for (int b = 0 ; b < blocks.length ; b++) {
+            int rows = Math.min(BLOCK_ROWS, size - b*BLOCK_ROWS);
+            blocks[b] = FloatBuffer.wrap(new float[rows*dimensions]);
+        }
+        return blocks;
+    }
+
+    /**
+     * Load feature vectors from a text file with one vector per line. Each line starts with the ID followed by
+     * the values for the vector, all separated by comma, semicolon or whitespace:
+     * <pre>
+     * DP032144,0.0123,-0.4311,...
+     * </pre>
+     * Empty lines and lines starting with {@code #} are ignored.
+     * @param featuresFile a file with vectors.
+     * @return the feature vectors from the file.
+     * @throws IOException if the file could not be read or was malformed.
+     */
+    public static FeatureVectors load(Path featuresFile) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        List<String> ids = new ArrayList<>();
+        List<float[]> vectors = new ArrayList<>();
+        readText(featuresFile, (id, vector) -> {
+            ids.add(id);
+            vectors.add(vector);
+        });
+        if (vectors.isEmpty()) {
+            throw new IOException("No feature vectors in '" + featuresFile + "'");
+        }
+
+        FeatureVectors features = new FeatureVectors(ids.toArray(new String[0]), vectors.get(0).length);
+        for (int row = 0 ; row < vectors.size() ; row++) {
+            features.set(row, vectors.get(row));
+        }
+        log.info("Loaded {} {}-dimensional feature vectors from '{}' in {}ms",
+                 features.size(), features.dimensions(), featuresFile, System.currentTimeMillis()-startTime);
+        return features;
+    }
+
+    /**
+     * Stream the vectors from a text file in the format described in {@link #load(Path)}.
+     * @param featuresFile a file with vectors.
+     * @param consumer     receives the vectors in order. Each vector is a new array.
+     * @throws IOException if the file could not be read, was malformed or if the consumer failed.
+     */
+    static void readText(Path featuresFile, VectorConsumer consumer) throws IOException {
+        int dimensions = -1;
+        try (BufferedReader in = Files.newBufferedReader(featuresFile, StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] tokens = line.split("\\s*[,;]\\s*|\\s+");
+                if (dimensions == -1) {
+                    dimensions = tokens.length-1;
+                    if (dimensions <= 0) {
+                        throw new IOException("No vector at line " + lineNumber + " in '" + featuresFile + "'");
+                    }
+                } else if (tokens.length-1 != dimensions) {
+                    throw new IOException(
+                            "Expected " + dimensions + " dimensions but got " + (tokens.length-1) +
+                            " at line " + lineNumber + " in '" + featuresFile + "'");
+                }
+                float[] vector = new float[dimensions];
+                try {
+                    for (int d = 0 ; d < dimensions ; d++) {
+                        vector[d] = Float.parseFloat(tokens[d+1]);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IOException("Unable to parse vector at line " + lineNumber + " in '" + featuresFile + "'", e);
+                }
+                consumer.accept(tokens[0], vector);
+            }
+        }
+    }
+
+    /**
+     * Receiver of vectors when streaming from files.
+     */
+    @FunctionalInterface
+    interface VectorConsumer {
+        void accept(String id, float[] vector) throws IOException;
+    }
+
+    /**
+     * Load feature vectors from either a {@link FeatureStore} file, which is memory mapped, or a text file as
+     * described in {@link #load(Path)}. The type is determined from the content of the file.
+     * @param featuresFile a file with vectors.
+     * @return the feature vectors from the file.
+     * @throws IOException if the file could not be read or was malformed.
+     */
+    public static FeatureVectors open(Path featuresFile) throws IOException {
+        return FeatureStore.isFeatureStore(featuresFile) ? FeatureStore.open(featuresFile) : load(featuresFile);
+    }
+
+    /**
+     * Vectors must not be changed after {@link #getNorms()} has been called.
+     * @param row    the row to assign to.
+     * @param vector the vector to copy into the structure.
+     * @throws java.nio.ReadOnlyBufferException if the vectors are backed by a {@link FeatureStore}.
+     */
+    public void set(int row, float[] vector) {
+        if (vector.length != dimensions) {
+            throw new IllegalArgumentException(
+                    "Expected vector with " + dimensions + " dimensions but got " + vector.length);
+        }
+        FloatBuffer block = blocks[row / BLOCK_ROWS].duplicate();
+        block.position((row % BLOCK_ROWS) * dimensions);
+        block.put(vector);
+    }
+
+    /**
+     * @param row  the row to get the vector for.
+     * @param dest the destination for the vector.
+     * @return dest, filled with the vector.
+     */
+    public float[] get(int row, float[] dest) {
+        FloatBuffer block = blocks[row / BLOCK_ROWS].duplicate();
+        block.position((row % BLOCK_ROWS) * dimensions);
+        block.get(dest, 0, dimensions);
+        return dest;
+    }
+
+    /**
+     * Calculate the squared Euclidean distance from the query to the vector at the given row.
+     * The calculation stops early when the partial sum exceeds limit, as the result is only used for ranking.
+     * @param row   the row for the vector.
+     * @param query a vector with the same number of dimensions as the structure.
+     * @param limit the distance where the calculation can be stopped, {@link Float#MAX_VALUE} for no limit.
+     * @return the squared distance or a number above limit.
+     */
+    public float squaredDistance(int row, float[] query, float limit) {
+        return Distances.squaredDistance(
+                blocks[row / BLOCK_ROWS], (row % BLOCK_ROWS) * dimensions, query, dimensions, limit);
+    }
+
+    /**
+     * Calculate the squared Euclidean distance between the vectors at the two given rows.
+     * @param row      the row for the first vector.
+     * @param otherRow the row for the second vector.
+     * @return the squared distance.
+     */
+    public float squaredDistance(int row, int otherRow) {
+        return Distances.squaredDistance(
+                blocks[row / BLOCK_ROWS], (row % BLOCK_ROWS) * dimensions,
+                blocks[otherRow / BLOCK_ROWS], (otherRow % BLOCK_ROWS) * dimensions, dimensions);
+    }
+
+    /**
+     * The norms are calculated on first call and cached. Indexes call this when they are created, so that the
+     * cost is paid at startup.
+     * @return the Euclidean length of each vector.
+     */
+    public float[] getNorms() {
+        float[] norms = this.norms;
+        if (norms == null) {
+            synchronized (this) {
+                if (this.norms == null) {
+                    norms = new float[size];
+                    for (int row = 0 ; row < size ; row++) {
+                        norms[row] = (float) Math.sqrt(Distances.squaredNorm(
+                                blocks[row / BLOCK_ROWS], (row % BLOCK_ROWS) * dimensions, dimensions));
+                    }
+                    this.norms = norms;
+                }
+                norms = this.norms;
+            }
+        }
+        return norms;
+    }
+
+    /**
+     * @param row the row for the vector.
+     * @return the ID for the vector.
+     */
+    public String getID(int row) {
+        return ids.apply(row);
+    }
+
+    /**
+     * @return the number of vectors.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the number of dimensions for each vector.
+     */
+    public int dimensions() {
+        return dimensions;
+    }
+
+    /**
+     * @return the approximate number of bytes used for holding the vectors, on the heap or memory mapped.
+     */
+    public long getVectorBytes() {
+        return Arrays.stream(blocks).mapToLong(block -> block.capacity() * 4L).sum();
+    }
+
+    @Override
+    public String toString() {
+        return "FeatureVectors(vectors=" + size() + ", dimensions=" + dimensions + ", blocks=" + blocks.length +
+               ", source=" + source + ")";
+    }
+}
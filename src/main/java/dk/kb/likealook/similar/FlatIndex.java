@@ -0,0 +1,133 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Exact nearest neighbour search by brute force comparison of the query against all feature vectors.
+ *
+ * The vectors are split into contiguous partitions which are scanned in parallel, each with its own {@link TopK}.
+ * The partial results are merged into the final top-k. Distances are Euclidean, matching {@code FeatureNearest}
+ * in the Wolfram face search service.
+ *
+ * The norms of the vectors are precomputed: By the triangle inequality, the distance between two vectors is at
+ * least the difference between their norms, which allows vectors to be skipped without calculating the distance.
+ */
+public class FlatIndex implements FeatureIndex {
+    private static final Logger log = LoggerFactory.getLogger(FlatIndex.class);
+
+    /**
+     * Partitions smaller than this are not worth the overhead of a separate task.
+     */
+    public static final int MIN_PARTITION_ROWS = 2048;
+
+    private final FeatureVectors vectors;
+    private final ExecutorService executor;
+    private final int partitions;
+    private final float[] norms;
+
+    /**
+     * @param vectors     the vectors to search.
+     * @param executor    used for parallel search.
+     * @param parallelism the maximum number of partitions to search in parallel.
+     */
+    public FlatIndex(FeatureVectors vectors, ExecutorService executor, int parallelism) {
+        this.vectors = vectors;
+        this.executor = executor;
+        this.partitions = Math.max(1, Math.min(parallelism, vectors.size() / MIN_PARTITION_ROWS));
+        this.norms = vectors.getNorms();
+        log.info("Created " + this);
+    }
+
+    /**
+     * Find the k nearest vectors to the query. The search is exact, so options are ignored.
+     */
+    @Override
+    public TopK search(float[] query, int k, SearchOptions options) {
+        if (query.length != vectors.dimensions()) {
+            throw new IllegalArgumentException(
+                    "Expected query with " + vectors.dimensions() + " dimensions but got " + query.length);
+        }
+        TopK topK = partitions == 1 ?
+                searchPartition(query, k, 0, vectors.size()) :
+                searchParallel(query, k);
+        // Squared distances are used internally as they have the same order and are cheaper to calculate
+        return topK.sort().sqrtDistances();
+    }
+
+    private TopK searchParallel(float[] query, int k) {
+        final int rowsPerPartition = (vectors.size() + partitions - 1) / partitions;
+        List<Callable<TopK>> jobs = new ArrayList<>(partitions);
+        for (int start = 0 ; start < vectors.size() ; start += rowsPerPartition) {
+            final int from = start;
+            final int to = Math.min(start + rowsPerPartition, vectors.size());
+            jobs.add(() -> searchPartition(query, k, from, to));
+        }
+
+        TopK merged = new TopK(k);
+        try {
+            for (Future<TopK> partial: executor.invokeAll(jobs)) {
+                merged.merge(partial.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for partial search results", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Exception during partial search", e.getCause());
+        }
+        return merged;
+    }
+
+    private TopK searchPartition(float[] query, int k, int from, int to) {
+        TopK topK = new TopK(k);
+        final float queryNorm = Distances.norm(query);
+        for (int row = from ; row < to ; row++) {
+            final float threshold = topK.threshold();
+            final float bound = norms[row] - queryNorm;
+            if (bound*bound >= threshold) {
+                continue;
+            }
+            final float distance = vectors.squaredDistance(row, query, threshold);
+            if (distance < threshold) {
+                topK.offer(row, distance);
+            }
+        }
+        return topK;
+    }
+
+    @Override
+    public FeatureVectors getVectors() {
+        return vectors;
+    }
+
+    @Override
+    public long getIndexBytes() {
+        return (long) norms.length * Float.BYTES;
+    }
+
+    @Override
+    public String toString() {
+        return "FlatIndex(vectors=" + vectors + ", partitions=" + partitions + ")";
+    }
+}
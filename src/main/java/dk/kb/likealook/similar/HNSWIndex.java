@@ -0,0 +1,555 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Approximate nearest neighbour search using a Hierarchical Navigable Small World graph.
+ * See "Efficient and robust approximate nearest neighbor search using Hierarchical Navigable Small World graphs"
+ * by Malkov &amp; Yashunin, https://arxiv.org/abs/1603.09320
+ *
+ * The graph holds the rows of the {@link FeatureVectors} as nodes. The neighbours for each node on each level
+ * are stored as {@code int[]} with the number of neighbours at index 0, followed by the neighbour rows.
+ *
+ * The graph is built in parallel and can be persisted with {@link #save(Path)} and loaded with
+ * {@link #load(Path, FeatureVectors, int)} so that it does not need to be rebuilt at each startup.
+ */
+public class HNSWIndex implements FeatureIndex {
+    private static final Logger log = LoggerFactory.getLogger(HNSWIndex.class);
+
+    public static final int M_DEFAULT = 16;
+    public static final int EF_CONSTRUCTION_DEFAULT = 200;
+    public static final int EF_SEARCH_DEFAULT = 50;
+
+    private static final int MAGIC = 0x484E5357; // "HNSW"
+    private static final int VERSION = 1;
+
+    private final FeatureVectors vectors;
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final int efSearch;
+    // links[node][level] = [neighbourCount, neighbour_1, neighbour_2, ...]
+    private final int[][][] links;
+
+    private final Object entryLock = new Object();
+    private volatile int entryPoint = -1;
+    private volatile int maxLevel = -1;
+
+    // Search state is expensive to allocate for large graphs, so it is recycled
+    private final ConcurrentLinkedQueue<SearchContext> contexts = new ConcurrentLinkedQueue<>();
+
+    private HNSWIndex(FeatureVectors vectors, int m, int efConstruction, int efSearch, int[][][] links) {
+        if (m < 2) {
+            throw new IllegalArgumentException("M must be at least 2 but was " + m);
+        }
+        this.vectors = vectors;
+        this.m = m;
+        this.maxM0 = 2*m;
+        this.efConstruction = efConstruction;
+        this.efSearch = efSearch;
+        this.links = links;
+    }
+
+    /**
+     * Build a HNSW graph for the given vectors.
+     * @param vectors        the vectors to index.
+     * @param m              the number of neighbours for each node on the upper levels. Level 0 has 2*M.
+     * @param efConstruction the size of the dynamic candidate list during construction.
+     * @param efSearch       the default size of the dynamic candidate list during search.
+     * @param executor       used for parallel construction.
+     * @param parallelism    the number of parallel insertion jobs.
+     * @return a HNSW index for the vectors.
+     */
+    public static HNSWIndex build(FeatureVectors vectors, int m, int efConstruction, int efSearch,
+                                  ExecutorService executor, int parallelism) {
+        final long startTime = System.currentTimeMillis();
+        // Assign levels up front so that the link structures can be allocated before the parallel insertion
+        final Random random = new Random(87);
+        final double levelMultiplier = 1 / Math.log(m);
+        int[][][] links = new int[vectors.size()][][];
+        for (int node = 0 ; node < links.length ; node++) {
+            int level = (int) (-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+            links[node] = new int[level+1][];
+            for (int l = 0 ; l <= level ; l++) {
+                links[node][l] = new int[(l == 0 ? 2*m : m) + 1];
+            }
+        }
+        HNSWIndex index = new HNSWIndex(vectors, m, efConstruction, efSearch, links);
+        if (vectors.size() == 0) {
+            return index;
+        }
+
+        index.insert(0);
+        final int jobCount = Math.max(1, parallelism);
+        List<Callable<Void>> jobs = new ArrayList<>(jobCount);
+        for (int job = 0 ; job < jobCount ; job++) {
+            final int firstNode = job + 1;
+            jobs.add(() -> {
+                // Interleaved so that all jobs work on all parts of the graph
+                for (int node = firstNode ; node < vectors.size() ; node += jobCount) {
+                    index.insert(node);
+                }
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> result: executor.invokeAll(jobs)) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while building HNSW graph", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Exception while building HNSW graph", e.getCause());
+        }
+        log.info("Built {} in {} seconds using {} parallel jobs",
+                 index, (System.currentTimeMillis()-startTime)/1000, jobCount);
+        return index;
+    }
+
+    /**
+     * Load a persisted HNSW graph, created with {@link #save(Path)}.
+     * @param graphFile a persisted graph.
+     * @param vectors   the vectors that the graph was built from.
+     * @param efSearch  the default size of the dynamic candidate list during search.
+     * @return a HNSW index backed by the persisted graph.
+     * @throws IOException if the graph could not be loaded or did not match the vectors.
+     */
+    public static HNSWIndex load(Path graphFile, FeatureVectors vectors, int efSearch) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(graphFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("The file '" + graphFile + "' is not a HNSW graph");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported HNSW graph version " + version + " in '" + graphFile + "'");
+            }
+            int nodes = in.readInt();
+            int dimensions = in.readInt();
+            if (nodes != vectors.size() || dimensions != vectors.dimensions()) {
+                throw new IOException(
+                        "The HNSW graph in '" + graphFile + "' has " + nodes + " nodes with " + dimensions +
+                        " dimensions, but the vectors has " + vectors.size() + " rows with " +
+                        vectors.dimensions() + " dimensions");
+            }
+            int m = in.readInt();
+            int efConstruction = in.readInt();
+            int entryPoint = in.readInt();
+            int maxLevel = in.readInt();
+
+            int[][][] links = new int[nodes][][];
+            for (int node = 0 ; node < nodes ; node++) {
+                int levels = in.readUnsignedByte();
+                links[node] = new int[levels][];
+                for (int level = 0 ; level < levels ; level++) {
+                    int[] neighbours = new int[(level == 0 ? 2*m : m) + 1];
+                    neighbours[0] = in.readUnsignedShort();
+                    for (int i = 1 ; i <= neighbours[0] ; i++) {
+                        neighbours[i] = in.readInt();
+                    }
+                    links[node][level] = neighbours;
+                }
+            }
+            HNSWIndex index = new HNSWIndex(vectors, m, efConstruction, efSearch, links);
+            index.entryPoint = entryPoint;
+            index.maxLevel = maxLevel;
+            log.info("Loaded {} from '{}' in {}ms", index, graphFile, System.currentTimeMillis()-startTime);
+            return index;
+        }
+    }
+
+    /**
+     * Persist the graph, so that it can be loaded with {@link #load(Path, FeatureVectors, int)}.
+     * The graph is written to a temporary file which is moved into place when finished.
+     * @param graphFile where to store the graph.
+     * @throws IOException if the graph could not be stored.
+     */
+    public void save(Path graphFile) throws IOException {
+        Path tmp = graphFile.resolveSibling(graphFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(vectors.size());
+            out.writeInt(vectors.dimensions());
+            out.writeInt(m);
+            out.writeInt(efConstruction);
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+            for (int[][] nodeLinks: links) {
+                out.writeByte(nodeLinks.length);
+                for (int[] neighbours: nodeLinks) {
+                    out.writeShort(neighbours[0]);
+                    for (int i = 1 ; i <= neighbours[0] ; i++) {
+                        out.writeInt(neighbours[i]);
+                    }
+                }
+            }
+        }
+        Files.move(tmp, graphFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Stored {} to '{}'", this, graphFile);
+    }
+
+    @Override
+    public TopK search(float[] query, int k, SearchOptions options) {
+        if (query.length != vectors.dimensions()) {
+            throw new IllegalArgumentException(
+                    "Expected query with " + vectors.dimensions() + " dimensions but got " + query.length);
+        }
+        if (entryPoint == -1) {
+            return new TopK(0);
+        }
+        final int ef = Math.max(k, options.getEfSearch() == null ? efSearch : options.getEfSearch());
+
+        SearchContext context = acquireContext();
+        try {
+            int entry = entryPoint;
+            for (int level = maxLevel ; level > 0 ; level--) {
+                entry = searchGreedy(query, entry, level, context);
+            }
+            TopK candidates = searchLevel(
+                    query, entry, vectors.squaredDistance(entry, query, Float.MAX_VALUE), ef, 0, context);
+            return new TopK(k).merge(candidates).sort().sqrtDistances();
+        } finally {
+            contexts.offer(context);
+        }
+    }
+
+    /**
+     * Insert the given node in the graph. Thread safe.
+     * @param node a row in the vectors.
+     */
+    private void insert(int node) {
+        final int nodeLevel = links[node].length-1;
+        int entry;
+        int topLevel;
+        synchronized (entryLock) {
+            if (entryPoint == -1) {
+                entryPoint = node;
+                maxLevel = nodeLevel;
+                return;
+            }
+            entry = entryPoint;
+            topLevel = maxLevel;
+        }
+
+        final float[] query = vectors.get(node, new float[vectors.dimensions()]);
+        SearchContext context = acquireContext();
+        try {
+            for (int level = topLevel ; level > nodeLevel ; level--) {
+                entry = searchGreedy(query, entry, level, context);
+            }
+            for (int level = Math.min(topLevel, nodeLevel) ; level >= 0 ; level--) {
+                TopK candidates = searchLevel(query, entry, vectors.squaredDistance(entry, query, Float.MAX_VALUE),
+                                              efConstruction, level, context).sort();
+                int[] selected = selectNeighbours(node, candidates, m);
+                synchronized (links[node]) {
+                    int[] nodeNeighbours = links[node][level];
+                    System.arraycopy(selected, 0, nodeNeighbours, 1, selected.length);
+                    nodeNeighbours[0] = selected.length;
+                }
+                for (int neighbour: selected) {
+                    addLink(neighbour, node, level);
+                }
+                entry = candidates.getID(0);
+            }
+        } finally {
+            contexts.offer(context);
+        }
+
+        if (nodeLevel > topLevel) {
+            synchronized (entryLock) {
+                if (nodeLevel > maxLevel) {
+                    entryPoint = node;
+                    maxLevel = nodeLevel;
+                }
+            }
+        }
+    }
+
+    /**
+     * Add newNeighbour to the neighbours of node at the given level. If node has too many neighbours, they are
+     * pruned using the neighbour selection heuristic.
+     */
+    private void addLink(int node, int newNeighbour, int level) {
+        final int maxNeighbours = level == 0 ? maxM0 : m;
+        synchronized (links[node]) {
+            int[] neighbours = links[node][level];
+            int count = neighbours[0];
+            if (count < maxNeighbours) {
+                neighbours[count+1] = newNeighbour;
+                neighbours[0] = count+1;
+                return;
+            }
+            TopK candidates = new TopK(count+1);
+            for (int i = 1 ; i <= count ; i++) {
+                candidates.offer(neighbours[i], vectors.squaredDistance(node, neighbours[i]));
+            }
+            candidates.offer(newNeighbour, vectors.squaredDistance(node, newNeighbour));
+            int[] selected = selectNeighbours(node, candidates.sort(), maxNeighbours);
+            System.arraycopy(selected, 0, neighbours, 1, selected.length);
+            neighbours[0] = selected.length;
+        }
+    }
+
+    /**
+     * Neighbour selection heuristic (algorithm 4 in the paper): A candidate is only selected if it is closer to the
+     * node than to any of the already selected neighbours. This keeps the graph navigable across clusters.
+     * @param node       the node to select neighbours for.
+     * @param candidates candidates, sorted by ascending distance to the node.
+     * @param max        the maximum number of neighbours to select.
+     * @return the selected neighbours.
+     */
+    private int[] selectNeighbours(int node, TopK candidates, int max) {
+        int[] selected = new int[Math.min(max, candidates.size())];
+        int count = 0;
+        for (int i = 0 ; i < candidates.size() && count < selected.length ; i++) {
+            final int candidate = candidates.getID(i);
+            if (candidate == node) {
+                continue;
+            }
+            final float candidateDistance = candidates.getDistance(i);
+            boolean keep = true;
+            for (int s = 0 ; s < count ; s++) {
+                if (vectors.squaredDistance(candidate, selected[s]) < candidateDistance) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                selected[count++] = candidate;
+            }
+        }
+        return count == selected.length ? selected : Arrays.copyOf(selected, count);
+    }
+
+    /**
+     * Greedy search for the node closest to the query on the given level.
+     * @return the closest node found.
+     */
+    private int searchGreedy(float[] query, int entry, int level, SearchContext context) {
+        float bestDistance = vectors.squaredDistance(entry, query, Float.MAX_VALUE);
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            int count = copyNeighbours(entry, level, context.neighbours);
+            for (int i = 0 ; i < count ; i++) {
+                final int candidate = context.neighbours[i];
+                final float distance = vectors.squaredDistance(candidate, query, bestDistance);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    entry = candidate;
+                    changed = true;
+                }
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Beam search on the given level (algorithm 2 in the paper).
+     * @return the ef closest nodes found, with squared distances. Not sorted.
+     */
+    private TopK searchLevel(float[] query, int entry, float entryDistance, int ef, int level, SearchContext context) {
+        context.startSearch();
+        context.visit(entry);
+        CandidateQueue candidates = context.candidates;
+        candidates.push(entry, entryDistance);
+        TopK results = new TopK(ef);
+        results.offer(entry, entryDistance);
+
+        while (!candidates.isEmpty()) {
+            if (candidates.peekDistance() > results.threshold()) {
+                break; // All remaining candidates are further away than the worst result
+            }
+            final int current = candidates.pop();
+            final int count = copyNeighbours(current, level, context.neighbours);
+            for (int i = 0 ; i < count ; i++) {
+                final int candidate = context.neighbours[i];
+                if (!context.visit(candidate)) {
+                    continue;
+                }
+                final float threshold = results.threshold();
+                final float distance = vectors.squaredDistance(candidate, query, threshold);
+                if (distance < threshold) {
+                    candidates.push(candidate, distance);
+                    results.offer(candidate, distance);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Copy the neighbours for the node at the given level to dest. Thread safe.
+     * @return the number of neighbours.
+     */
+    private int copyNeighbours(int node, int level, int[] dest) {
+        synchronized (links[node]) {
+            int[] neighbours = links[node][level];
+            System.arraycopy(neighbours, 1, dest, 0, neighbours[0]);
+            return neighbours[0];
+        }
+    }
+
+    private SearchContext acquireContext() {
+        SearchContext context = contexts.poll();
+        return context == null ? new SearchContext(links.length, maxM0) : context;
+    }
+
+    @Override
+    public FeatureVectors getVectors() {
+        return vectors;
+    }
+
+    @Override
+    public long getIndexBytes() {
+        final long arrayOverhead = 16;
+        long bytes = arrayOverhead + links.length * 4L;
+        for (int[][] nodeLinks: links) {
+            bytes += arrayOverhead + nodeLinks.length * 4L;
+            for (int[] neighbours: nodeLinks) {
+                bytes += arrayOverhead + neighbours.length * 4L;
+            }
+        }
+        return bytes;
+    }
+
+    @Override
+    public String toString() {
+        return "HNSWIndex(vectors=" + vectors + ", M=" + m + ", efConstruction=" + efConstruction +
+               ", efSearch=" + efSearch + ", maxLevel=" + maxLevel + ")";
+    }
+
+    /**
+     * Reusable state for a single search: Visited markers, neighbour buffer and candidate queue.
+     */
+    private static class SearchContext {
+        private final int[] visited;
+        private int generation = 0;
+        private final int[] neighbours;
+        private final CandidateQueue candidates = new CandidateQueue();
+
+        public SearchContext(int nodes, int maxNeighbours) {
+            visited = new int[nodes];
+            neighbours = new int[maxNeighbours];
+        }
+
+        public void startSearch() {
+            candidates.clear();
+            if (++generation == Integer.MAX_VALUE) {
+                Arrays.fill(visited, 0);
+                generation = 1;
+            }
+        }
+
+        /**
+         * @return true if the node was not visited before in the current search.
+         */
+        public boolean visit(int node) {
+            if (visited[node] == generation) {
+                return false;
+            }
+            visited[node] = generation;
+            return true;
+        }
+    }
+
+    /**
+     * Unbounded min-heap over parallel ids and distances.
+     */
+    private static class CandidateQueue {
+        private int[] ids = new int[64];
+        private float[] distances = new float[64];
+        private int size = 0;
+
+        public void push(int id, float distance) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size*2);
+                distances = Arrays.copyOf(distances, size*2);
+            }
+            int index = size++;
+            while (index > 0) {
+                int parent = (index-1) >>> 1;
+                if (distances[parent] <= distance) {
+                    break;
+                }
+                ids[index] = ids[parent];
+                distances[index] = distances[parent];
+                index = parent;
+            }
+            ids[index] = id;
+            distances[index] = distance;
+        }
+
+        public float peekDistance() {
+            return distances[0];
+        }
+
+        public int pop() {
+            final int top = ids[0];
+            final int lastID = ids[--size];
+            final float lastDistance = distances[size];
+            int index = 0;
+            while (true) {
+                int child = 2*index+1;
+                if (child >= size) {
+                    break;
+                }
+                if (child+1 < size && distances[child+1] < distances[child]) {
+                    child++;
+                }
+                if (lastDistance <= distances[child]) {
+                    break;
+                }
+                ids[index] = ids[child];
+                distances[index] = distances[child];
+                index = child;
+            }
+            ids[index] = lastID;
+            distances[index] = lastDistance;
+            return top;
+        }
+
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        public void clear() {
+            size = 0;
+        }
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Inverted file index: The vectors are clustered around k-means centroids and each vector is placed in the list
+ * for its nearest centroid. A search locates the {@code nprobe} centroids nearest to the query and scans the
+ * vectors in the corresponding lists in parallel.
+ *
+ * The work per query is roughly {@code nprobe/nlist} of a {@link FlatIndex} search, independent of how the
+ * vectors are distributed in space, which makes latency predictable. Building only requires clustering a sample
+ * and a single assignment pass over the vectors, which is much cheaper than building a {@link HNSWIndex}.
+ */
+public class IVFIndex implements FeatureIndex {
+    private static final Logger log = LoggerFactory.getLogger(IVFIndex.class);
+
+    public static final int NLIST_DEFAULT = 0; // 0 = square root of the number of vectors
+    public static final int NPROBE_DEFAULT = 8;
+    public static final int TRAINING_POINTS_PER_LIST = 64;
+    public static final int TRAINING_ITERATIONS = 10;
+
+    private static final int MAGIC = 0x49564649; // IVFI
+    private static final int VERSION = 1;
+
+    private final FeatureVectors vectors;
+    private final float[][] centroids;
+    private final int[][] lists; // Rows for each centroid, in ascending order
+    private final int nprobe;
+    private final ExecutorService executor;
+    private final int parallelism;
+    private final float[] norms;
+
+    private IVFIndex(FeatureVectors vectors, float[][] centroids, int[][] lists, int nprobe,
+                     ExecutorService executor, int parallelism) {
+        this.vectors = vectors;
+        this.centroids = centroids;
+        this.lists = lists;
+        this.nprobe = Math.max(1, Math.min(nprobe, centroids.length));
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+        this.norms = vectors.getNorms();
+    }
+
+    /**
+     * Cluster the vectors and assign them to lists. Clustering and assignment is done in parallel.
+     * @param vectors     the vectors to index.
+     * @param nlist       the number of lists (centroids). 0 means the square root of the number of vectors.
+     * @param nprobe      the default number of lists to scan for each search.
+     * @param executor    used for parallel building and search.
+     * @param parallelism the maximum number of parallel jobs.
+     * @param random      used for sampling and clustering.
+     * @return an index for the vectors.
+     */
+    public static IVFIndex build(FeatureVectors vectors, int nlist, int nprobe, ExecutorService executor,
+                                 int parallelism, Random random) {
+        if (vectors.size() == 0) {
+            throw new IllegalArgumentException("Unable to build IVF index without vectors");
+        }
+        final long startTime = System.currentTimeMillis();
+        nlist = nlist <= 0 ? (int) Math.max(1, Math.round(Math.sqrt(vectors.size()))) : nlist;
+        nlist = Math.min(nlist, vectors.size());
+
+        float[][] sample = new float[(int) Math.min(vectors.size(), (long) nlist * TRAINING_POINTS_PER_LIST)][];
+        for (int i = 0 ; i < sample.length ; i++) {
+            int row = sample.length == vectors.size() ? i : random.nextInt(vectors.size());
+            sample[i] = vectors.get(row, new float[vectors.dimensions()]);
+        }
+        float[][] centroids = KMeans.train(sample, nlist, TRAINING_ITERATIONS, random, executor, parallelism);
+
+        int[][] lists = assign(vectors, centroids, executor);
+        IVFIndex index = new IVFIndex(vectors, centroids, lists, nprobe, executor, parallelism);
+        log.info("Built {} in {}ms", index, System.currentTimeMillis()-startTime);
+        return index;
+    }
+
+    /**
+     * Assign all vectors to their nearest centroid, processing blocks of vectors in parallel.
+     */
+    private static int[][] assign(FeatureVectors vectors, float[][] centroids, ExecutorService executor) {
+        int[] assignments = new int[vectors.size()];
+        List<Callable<Void>> jobs = new ArrayList<>();
+        for (int start = 0 ; start < vectors.size() ; start += FeatureVectors.BLOCK_ROWS) {
+            final int from = start;
+            final int to = Math.min(start + FeatureVectors.BLOCK_ROWS, vectors.size());
+            jobs.add(() -> {
+                float[] vector = new float[vectors.dimensions()];
+                for (int row = from ; row < to ; row++) {
+                    assignments[row] = KMeans.nearest(centroids, vectors.get(row, vector));
+                }
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> job: executor.invokeAll(jobs)) {
+                job.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while assigning vectors to lists", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Exception while assigning vectors to lists", e.getCause());
+        }
+
+        int[] counts = new int[centroids.length];
+        for (int assignment: assignments) {
+            counts[assignment]++;
+        }
+        int[][] lists = new int[centroids.length][];
+        for (int c = 0 ; c < centroids.length ; c++) {
+            lists[c] = new int[counts[c]];
+            counts[c] = 0;
+        }
+        for (int row = 0 ; row < assignments.length ; row++) {
+            lists[assignments[row]][counts[assignments[row]]++] = row;
+        }
+        return lists;
+    }
+
+    /**
+     * Load a persisted index, created with {@link #save(Path)}.
+     * @param indexFile   a persisted index.
+     * @param vectors     the vectors that the index was built from.
+     * @param nprobe      the default number of lists to scan for each search.
+     * @param executor    used for parallel search.
+     * @param parallelism the maximum number of parallel jobs.
+     * @return an index backed by the persisted centroids and lists.
+     * @throws IOException if the index could not be loaded or did not match the vectors.
+     */
+    public static IVFIndex load(Path indexFile, FeatureVectors vectors, int nprobe,
+                                ExecutorService executor, int parallelism) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("The file '" + indexFile + "' is not an IVF index");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported IVF index version " + version + " in '" + indexFile + "'");
+            }
+            int size = in.readInt();
+            int dimensions = in.readInt();
+            if (size != vectors.size() || dimensions != vectors.dimensions()) {
+                throw new IOException(
+                        "The IVF index in '" + indexFile + "' has " + size + " rows with " + dimensions +
+                        " dimensions, but the vectors has " + vectors.size() + " rows with " +
+                        vectors.dimensions() + " dimensions");
+            }
+            int nlist = in.readInt();
+            float[][] centroids = new float[nlist][dimensions];
+            for (float[] centroid: centroids) {
+                for (int d = 0 ; d < dimensions ; d++) {
+                    centroid[d] = in.readFloat();
+                }
+            }
+            int[][] lists = new int[nlist][];
+            for (int c = 0 ; c < nlist ; c++) {
+                lists[c] = new int[in.readInt()];
+                for (int i = 0 ; i < lists[c].length ; i++) {
+                    lists[c][i] = in.readInt();
+                }
+            }
+            IVFIndex index = new IVFIndex(vectors, centroids, lists, nprobe, executor, parallelism);
+            log.info("Loaded {} from '{}' in {}ms", index, indexFile, System.currentTimeMillis()-startTime);
+            return index;
+        }
+    }
+
+    /**
+     * Persist the centroids and the lists, so that they can be loaded with
+     * {@link #load(Path, FeatureVectors, int, ExecutorService, int)}.
+     * The index is written to a temporary file which is moved into place when finished.
+     * @param indexFile where to store the index.
+     * @throws IOException if the index could not be stored.
+     */
+    public void save(Path indexFile) throws IOException {
+        Path tmp = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(vectors.size());
+            out.writeInt(vectors.dimensions());
+            out.writeInt(centroids.length);
+            for (float[] centroid: centroids) {
+                for (float value: centroid) {
+                    out.writeFloat(value);
+                }
+            }
+            for (int[] list: lists) {
+                out.writeInt(list.length);
+                for (int row: list) {
+                    out.writeInt(row);
+                }
+            }
+        }
+        Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Stored {} to '{}'", this, indexFile);
+    }
+
+    /**
+     * Find the approximate k nearest vectors to the query by scanning the {@code nprobe} lists with the nearest
+     * centroids. {@link SearchOptions#getNprobe()} overrides the default nprobe.
+     */
+    @Override
+    public TopK search(float[] query, int k, SearchOptions options) {
+        if (query.length != vectors.dimensions()) {
+            throw new IllegalArgumentException(
+                    "Expected query with " + vectors.dimensions() + " dimensions but got " + query.length);
+        }
+        final int probes = options.getNprobe() == null ? nprobe :
+                Math.max(1, Math.min(options.getNprobe(), centroids.length));
+
+        TopK nearestLists = new TopK(probes);
+        for (int c = 0 ; c < centroids.length ; c++) {
+            final float threshold = nearestLists.threshold();
+            final float distance = KMeans.squaredDistance(centroids[c], query, threshold);
+            if (distance < threshold) {
+                nearestLists.offer(c, distance);
+            }
+        }
+        nearestLists.sort();
+
+        final int jobCount = Math.min(parallelism, nearestLists.size());
+        TopK topK = jobCount == 1 ?
+                searchLists(query, k, nearestLists, 0, 1) :
+                searchParallel(query, k, nearestLists, jobCount);
+        return topK.sort().sqrtDistances();
+    }
+
+    private TopK searchParallel(float[] query, int k, TopK nearestLists, int jobCount) {
+        List<Callable<TopK>> jobs = new ArrayList<>(jobCount);
+        for (int job = 0 ; job < jobCount ; job++) {
+            final int first = job;
+            jobs.add(() -> searchLists(query, k, nearestLists, first, jobCount));
+        }
+
+        TopK merged = new TopK(k);
+        try {
+            for (Future<TopK> partial: executor.invokeAll(jobs)) {
+                merged.merge(partial.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for partial search results", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Exception during partial search", e.getCause());
+        }
+        return merged;
+    }
+
+    /**
+     * Scan every step'th of the given lists, starting with first. Interleaving spreads the nearest lists, which
+     * are the most likely to improve the threshold early, across the jobs.
+     */
+    private TopK searchLists(float[] query, int k, TopK nearestLists, int first, int step) {
+        TopK topK = new TopK(k);
+        final float queryNorm = Distances.norm(query);
+        for (int i = first ; i < nearestLists.size() ; i += step) {
+            for (int row: lists[nearestLists.getID(i)]) {
+                final float threshold = topK.threshold();
+                final float bound = norms[row] - queryNorm; // See FlatIndex
+                if (bound*bound >= threshold) {
+                    continue;
+                }
+                final float distance = vectors.squaredDistance(row, query, threshold);
+                if (distance < threshold) {
+                    topK.offer(row, distance);
+                }
+            }
+        }
+        return topK;
+    }
+
+    @Override
+    public FeatureVectors getVectors() {
+        return vectors;
+    }
+
+    @Override
+    public long getIndexBytes() {
+        return (long) centroids.length * vectors.dimensions() * Float.BYTES +
+               (long) vectors.size() * (Integer.BYTES + Float.BYTES);
+    }
+
+    @Override
+    public String toString() {
+        int largest = 0;
+        for (int[] list: lists) {
+            largest = Math.max(largest, list.length);
+        }
+        return "IVFIndex(vectors=" + vectors + ", nlist=" + centroids.length + ", nprobe=" + nprobe +
+               ", largestList=" + largest + ", parallelism=" + parallelism + ")";
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Lloyd's k-means clustering with k-means++ initialization, using squared Euclidean distance.
+ *
+ * Intended for training on samples: All points are held in memory. The assignment of points to centroids, which
+ * dominates the running time, is optionally done in parallel.
+ */
+public class KMeans {
+
+    /**
+     * Cluster the points into k clusters.
+     * @param points     the points to cluster, all with the same number of dimensions.
+     * @param k          the number of clusters. If there are less points than k, some centroids will be duplicates.
+     * @param iterations the maximum number of iterations. Training stops earlier if the assignments stabilize.
+     * @param random     used for initialization and for re-seeding empty clusters.
+     * @return k centroids.
+     */
+    public static float[][] train(float[][] points, int k, int iterations, Random random) {
+        return train(points, k, iterations, random, null, 1);
+    }
+
+    /**
+     * Cluster the points into k clusters.
+     * @param points      the points to cluster, all with the same number of dimensions.
+     * @param k           the number of clusters. If there are less points than k, some centroids will be duplicates.
+     * @param iterations  the maximum number of iterations. Training stops earlier if the assignments stabilize.
+     * @param random      used for initialization and for re-seeding empty clusters.
+     * @param executor    used for parallel assignment of points. If null, the assignment is single threaded.
+     * @param parallelism the maximum number of parallel assignment jobs.
+     * @return k centroids.
+     */
+    public static float[][] train(float[][] points, int k, int iterations, Random random,
+                                  ExecutorService executor, int parallelism) {
+        if (points.length == 0) {
+            throw new IllegalArgumentException("Unable to cluster 0 points");
+        }
+        final int dimensions = points[0].length;
+        float[][] centroids = initialize(points, k, random);
+        int[] assignments = new int[points.length];
+        int[] counts = new int[k];
+        for (int iteration = 0 ; iteration < iterations ; iteration++) {
+            boolean changed = assign(centroids, points, assignments, executor, parallelism) || iteration == 0;
+            if (!changed) {
+                break;
+            }
+
+            for (float[] centroid: centroids) {
+                Arrays.fill(centroid, 0f);
+            }
+            Arrays.fill(counts, 0);
+            for (int p = 0 ; p < points.length ; p++) {
+                float[] centroid = centroids[assignments[p]];
+                for (int d = 0 ; d < dimensions ; d++) {
+                    centroid[d] += points[p][d];
+                }
+                counts[assignments[p]]++;
+            }
+            for (int c = 0 ; c < k ; c++) {
+                if (counts[c] == 0) { // Empty cluster: Re-seed with a random point
+                    System.arraycopy(points[random.nextInt(points.length)], 0, centroids[c], 0, dimensions);
+                    continue;
+                }
+                for (int d = 0 ; d < dimensions ; d++) {
+                    centroids[c][d] /= counts[c];
+                }
+            }
+        }
+        return centroids;
+    }
+
+    /**
+     * Assign each point to the nearest centroid.
+     * @return true if any assignment changed.
+     */
+    private static boolean assign(float[][] centroids, float[][] points, int[] assignments,
+                                  ExecutorService executor, int parallelism) {
+        final int chunks = executor == null ? 1 : Math.max(1, Math.min(parallelism, points.length / 256));
+        if (chunks == 1) {
+            return assign(centroids, points, assignments, 0, points.length);
+        }
+        final int chunkSize = (points.length + chunks - 1) / chunks;
+        List<Callable<Boolean>> jobs = new ArrayList<>(chunks);
+        for (int start = 0 ; start < points.length ; start += chunkSize) {
+            final int from = start;
+            final int to = Math.min(start + chunkSize, points.length);
+            jobs.add(() -> assign(centroids, points, assignments, from, to));
+        }
+        boolean changed = false;
+        try {
+            for (Future<Boolean> job: executor.invokeAll(jobs)) {
+                changed |= job.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while assigning points to centroids", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Exception while assigning points to centroids", e.getCause());
+        }
+        return changed;
+    }
+
+    private static boolean assign(float[][] centroids, float[][] points, int[] assignments, int from, int to) {
+        boolean changed = false;
+        for (int p = from ; p < to ; p++) {
+            int nearest = nearest(centroids, points[p]);
+            if (nearest != assignments[p]) {
+                assignments[p] = nearest;
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    /**
+     * @param centroids the centroids to search.
+     * @param point     a point with the same number of dimensions as the centroids.
+     * @return the index of the centroid nearest to the point.
+     */
+    public static int nearest(float[][] centroids, float[] point) {
+        int best = 0;
+        float bestDistance = Float.MAX_VALUE;
+        for (int c = 0 ; c < centroids.length ; c++) {
+            final float distance = squaredDistance(centroids[c], point, bestDistance);
+            if (distance < bestDistance) {
+                bestDistance = distance;
+                best = c;
+            }
+        }
+        return best;
+    }
+
+    /**
+     * k-means++: Each new centroid is chosen with probability proportional to its squared distance to the nearest
+     * already chosen centroid.
+     */
+    private static float[][] initialize(float[][] points, int k, Random random) {
+        float[][] centroids = new float[k][];
+        centroids[0] = points[random.nextInt(points.length)].clone();
+        float[] minDistances = new float[points.length];
+        Arrays.fill(minDistances, Float.MAX_VALUE);
+        for (int c = 1 ; c < k ; c++) {
+            double sum = 0;
+            for (int p = 0 ; p < points.length ; p++) {
+                minDistances[p] = Math.min(minDistances[p], squaredDistance(centroids[c-1], points[p], Float.MAX_VALUE));
+                sum += minDistances[p];
+            }
+            int chosen = points.length-1;
+            double target = random.nextDouble() * sum;
+            for (int p = 0 ; p < points.length ; p++) {
+                target -= minDistances[p];
+                if (target < 0) {
+                    chosen = p;
+                    break;
+                }
+            }
+            centroids[c] = points[chosen].clone();
+        }
+        return centroids;
+    }
+
+    static float squaredDistance(float[] a, float[] b, float limit) {
+        return Distances.squaredDistance(a, 0, b, 0, a.length, limit);
+    }
+}
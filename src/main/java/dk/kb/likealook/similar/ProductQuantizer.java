@@ -0,0 +1,221 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Product quantization: The vectors are split into a number of subspaces and each subvector is replaced by the
+ * index of the nearest of 256 centroids for the subspace. With 64 subspaces a 2048-dimensional vector is
+ * reduced from 8192 bytes to 64 bytes.
+ *
+ * Distances are asymmetric: The query is not quantized, instead a table with the distances from each query
+ * subvector to all centroids is calculated once per query, turning the distance calculation into table lookups.
+ */
+public class ProductQuantizer implements Quantizer {
+    private static final Logger log = LoggerFactory.getLogger(ProductQuantizer.class);
+
+    public static final int CENTROIDS = 256; // 1 byte per subspace
+    public static final int TRAINING_SAMPLE = CENTROIDS * 32;
+    public static final int TRAINING_ITERATIONS = 10;
+
+    private final int dimensions;
+    private final int[] starts; // Start dimension for each subspace, with dimensions as the last entry
+    private final float[][][] centroids; // [subspace][centroid][subdimension]
+
+    private ProductQuantizer(int dimensions, int[] starts, float[][][] centroids) {
+        this.dimensions = dimensions;
+        this.starts = starts;
+        this.centroids = centroids;
+    }
+
+    /**
+     * Train centroids for the subspaces on a random sample of the vectors. The subspaces are trained in parallel.
+     * @param vectors     the vectors to quantize.
+     * @param subspaces   the number of subspaces, which is also the code size. At most the number of dimensions.
+     * @param executor    used for parallel training.
+     * @param random      used for sampling and clustering.
+     * @return a quantizer for the vectors.
+     */
+    public static ProductQuantizer train(
+            FeatureVectors vectors, int subspaces, ExecutorService executor, Random random) {
+        final int dimensions = vectors.dimensions();
+        if (subspaces <= 0 || subspaces > dimensions) {
+            throw new IllegalArgumentException(
+                    "subspaces must be between 1 and " + dimensions + " but was " + subspaces);
+        }
+        if (vectors.size() == 0) {
+            throw new IllegalArgumentException("Unable to train product quantizer without vectors");
+        }
+        final long startTime = System.currentTimeMillis();
+        int[] starts = new int[subspaces+1];
+        for (int s = 0 ; s <= subspaces ; s++) {
+            starts[s] = (int) ((long) s * dimensions / subspaces);
+        }
+
+        float[][] sample = new float[Math.min(TRAINING_SAMPLE, vectors.size())][];
+        for (int i = 0 ; i < sample.length ; i++) {
+            int row = sample.length == vectors.size() ? i : random.nextInt(vectors.size());
+            sample[i] = vectors.get(row, new float[dimensions]);
+        }
+
+        List<Callable<float[][]>> jobs = new ArrayList<>(subspaces);
+        for (int s = 0 ; s < subspaces ; s++) {
+            final int start = starts[s];
+            final int end = starts[s+1];
+            final long seed = random.nextLong();
+            jobs.add(() -> {
+                float[][] points = new float[sample.length][];
+                for (int i = 0 ; i < sample.length ; i++) {
+                    points[i] = new float[end - start];
+                    System.arraycopy(sample[i], start, points[i], 0, end - start);
+                }
+                return KMeans.train(points, CENTROIDS, TRAINING_ITERATIONS, new Random(seed));
+            });
+        }
+        float[][][] centroids = new float[subspaces][][];
+        try {
+            List<Future<float[][]>> results = executor.invokeAll(jobs);
+            for (int s = 0 ; s < subspaces ; s++) {
+                centroids[s] = results.get(s).get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while training product quantizer", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Exception while training product quantizer", e.getCause());
+        }
+        ProductQuantizer quantizer = new ProductQuantizer(dimensions, starts, centroids);
+        log.info("Trained {} on {} vectors in {}ms", quantizer, sample.length, System.currentTimeMillis()-startTime);
+        return quantizer;
+    }
+
+    /**
+     * Restore a quantizer stored with {@link #write(DataOutput)}.
+     */
+    public static ProductQuantizer read(DataInput in) throws IOException {
+        final int dimensions = in.readInt();
+        final int subspaces = in.readInt();
+        int[] starts = new int[subspaces+1];
+        for (int s = 0 ; s <= subspaces ; s++) {
+            starts[s] = in.readInt();
+            if (s > 0 && starts[s] <= starts[s-1] || starts[s] > dimensions) {
+                throw new IOException("Invalid subspace start " + starts[s] + " for subspace " + s + " of " +
+                                      subspaces + " with " + dimensions + " dimensions");
+            }
+        }
+        if (starts[0] != 0 || starts[subspaces] != dimensions) {
+            throw new IOException("The " + subspaces + " subspaces do not cover the " + dimensions + " dimensions");
+        }
+        float[][][] centroids = new float[subspaces][CENTROIDS][];
+        for (int s = 0 ; s < subspaces ; s++) {
+            for (int c = 0 ; c < CENTROIDS ; c++) {
+                centroids[s][c] = new float[starts[s+1] - starts[s]];
+                for (int d = 0 ; d < centroids[s][c].length ; d++) {
+                    centroids[s][c][d] = in.readFloat();
+                }
+            }
+        }
+        return new ProductQuantizer(dimensions, starts, centroids);
+    }
+
+    @Override
+    public byte getType() {
+        return TYPE_PRODUCT;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(dimensions);
+        out.writeInt(centroids.length);
+        for (int start: starts) {
+            out.writeInt(start);
+        }
+        for (float[][] subspace: centroids) {
+            for (float[] centroid: subspace) {
+                for (float value: centroid) {
+                    out.writeFloat(value);
+                }
+            }
+        }
+    }
+
+    @Override
+    public int getCodeSize() {
+        return centroids.length;
+    }
+
+    @Override
+    public void encode(float[] vector, byte[] codes, int offset) {
+        for (int s = 0 ; s < centroids.length ; s++) {
+            int best = 0;
+            float bestDistance = Float.MAX_VALUE;
+            for (int c = 0 ; c < CENTROIDS ; c++) {
+                final float distance = subDistance(vector, s, centroids[s][c]);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = c;
+                }
+            }
+            codes[offset + s] = (byte) best;
+        }
+    }
+
+    @Override
+    public QueryDistance prepare(float[] query) {
+        final int subspaces = centroids.length;
+        final float[] table = new float[subspaces * CENTROIDS];
+        for (int s = 0 ; s < subspaces ; s++) {
+            for (int c = 0 ; c < CENTROIDS ; c++) {
+                table[s * CENTROIDS + c] = subDistance(query, s, centroids[s][c]);
+            }
+        }
+        return (codes, offset) -> {
+            float sum = 0f;
+            for (int s = 0 ; s < subspaces ; s++) {
+                sum += table[s * CENTROIDS + (codes[offset + s] & 0xFF)];
+            }
+            return sum;
+        };
+    }
+
+    private float subDistance(float[] vector, int subspace, float[] centroid) {
+        return Distances.squaredDistance(
+                vector, starts[subspace], centroid, 0, centroid.length, Float.MAX_VALUE);
+    }
+
+    @Override
+    public long getModelBytes() {
+        return (long) dimensions * CENTROIDS * Float.BYTES;
+    }
+
+    @Override
+    public String toString() {
+        return "ProductQuantizer(dimensions=" + dimensions + ", subspaces=" + centroids.length +
+               ", centroids=" + CENTROIDS + ")";
+    }
+}
@@ -0,0 +1,288 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Nearest neighbour search on quantized codes, followed by exact re-ranking of the best candidates.
+ *
+ * The codes are held on the heap, while the float vectors are only accessed for re-ranking. Combined with a
+ * memory mapped {@link FeatureStore}, the resident memory per vector is the code size, as the operating system
+ * only needs to keep the pages for recently re-ranked vectors in memory.
+ *
+ * Scanning the codes is brute force like {@link FlatIndex}, split in partitions that are searched in parallel.
+ */
+public class QuantizedIndex implements FeatureIndex {
+    private static final Logger log = LoggerFactory.getLogger(QuantizedIndex.class);
+
+    public static final int RERANK_DEFAULT = 100;
+
+    private static final int MAGIC = 0x51494458; // QIDX
+    private static final int VERSION = 1;
+
+    private final FeatureVectors vectors;
+    private final Quantizer quantizer;
+    private final byte[][] codeBlocks; // FeatureVectors.BLOCK_ROWS codes in each block
+    private final int codeSize;
+    private final int rerank;
+    private final ExecutorService executor;
+    private final int partitions;
+
+    private QuantizedIndex(FeatureVectors vectors, Quantizer quantizer, byte[][] codeBlocks, int rerank,
+                           ExecutorService executor, int parallelism) {
+        this.vectors = vectors;
+        this.quantizer = quantizer;
+        this.codeBlocks = codeBlocks;
+        this.codeSize = quantizer.getCodeSize();
+        this.rerank = rerank;
+        this.executor = executor;
+        this.partitions = Math.max(1, Math.min(parallelism, vectors.size() / FlatIndex.MIN_PARTITION_ROWS));
+    }
+
+    /**
+     * Encode all vectors with the quantizer. The encoding is done in parallel.
+     * @param vectors     the vectors to index.
+     * @param quantizer   a quantizer trained for the vectors.
+     * @param rerank      the number of candidates from the codes to re-rank using the exact vectors.
+     *                    0 means no re-ranking: The approximate distances from the codes are returned.
+     * @param executor    used for parallel encoding and search.
+     * @param parallelism the maximum number of parallel jobs.
+     * @return an index for the vectors.
+     */
+    public static QuantizedIndex build(FeatureVectors vectors, Quantizer quantizer, int rerank,
+                                       ExecutorService executor, int parallelism) {
+        final long startTime = System.currentTimeMillis();
+        final int codeSize = quantizer.getCodeSize();
+        byte[][] codeBlocks = new byte[(vectors.size() + FeatureVectors.BLOCK_ROWS - 1) / FeatureVectors.BLOCK_ROWS][];
+        List<Callable<Void>> jobs = new ArrayList<>(codeBlocks.length);
+        for (int b = 0 ; b < codeBlocks.length ; b++) {
+            final int block = b;
+            jobs.add(() -> {
+                final int start = block * FeatureVectors.BLOCK_ROWS;
+                final int rows = Math.min(FeatureVectors.BLOCK_ROWS, vectors.size() - start);
+                byte[] codes = new byte[rows * codeSize];
+                float[] vector = new float[vectors.dimensions()];
+                for (int r = 0 ; r < rows ; r++) {
+                    quantizer.encode(vectors.get(start + r, vector), codes, r * codeSize);
+                }
+                codeBlocks[block] = codes;
+                return null;
+            });
+        }
+        try {
+            for (Future<Void> job: executor.invokeAll(jobs)) {
+                job.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while encoding vectors", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Exception while encoding vectors", e.getCause());
+        }
+        QuantizedIndex index = new QuantizedIndex(vectors, quantizer, codeBlocks, rerank, executor, parallelism);
+        log.info("Built {} in {}ms", index, System.currentTimeMillis()-startTime);
+        return index;
+    }
+
+    /**
+     * Load a persisted index, created with {@link #save(Path)}.
+     * @param codesFile   a persisted index.
+     * @param vectors     the vectors that the index was built from.
+     * @param type        the configured {@link Quantizer#getType()}.
+     * @param codeSize    the configured code size: The number of dimensions for scalar quantization and the number
+     *                    of subspaces for product quantization.
+     * @param rerank      the number of candidates from the codes to re-rank using the exact vectors.
+     * @param executor    used for parallel search.
+     * @param parallelism the maximum number of parallel jobs.
+     * @return an index backed by the persisted codes.
+     * @throws IOException if the index could not be loaded or did not match the vectors or the configuration.
+     */
+    public static QuantizedIndex load(Path codesFile, FeatureVectors vectors, byte type, int codeSize, int rerank,
+                                      ExecutorService executor, int parallelism) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(codesFile)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException("The file '" + codesFile + "' is not a quantized index");
+            }
+            int version = in.readInt();
+            if (version != VERSION) {
+                throw new IOException("Unsupported quantized index version " + version + " in '" + codesFile + "'");
+            }
+            int size = in.readInt();
+            int dimensions = in.readInt();
+            if (size != vectors.size() || dimensions != vectors.dimensions()) {
+                throw new IOException(
+                        "The quantized index in '" + codesFile + "' has " + size + " codes for " + dimensions +
+                        " dimensions, but the vectors has " + vectors.size() + " rows with " +
+                        vectors.dimensions() + " dimensions");
+            }
+            byte storedType = in.readByte();
+            if (storedType != type) {
+                throw new IOException("The quantized index in '" + codesFile + "' has quantizer type " + storedType +
+                                      " but type " + type + " is configured");
+            }
+            Quantizer quantizer = Quantizer.read(storedType, in);
+            if (quantizer.getCodeSize() != codeSize) {
+                throw new IOException("The quantized index in '" + codesFile + "' has codes of " +
+                                      quantizer.getCodeSize() + " bytes but " + codeSize + " bytes are configured");
+            }
+            byte[][] codeBlocks = new byte[(size + FeatureVectors.BLOCK_ROWS - 1) / FeatureVectors.BLOCK_ROWS][];
+            for (int b = 0 ; b < codeBlocks.length ; b++) {
+                final int rows = Math.min(FeatureVectors.BLOCK_ROWS, size - b * FeatureVectors.BLOCK_ROWS);
+                codeBlocks[b] = new byte[rows * quantizer.getCodeSize()];
+                in.readFully(codeBlocks[b]);
+            }
+            if (in.read() != -1) {
+                throw new IOException("The quantized index in '" + codesFile + "' has more data than expected");
+            }
+            QuantizedIndex index = new QuantizedIndex(vectors, quantizer, codeBlocks, rerank, executor, parallelism);
+            log.info("Loaded {} from '{}' in {}ms", index, codesFile, System.currentTimeMillis()-startTime);
+            return index;
+        }
+    }
+
+    /**
+     * Persist the quantizer and the codes, so that they can be loaded with
+     * {@link #load(Path, FeatureVectors, byte, int, int, ExecutorService, int)}.
+     * The index is written to a temporary file which is moved into place when finished.
+     * @param codesFile where to store the index.
+     * @throws IOException if the index could not be stored.
+     */
+    public void save(Path codesFile) throws IOException {
+        Path tmp = codesFile.resolveSibling(codesFile.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(vectors.size());
+            out.writeInt(vectors.dimensions());
+            out.writeByte(quantizer.getType());
+            quantizer.write(out);
+            for (byte[] codes: codeBlocks) {
+                out.write(codes);
+            }
+        }
+        Files.move(tmp, codesFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        log.info("Stored {} to '{}'", this, codesFile);
+    }
+
+    @Override
+    public TopK search(float[] query, int k, SearchOptions options) {
+        if (query.length != vectors.dimensions()) {
+            throw new IllegalArgumentException(
+                    "Expected query with " + vectors.dimensions() + " dimensions but got " + query.length);
+        }
+        final int candidateCount = rerank == 0 ? k : Math.max(k, rerank);
+        TopK candidates = partitions == 1 ?
+                searchPartition(query, candidateCount, 0, vectors.size()) :
+                searchParallel(query, candidateCount);
+        if (rerank == 0) {
+            return candidates.sort().sqrtDistances();
+        }
+
+        TopK topK = new TopK(k);
+        for (int i = 0 ; i < candidates.size() ; i++) {
+            final int row = candidates.getID(i);
+            final float threshold = topK.threshold();
+            final float distance = vectors.squaredDistance(row, query, threshold);
+            if (distance < threshold) {
+                topK.offer(row, distance);
+            }
+        }
+        return topK.sort().sqrtDistances();
+    }
+
+    private TopK searchParallel(float[] query, int k) {
+        final int blocksPerPartition = (codeBlocks.length + partitions - 1) / partitions;
+        List<Callable<TopK>> jobs = new ArrayList<>(partitions);
+        for (int block = 0 ; block < codeBlocks.length ; block += blocksPerPartition) {
+            final int from = block * FeatureVectors.BLOCK_ROWS;
+            final int to = Math.min((block + blocksPerPartition) * FeatureVectors.BLOCK_ROWS, vectors.size());
+            jobs.add(() -> searchPartition(query, k, from, to));
+        }
+
+        TopK merged = new TopK(k);
+        try {
+            for (Future<TopK> partial: executor.invokeAll(jobs)) {
+                merged.merge(partial.get());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for partial search results", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Exception during partial search", e.getCause());
+        }
+        return merged;
+    }
+
+    /**
+     * @param from the first row to search, must be at the start of a block.
+     * @param to   the last row to search, exclusive.
+     */
+    private TopK searchPartition(float[] query, int k, int from, int to) {
+        TopK topK = new TopK(k);
+        Quantizer.QueryDistance distances = quantizer.prepare(query);
+        for (int start = from ; start < to ; start += FeatureVectors.BLOCK_ROWS) {
+            final byte[] codes = codeBlocks[start / FeatureVectors.BLOCK_ROWS];
+            final int rows = Math.min(FeatureVectors.BLOCK_ROWS, to - start);
+            for (int r = 0 ; r < rows ; r++) {
+                final float distance = distances.squaredDistance(codes, r * codeSize);
+                if (distance < topK.threshold()) {
+                    topK.offer(start + r, distance);
+                }
+            }
+        }
+        return topK;
+    }
+
+    @Override
+    public FeatureVectors getVectors() {
+        return vectors;
+    }
+
+    @Override
+    public long getIndexBytes() {
+        return (long) vectors.size() * codeSize + quantizer.getModelBytes();
+    }
+
+    /**
+     * @return the quantizer used for the codes.
+     */
+    public Quantizer getQuantizer() {
+        return quantizer;
+    }
+
+    @Override
+    public String toString() {
+        return "QuantizedIndex(vectors=" + vectors + ", quantizer=" + quantizer + ", codeBytes=" + codeSize +
+               ", rerank=" + rerank + ", partitions=" + partitions + ")";
+    }
+}
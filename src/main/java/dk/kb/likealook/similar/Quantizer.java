@@ -0,0 +1,94 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Lossy compression of feature vectors to fixed size byte codes, with approximate distance calculation directly
+ * on the codes.
+ *
+ * Implementations must be thread safe after construction.
+ */
+public interface Quantizer {
+    byte TYPE_SCALAR = 1;
+    byte TYPE_PRODUCT = 2;
+
+    /**
+     * @return the type of the quantizer, {@link #TYPE_SCALAR} or {@link #TYPE_PRODUCT}, used for persistence.
+     */
+    byte getType();
+
+    /**
+     * @return the number of bytes for the code for a single vector.
+     */
+    int getCodeSize();
+
+    /**
+     * @param vector the vector to encode.
+     * @param codes  destination for the code.
+     * @param offset where in codes to store the {@link #getCodeSize()} bytes of the code.
+     */
+    void encode(float[] vector, byte[] codes, int offset);
+
+    /**
+     * Prepare distance calculations for the given query. The preparation is typically a lookup table, so that
+     * distance calculation does not need to decode the vectors.
+     * @param query a vector.
+     * @return calculator for approximate squared Euclidean distances from the query to encoded vectors.
+     */
+    QueryDistance prepare(float[] query);
+
+    /**
+     * @return the number of bytes used for the model, such as codebooks, independent of the number of vectors.
+     */
+    long getModelBytes();
+
+    /**
+     * Persist the model, so that it can be restored with {@link #read(byte, DataInput)} using {@link #getType()}.
+     * @param out destination for the model.
+     * @throws IOException if the model could not be written.
+     */
+    void write(DataOutput out) throws IOException;
+
+    /**
+     * Restore a quantizer stored with {@link #write(DataOutput)}.
+     * @param type the {@link #getType()} of the stored quantizer.
+     * @param in   the stored model.
+     * @return the restored quantizer.
+     * @throws IOException if the model could not be read or the type is unknown.
+     */
+    static Quantizer read(byte type, DataInput in) throws IOException {
+        switch (type) {
+            case TYPE_SCALAR: return ScalarQuantizer.read(in);
+            case TYPE_PRODUCT: return ProductQuantizer.read(in);
+            default: throw new IOException("Unknown quantizer type " + type);
+        }
+    }
+
+    /**
+     * Approximate distances from a single query. Not thread safe.
+     */
+    interface QueryDistance {
+        /**
+         * @param codes  encoded vectors.
+         * @param offset the start of a code.
+         * @return the approximate squared Euclidean distance from the query to the encoded vector.
+         */
+        float squaredDistance(byte[] codes, int offset);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+
+/**
+ * Extracts features by POSTing the image bytes to a remote service, e.g. a Wolfram script exposing
+ * {@code featureExtractor} from {@code face-feature-extractor.wls}.
+ *
+ * The service must accept the raw image as request body and respond with a JSON array of vectors,
+ * one for each detected face: {@code [[0.0123,-0.4311,...],[...]]}.
+ * Only the feature extraction is remote: The nearest neighbour search is done locally.
+ */
+public class RemoteFeatureExtractor implements FeatureExtractor {
+    private static final Logger log = LoggerFactory.getLogger(RemoteFeatureExtractor.class);
+
+    private static final ObjectMapper mapper = new ObjectMapper();
+
+    private final URL url;
+    private final int connectTimeoutMS;
+    private final int readTimeoutMS;
+
+    /**
+     * @param url              the URL for the remote feature extractor.
+     * @param connectTimeoutMS timeout for establishing a connection.
+     * @param readTimeoutMS    timeout for reading the response.
+     */
+    public RemoteFeatureExtractor(URL url, int connectTimeoutMS, int readTimeoutMS) {
+        this.url = url;
+        this.connectTimeoutMS = connectTimeoutMS;
+        this.readTimeoutMS = readTimeoutMS;
+        log.info("Created " + this);
+    }
+
+    /**
+     * The configured timeouts are lowered to match the deadline.
+     */
+    @Override
+    public float[][] extract(byte[] image, String sourceID, long deadline) throws IOException {
+        final long startTime = System.currentTimeMillis();
+        final long remaining = deadline - startTime;
+        if (remaining <= 0) {
+            throw new SocketTimeoutException("The deadline was exceeded before extracting features for '" +
+                                             sourceID + "' from '" + url + "'");
+        }
+        HttpURLConnection http = (HttpURLConnection) url.openConnection();
+        http.setRequestMethod("POST");
+        http.setDoOutput(true);
+        http.setConnectTimeout((int) Math.min(connectTimeoutMS, remaining));
+        http.setReadTimeout((int) Math.min(readTimeoutMS, remaining));
+        http.setFixedLengthStreamingMode(image.length);
+        http.setRequestProperty("Content-Type", "application/octet-stream");
+        try (OutputStream out = http.getOutputStream()) {
+            out.write(image);
+        }
+        final int status = http.getResponseCode();
+        if (status != HttpURLConnection.HTTP_OK) {
+            throw new IOException("Got HTTP " + status + " from '" + url + "' while extracting features for '" +
+                                  sourceID + "'");
+        }
+        try (InputStream in = http.getInputStream()) {
+            float[][] features = mapper.readValue(in, float[][].class);
+            log.debug("Extracted features for {} faces from '{}' in {}ms",
+                      features.length, sourceID, System.currentTimeMillis()-startTime);
+            return features;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "RemoteFeatureExtractor(url='" + url + "', connectTimeout=" + connectTimeoutMS + "ms, " +
+               "readTimeout=" + readTimeoutMS + "ms)";
+    }
+}
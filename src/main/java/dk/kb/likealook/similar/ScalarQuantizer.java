@@ -0,0 +1,132 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Scalar quantization of each dimension to 8 bits, using the minimum and maximum for the dimension as range.
+ * The codes take up 1/4 of the float vectors and the distance error is small enough for re-ranking of a
+ * limited number of candidates to restore exact results in most cases.
+ */
+public class ScalarQuantizer implements Quantizer {
+    private final float[] min;
+    private final float[] scale;
+
+    private ScalarQuantizer(float[] min, float[] scale) {
+        this.min = min;
+        this.scale = scale;
+    }
+
+    /**
+     * Determine the range of each dimension from all vectors.
+     * @param vectors the vectors to quantize.
+     * @return a quantizer for the vectors.
+     */
+    public static ScalarQuantizer train(FeatureVectors vectors) {
+        final int dimensions = vectors.dimensions();
+        float[] min = new float[dimensions];
+        float[] max = new float[dimensions];
+        Arrays.fill(min, Float.MAX_VALUE);
+        Arrays.fill(max, -Float.MAX_VALUE);
+        float[] vector = new float[dimensions];
+        for (int row = 0 ; row < vectors.size() ; row++) {
+            vectors.get(row, vector);
+            for (int d = 0 ; d < dimensions ; d++) {
+                min[d] = Math.min(min[d], vector[d]);
+                max[d] = Math.max(max[d], vector[d]);
+            }
+        }
+        float[] scale = new float[dimensions];
+        for (int d = 0 ; d < dimensions ; d++) {
+            if (min[d] > max[d]) { // No vectors
+                min[d] = 0f;
+                max[d] = 0f;
+            }
+            scale[d] = (max[d] - min[d]) / 255f;
+        }
+        return new ScalarQuantizer(min, scale);
+    }
+
+    /**
+     * Restore a quantizer stored with {@link #write(DataOutput)}.
+     */
+    public static ScalarQuantizer read(DataInput in) throws IOException {
+        final int dimensions = in.readInt();
+        float[] min = new float[dimensions];
+        float[] scale = new float[dimensions];
+        for (int d = 0 ; d < dimensions ; d++) {
+            min[d] = in.readFloat();
+            scale[d] = in.readFloat();
+        }
+        return new ScalarQuantizer(min, scale);
+    }
+
+    @Override
+    public byte getType() {
+        return TYPE_SCALAR;
+    }
+
+    @Override
+    public void write(DataOutput out) throws IOException {
+        out.writeInt(min.length);
+        for (int d = 0 ; d < min.length ; d++) {
+            out.writeFloat(min[d]);
+            out.writeFloat(scale[d]);
+        }
+    }
+
+    @Override
+    public int getCodeSize() {
+        return min.length;
+    }
+
+    @Override
+    public void encode(float[] vector, byte[] codes, int offset) {
+        for (int d = 0 ; d < min.length ; d++) {
+            final int code = scale[d] == 0f ? 0 : Math.round((vector[d] - min[d]) / scale[d]);
+            codes[offset + d] = (byte) Math.max(0, Math.min(255, code));
+        }
+    }
+
+    @Override
+    public QueryDistance prepare(float[] query) {
+        final float[] shifted = new float[min.length];
+        for (int d = 0 ; d < min.length ; d++) {
+            shifted[d] = query[d] - min[d];
+        }
+        return (codes, offset) -> {
+            float sum = 0f;
+            for (int d = 0 ; d < shifted.length ; d++) {
+                final float diff = shifted[d] - scale[d] * (codes[offset + d] & 0xFF);
+                sum += diff*diff;
+            }
+            return sum;
+        };
+    }
+
+    @Override
+    public long getModelBytes() {
+        return min.length * 2L * Float.BYTES;
+    }
+
+    @Override
+    public String toString() {
+        return "ScalarQuantizer(dimensions=" + min.length + ", bits=8)";
+    }
+}
@@ -0,0 +1,67 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+/**
+ * Per-request tuning of a {@link FeatureIndex} search. Unset values means that the index defaults are used.
+ */
+public class SearchOptions {
+    public static final SearchOptions DEFAULT = new SearchOptions();
+
+    private final Integer efSearch;
+    private final Integer nprobe;
+
+    public SearchOptions() {
+        this(null, null);
+    }
+
+    /**
+     * @param efSearch the size of the dynamic candidate list for {@link HNSWIndex} searches.
+     *                 Higher values means better recall and slower searches. null means index default.
+     */
+    public SearchOptions(Integer efSearch) {
+        this(efSearch, null);
+    }
+
+    /**
+     * @param efSearch the size of the dynamic candidate list for {@link HNSWIndex} searches.
+     *                 Higher values means better recall and slower searches. null means index default.
+     * @param nprobe   the number of lists to search for {@link IVFIndex} searches.
+     *                 Higher values means better recall and slower searches. null means index default.
+     */
+    public SearchOptions(Integer efSearch, Integer nprobe) {
+        this.efSearch = efSearch;
+        this.nprobe = nprobe;
+    }
+
+    /**
+     * @return the size of the dynamic candidate list for {@link HNSWIndex} searches or null if not specified.
+     */
+    public Integer getEfSearch() {
+        return efSearch;
+    }
+
+    /**
+     * @return the number of lists to search for {@link IVFIndex} searches or null if not specified.
+     */
+    public Integer getNprobe() {
+        return nprobe;
+    }
+
+    @Override
+    public String toString() {
+        return "SearchOptions(efSearch=" + efSearch + ", nprobe=" + nprobe + ")";
+    }
+}
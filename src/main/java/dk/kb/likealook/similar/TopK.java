@@ -0,0 +1,185 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+/**
+ * Bounded collector for the k entries with the lowest distances.
+ *
+ * Internally this is a max-heap over parallel {@code int[]} ids and {@code float[]} distances, with the worst
+ * (highest) distance at the top. No objects are allocated when offering candidates.
+ *
+ * Not thread safe: Use one instance per thread and {@link #merge(TopK)} the results.
+ */
+public class TopK {
+    private final int k;
+    private final int[] ids;
+    private final float[] distances;
+    private int size = 0;
+
+    /**
+     * @param k the maximum number of entries to keep.
+     */
+    public TopK(int k) {
+        if (k < 0) {
+            throw new IllegalArgumentException("k must be 0 or more but was " + k);
+        }
+        this.k = k;
+        ids = new int[k];
+        distances = new float[k];
+    }
+
+    /**
+     * Offer a candidate. It is only kept if it is better than the current worst entry or if there are less than
+     * k entries.
+     * @param id       the id of the candidate, typically the row in the index.
+     * @param distance the distance from the query to the candidate. Lower is better.
+     * @return true if the candidate was kept.
+     */
+    public boolean offer(int id, float distance) {
+        if (size < k) {
+            ids[size] = id;
+            distances[size] = distance;
+            siftUp(size++);
+            return true;
+        }
+        if (k == 0 || distance >= distances[0]) {
+            return false;
+        }
+        ids[0] = id;
+        distances[0] = distance;
+        siftDown(0, size);
+        return true;
+    }
+
+    /**
+     * @return the distance that a candidate must be below in order to be kept.
+     *         {@link Float#MAX_VALUE} if there are less than k entries, {@link Float#NEGATIVE_INFINITY} if k is 0.
+     */
+    public float threshold() {
+        if (k == 0) {
+            return Float.NEGATIVE_INFINITY;
+        }
+        return size < k ? Float.MAX_VALUE : distances[0];
+    }
+
+    /**
+     * Offer all entries from other to this collector.
+     * @param other another collector, typically from another thread.
+     * @return this collector, for chaining.
+     */
+    public TopK merge(TopK other) {
+        for (int i = 0 ; i < other.size ; i++) {
+            offer(other.ids[i], other.distances[i]);
+        }
+        return this;
+    }
+
+    /**
+     * Sort the entries in-place by ascending distance. After sorting, the collector must not be offered more entries.
+     * @return this collector, for chaining.
+     */
+    public TopK sort() {
+        // Heap sort: Repeatedly move the worst entry to the end
+        for (int end = size-1 ; end > 0 ; end--) {
+            swap(0, end);
+            siftDown(0, end);
+        }
+        return this;
+    }
+
+    /**
+     * Replace all distances with their square root. As this preserves ordering, the heap stays valid.
+     * Used for converting squared Euclidean distances to Euclidean distances.
+     * @return this collector, for chaining.
+     */
+    TopK sqrtDistances() {
+        for (int i = 0 ; i < size ; i++) {
+            distances[i] = (float) Math.sqrt(distances[i]);
+        }
+        return this;
+    }
+
+    /**
+     * @return the number of collected entries, at most k.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @return the maximum number of entries to collect.
+     */
+    public int getK() {
+        return k;
+    }
+
+    /**
+     * @param index 0 to {@link #size()}-1.
+     * @return the id at the given index. Ordered by ascending distance if {@link #sort()} has been called.
+     */
+    public int getID(int index) {
+        return ids[index];
+    }
+
+    /**
+     * @param index 0 to {@link #size()}-1.
+     * @return the distance at the given index. Ordered by ascending distance if {@link #sort()} has been called.
+     */
+    public float getDistance(int index) {
+        return distances[index];
+    }
+
+    private void siftUp(int index) {
+        while (index > 0) {
+            int parent = (index-1) >>> 1;
+            if (distances[parent] >= distances[index]) {
+                return;
+            }
+            swap(parent, index);
+            index = parent;
+        }
+    }
+
+    private void siftDown(int index, int end) {
+        while (true) {
+            int child = 2*index+1;
+            if (child >= end) {
+                return;
+            }
+            if (child+1 < end && distances[child+1] > distances[child]) {
+                child++;
+            }
+            if (distances[index] >= distances[child]) {
+                return;
+            }
+            swap(index, child);
+            index = child;
+        }
+    }
+
+    private void swap(int a, int b) {
+        int id = ids[a];
+        ids[a] = ids[b];
+        ids[b] = id;
+        float distance = distances[a];
+        distances[a] = distances[b];
+        distances[b] = distance;
+    }
+
+    @Override
+    public String toString() {
+        return "TopK(k=" + k + ", size=" + size + ", threshold=" + threshold() + ")";
+    }
+}
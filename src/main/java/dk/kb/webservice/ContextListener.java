@@ -7,6 +7,11 @@ import javax.naming.NamingException;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
+import dk.kb.likealook.api.impl.BatchHandler;
+import dk.kb.likealook.api.impl.DANERService;
+import dk.kb.likealook.api.impl.FaceSearchPool;
+import dk.kb.likealook.api.impl.ResourceHandler;
+import dk.kb.likealook.api.impl.SimilarHandler;
 import dk.kb.likealook.config.ServiceConfig;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -35,6 +40,8 @@ public class ContextListener implements ServletContextListener {
             String configFile = (String) ctx.lookup("java:/comp/env/application-config");
             //TODO this should not refer to something in template. Should we perhaps use reflection here?
             ServiceConfig.initialize(configFile);
+            // Load the local similarity collections up front, as building or loading indexes can take a while
+            SimilarHandler.getInstance();
         } catch (NamingException e) {
             throw new RuntimeException("Failed to lookup settings", e);
         } catch (IOException e) {
@@ -45,6 +52,11 @@ public class ContextListener implements ServletContextListener {
 
     @Override
     public void contextDestroyed(ServletContextEvent sce) {
+        SimilarHandler.shutdown();
+        BatchHandler.shutdown();
+        DANERService.shutdown();
+        FaceSearchPool.shutdown();
+        ResourceHandler.shutdown();
         log.debug("Service destroyed");
     }
 
@@ -1,10 +1,12 @@
 package dk.kb.webservice;
 
+import dk.kb.webservice.exception.RedirectServiceException;
 import dk.kb.webservice.exception.ServiceException;
 
 import javax.ws.rs.core.Response;
 import javax.ws.rs.ext.ExceptionMapper;
 import javax.ws.rs.ext.Provider;
+import java.net.URI;
 
 /*
  * Catches {@link ServiceException}s and adjusts the response accordingly.
@@ -14,7 +16,11 @@ public class ServiceExceptionMapper implements ExceptionMapper<dk.kb.webservice.
 
     @Override
     public Response toResponse(ServiceException exception) {
-    
+        if (exception instanceof RedirectServiceException) {
+            return Response.temporaryRedirect(
+                    URI.create(((RedirectServiceException) exception).getLocation())).build();
+        }
+
         Response.Status responseStatus = exception.getResponseStatus();
         Object entity = exception.getEntity();
         
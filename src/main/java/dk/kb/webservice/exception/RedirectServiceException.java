@@ -0,0 +1,36 @@
+package dk.kb.webservice.exception;
+
+
+import javax.ws.rs.core.Response;
+
+/*
+ * Custom web-exception class (307), used when a resource is held by another instance of the service
+ */
+public class RedirectServiceException extends ServiceException {
+    
+    //Constant fields for the OpenApi
+    public static final String description = "RedirectServiceException";
+    public static final String responseCode = "307";
+
+    private static final long serialVersionUID = 27182828L;
+    private static final Response.Status responseStatus = Response.Status.TEMPORARY_REDIRECT; //307
+
+    private final String location;
+
+    public RedirectServiceException(String location) {
+        super("Redirecting to " + location, responseStatus);
+        this.location = location;
+    }
+
+    public RedirectServiceException(String message, String location) {
+        super(message, responseStatus);
+        this.location = location;
+    }
+
+    /**
+     * @return the URL that the client should retrieve instead.
+     */
+    public String getLocation() {
+        return location;
+    }
+}
@@ -0,0 +1,42 @@
+package dk.kb.webservice.exception;
+
+
+import javax.ws.rs.core.Response;
+
+/*
+ * Custom web-exception class (503), used when a backend is temporarily unable to handle requests
+ */
+public class ServiceUnavailableServiceException extends ServiceException {
+    
+    //Constant fields for the OpenApi
+    public static final String description = "ServiceUnavailableServiceException";
+    public static final String responseCode = "503";
+
+    private static final long serialVersionUID = 27182827L;
+    private static final Response.Status responseStatus = Response.Status.SERVICE_UNAVAILABLE; //503
+    
+    public ServiceUnavailableServiceException() {
+        super(responseStatus);
+    }
+    
+    public ServiceUnavailableServiceException(String message) {
+        super(message, responseStatus);
+    }
+    
+    public ServiceUnavailableServiceException(String message, Throwable cause) {
+        super(message, cause, responseStatus);
+    }
+    
+    public ServiceUnavailableServiceException(Throwable cause) {
+        super(cause, responseStatus);
+    }
+
+    public ServiceUnavailableServiceException(String mimeType, Object entity) {
+        super(mimeType, entity, responseStatus);
+    }
+
+    public ServiceUnavailableServiceException(String mimeType, Object entity, Throwable cause) {
+        super(mimeType, entity, cause, responseStatus);
+    }
+}
+
@@ -0,0 +1,42 @@
+package dk.kb.webservice.exception;
+
+
+import javax.ws.rs.core.Response;
+
+/*
+ * Custom web-exception class (504), used when a request could not be completed before its deadline
+ */
+public class TimeoutServiceException extends ServiceException {
+    
+    //Constant fields for the OpenApi
+    public static final String description = "TimeoutServiceException";
+    public static final String responseCode = "504";
+
+    private static final long serialVersionUID = 27182826L;
+    private static final Response.Status responseStatus = Response.Status.GATEWAY_TIMEOUT; //504
+    
+    public TimeoutServiceException() {
+        super(responseStatus);
+    }
+    
+    public TimeoutServiceException(String message) {
+        super(message, responseStatus);
+    }
+    
+    public TimeoutServiceException(String message, Throwable cause) {
+        super(message, cause, responseStatus);
+    }
+    
+    public TimeoutServiceException(Throwable cause) {
+        super(cause, responseStatus);
+    }
+
+    public TimeoutServiceException(String mimeType, Object entity) {
+        super(mimeType, entity, responseStatus);
+    }
+
+    public TimeoutServiceException(String mimeType, Object entity, Throwable cause) {
+        super(mimeType, entity, cause, responseStatus);
+    }
+}
+
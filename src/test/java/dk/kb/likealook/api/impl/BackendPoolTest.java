@@ -0,0 +1,170 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import com.sun.net.httpserver.HttpServer;
+import dk.kb.webservice.exception.TimeoutServiceException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BackendPoolTest {
+
+    @Test
+    void testBalancing() throws IOException {
+        HttpServer server1 = RemoteBackendTest.createServer();
+        HttpServer server2 = RemoteBackendTest.createServer();
+        try {
+            RemoteBackend backend1 = createBackend("b1", server1, 1);
+            RemoteBackend backend2 = createBackend("b2", server2, 1);
+            BackendPool pool = new BackendPool("test", Arrays.asList(backend1, backend2), false, 95, 50);
+
+            Map<String, Integer> hits = new HashMap<>();
+            for (int i = 0 ; i < 10 ; i++) {
+                try (InputStream response = pool.get(url -> {
+                    hits.merge(url, 1, Integer::sum);
+                    return URI.create(url + "/ok");
+                })) {
+                    assertEquals("pong", new String(response.readAllBytes(), StandardCharsets.UTF_8),
+                                 "The response should be as expected");
+                }
+            }
+            assertEquals(5, (int) hits.get(backend1.getURL()), "Idle backends should receive the same number of calls");
+            assertEquals(5, (int) hits.get(backend2.getURL()), "Idle backends should receive the same number of calls");
+        } finally {
+            server1.stop(0);
+            server2.stop(0);
+        }
+    }
+
+    @Test
+    void testEjection() throws IOException {
+        HttpServer server1 = RemoteBackendTest.createServer();
+        HttpServer server2 = RemoteBackendTest.createServer();
+        try {
+            RemoteBackend failing = createBackend("failing", server1, 1);
+            RemoteBackend healthy = createBackend("healthy", server2, 1);
+            BackendPool pool = new BackendPool("test", Arrays.asList(failing, healthy), false, 95, 50);
+
+            int failures = 0;
+            for (int i = 0 ; i < 10 ; i++) {
+                try (InputStream response = pool.get(
+                        url -> URI.create(url + (url.equals(failing.getURL()) ? "/fail" : "/ok")))) {
+                    response.readAllBytes();
+                } catch (Exception e) {
+                    failures++;
+                }
+            }
+            assertEquals(1, failures, "The failing backend should be ejected after the first failure");
+            assertEquals(CircuitBreaker.State.open, failing.getBreaker().getState(),
+                         "The breaker for the failing backend should be open");
+        } finally {
+            server1.stop(0);
+            server2.stop(0);
+        }
+    }
+
+    @Test
+    void testHedge() throws IOException {
+        HttpServer slowServer = RemoteBackendTest.createServer();
+        HttpServer fastServer = RemoteBackendTest.createServer();
+        try {
+            RemoteBackend slow = createBackend("slow", slowServer, 5);
+            RemoteBackend fast = createBackend("fast", fastServer, 5);
+            BackendPool pool = new BackendPool("test", Arrays.asList(slow, fast), true, 95, 50);
+
+            for (int i = 0 ; i < BackendPool.MIN_SAMPLES ; i++) { // Establish response times
+                pool.get(url -> URI.create(url + "/ok")).close();
+            }
+            assertEquals(0, pool.getHedges(), "Fast responses should not be hedged");
+
+            for (int i = 0 ; i < 2 ; i++) { // The slow backend will be primary for at least one of the calls
+                final long startTime = System.currentTimeMillis();
+                try (InputStream response = pool.get(
+                        url -> URI.create(url + (url.equals(slow.getURL()) ? "/slow" : "/ok")))) {
+                    assertEquals("pong", new String(response.readAllBytes(), StandardCharsets.UTF_8),
+                                 "The response should be as expected");
+                }
+                long spendMS = System.currentTimeMillis() - startTime;
+                assertTrue(spendMS < 2000, "The hedged call should return before the slow call but took " +
+                                           spendMS + "ms");
+            }
+            assertTrue(pool.getHedges() > 0, "Calls to the slow backend should be hedged");
+        } finally {
+            slowServer.stop(0);
+            fastServer.stop(0);
+        }
+    }
+
+    @Test
+    void testLatencyWindow() {
+        BackendPool.LatencyWindow latencies = new BackendPool.LatencyWindow(BackendPool.MAX_SAMPLES, 95);
+        for (int i = 1 ; i < BackendPool.MIN_SAMPLES ; i++) {
+            latencies.add(i);
+        }
+        assertEquals(-1, latencies.getPercentile(), "There should be no percentile before MIN_SAMPLES");
+        latencies.add(BackendPool.MIN_SAMPLES);
+        assertEquals(19, latencies.getPercentile(), "The percentile should be calculated at MIN_SAMPLES");
+
+        for (int i = 1 ; i < BackendPool.RECALCULATE_INTERVAL ; i++) {
+            latencies.add(1000);
+        }
+        assertEquals(19, latencies.getPercentile(), "The percentile should not be recalculated for every sample");
+        latencies.add(1000);
+        assertEquals(1000, latencies.getPercentile(),
+                     "The percentile should be recalculated after RECALCULATE_INTERVAL samples");
+    }
+
+    @Test
+    void testLateResponseClosed() throws IOException {
+        HttpServer server = RemoteBackendTest.createServer();
+        try {
+            RemoteBackend backend = createBackend("late", server, 1);
+            BackendPool pool = new BackendPool("test", Arrays.asList(backend), false, 95, 50);
+
+            CompletableFuture<InputStream> late = new CompletableFuture<>();
+            assertThrows(TimeoutServiceException.class,
+                         () -> pool.call(url -> URI.create(url + "/ok"), (b, uri, deadline) -> late,
+                                         System.currentTimeMillis() + 100),
+                         "The call should time out");
+            AtomicBoolean closed = new AtomicBoolean(false);
+            late.complete(new ByteArrayInputStream(new byte[10]) {
+                @Override
+                public void close() {
+                    closed.set(true);
+                }
+            });
+            assertTrue(closed.get(), "A response arriving after the caller has given up should be closed");
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    private static RemoteBackend createBackend(String name, HttpServer server, int failures) {
+        return new RemoteBackend(name, "http://localhost:" + server.getAddress().getPort(), 1000, 3000,
+                                 new CircuitBreaker(name, 0, failures, 60000));
+    }
+}
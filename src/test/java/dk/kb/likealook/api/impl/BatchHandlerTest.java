@@ -0,0 +1,130 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.likealook.TestHelper;
+import dk.kb.likealook.model.SimilarResponseDto;
+import dk.kb.webservice.exception.InvalidArgumentServiceException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BatchHandlerTest {
+
+    @Test
+    void testZIP() throws IOException {
+        TestHelper.initTestSetup();
+        final int IMAGES = 20;
+
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream zipOut = new ZipOutputStream(zip)) {
+            zipOut.putNextEntry(new ZipEntry("somefolder/"));
+            for (int i = 0 ; i < IMAGES ; i++) {
+                zipOut.putNextEntry(new ZipEntry("somefolder/image_" + i + ".jpg"));
+                zipOut.write(("content_" + i).getBytes(StandardCharsets.UTF_8));
+            }
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        BatchHandler.findSimilar(
+                BatchHandler.fromZIP(new ByteArrayInputStream(zip.toByteArray())),
+                image -> {
+                    String content;
+                    try {
+                        content = new String(image.readAllBytes(), StandardCharsets.UTF_8);
+                    } catch (IOException e) {
+                        throw new RuntimeException(e);
+                    }
+                    if ("content_7".equals(content)) {
+                        throw new InvalidArgumentServiceException("Unsupported image");
+                    }
+                    return new SimilarResponseDto().sourceID("generated").technote(content);
+                }).write(out);
+
+        String[] lines = out.toString(StandardCharsets.UTF_8).split("\n");
+        assertEquals(IMAGES, lines.length, "There should be a response for each image");
+        Set<String> expected = new HashSet<>();
+        for (int i = 0 ; i < IMAGES ; i++) {
+            expected.add(i == 7 ?
+                    "\"technote\":\"Error: Unsupported image\"" :
+                    "\"technote\":\"content_" + i + "\"");
+        }
+        for (String line: lines) {
+            expected.removeIf(line::contains);
+            assertFalse(line.contains("generated"), "The sourceID should be the entry name, but got " + line);
+        }
+        assertTrue(expected.isEmpty(), "All images should have a response, but these were missing: " + expected);
+    }
+
+    @Test
+    void testZIPLimits() throws IOException {
+        ByteArrayOutputStream zip = new ByteArrayOutputStream();
+        try (ZipOutputStream zipOut = new ZipOutputStream(zip)) {
+            zipOut.putNextEntry(new ZipEntry("small.jpg"));
+            zipOut.write(new byte[10]);
+            // Compresses to almost nothing but inflates beyond the limit
+            zipOut.putNextEntry(new ZipEntry("large.jpg"));
+            zipOut.write(new byte[100000]);
+            for (int i = 0 ; i < 3 ; i++) {
+                zipOut.putNextEntry(new ZipEntry("extra_" + i + ".jpg"));
+                zipOut.write(new byte[10]);
+            }
+        }
+
+        BatchHandler.Inputs inputs = BatchHandler.fromZIP(new ByteArrayInputStream(zip.toByteArray()), 3, 1000);
+        assertEquals(10, read(inputs.next()).length, "The small entry should be delivered");
+        BatchHandler.Input large = inputs.next();
+        assertEquals("large.jpg", large.getLabel());
+        assertThrows(InvalidArgumentServiceException.class, large::open,
+                     "The entry above the size limit should fail");
+        assertEquals(10, read(inputs.next()).length, "The third entry should be delivered");
+        BatchHandler.Input excess = inputs.next();
+        assertEquals("extra_1.jpg", excess.getLabel());
+        assertThrows(InvalidArgumentServiceException.class, excess::open,
+                     "The entry above the entry limit should fail");
+        assertNull(inputs.next(), "The entries after the entry limit should be skipped");
+        inputs.close();
+    }
+
+    private static byte[] read(BatchHandler.Input input) throws IOException {
+        try (InputStream in = input.open()) {
+            return in.readAllBytes();
+        }
+    }
+
+    @Test
+    void testConcat() throws IOException {
+        BatchHandler.Inputs inputs = BatchHandler.concat(
+                BatchHandler.fromResources("ephemeral/foo.jpg, ephemeral/bar.jpg\nephemeral/zoo.jpg"),
+                BatchHandler.fromResources(" "),
+                BatchHandler.fromResources("ephemeral/baz.jpg"));
+        BatchHandler.Input input;
+        StringBuilder ids = new StringBuilder();
+        while ((input = inputs.next()) != null) {
+            ids.append(input.getLabel()).append(" ");
+        }
+        assertEquals("ephemeral/foo.jpg ephemeral/bar.jpg ephemeral/zoo.jpg ephemeral/baz.jpg ", ids.toString());
+    }
+}
@@ -0,0 +1,72 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.webservice.exception.ServiceUnavailableServiceException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class CircuitBreakerTest {
+
+    @Test
+    void testTripAndRecover() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("test", 0, 2, 100);
+        breaker.acquire();
+        breaker.failure();
+        assertEquals(CircuitBreaker.State.closed, breaker.getState(), "A single failure should not open the breaker");
+        breaker.acquire();
+        breaker.failure();
+        assertEquals(CircuitBreaker.State.open, breaker.getState(), "Two failures should open the breaker");
+        assertThrows(ServiceUnavailableServiceException.class, breaker::acquire,
+                     "Calls should be rejected when the breaker is open");
+
+        Thread.sleep(150);
+        breaker.acquire(); // Probe
+        assertEquals(CircuitBreaker.State.half_open, breaker.getState(), "The breaker should be half open when probing");
+        assertThrows(ServiceUnavailableServiceException.class, breaker::acquire,
+                     "Only a single probe call should be allowed");
+        breaker.success();
+        assertEquals(CircuitBreaker.State.closed, breaker.getState(), "A successful probe should close the breaker");
+        assertEquals(1, breaker.getTrips(), "The breaker should have tripped once");
+        assertEquals(2, breaker.getRejected(), "The number of rejected calls should match");
+    }
+
+    @Test
+    void testFailedProbe() throws InterruptedException {
+        CircuitBreaker breaker = new CircuitBreaker("test", 0, 1, 100);
+        breaker.acquire();
+        breaker.failure();
+        Thread.sleep(150);
+        breaker.acquire();
+        breaker.failure();
+        assertEquals(CircuitBreaker.State.open, breaker.getState(), "A failed probe should open the breaker again");
+        assertThrows(ServiceUnavailableServiceException.class, breaker::acquire,
+                     "Calls should be rejected after a failed probe");
+    }
+
+    @Test
+    void testBulkhead() {
+        CircuitBreaker breaker = new CircuitBreaker("test", 2, 0, 100);
+        breaker.acquire();
+        breaker.acquire();
+        assertEquals(2, breaker.getInflight(), "There should be 2 calls in flight");
+        assertThrows(ServiceUnavailableServiceException.class, breaker::acquire,
+                     "Calls above the concurrency limit should be rejected");
+        breaker.success();
+        breaker.acquire();
+        assertEquals(CircuitBreaker.State.closed, breaker.getState(), "Rejections should not open the breaker");
+    }
+}
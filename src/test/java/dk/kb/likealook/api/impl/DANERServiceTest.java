@@ -1,8 +1,19 @@
 package dk.kb.likealook.api.impl;
 
 import dk.kb.likealook.TestHelper;
+import dk.kb.likealook.config.ServiceConfig;
+import dk.kb.likealook.model.ElementDto;
+import dk.kb.likealook.model.SimilarDto;
+import dk.kb.webservice.exception.InternalServiceException;
 import org.junit.jupiter.api.Test;
 
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 /*
  *  Licensed under the Apache License, Version 2.0 (the "License");
  *  you may not use this file except in compliance with the License.
@@ -42,4 +53,59 @@ class DANERServiceTest {
         System.out.println(DANERService.findSimilarRemoteMultiV2("someID", sourceURL, 10));
     }
 
-}
\ No newline at end of file
+    @Test
+    void testTopSimilars() {
+        TestHelper.initTestSetup();
+
+        List<DANERService.FaceMatches> faces = DANERService.parseMatchesMulti(toStream(
+                "[[{\"id\":\"DP038937\",\"distance\":45.1}," +
+                "  {\"id\":\"DP008594\",\"distance\":43.0}," +
+                "  {\"id\":\"DP036909\",\"distance\":44.7}]," +
+                " [{\"id\":\"DP002205\",\"distance\":12.5}]]"));
+        List<ElementDto> elements = DANERService.facesToElements(faces, 2);
+        assertEquals(2, elements.size(), "There should be an element for each face");
+
+        List<SimilarDto> similars = elements.get(0).getSimilars();
+        assertEquals(2, similars.size(), "The number of similars should be limited to maxMatches");
+        assertEquals(43.0, (double) similars.get(0).getDistance(), "The best match should be first");
+        assertEquals(44.7, (double) similars.get(1).getDistance(), "The second best match should be second");
+        assertEquals(1, elements.get(1).getSimilars().size(), "Faces with few matches should keep them all");
+    }
+
+    @Test
+    void testParseV2() {
+        TestHelper.initTestSetup();
+
+        List<ElementDto> elements = DANERService.multiResponseV2ToDto(toStream(
+                "{\"technote\":\"Wolfram script\",\"imageURL\":\"http://example.com/foo.jpg\",\"faces\":[" +
+                " {\"boundingBox\":{\"x\":1,\"y\":2,\"width\":3,\"height\":4}," +
+                "  \"similars\":[{\"distance\":54.1,\"id\":\"DP032144\"},{\"distance\":50.2,\"id\":\"DP010461\"}]," +
+                "  \"index\":1}]}"), 10);
+        assertEquals(1, elements.size(), "There should be an element for the single face");
+        assertEquals(1, (int) elements.get(0).getIndex(), "The index should be taken from the response");
+        List<SimilarDto> similars = elements.get(0).getSimilars();
+        assertEquals(2, similars.size(), "All similars should be returned");
+        assertEquals(50.2, (double) similars.get(0).getDistance(), "The best match should be first");
+    }
+
+    @Test
+    void testParseError() {
+        assertThrows(InternalServiceException.class,
+                     () -> DANERService.parseMatchesMulti(toStream("{\"error\":\"Found no face\"}")),
+                     "An error response should result in an exception");
+    }
+
+    @Test
+    void testStatistics() {
+        TestHelper.initTestSetup();
+        DANERService service = new DANERService(ServiceConfig.getConfig());
+        assertEquals("cache hits=0, misses=0, hitRate=0%, entries=0, " +
+                     "remote calls executed=0, coalesced=0, inFlight=0", service.getStatistics(),
+                     "A new service should have empty statistics");
+    }
+
+    private static InputStream toStream(String json) {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+
+}
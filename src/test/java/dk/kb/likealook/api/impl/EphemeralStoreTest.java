@@ -0,0 +1,290 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.likealook.api.impl.ResourceHandler.Ephemeral;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class EphemeralStoreTest {
+
+    @Test
+    void testByteBudget() {
+        EphemeralStore store = new EphemeralStore(60, 100, 1000, 0);
+        for (int i = 0 ; i < 4 ; i++) {
+            assertTrue(store.put(new Ephemeral("e" + i, new byte[300])), "Ephemeral " + i + " should be stored");
+        }
+        assertEquals(3, store.size(), "The store should only hold the entries that fit in the byte budget");
+        assertEquals(900, store.getBytes(), "The bytes held should be as expected");
+        assertFalse(store.contains("e0"), "The oldest entry should have been evicted");
+        assertNotNull(store.get("e3"), "The newest entry should be available");
+        assertEquals(1, store.getEvictions(), "The number of evictions should be as expected");
+
+        assertTrue(store.put(new Ephemeral("large", new byte[800])), "An entry within the budget should be stored");
+        assertEquals(1, store.size(), "A large entry should evict all older entries");
+        assertEquals(800, store.getBytes(), "The bytes held should match the large entry");
+
+        assertFalse(store.fits(new Ephemeral("too_large", new byte[1001])),
+                    "An entry larger than the budget should not fit");
+        assertFalse(store.put(new Ephemeral("too_large", new byte[1001])),
+                    "An entry larger than the budget should not be stored");
+        assertEquals(1, store.getRejected(), "The rejected entry should be counted");
+        assertNotNull(store.get("large"), "A rejected entry should not evict existing entries");
+    }
+
+    @Test
+    void testReplace() {
+        EphemeralStore store = new EphemeralStore(60, 100, 1000, 0);
+        store.put(new Ephemeral("same", new byte[100]));
+        store.put(new Ephemeral("same", new byte[200]));
+        assertEquals(1, store.size(), "Replacing should not add an entry");
+        assertEquals(200, store.getBytes(), "The bytes for the replaced entry should be released");
+        assertEquals(200, store.get("same").getSize(), "The newest content should be delivered");
+    }
+
+    @Test
+    void testMaxEntries() {
+        EphemeralStore store = new EphemeralStore(60, 2, 1000, 0);
+        for (int i = 0 ; i < 3 ; i++) {
+            store.put(new Ephemeral("e" + i, new byte[10]));
+        }
+        assertEquals(2, store.size(), "The store should not hold more than the maximum number of entries");
+        assertFalse(store.contains("e0"), "The oldest entry should have been evicted");
+    }
+
+    @Test
+    void testExpiration() throws InterruptedException {
+        EphemeralStore store = new EphemeralStore(1, 100, 1000, 0);
+        store.put(new Ephemeral("old", new byte[10]));
+        Thread.sleep(1100);
+        store.put(new Ephemeral("new", new byte[10]));
+
+        assertFalse(store.contains("old"), "An expired entry should not be delivered");
+        assertEquals(2, store.size(), "Lookups should not remove expired entries");
+
+        store.sweep();
+        assertEquals(1, store.size(), "The sweep should remove the expired entry");
+        assertEquals(10, store.getBytes(), "The bytes for the expired entry should be released");
+        assertEquals(1, store.getExpirations(), "The expiration should be counted");
+        assertTrue(store.contains("new"), "The sweep should keep entries that are not expired");
+    }
+
+    @Test
+    void testDedup() {
+        EphemeralStore store = new EphemeralStore(60, 100, 1000, 0, true);
+        Upload upload = Upload.of(new byte[300]);
+        Upload same = Upload.of(new byte[300]);
+
+        store.put(new Ephemeral(upload.getSHA256(), upload.getContent(), upload.getSHA256()));
+        store.put(new Ephemeral("alias", same.getContent(), same.getSHA256()));
+        assertEquals(2, store.size(), "Both entries should be stored");
+        assertEquals(300, store.getBytes(), "The shared content should only be counted once");
+        assertEquals(1, store.getDeduplicated(), "The second entry should be deduplicated");
+        assertSame(store.get(upload.getSHA256()).getContent(), store.get("alias").getContent(),
+                   "The entries should share content");
+
+        store.put(new Ephemeral("alias", new byte[100]));
+        assertEquals(400, store.getBytes(), "The shared content should be held while it is referenced");
+        store.put(new Ephemeral(upload.getSHA256(), new byte[100]));
+        assertEquals(200, store.getBytes(), "The shared content should be released when no longer referenced");
+        assertEquals(0, store.getSharedContents(), "There should be no shared contents left");
+    }
+
+    @Test
+    void testDedupEviction() {
+        EphemeralStore store = new EphemeralStore(60, 100, 1000, 0, true);
+        Upload upload = Upload.of(new byte[600]);
+        store.put(new Ephemeral("a", upload.getContent(), upload.getSHA256()));
+        store.put(new Ephemeral("b", upload.getContent(), upload.getSHA256()));
+        store.put(new Ephemeral("c", new byte[300]));
+        assertEquals(900, store.getBytes(), "Shared content should allow more entries within the budget");
+
+        store.put(new Ephemeral("d", new byte[300]));
+        assertFalse(store.contains("a"), "The oldest entry should be evicted");
+        assertFalse(store.contains("b"), "Evicting the second reference should free the shared content");
+        assertEquals(600, store.getBytes(), "Only the newest entries should be held");
+    }
+
+    @Test
+    void testSingleUse() {
+        EphemeralStore store = new EphemeralStore(60, 100, 1000, 0);
+        store.put(new Ephemeral("token", new byte[100], null, -1, true));
+        assertTrue(store.contains("token"), "Checking a single use entry should not use it");
+        assertNotNull(store.get("token"), "A single use entry should be delivered once");
+        assertNull(store.get("token"), "A single use entry should not be delivered twice");
+        assertEquals(0, store.getBytes(), "The content of a used entry should be released");
+        assertEquals(1, store.getSingleUses(), "The use should be counted");
+
+        store.put(new Ephemeral("unused", new byte[100], null, -1, true));
+        assertTrue(store.remove("unused"), "An unused entry should be removable");
+        assertEquals(0, store.size(), "The store should be empty");
+    }
+
+    @Test
+    void testOwnMaxAge() throws InterruptedException {
+        EphemeralStore store = new EphemeralStore(60, 100, 1000, 0);
+        store.put(new Ephemeral("short", new byte[10], null, 1, false));
+        store.put(new Ephemeral("default", new byte[10]));
+        Thread.sleep(1100);
+
+        assertFalse(store.contains("short"), "An entry older than its own max age should not be delivered");
+        store.sweep();
+        assertEquals(1, store.size(), "The sweep should remove entries older than their own max age");
+        assertTrue(store.contains("default"), "The sweep should keep entries within the max age for the store");
+    }
+
+    @Test
+    void testSpill() throws IOException {
+        Path folder = Files.createTempDirectory("ephemeral_spill_");
+        EphemeralStore store = new EphemeralStore(60, 100, 1000, 0).spill(folder, 500, 2000);
+        Upload large = Upload.of(new byte[800]);
+        large.getContent()[799] = 87;
+        store.put(new Ephemeral("small", new byte[100]));
+        store.put(new Ephemeral("large", large.getContent()));
+
+        assertFalse(store.get("small").isSpilled(), "A small entry should be held in memory");
+        Ephemeral spilled = store.get("large");
+        assertTrue(spilled.isSpilled(), "A large entry should be spilled");
+        assertTrue(Files.exists(spilled.getFile()), "The spill file should exist");
+        assertEquals(100, store.getBytes(), "Only the small entry should count towards the heap budget");
+        assertEquals(800, store.getSpillBytes(), "The large entry should count towards the spill budget");
+        assertArrayEquals(large.getContent(), spilled.getContent(), "The spilled content should be as expected");
+        try (InputStream in = spilled.openStream()) {
+            assertArrayEquals(large.getContent(), in.readAllBytes(), "The streamed content should be as expected");
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        spilled.writeTo(out);
+        assertArrayEquals(large.getContent(), out.toByteArray(), "The written content should be as expected");
+
+        store.put(new Ephemeral("large2", new byte[800]));
+        store.put(new Ephemeral("large3", new byte[800]));
+        assertFalse(store.contains("large"), "The oldest spilled entry should be evicted by the spill budget");
+        assertFalse(Files.exists(spilled.getFile()), "The file for the evicted entry should be deleted");
+        assertTrue(store.contains("small"), "The small entry should not be evicted by the spill budget");
+
+        store.close();
+        try (var files = Files.list(folder)) {
+            assertEquals(0, files.count(), "All spill files should be deleted when the store is closed");
+        }
+        Files.delete(folder);
+    }
+
+    @Test
+    void testSpillDedup() throws IOException {
+        Path folder = Files.createTempDirectory("ephemeral_spill_");
+        EphemeralStore store = new EphemeralStore(60, 100, 1000, 0, true).spill(folder, 500, 2000);
+        Upload upload = Upload.of(new byte[800]);
+        store.put(new Ephemeral("a", upload.getContent(), upload.getSHA256()));
+        store.put(new Ephemeral("b", upload.getContent(), upload.getSHA256()));
+        assertEquals(800, store.getSpillBytes(), "The shared content should only be spilled once");
+        assertEquals(1, store.getSpilled(), "There should be a single spill");
+        assertEquals(store.get("a").getFile(), store.get("b").getFile(), "The entries should share the file");
+
+        Path file = store.get("a").getFile();
+        store.remove("a");
+        assertTrue(Files.exists(file), "The file should be kept while it is referenced");
+        store.remove("b");
+        assertFalse(Files.exists(file), "The file should be deleted when no longer referenced");
+        Files.delete(folder);
+    }
+
+    @Test
+    void testSpillDedupConcurrent() throws Exception {
+        final int threads = 8;
+        Path folder = Files.createTempDirectory("ephemeral_spill_");
+        EphemeralStore store = new EphemeralStore(60, 100, 1000, 0, true).spill(folder, 500, 100000);
+        Upload upload = Upload.of(new byte[800]);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            CountDownLatch start = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0 ; t < threads ; t++) {
+                final String id = "e" + t;
+                futures.add(executor.submit(() -> {
+                    start.await();
+                    return store.put(new Ephemeral(id, upload.getContent(), upload.getSHA256()));
+                }));
+            }
+            start.countDown();
+            for (Future<?> future: futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        try (Stream<Path> files = Files.list(folder)) {
+            assertEquals(1, files.count(), "Spills that lost the race should be deleted");
+        }
+        assertEquals(800, store.getSpillBytes(), "The shared content should only be counted once");
+        for (int t = 0 ; t < threads ; t++) {
+            store.remove("e" + t);
+        }
+        try (Stream<Path> files = Files.list(folder)) {
+            assertEquals(0, files.count(), "The spilled file should be deleted when no longer referenced");
+        }
+        Files.delete(folder);
+    }
+
+    @Test
+    void testDisabled() {
+        EphemeralStore store = new EphemeralStore(60, 100, 0, 0);
+        assertFalse(store.isEnabled(), "A store with no byte budget should be disabled");
+        assertFalse(store.put(new Ephemeral("e", new byte[10])), "A disabled store should not store entries");
+    }
+
+    @Test
+    void testConcurrent() throws Exception {
+        final int threads = 8;
+        final int perThread = 1000;
+        EphemeralStore store = new EphemeralStore(60, 100, 10000, 0);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int t = 0 ; t < threads ; t++) {
+                final int thread = t;
+                futures.add(executor.submit(() -> {
+                    for (int i = 0 ; i < perThread ; i++) {
+                        store.put(new Ephemeral(thread + "_" + i, new byte[1 + i % 200]));
+                        store.get(thread + "_" + (i / 2));
+                    }
+                }));
+            }
+            for (Future<?> future: futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        assertTrue(store.size() <= 100, "The store should be within the entry limit but held " + store.size());
+        assertTrue(store.getBytes() <= 10000, "The store should be within the byte budget but held " + store.getBytes());
+        assertEquals(threads * perThread, store.getAdded(), "All entries should have been added");
+        assertEquals(threads * perThread - store.size(), store.getEvictions(),
+                     "All entries that are not held should have been evicted");
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.likealook.TestHelper;
+import dk.kb.likealook.model.ElementDto;
+import dk.kb.webservice.exception.TimeoutServiceException;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FaceSearchPoolTest {
+
+    @Test
+    void testOrder() {
+        TestHelper.initTestSetup();
+        final Random random = new Random(87);
+        List<Integer> faces = Arrays.asList(10, 11, 12, 13, 14, 15, 16, 17);
+        List<ElementDto> elements = FaceSearchPool.processFaces(faces, (index, face) -> {
+            try {
+                Thread.sleep(random.nextInt(20));
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            return new ElementDto().index(face);
+        });
+        assertEquals(faces.size(), elements.size(), "There should be an element for each face");
+        for (int i = 0 ; i < faces.size() ; i++) {
+            assertEquals(faces.get(i), elements.get(i).getIndex(), "Elements should be in face order");
+        }
+    }
+
+    @Test
+    void testDeadline() {
+        TestHelper.initTestSetup();
+        List<Integer> faces = Arrays.asList(1, 2);
+        assertThrows(TimeoutServiceException.class, () -> FaceSearchPool.processFaces(faces, (index, face) -> {
+            try {
+                Thread.sleep(1000);
+            } catch (InterruptedException e) {
+                // Expected as the search is cancelled
+            }
+            return new ElementDto().index(index);
+        }, System.currentTimeMillis() + 50));
+    }
+}
@@ -30,7 +30,7 @@ class LikeALookTest {
         TestHelper.initTestSetup();
 
         SimilarResponseDto similarResponse = new LikeALook().findSimilarWhole(
-                null, "daner_mock", "dummy", 10);
+                null, "daner_mock", "dummy", 10, null, null);
         List<SimilarDto> similars = similarResponse.getElements().get(0).getSimilars();
         assertEquals(10, similars.size(), "Calling similar for 'daner' should yield the right number of results");
         System.out.println(similarResponse);
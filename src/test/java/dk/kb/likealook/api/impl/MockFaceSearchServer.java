@@ -0,0 +1,485 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import dk.kb.likealook.similar.FeatureIndex;
+import dk.kb.likealook.similar.FeatureVectors;
+import dk.kb.likealook.similar.FlatIndex;
+import dk.kb.likealook.similar.TopK;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.URLDecoder;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the Wolfram based face search services, for testing and profiling the {@code daner_v1} and
+ * {@code daner_v2} paths without a Wolfram license.
+ *
+ * The protocols are the same as the real services:
+ * <ul>
+ *   <li>{@code daner_v1}, {@code face-search-server.wls}: {@code GET /?imageurl=<url>} or {@code POST /} with the
+ *       image as body. The response is a JSON array with an array of {@code {"id":..., "distance":...}} for each
+ *       face or {@code {"error":...}}</li>
+ *   <li>{@code daner_v2}: {@code GET /daner-face-search/v1/similarFaces?imageURL=<url>&maxMatches=<n>} or
+ *       {@code POST} with the image as body. The response is {@code {"technote":..., "imageURL":...,
+ *       "faces":[{"boundingBox":null, "similars":[...], "index":0}]}}</li>
+ *   <li>{@code daner_local}, the {@code /features} extractor in {@code face-search-server.wls}: {@code POST /features}
+ *       with the image as body. The response is a JSON array with the feature vector for each face</li>
+ * </ul>
+ *
+ * Images given as URLs are fetched, so that the full remote path, including delivery of ephemeral images, is
+ * exercised. Face detection and feature extraction is simulated: The features for each face are pseudo random,
+ * seeded from the content of the image, so that the same image always gives the same result. The matches are
+ * found with a {@link FlatIndex} on the given feature vectors.
+ *
+ * Latency follows a log-normal distribution given by its median and sigma. Errors (HTTP 500) are returned at the
+ * given rate. Requests are processed by a fixed number of threads, with excess requests waiting in queue.
+ * The real {@code face-search-server.wls} processes a single request at a time.
+ *
+ * Run {@link #main(String[])} for a standalone server.
+ */
+public class MockFaceSearchServer {
+    private static final Logger log = LoggerFactory.getLogger(MockFaceSearchServer.class);
+
+    public static final String V2_PATH = "/daner-face-search/v1/similarFaces";
+    public static final String FEATURES_PATH = "/features";
+
+    private final FeatureVectors features;
+    private final FeatureIndex index;
+    private final HttpClient client = HttpClient.newBuilder()
+            .connectTimeout(Duration.ofSeconds(5))
+            .followRedirects(HttpClient.Redirect.NORMAL)
+            .build();
+
+    private int port = 0;
+    private int threads = 1;
+    private int faces = 1;
+    private int defaultMatches = 3;
+    private long medianLatencyMS = 0;
+    private double latencySigma = 0.5;
+    private double errorRate = 0.0;
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private final AtomicLong requests = new AtomicLong(0);
+    private final AtomicLong errors = new AtomicLong(0);
+
+    /**
+     * @param features the features to search. See {@link #createSyntheticFeatures(String[], int, long)}.
+     */
+    public MockFaceSearchServer(FeatureVectors features) {
+        this.features = features;
+        this.index = new FlatIndex(features, ForkJoinPool.commonPool(), 1);
+    }
+
+    /**
+     * @param port the port to listen on. 0 means any free port. Default is 0.
+     * @return the server for chaining.
+     */
+    public MockFaceSearchServer port(int port) {
+        this.port = port;
+        return this;
+    }
+
+    /**
+     * @param threads the number of requests to process concurrently. Default is 1.
+     * @return the server for chaining.
+     */
+    public MockFaceSearchServer threads(int threads) {
+        this.threads = threads;
+        return this;
+    }
+
+    /**
+     * @param faces the number of faces to simulate for each image. Default is 1.
+     * @return the server for chaining.
+     */
+    public MockFaceSearchServer faces(int faces) {
+        this.faces = faces;
+        return this;
+    }
+
+    /**
+     * @param defaultMatches the number of matches for each face when not specified by the request. Default is 3,
+     *                       as for {@code face-search-server.wls}.
+     * @return the server for chaining.
+     */
+    public MockFaceSearchServer defaultMatches(int defaultMatches) {
+        this.defaultMatches = defaultMatches;
+        return this;
+    }
+
+    /**
+     * @param medianMS the median latency in milliseconds for processing a request. Default is 0.
+     * @param sigma    the shape of the log-normal distribution. 0 gives fixed latency, 1 gives a long tail.
+     *                 Default is 0.5.
+     * @return the server for chaining.
+     */
+    public MockFaceSearchServer latency(long medianMS, double sigma) {
+        this.medianLatencyMS = medianMS;
+        this.latencySigma = sigma;
+        return this;
+    }
+
+    /**
+     * @param errorRate the fraction (0.0-1.0) of requests that fails with HTTP 500. Default is 0.
+     * @return the server for chaining.
+     */
+    public MockFaceSearchServer errorRate(double errorRate) {
+        this.errorRate = errorRate;
+        return this;
+    }
+
+    /**
+     * Start the server.
+     * @return the server for chaining.
+     * @throws IOException if the server could not be started.
+     */
+    public MockFaceSearchServer start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", port), 0);
+        executor = Executors.newFixedThreadPool(threads);
+        server.setExecutor(executor);
+        server.createContext("/", this::handleV1);
+        server.createContext(V2_PATH, this::handleV2);
+        server.createContext(FEATURES_PATH, this::handleFeatures);
+        server.start();
+        log.info("Started " + this);
+        return this;
+    }
+
+    /**
+     * Stop the server immediately.
+     */
+    public void stop() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+            server = null;
+        }
+    }
+
+    /**
+     * @return the URL for the {@code daner_v1} service.
+     */
+    public String getV1URL() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    /**
+     * @return the URL for the {@code daner_v2} service.
+     */
+    public String getV2URL() {
+        return getV1URL() + V2_PATH;
+    }
+
+    /**
+     * @return the URL for the feature extractor used by local collections such as {@code daner_local}.
+     */
+    public String getFeaturesURL() {
+        return getV1URL() + FEATURES_PATH;
+    }
+
+    /**
+     * @return the number of requests received.
+     */
+    public long getRequests() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of simulated errors.
+     */
+    public long getErrors() {
+        return errors.get();
+    }
+
+    private void handleV1(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> parameters = getParameters(exchange.getRequestURI());
+            byte[] image = simulateProcessing(exchange, parameters.get("imageurl"));
+            if (image == null) {
+                return;
+            }
+            if (image.length == 0) {
+                send(exchange, 200, "{\"error\":\"Unable to import PNG file.\"}");
+                return;
+            }
+            StringBuilder json = new StringBuilder("[");
+            for (int face = 0 ; face < faces ; face++) {
+                json.append(face == 0 ? "" : ",");
+                appendSimilars(json, image, face, defaultMatches);
+            }
+            send(exchange, 200, json.append("]").toString());
+        } catch (Exception e) {
+            log.warn("Exception handling daner_v1 request " + exchange.getRequestURI(), e);
+            send(exchange, 500, "Exception: " + e.getMessage());
+        }
+    }
+
+    private void handleV2(HttpExchange exchange) throws IOException {
+        try {
+            Map<String, String> parameters = getParameters(exchange.getRequestURI());
+            String imageURL = parameters.get("imageURL");
+            byte[] image = simulateProcessing(exchange, imageURL);
+            if (image == null) {
+                return;
+            }
+            if (image.length == 0) {
+                send(exchange, 500, "Unable to retrieve image");
+                return;
+            }
+            int maxMatches = parameters.containsKey("maxMatches") ?
+                    Integer.parseInt(parameters.get("maxMatches")) : defaultMatches;
+            StringBuilder json = new StringBuilder()
+                    .append("{\"technote\":\"MockFaceSearchServer\",\"imageURL\":")
+                    .append(imageURL == null ? "null" : quote(imageURL))
+                    .append(",\"faces\":[");
+            for (int face = 0 ; face < faces ; face++) {
+                json.append(face == 0 ? "" : ",").append("{\"boundingBox\":null,\"similars\":");
+                appendSimilars(json, image, face, maxMatches);
+                json.append(",\"index\":").append(face).append("}");
+            }
+            send(exchange, 200, json.append("]}").toString());
+        } catch (Exception e) {
+            log.warn("Exception handling daner_v2 request " + exchange.getRequestURI(), e);
+            send(exchange, 500, "Exception: " + e.getMessage());
+        }
+    }
+
+    private void handleFeatures(HttpExchange exchange) throws IOException {
+        try {
+            if (!"POST".equals(exchange.getRequestMethod())) {
+                send(exchange, 405, "The image must be POSTed");
+                return;
+            }
+            byte[] image = simulateProcessing(exchange, null);
+            if (image == null) {
+                return;
+            }
+            if (image.length == 0) {
+                send(exchange, 200, "{\"error\":\"Unable to import PNG file.\"}");
+                return;
+            }
+            StringBuilder json = new StringBuilder("[");
+            for (int face = 0 ; face < faces ; face++) {
+                json.append(face == 0 ? "[" : ",[");
+                float[] vector = simulateFeatures(image, face);
+                for (int d = 0 ; d < vector.length ; d++) {
+                    json.append(d == 0 ? "" : ",").append(vector[d]);
+                }
+                json.append("]");
+            }
+            send(exchange, 200, json.append("]").toString());
+        } catch (Exception e) {
+            log.warn("Exception handling features request " + exchange.getRequestURI(), e);
+            send(exchange, 500, "Exception: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Retrieve the image, either from the request body or the imageURL, and simulate latency and errors.
+     * @return the image, an empty array if the image could not be retrieved or null if an error was sent.
+     */
+    private byte[] simulateProcessing(HttpExchange exchange, String imageURL) throws IOException {
+        requests.incrementAndGet();
+        byte[] image;
+        if ("POST".equals(exchange.getRequestMethod())) {
+            image = exchange.getRequestBody().readAllBytes();
+        } else if (imageURL != null) {
+            image = fetch(imageURL);
+        } else {
+            image = new byte[0];
+        }
+
+        if (medianLatencyMS > 0) {
+            long latency = (long) (medianLatencyMS * Math.exp(latencySigma * ThreadLocalRandom.current().nextGaussian()));
+            try {
+                Thread.sleep(latency);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+            errors.incrementAndGet();
+            send(exchange, 500, "Simulated error");
+            return null;
+        }
+        return image;
+    }
+
+    private byte[] fetch(String imageURL) {
+        try {
+            HttpResponse<byte[]> response = client.send(
+                    HttpRequest.newBuilder(URI.create(imageURL)).GET().build(),
+                    HttpResponse.BodyHandlers.ofByteArray());
+            if (response.statusCode() != 200) {
+                log.debug("Got HTTP {} fetching '{}'", response.statusCode(), imageURL);
+                return new byte[0];
+            }
+            return response.body();
+        } catch (Exception e) {
+            log.debug("Unable to fetch '{}'", imageURL, e);
+            return new byte[0];
+        }
+    }
+
+    /**
+     * Append a JSON array with the nearest matches for the simulated features for the given face in the image.
+     */
+    private void appendSimilars(StringBuilder json, byte[] image, int face, int maxMatches) {
+        TopK topK = index.search(simulateFeatures(image, face), maxMatches);
+        json.append("[");
+        for (int i = 0 ; i < topK.size() ; i++) {
+            json.append(i == 0 ? "" : ",")
+                    .append("{\"id\":").append(quote(features.getID(topK.getID(i))))
+                    .append(",\"distance\":").append(topK.getDistance(i)).append("}");
+        }
+        json.append("]");
+    }
+
+    /**
+     * @return pseudo random features for the given face in the image, seeded from the content of the image.
+     */
+    float[] simulateFeatures(byte[] image, int face) {
+        Random random = new Random(Arrays.hashCode(image) * 31L + face);
+        float[] vector = new float[features.dimensions()];
+        for (int d = 0 ; d < vector.length ; d++) {
+            vector[d] = random.nextFloat();
+        }
+        return vector;
+    }
+
+    private static Map<String, String> getParameters(URI uri) {
+        Map<String, String> parameters = new HashMap<>();
+        if (uri.getRawQuery() == null) {
+            return parameters;
+        }
+        for (String pair: uri.getRawQuery().split("&")) {
+            String[] tokens = pair.split("=", 2);
+            parameters.put(URLDecoder.decode(tokens[0], StandardCharsets.UTF_8),
+                           tokens.length == 1 ? "" : URLDecoder.decode(tokens[1], StandardCharsets.UTF_8));
+        }
+        return parameters;
+    }
+
+    private static String quote(String value) {
+        return "\"" + value.replace("\\", "\\\\").replace("\"", "\\\"") + "\"";
+    }
+
+    private static void send(HttpExchange exchange, int status, String content) throws IOException {
+        byte[] body = content.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", status == 200 ? "application/json" : "text/plain");
+        exchange.sendResponseHeaders(status, body.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(body);
+        }
+    }
+
+    /**
+     * Create pseudo random features.
+     * @param ids        the IDs for the features, e.g. taken from the DANER metadata.
+     * @param dimensions the number of dimensions for each feature vector. The real service uses 2048.
+     * @param seed       the seed for the random generator.
+     * @return features usable for {@link #MockFaceSearchServer(FeatureVectors)}.
+     */
+    public static FeatureVectors createSyntheticFeatures(String[] ids, int dimensions, long seed) {
+        Random random = new Random(seed);
+        FeatureVectors vectors = new FeatureVectors(ids, dimensions);
+        float[] vector = new float[dimensions];
+        for (int row = 0 ; row < ids.length ; row++) {
+            for (int d = 0 ; d < dimensions ; d++) {
+                vector[d] = random.nextFloat();
+            }
+            vectors.set(row, vector);
+        }
+        return vectors;
+    }
+
+    @Override
+    public String toString() {
+        return "MockFaceSearchServer(" + (server == null ? "stopped" : getV1URL()) + ", features=" + features +
+               ", threads=" + threads + ", faces=" + faces + ", latency=" + medianLatencyMS + "ms/" + latencySigma +
+               ", errorRate=" + errorRate + ", requests=" + requests.get() + ", errors=" + errors.get() + ")";
+    }
+
+    /**
+     * Start a standalone server. Arguments are given as {@code key=value}:
+     * <ul>
+     *   <li>{@code port}: the port to listen on. Default is 5858, as {@code face-search-server.wls}</li>
+     *   <li>{@code features}: a feature file, see {@link FeatureVectors#open(Path)}.
+     *       If not specified, synthetic features are used</li>
+     *   <li>{@code size}: the number of synthetic features. Default is 11687, as the DANER collection</li>
+     *   <li>{@code dimensions}: the number of dimensions for synthetic features. Default is 2048</li>
+     *   <li>{@code threads}, {@code faces}, {@code matches}, {@code latency} (median ms), {@code sigma},
+     *       {@code errors} (rate): see the corresponding methods</li>
+     * </ul>
+     * Synthetic features have IDs {@code DP000000}, {@code DP000001}...
+     */
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg: args) {
+            String[] tokens = arg.split("=", 2);
+            if (tokens.length != 2) {
+                System.err.println("Expected key=value but got '" + arg + "'");
+                System.exit(1);
+            }
+            options.put(tokens[0], tokens[1]);
+        }
+        FeatureVectors features;
+        if (options.containsKey("features")) {
+            features = FeatureVectors.open(Path.of(options.get("features")));
+        } else {
+            String[] ids = new String[Integer.parseInt(options.getOrDefault("size", "11687"))];
+            for (int i = 0 ; i < ids.length ; i++) {
+                ids[i] = String.format("DP%06d", i);
+            }
+            features = createSyntheticFeatures(
+                    ids, Integer.parseInt(options.getOrDefault("dimensions", "2048")), 87);
+        }
+        MockFaceSearchServer server = new MockFaceSearchServer(features)
+                .port(Integer.parseInt(options.getOrDefault("port", "5858")))
+                .threads(Integer.parseInt(options.getOrDefault("threads", "1")))
+                .faces(Integer.parseInt(options.getOrDefault("faces", "1")))
+                .defaultMatches(Integer.parseInt(options.getOrDefault("matches", "3")))
+                .latency(Long.parseLong(options.getOrDefault("latency", "0")),
+                         Double.parseDouble(options.getOrDefault("sigma", "0.5")))
+                .errorRate(Double.parseDouble(options.getOrDefault("errors", "0")))
+                .start();
+        System.out.println("daner_v1: " + server.getV1URL());
+        System.out.println("daner_v2: " + server.getV2URL());
+        System.out.println("features: " + server.getFeaturesURL());
+    }
+}
@@ -0,0 +1,187 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import com.sun.net.httpserver.HttpServer;
+import dk.kb.likealook.TestHelper;
+import dk.kb.likealook.config.ServiceConfig;
+import dk.kb.likealook.model.ElementDto;
+import dk.kb.likealook.model.SimilarDto;
+import dk.kb.likealook.model.SimilarResponseDto;
+import dk.kb.likealook.similar.FeatureVectors;
+import dk.kb.likealook.similar.FlatIndex;
+import dk.kb.likealook.similar.TopK;
+import dk.kb.util.yaml.YAML;
+import dk.kb.webservice.exception.InternalServiceException;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class MockFaceSearchServerTest {
+
+    @Test
+    void testV1() throws IOException {
+        TestHelper.initTestSetup();
+        MockFaceSearchServer server = createServer().faces(2).start();
+        HttpServer imageServer = RemoteBackendTest.createServer(); // Delivers the image at /ok, fails at /fail
+        try {
+            RemoteBackend backend = new RemoteBackend("daner_v1", server.getV1URL(), 1000, 5000);
+            String imageURL = "http://localhost:" + imageServer.getAddress().getPort() + "/ok";
+
+            List<DANERService.FaceMatches> fetched;
+            try (InputStream response = backend.get(URI.create(server.getV1URL() + "/?imageurl=" + imageURL))) {
+                fetched = DANERService.parseMatchesMulti(response);
+            }
+            assertEquals(2, fetched.size(), "There should be matches for 2 faces");
+            assertEquals(3, fetched.get(0).size(), "The default number of matches should be 3");
+
+            List<DANERService.FaceMatches> pushed;
+            try (InputStream response = backend.post(URI.create(server.getV1URL() + "/"),
+                                                     "pong".getBytes(StandardCharsets.UTF_8),
+                                                     DANERService.PUSH_CONTENT_TYPE)) {
+                pushed = DANERService.parseMatchesMulti(response);
+            }
+            assertEquals(toString(DANERService.facesToElements(fetched, 3)),
+                         toString(DANERService.facesToElements(pushed, 3)),
+                         "The same image should give the same result when fetched and pushed");
+
+            String missingURL = "http://localhost:" + imageServer.getAddress().getPort() + "/fail";
+            try (InputStream response = backend.get(URI.create(server.getV1URL() + "/?imageurl=" + missingURL))) {
+                assertThrows(InternalServiceException.class, () -> DANERService.parseMatchesMulti(response),
+                             "An unavailable image should give an error response");
+            }
+        } finally {
+            server.stop();
+            imageServer.stop(0);
+        }
+    }
+
+    @Test
+    void testV2() throws IOException {
+        TestHelper.initTestSetup();
+        MockFaceSearchServer server = createServer().start();
+        try {
+            RemoteBackend backend = new RemoteBackend("daner_v2", server.getV2URL(), 1000, 5000);
+            try (InputStream response = backend.post(URI.create(server.getV2URL() + "?maxMatches=5"),
+                                                     new byte[]{1, 2, 3}, DANERService.PUSH_CONTENT_TYPE)) {
+                List<ElementDto> elements = DANERService.multiResponseV2ToDto(response, 10);
+                assertEquals(1, elements.size(), "There should be a single face");
+                assertEquals(5, elements.get(0).getSimilars().size(), "maxMatches should be respected");
+            }
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testErrors() throws IOException {
+        MockFaceSearchServer server = createServer().errorRate(1.0).start();
+        try {
+            RemoteBackend backend = new RemoteBackend("daner_v1", server.getV1URL(), 1000, 5000);
+            assertThrows(InternalServiceException.class,
+                         () -> backend.post(URI.create(server.getV1URL() + "/"), new byte[]{1},
+                                            DANERService.PUSH_CONTENT_TYPE),
+                         "A simulated error should result in an exception");
+            assertEquals(1, server.getErrors(), "The error should be counted");
+        } finally {
+            server.stop();
+        }
+    }
+
+    @Test
+    void testLocal() throws IOException {
+        FeatureVectors features = createFeatures();
+        MockFaceSearchServer server = new MockFaceSearchServer(features).faces(2).start();
+        Path featuresFile = Files.createTempFile("mock_features_", ".txt");
+        try {
+            // The local collection holds the same vectors as the mock, stored in the text format
+            try (Writer out = Files.newBufferedWriter(featuresFile, StandardCharsets.UTF_8)) {
+                float[] vector = new float[features.dimensions()];
+                for (int row = 0 ; row < features.size() ; row++) {
+                    out.write(features.getID(row));
+                    for (float value: features.get(row, vector)) {
+                        out.write("," + value);
+                    }
+                    out.write("\n");
+                }
+            }
+            ServiceConfig.setConfig(YAML.parse(new ByteArrayInputStream(
+                    ("likealook:\n" +
+                     "  daner:\n" +
+                     "    csv: 'daner_metadata.csv'\n" +
+                     "  similar:\n" +
+                     "    local:\n" +
+                     "      - name: 'daner_local'\n" +
+                     "        features: '" + featuresFile + "'\n" +
+                     "        extractor:\n" +
+                     "          url: '" + server.getFeaturesURL() + "'\n"
+                    ).getBytes(StandardCharsets.UTF_8))));
+            SimilarHandler.shutdown();
+            assertTrue(SimilarHandler.hasCollection("daner_local"), "The local collection should be available");
+
+            byte[] image = "pong".getBytes(StandardCharsets.UTF_8);
+            SimilarResponseDto response = SimilarHandler.findSimilar(
+                    "daner_local", new ByteArrayInputStream(image), null, 5, null);
+            assertNull(response.getSourceURL(), "No ephemeral should be stored by default");
+            assertEquals(2, response.getElements().size(), "There should be matches for 2 faces");
+            assertEquals(1, server.getRequests(), "The features for all faces should be extracted in one request");
+
+            FlatIndex expected = new FlatIndex(features, ForkJoinPool.commonPool(), 1);
+            for (int face = 0 ; face < 2 ; face++) {
+                TopK topK = expected.search(server.simulateFeatures(image, face), 5);
+                List<SimilarDto> similars = response.getElements().get(face).getSimilars();
+                assertEquals(topK.size(), similars.size(), "maxMatches should be respected for face " + face);
+                for (int i = 0 ; i < topK.size() ; i++) {
+                    assertEquals(topK.getDistance(i), similars.get(i).getDistance(), 0.0001,
+                                 "The local search should match a direct search for face " + face + ", match " + i);
+                }
+            }
+        } finally {
+            SimilarHandler.shutdown();
+            server.stop();
+            Files.deleteIfExists(featuresFile);
+        }
+    }
+
+    private static MockFaceSearchServer createServer() {
+        return new MockFaceSearchServer(createFeatures());
+    }
+
+    private static FeatureVectors createFeatures() {
+        String[] ids = IntStream.range(0, 100).mapToObj(i -> "DP" + i).toArray(String[]::new);
+        return MockFaceSearchServer.createSyntheticFeatures(ids, 16, 87);
+    }
+
+    private static String toString(List<ElementDto> elements) {
+        return elements.stream()
+                .map(element -> element.getIndex() + ":" + element.getSimilars().stream()
+                        .map(similar -> Double.toString(similar.getDistance()))
+                        .collect(Collectors.joining(",")))
+                .collect(Collectors.joining(";"));
+    }
+}
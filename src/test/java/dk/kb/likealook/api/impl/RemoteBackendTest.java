@@ -0,0 +1,174 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import com.sun.net.httpserver.HttpServer;
+import dk.kb.webservice.exception.InternalServiceException;
+import dk.kb.webservice.exception.TimeoutServiceException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RemoteBackendTest {
+
+    @Test
+    void testGet() throws IOException {
+        HttpServer server = createServer();
+        try {
+            RemoteBackend backend = new RemoteBackend(
+                    "test", "http://localhost:" + server.getAddress().getPort(), 1000, 1000);
+            for (int i = 0 ; i < 3 ; i++) { // Connections are reused
+                try (InputStream response = backend.get(URI.create(backend.getURL() + "/ok"))) {
+                    assertEquals("pong", new String(response.readAllBytes(), StandardCharsets.UTF_8),
+                                 "The response should be as expected");
+                }
+            }
+            assertThrows(InternalServiceException.class,
+                         () -> backend.get(URI.create(backend.getURL() + "/fail")),
+                         "A non-200 response should result in an exception");
+            assertThrows(TimeoutServiceException.class,
+                         () -> backend.get(URI.create(backend.getURL() + "/slow")),
+                         "A slow response should result in a timeout");
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void testDeadline() throws IOException {
+        HttpServer server = createServer();
+        try {
+            RemoteBackend backend = new RemoteBackend(
+                    "test", "http://localhost:" + server.getAddress().getPort(), 1000, 10000);
+            final long startTime = System.currentTimeMillis();
+            assertThrows(TimeoutServiceException.class,
+                         () -> backend.get(URI.create(backend.getURL() + "/slow"), startTime + 500),
+                         "The deadline should override the read timeout");
+            long spendMS = System.currentTimeMillis() - startTime;
+            assertTrue(spendMS < 2000, "The call should be abandoned at the deadline but took " + spendMS + "ms");
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void testStalledBody() throws IOException, InterruptedException {
+        HttpServer server = createServer();
+        try {
+            CircuitBreaker breaker = new CircuitBreaker("test", 1, 5, 10000);
+            RemoteBackend backend = new RemoteBackend(
+                    "test", "http://localhost:" + server.getAddress().getPort(), 1000, 10000, breaker);
+            final long startTime = System.currentTimeMillis();
+            assertThrows(TimeoutServiceException.class,
+                         () -> backend.get(URI.create(backend.getURL() + "/stalled"), startTime + 500),
+                         "A body that stalls after the headers should result in a timeout");
+            long spendMS = System.currentTimeMillis() - startTime;
+            assertTrue(spendMS < 2000, "The call should be abandoned at the deadline but took " + spendMS + "ms");
+            final long giveUp = System.currentTimeMillis() + 1000;
+            while (breaker.getInflight() > 0 && System.currentTimeMillis() < giveUp) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, breaker.getInflight(), "The stalled call should release the breaker at the deadline");
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void testAbandonedCallReleasesBreaker() throws IOException, InterruptedException {
+        HttpServer server = createServer();
+        try {
+            CircuitBreaker breaker = new CircuitBreaker("test", 1, 5, 10000);
+            RemoteBackend backend = new RemoteBackend(
+                    "test", "http://localhost:" + server.getAddress().getPort(), 1000, 5000, breaker);
+            // Callers cancel the future when they give up, e.g. at the deadline or when another hedge wins
+            backend.getAsync(URI.create(backend.getURL() + "/slow")).cancel(true);
+            final long giveUp = System.currentTimeMillis() + 5000;
+            while (breaker.getInflight() > 0 && System.currentTimeMillis() < giveUp) {
+                Thread.sleep(50);
+            }
+            assertEquals(0, breaker.getInflight(), "The abandoned call should release the breaker when it finishes");
+            try (InputStream response = backend.get(URI.create(backend.getURL() + "/ok"))) {
+                assertEquals("pong", new String(response.readAllBytes(), StandardCharsets.UTF_8),
+                             "A call after the abandoned call should be permitted");
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    @Test
+    void testPost() throws IOException {
+        HttpServer server = createServer();
+        try {
+            RemoteBackend backend = new RemoteBackend(
+                    "test", "http://localhost:" + server.getAddress().getPort(), 1000, 1000);
+            byte[] image = new byte[100_000];
+            for (int i = 0 ; i < image.length ; i++) {
+                image[i] = (byte) i;
+            }
+            try (InputStream response = backend.post(
+                    URI.create(backend.getURL() + "/echo"), image, "application/octet-stream")) {
+                assertArrayEquals(image, response.readAllBytes(), "The posted content should be echoed");
+            }
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    static HttpServer createServer() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/", exchange -> {
+            String path = exchange.getRequestURI().getPath();
+            int status = 200;
+            if ("/fail".equals(path)) {
+                status = 500;
+            } else if ("/slow".equals(path)) {
+                try {
+                    Thread.sleep(2500);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            byte[] body = "/echo".equals(path) ?
+                    exchange.getRequestBody().readAllBytes() :
+                    "pong".getBytes(StandardCharsets.UTF_8);
+            exchange.sendResponseHeaders(status, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                if ("/stalled".equals(path)) { // Deliver the headers and part of the body, then stall
+                    out.write(body, 0, 2);
+                    out.flush();
+                    try {
+                        Thread.sleep(2500);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    out.write(body, 2, body.length - 2);
+                } else {
+                    out.write(body);
+                }
+            }
+        });
+        server.start();
+        return server;
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.likealook.TestHelper;
+import dk.kb.likealook.config.ServiceConfig;
+import dk.kb.webservice.exception.InvalidArgumentServiceException;
+import dk.kb.webservice.exception.TimeoutServiceException;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RequestDeadlineTest {
+
+    @Test
+    void testResolveTimeout() {
+        TestHelper.initTestSetup();
+        RequestDeadline deadline = new RequestDeadline(ServiceConfig.getConfig());
+        assertEquals(RequestDeadline.DEFAULT_DEFAULT, deadline.resolveTimeout(null),
+                     "No header should give the default timeout");
+        assertEquals(1000, deadline.resolveTimeout("1000"), "The header should override the default");
+        assertEquals(RequestDeadline.MAX_DEFAULT, deadline.resolveTimeout("999999999"),
+                     "The timeout should be capped at max");
+        assertThrows(InvalidArgumentServiceException.class, () -> deadline.resolveTimeout("soon"),
+                     "A non-number should be rejected");
+        assertThrows(InvalidArgumentServiceException.class, () -> deadline.resolveTimeout("0"),
+                     "A non-positive timeout should be rejected");
+    }
+
+    @Test
+    void testCheck() {
+        RequestDeadline.check(System.currentTimeMillis() + 1000, "testing");
+        assertThrows(TimeoutServiceException.class,
+                     () -> RequestDeadline.check(System.currentTimeMillis() - 1, "testing"),
+                     "A passed deadline should result in a timeout");
+        assertEquals(0, RequestDeadline.remainingMS(System.currentTimeMillis() - 1000),
+                     "The remaining time for a passed deadline should be 0");
+    }
+}
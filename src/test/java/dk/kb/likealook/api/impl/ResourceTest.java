@@ -0,0 +1,84 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.likealook.api.impl.ResourceHandler.Ephemeral;
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ResourceTest {
+
+    @Test
+    void testContentType() {
+        assertEquals("image/jpeg", Resource.getContentType("image_34323.JPG"), "Extensions should be case insensitive");
+        assertEquals("image/png", Resource.getContentType("some.image.png"), "The last extension should be used");
+        assertNull(Resource.getContentType("b1690f11-7646-43b2-9911-611c2b427f0e"), "No extension should give null");
+
+        assertEquals("image/jpeg", Resource.sniffContentType(ByteBuffer.wrap(new byte[]{(byte) 0xFF, (byte) 0xD8,
+                                                                                        (byte) 0xFF, 0})),
+                     "JPEG content should be recognized");
+        assertEquals("image/webp", Resource.sniffContentType(ByteBuffer.wrap("RIFF____WEBPVP8 ".getBytes())),
+                     "WebP content should be recognized");
+        assertNull(Resource.sniffContentType(ByteBuffer.wrap(new byte[]{1})), "Short content should give null");
+    }
+
+    @Test
+    void testFile() throws IOException {
+        byte[] content = createContent(100000);
+        Path file = Files.createTempFile("resource_", ".png");
+        try {
+            Files.write(file, content);
+            Resource resource = Resource.of("some.png", file);
+            assertEquals(content.length, resource.getSize(), "The size should be known before delivery");
+            assertEquals("image/png", resource.getContentType(), "The content type should be derived from the name");
+
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            resource.writeTo(out);
+            assertArrayEquals(content, out.toByteArray(), "The delivered content should be as expected");
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    @Test
+    void testEphemeral() throws IOException {
+        byte[] content = createContent(1000);
+        content[0] = (byte) 0x89;
+        content[1] = 'P';
+        content[2] = 'N';
+        content[3] = 'G';
+        Resource resource = Resource.of(new Ephemeral("b1690f11", content));
+        assertEquals(1000, resource.getSize(), "The size should be known before delivery");
+        assertEquals("image/png", resource.getContentType(), "The content type should be derived from the content");
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        resource.writeTo(out);
+        assertArrayEquals(content, out.toByteArray(), "The delivered content should be as expected");
+    }
+
+    private static byte[] createContent(int size) {
+        byte[] content = new byte[size];
+        new Random(87).nextBytes(content);
+        return content;
+    }
+}
@@ -0,0 +1,130 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.likealook.api.impl.ResourceHandler.Ephemeral;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SharedFolderBackendTest {
+
+    @Test
+    void testSharedBetweenInstances() throws IOException {
+        Path folder = Files.createTempDirectory("ephemeral_shared_");
+        try {
+            SharedFolderBackend node1 = new SharedFolderBackend(folder, 60, 100, 10000, 0, false);
+            SharedFolderBackend node2 = new SharedFolderBackend(folder, 60, 100, 10000, 0, false);
+            byte[] content = new byte[1000];
+            new Random(87).nextBytes(content);
+
+            assertTrue(node1.put(new Ephemeral("../node1~image", content, "somehash")), "The entry should be stored");
+            assertTrue(node2.contains("../node1~image"), "The entry should be visible to the other instance");
+            Ephemeral delivered = node2.get("../node1~image");
+            assertNotNull(delivered, "The entry should be delivered by the other instance");
+            assertEquals("../node1~image", delivered.getId(), "The ID should be stored with the entry");
+            assertEquals("somehash", delivered.getContentHash(), "The content hash should be stored with the entry");
+            try (InputStream in = delivered.openStream()) {
+                assertArrayEquals(content, in.readAllBytes(), "The content should be as stored");
+            }
+            try (Stream<Path> files = Files.list(folder)) {
+                Path file = files.findFirst().orElseThrow();
+                assertFalse(file.getFileName().toString().contains("node1"),
+                            "The ID should not be used directly as file name");
+                // Another instance might truncate or delete the file while the content is being delivered
+                Files.write(file, new byte[0]);
+            }
+            try (InputStream in = delivered.openStream()) {
+                assertArrayEquals(content, in.readAllBytes(),
+                                  "The delivered content should not be affected by later changes to the file");
+            }
+
+            assertTrue(node2.remove("../node1~image"), "The entry should be removable by the other instance");
+            assertFalse(node1.contains("../node1~image"), "The removed entry should be gone for all instances");
+
+            String longID = "long_" + "x".repeat(1000);
+            assertTrue(node1.put(new Ephemeral(longID, content)), "An entry with a long ID should be stored");
+            Ephemeral longDelivered = node2.get(longID);
+            assertNotNull(longDelivered, "An entry with a long ID should be delivered");
+            assertEquals(longID, longDelivered.getId(), "A long ID should be read fully from the header");
+            try (InputStream in = longDelivered.openStream()) {
+                assertArrayEquals(content, in.readAllBytes(), "The content after a long ID should be as stored");
+            }
+        } finally {
+            delete(folder);
+        }
+    }
+
+    @Test
+    void testSingleUse() throws IOException {
+        Path folder = Files.createTempDirectory("ephemeral_shared_");
+        try {
+            SharedFolderBackend node1 = new SharedFolderBackend(folder, 60, 100, 10000, 0, false);
+            SharedFolderBackend node2 = new SharedFolderBackend(folder, 60, 100, 10000, 0, false);
+            node1.put(new Ephemeral("token", new byte[100], null, -1, true));
+
+            assertTrue(node2.contains("token"), "Checking a single use entry should not use it");
+            assertNotNull(node2.get("token"), "A single use entry should be delivered once");
+            assertNull(node1.get("token"), "A single use entry should not be delivered twice, by any instance");
+            assertEquals(1, node2.getSingleUses(), "The use should be counted");
+            try (Stream<Path> files = Files.list(folder)) {
+                assertEquals(0, files.count(), "The used entry should be deleted");
+            }
+        } finally {
+            delete(folder);
+        }
+    }
+
+    @Test
+    void testSweep() throws IOException, InterruptedException {
+        Path folder = Files.createTempDirectory("ephemeral_shared_");
+        try {
+            SharedFolderBackend backend = new SharedFolderBackend(folder, 60, 3, 1000, 0, false);
+            backend.put(new Ephemeral("short", new byte[10], null, 1, false));
+            Thread.sleep(1100);
+            assertFalse(backend.contains("short"), "An entry older than its own max age should not be delivered");
+            for (int i = 0 ; i < 4 ; i++) {
+                backend.put(new Ephemeral("e" + i, new byte[300]));
+                Thread.sleep(5); // Ensure distinct creation times
+            }
+            assertFalse(backend.put(new Ephemeral("too_large", new byte[1001])),
+                        "An entry larger than the budget should not be stored");
+
+            backend.sweep();
+            assertEquals(1, backend.getExpirations(), "The expired entry should be removed");
+            assertEquals(1, backend.getEvictions(), "The oldest entry should be evicted to get within the limits");
+            assertFalse(backend.contains("e0"), "The oldest entry should be evicted");
+            assertTrue(backend.contains("e3"), "The newest entry should be kept");
+        } finally {
+            delete(folder);
+        }
+    }
+
+    private static void delete(Path folder) throws IOException {
+        try (Stream<Path> files = Files.walk(folder)) {
+            for (Path file: (Iterable<Path>) files.sorted(Comparator.reverseOrder())::iterator) {
+                Files.delete(file);
+            }
+        }
+    }
+}
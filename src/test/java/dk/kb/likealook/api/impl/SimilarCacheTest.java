@@ -0,0 +1,80 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.likealook.model.ElementDto;
+import dk.kb.likealook.model.SimilarDto;
+import dk.kb.likealook.model.SimilarResponseDto;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SimilarCacheTest {
+
+    @Test
+    void testMaxMatches() {
+        SimilarCache cache = new SimilarCache(60, 10);
+        byte[] image = "someimage".getBytes(StandardCharsets.UTF_8);
+
+        assertNull(cache.get("daner_v2", image, 5), "An empty cache should not return a result");
+        cache.put("daner_v2", image, 10, createResponse(10));
+
+        SimilarResponseDto smaller = cache.get("daner_v2", image, 5);
+        assertNotNull(smaller, "A request for fewer matches should be served from the cache");
+        assertEquals(5, smaller.getElements().get(0).getSimilars().size(),
+                     "The cached result should be limited to maxMatches");
+        assertNull(cache.get("daner_v2", image, 20), "A request for more matches should not be served");
+        assertNull(cache.get("daner_v1", image, 5), "A request for another collection should not be served");
+        assertNull(cache.get("daner_v2", "otherimage".getBytes(StandardCharsets.UTF_8), 5),
+                   "A request for another image should not be served");
+
+        assertEquals(1, cache.getHits(), "The number of hits should be as expected");
+        assertEquals(4, cache.getMisses(), "The number of misses should be as expected");
+    }
+
+    @Test
+    void testEviction() {
+        SimilarCache cache = new SimilarCache(60, 2);
+        for (int i = 0 ; i < 3 ; i++) {
+            cache.put("daner_v2", ("image_" + i).getBytes(StandardCharsets.UTF_8), 10, createResponse(10));
+        }
+        assertEquals(2, cache.size(), "The cache should not hold more than the maximum number of entries");
+        assertNull(cache.get("daner_v2", "image_0".getBytes(StandardCharsets.UTF_8), 10),
+                   "The oldest entry should have been evicted");
+    }
+
+    @Test
+    void testDisabled() {
+        SimilarCache cache = new SimilarCache(0, 10);
+        byte[] image = "someimage".getBytes(StandardCharsets.UTF_8);
+        cache.put("daner_v2", image, 10, createResponse(10));
+        assertNull(cache.get("daner_v2", image, 10), "A disabled cache should not return a result");
+    }
+
+    private static SimilarResponseDto createResponse(int matches) {
+        List<SimilarDto> similars = new ArrayList<>(matches);
+        for (int i = 0 ; i < matches ; i++) {
+            similars.add(new SimilarDto().distance((double) i));
+        }
+        return new SimilarResponseDto()
+                .sourceID("someID")
+                .elements(Collections.singletonList(new ElementDto().index(0).similars(similars)));
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import dk.kb.webservice.exception.InternalServiceException;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SingleFlightTest {
+
+    @Test
+    void testCoalescing() throws Exception {
+        final int CALLERS = 5;
+        SingleFlight<String, String> singleFlight = new SingleFlight<>("test");
+        AtomicInteger computations = new AtomicInteger(0);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(CALLERS);
+        try {
+            List<Future<SingleFlight.Result<String>>> results = new ArrayList<>();
+            for (int i = 0 ; i < CALLERS ; i++) {
+                results.add(executor.submit(() -> singleFlight.execute("key", () -> {
+                    computations.incrementAndGet();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        throw new RuntimeException(e);
+                    }
+                    return "result";
+                })));
+            }
+            // Wait for all callers to be either computing or waiting
+            long timeout = System.currentTimeMillis() + 5000;
+            while (singleFlight.getCoalesced() < CALLERS-1 && System.currentTimeMillis() < timeout) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            int leaders = 0;
+            for (Future<SingleFlight.Result<String>> result: results) {
+                SingleFlight.Result<String> value = result.get(5, TimeUnit.SECONDS);
+                assertEquals("result", value.getValue(), "All callers should get the result");
+                leaders += value.isLeader() ? 1 : 0;
+            }
+            assertEquals(1, leaders, "Only the caller performing the computation should be leader");
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, computations.get(), "There should only be a single computation");
+        assertEquals(CALLERS-1, singleFlight.getCoalesced(), "All but one call should be coalesced");
+        assertEquals(0, singleFlight.getInFlight(), "There should be no computations in flight after the calls");
+
+        assertEquals("new", singleFlight.execute("key", () -> "new").getValue(),
+                     "A call after the computation has finished should trigger a new computation");
+    }
+
+    @Test
+    void testException() throws InterruptedException {
+        SingleFlight<String, String> singleFlight = new SingleFlight<>("test");
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            Future<SingleFlight.Result<String>> leader = executor.submit(() -> singleFlight.execute("key", () -> {
+                started.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    throw new RuntimeException(e);
+                }
+                throw new InternalServiceException("Failed");
+            }));
+            started.await();
+            Future<SingleFlight.Result<String>> follower = executor.submit(() -> singleFlight.execute("key", () -> "unused"));
+            while (singleFlight.getCoalesced() == 0) {
+                Thread.sleep(10);
+            }
+            release.countDown();
+            assertTrue(assertThrows(ExecutionException.class, follower::get).getCause()
+                               instanceof InternalServiceException,
+                       "The exception should be passed to waiting callers");
+            ExecutionException e = assertThrows(ExecutionException.class, leader::get,
+                                                "The leader should get the exception");
+            assertTrue(e.getCause() instanceof InternalServiceException,
+                       "The exception should be an InternalServiceException");
+        } finally {
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.api.impl;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class UploadTest {
+
+    @Test
+    void testReadUnknownSize() throws IOException {
+        for (int size: new int[]{0, 1, 8191, 8192, 8193, 3*1024*1024 + 17}) {
+            byte[] content = createContent(size);
+            Upload upload = Upload.read(new TrickleStream(content), -1);
+            assertArrayEquals(content, upload.getContent(), "The content should be read fully for size " + size);
+            assertEquals(SimilarCache.sha256(content), upload.getSHA256(),
+                         "The hash calculated while reading should match for size " + size);
+        }
+    }
+
+    @Test
+    void testReadSizeHint() throws IOException {
+        byte[] content = createContent(100000);
+        for (long hint: new long[]{100000, 99999, 100001, 1, Integer.MAX_VALUE - 8, Long.MAX_VALUE}) {
+            Upload upload = Upload.read(new ByteArrayInputStream(content), hint);
+            assertArrayEquals(content, upload.getContent(), "The content should be read fully with hint " + hint);
+            assertEquals(SimilarCache.sha256(content), upload.getSHA256(),
+                         "The hash should match with hint " + hint);
+        }
+    }
+
+    @Test
+    void testReadMaxSize() throws IOException {
+        byte[] content = createContent(100000);
+        for (long hint: new long[]{-1, 100000, Long.MAX_VALUE}) {
+            assertEquals(100000, Upload.read(new ByteArrayInputStream(content), hint, 100000).getSize(),
+                         "Content of exactly the maximum size should be accepted with hint " + hint);
+            assertThrows(IOException.class, () -> Upload.read(new ByteArrayInputStream(content), hint, 99999),
+                         "Content above the maximum size should fail with hint " + hint);
+        }
+    }
+
+    @Test
+    void testOpenStream() throws IOException {
+        Upload upload = Upload.of(createContent(1000));
+        assertSame(upload, Upload.read(upload.openStream()),
+                   "Reading an unread stream from an Upload should return the Upload itself");
+
+        InputStream partial = upload.openStream();
+        assertEquals(upload.getContent()[0] & 0xFF, partial.read(), "The first byte should be as expected");
+        Upload rest = Upload.read(partial);
+        assertEquals(999, rest.getSize(), "Reading a partially read stream should give the remaining content");
+    }
+
+    private static byte[] createContent(int size) {
+        byte[] content = new byte[size];
+        new Random(87).nextBytes(content);
+        return content;
+    }
+
+    /**
+     * Delivers at most 1000 bytes for each read, as network streams do.
+     */
+    private static class TrickleStream extends ByteArrayInputStream {
+        public TrickleStream(byte[] buf) {
+            super(buf);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, 1000));
+        }
+    }
+}
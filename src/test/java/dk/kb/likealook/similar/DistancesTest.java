@@ -0,0 +1,58 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.FloatBuffer;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DistancesTest {
+
+    @Test
+    void testSquaredDistance() {
+        Random r = new Random(87);
+        for (int length: new int[]{1, 3, 4, 7, 64, 65, 130, 2048}) {
+            float[] a = randomVector(r, length);
+            float[] b = randomVector(r, length);
+            FloatBuffer aBuffer = FloatBuffer.wrap(a);
+            FloatBuffer bBuffer = FloatBuffer.wrap(b);
+
+            float expected = 0f;
+            for (int d = 0 ; d < length ; d++) {
+                expected += (a[d] - b[d]) * (a[d] - b[d]);
+            }
+            final String message = "Squared distance with " + length + " dimensions";
+            final float delta = expected * 0.0001f;
+            assertEquals(expected, Distances.squaredDistance(aBuffer, 0, b, length, Float.MAX_VALUE), delta, message);
+            assertEquals(expected, Distances.squaredDistance(aBuffer, 0, bBuffer, 0, length), delta, message);
+            assertEquals(expected, Distances.squaredDistance(a, 0, b, 0, length, Float.MAX_VALUE), delta, message);
+            assertTrue(Distances.squaredDistance(a, 0, b, 0, length, expected / 2) > expected / 2,
+                       message + " should return a value above the limit when stopping early");
+            assertEquals(Distances.norm(a) * Distances.norm(a), Distances.squaredNorm(aBuffer, 0, length),
+                         expected * 0.0001f, "The squared norm should match the norm with " + length + " dimensions");
+        }
+    }
+
+    private float[] randomVector(Random r, int length) {
+        float[] vector = new float[length];
+        for (int d = 0 ; d < length ; d++) {
+            vector[d] = r.nextFloat() * 2 - 1;
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,102 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FeatureStoreTest {
+
+    @Test
+    void testRoundTrip() throws IOException {
+        final int dimensions = 7;
+        // More than a block to check slicing of the mapped vectors
+        FeatureVectors expected = FlatIndexTest.createRandomVectors(FeatureVectors.BLOCK_ROWS * 2 + 17, dimensions, 87);
+        Path store = Files.createTempFile("likealook_", ".features");
+        try {
+            FeatureStore.write(expected, store);
+            assertTrue(FeatureStore.isFeatureStore(store), "The written file should be recognized as a store");
+
+            FeatureVectors actual = FeatureVectors.open(store);
+            assertEquals(expected.size(), actual.size(), "The number of vectors should match");
+            assertEquals(dimensions, actual.dimensions(), "The number of dimensions should match");
+            for (int row = 0 ; row < expected.size() ; row++) {
+                assertEquals(expected.getID(row), actual.getID(row), "The ID for row " + row + " should match");
+                assertArrayEquals(expected.get(row, new float[dimensions]), actual.get(row, new float[dimensions]),
+                                  "The vector for row " + row + " should match");
+            }
+            float[] query = expected.get(0, new float[dimensions]);
+            assertEquals(expected.squaredDistance(FeatureVectors.BLOCK_ROWS + 3, query, Float.MAX_VALUE),
+                         actual.squaredDistance(FeatureVectors.BLOCK_ROWS + 3, query, Float.MAX_VALUE),
+                         "Distances should be the same for heap and mapped vectors");
+        } finally {
+            Files.deleteIfExists(store);
+        }
+    }
+
+    @Test
+    void testImport() throws IOException {
+        Path csv = Files.createTempFile("likealook_", ".csv");
+        Path npy = Files.createTempFile("likealook_", ".npy");
+        Path ids = Files.createTempFile("likealook_", ".txt");
+        Path store = Files.createTempFile("likealook_", ".features");
+        try {
+            Files.write(csv, List.of("# Comment", "DP001,1.0,2.0,3.0", "DP002;4;5;6", "Æblé 7 8 9"));
+            assertEquals(3, FeatureStore.importText(csv, store), "All CSV vectors should be imported");
+            assertStore(store);
+
+            writeNPY(npy, new float[]{1, 2, 3, 4, 5, 6, 7, 8, 9}, 3, 3);
+            Files.write(ids, List.of("DP001", "DP002", "Æblé"), StandardCharsets.UTF_8);
+            assertEquals(3, FeatureStore.importNPY(npy, ids, store), "All NPY vectors should be imported");
+            assertStore(store);
+        } finally {
+            for (Path file: new Path[]{csv, npy, ids, store}) {
+                Files.deleteIfExists(file);
+            }
+        }
+    }
+
+    private void assertStore(Path store) throws IOException {
+        FeatureVectors vectors = FeatureStore.open(store);
+        assertEquals(3, vectors.size(), "The store should hold all vectors");
+        assertEquals("Æblé", vectors.getID(2), "Non-ASCII IDs should be supported");
+        assertEquals("[4.0, 5.0, 6.0]", Arrays.toString(vectors.get(1, new float[3])),
+                     "The second vector should be as imported");
+    }
+
+    private void writeNPY(Path npy, float[] values, int rows, int columns) throws IOException {
+        String header = "{'descr': '<f4', 'fortran_order': False, 'shape': (" + rows + ", " + columns + "), }";
+        header = header + " ".repeat(63 - (10 + header.length()) % 64) + "\n";
+        ByteBuffer buffer = ByteBuffer.allocate(10 + header.length() + values.length * Float.BYTES)
+                .order(ByteOrder.LITTLE_ENDIAN);
+        buffer.put(new byte[]{(byte) 0x93, 'N', 'U', 'M', 'P', 'Y', 1, 0});
+        buffer.putShort((short) header.length());
+        buffer.put(header.getBytes(StandardCharsets.ISO_8859_1));
+        for (float value: values) {
+            buffer.putFloat(value);
+        }
+        Files.write(npy, buffer.array());
+    }
+}
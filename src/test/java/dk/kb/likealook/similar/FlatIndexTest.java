@@ -0,0 +1,91 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Comparator;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FlatIndexTest {
+
+    @Test
+    void testTopK() {
+        TopK topK = new TopK(3);
+        float[] distances = new float[]{5f, 1f, 7f, 3f, 0.5f, 9f, 2f};
+        for (int i = 0 ; i < distances.length ; i++) {
+            topK.offer(i, distances[i]);
+        }
+        topK.sort();
+        assertEquals(3, topK.size(), "The collector should be bounded by k");
+        assertEquals(4, topK.getID(0), "The best entry should be first");
+        assertEquals(1, topK.getID(1), "The second best entry should be second");
+        assertEquals(6, topK.getID(2), "The third best entry should be third");
+    }
+
+    @Test
+    void testTopKEmpty() {
+        TopK topK = new TopK(0);
+        assertFalse(topK.offer(1, 0.5f), "A collector with k=0 should not keep entries");
+        assertEquals(Float.NEGATIVE_INFINITY, topK.threshold(), "No distance should be below the threshold");
+        assertEquals(0, topK.sort().size(), "The collector should be empty");
+    }
+
+    @Test
+    void testExactSearch() {
+        final int dimensions = 64;
+        final int k = 10;
+        FeatureVectors vectors = createRandomVectors(10000, dimensions, 87);
+        float[] query = createRandomVectors(1, dimensions, 88).get(0, new float[dimensions]);
+
+        int[] expected = IntStream.range(0, vectors.size())
+                .boxed()
+                .sorted(Comparator.comparingDouble(row -> vectors.squaredDistance(row, query, Float.MAX_VALUE)))
+                .limit(k)
+                .mapToInt(Integer::intValue)
+                .toArray();
+
+        ForkJoinPool executor = new ForkJoinPool(4);
+        try {
+            for (int parallelism: new int[]{1, 4}) {
+                TopK topK = new FlatIndex(vectors, executor, parallelism).search(query, k);
+                int[] actual = IntStream.range(0, topK.size()).map(topK::getID).toArray();
+                assertArrayEquals(expected, actual, "Search with parallelism " + parallelism + " should be exact");
+                assertEquals(Math.sqrt(vectors.squaredDistance(expected[0], query, Float.MAX_VALUE)),
+                             topK.getDistance(0), 0.0001, "Distances should be Euclidean");
+            }
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    static FeatureVectors createRandomVectors(int size, int dimensions, long seed) {
+        Random r = new Random(seed);
+        String[] ids = IntStream.range(0, size).mapToObj(i -> "id_" + i).toArray(String[]::new);
+        FeatureVectors vectors = new FeatureVectors(ids, dimensions);
+        float[] vector = new float[dimensions];
+        for (int row = 0 ; row < size ; row++) {
+            for (int d = 0 ; d < dimensions ; d++) {
+                vector[d] = r.nextFloat();
+            }
+            vectors.set(row, vector);
+        }
+        return vectors;
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HNSWIndexTest {
+
+    @Test
+    void testRecall() {
+        final int dimensions = 32;
+        final int k = 10;
+        FeatureVectors vectors = FlatIndexTest.createRandomVectors(5000, dimensions, 87);
+        FeatureVectors queries = FlatIndexTest.createRandomVectors(50, dimensions, 88);
+
+        ForkJoinPool executor = new ForkJoinPool(4);
+        try {
+            FlatIndex flat = new FlatIndex(vectors, executor, 1);
+            HNSWIndex hnsw = HNSWIndex.build(vectors, 16, 100, 50, executor, 4);
+
+            float recall = recall(flat, hnsw, queries, k, new SearchOptions(100));
+            assertTrue(recall > 0.9, "Recall@" + k + " should be above 0.9 but was " + recall);
+
+            float lowRecall = recall(flat, hnsw, queries, k, new SearchOptions(k));
+            assertTrue(lowRecall <= recall, "Lowering efSearch should not improve recall, but went from " +
+                                            recall + " to " + lowRecall);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testPersistence() throws IOException {
+        final int dimensions = 16;
+        FeatureVectors vectors = FlatIndexTest.createRandomVectors(2000, dimensions, 87);
+        float[] query = FlatIndexTest.createRandomVectors(1, dimensions, 88).get(0, new float[dimensions]);
+
+        ForkJoinPool executor = new ForkJoinPool(2);
+        Path graphFile = Files.createTempFile("hnsw_", ".graph");
+        try {
+            HNSWIndex built = HNSWIndex.build(vectors, 8, 50, 20, executor, 2);
+            built.save(graphFile);
+            HNSWIndex loaded = HNSWIndex.load(graphFile, vectors, 20);
+
+            TopK expected = built.search(query, 5);
+            TopK actual = loaded.search(query, 5);
+            assertEquals(expected.size(), actual.size(), "The loaded graph should give the same number of results");
+            for (int i = 0 ; i < expected.size() ; i++) {
+                assertEquals(expected.getID(i), actual.getID(i), "The loaded graph should give the same results");
+            }
+        } finally {
+            Files.deleteIfExists(graphFile);
+            executor.shutdown();
+        }
+    }
+
+    static float recall(FeatureIndex exact, FeatureIndex approximate, FeatureVectors queries, int k,
+                         SearchOptions options) {
+        int hits = 0;
+        float[] query = new float[queries.dimensions()];
+        for (int q = 0 ; q < queries.size() ; q++) {
+            queries.get(q, query);
+            TopK expected = exact.search(query, k);
+            TopK actual = approximate.search(query, k, options);
+            int[] expectedIDs = new int[expected.size()];
+            for (int i = 0 ; i < expected.size() ; i++) {
+                expectedIDs[i] = expected.getID(i);
+            }
+            Arrays.sort(expectedIDs);
+            for (int i = 0 ; i < actual.size() ; i++) {
+                if (Arrays.binarySearch(expectedIDs, actual.getID(i)) >= 0) {
+                    hits++;
+                }
+            }
+        }
+        return (float) hits / (queries.size() * k);
+    }
+}
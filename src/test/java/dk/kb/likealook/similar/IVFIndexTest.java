@@ -0,0 +1,80 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class IVFIndexTest {
+
+    @Test
+    void testRecall() {
+        final int dimensions = 32;
+        final int k = 10;
+        final int nlist = 50;
+        FeatureVectors vectors = FlatIndexTest.createRandomVectors(5000, dimensions, 87);
+        FeatureVectors queries = FlatIndexTest.createRandomVectors(20, dimensions, 88);
+
+        ForkJoinPool executor = new ForkJoinPool(4);
+        try {
+            FlatIndex flat = new FlatIndex(vectors, executor, 1);
+            IVFIndex ivf = IVFIndex.build(vectors, nlist, 8, executor, 4, new Random(87));
+
+            float fullRecall = HNSWIndexTest.recall(flat, ivf, queries, k, new SearchOptions(null, nlist));
+            assertEquals(1.0f, fullRecall, 0.0001f, "Probing all lists should give exact results");
+
+            float recall = HNSWIndexTest.recall(flat, ivf, queries, k, new SearchOptions(null, 20));
+            assertTrue(recall > 0.8, "Recall@" + k + " with nprobe=20 should be above 0.8 but was " + recall);
+
+            float lowRecall = HNSWIndexTest.recall(flat, ivf, queries, k, SearchOptions.DEFAULT);
+            assertTrue(lowRecall <= recall, "Lowering nprobe should not improve recall, but went from " +
+                                            recall + " to " + lowRecall);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testPersistence() throws IOException {
+        final int dimensions = 16;
+        FeatureVectors vectors = FlatIndexTest.createRandomVectors(3000, dimensions, 87);
+        float[] query = FlatIndexTest.createRandomVectors(1, dimensions, 88).get(0, new float[dimensions]);
+
+        ForkJoinPool executor = new ForkJoinPool(2);
+        Path listsFile = Files.createTempFile("ivf_", ".lists");
+        try {
+            IVFIndex built = IVFIndex.build(vectors, 0, 4, executor, 2, new Random(87));
+            built.save(listsFile);
+            IVFIndex loaded = IVFIndex.load(listsFile, vectors, 4, executor, 2);
+
+            TopK expected = built.search(query, 5);
+            TopK actual = loaded.search(query, 5);
+            assertEquals(expected.size(), actual.size(), "The loaded index should give the same number of results");
+            for (int i = 0 ; i < expected.size() ; i++) {
+                assertEquals(expected.getID(i), actual.getID(i), "The loaded index should give the same results");
+            }
+        } finally {
+            Files.deleteIfExists(listsFile);
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ *
+ */
+package dk.kb.likealook.similar;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class QuantizedIndexTest {
+
+    @Test
+    void testRecall() {
+        final int dimensions = 32;
+        final int k = 10;
+        FeatureVectors vectors = FlatIndexTest.createRandomVectors(5000, dimensions, 87);
+        FeatureVectors queries = FlatIndexTest.createRandomVectors(20, dimensions, 88);
+
+        ForkJoinPool executor = new ForkJoinPool(4);
+        try {
+            FlatIndex flat = new FlatIndex(vectors, executor, 1);
+            Quantizer sq = ScalarQuantizer.train(vectors);
+            Quantizer pq = ProductQuantizer.train(vectors, 8, executor, new Random(87));
+
+            float sqRecall = HNSWIndexTest.recall(
+                    flat, QuantizedIndex.build(vectors, sq, 50, executor, 4), queries, k, SearchOptions.DEFAULT);
+            assertTrue(sqRecall > 0.95, "Recall@" + k + " for scalar quantization should be above 0.95 but was " +
+                                        sqRecall);
+
+            float pqRecall = HNSWIndexTest.recall(
+                    flat, QuantizedIndex.build(vectors, pq, 200, executor, 4), queries, k, SearchOptions.DEFAULT);
+            assertTrue(pqRecall > 0.9, "Recall@" + k + " for product quantization should be above 0.9 but was " +
+                                       pqRecall);
+
+            float pqNoRerank = HNSWIndexTest.recall(
+                    flat, QuantizedIndex.build(vectors, pq, 0, executor, 4), queries, k, SearchOptions.DEFAULT);
+            assertTrue(pqNoRerank < pqRecall, "Re-ranking should improve recall, but was " + pqNoRerank +
+                                              " without and " + pqRecall + " with re-ranking");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void testPersistence() throws IOException {
+        final int dimensions = 16;
+        FeatureVectors vectors = FlatIndexTest.createRandomVectors(3000, dimensions, 87);
+        float[] query = FlatIndexTest.createRandomVectors(1, dimensions, 88).get(0, new float[dimensions]);
+
+        ForkJoinPool executor = new ForkJoinPool(2);
+        Path codesFile = Files.createTempFile("quantized_", ".codes");
+        try {
+            QuantizedIndex built = QuantizedIndex.build(
+                    vectors, ProductQuantizer.train(vectors, 4, executor, new Random(87)), 0, executor, 2);
+            assertEquals(4, built.getQuantizer().getCodeSize(), "The code size should be the number of subspaces");
+            built.save(codesFile);
+            QuantizedIndex loaded = QuantizedIndex.load(
+                    codesFile, vectors, Quantizer.TYPE_PRODUCT, 4, 0, executor, 2);
+
+            TopK expected = built.search(query, 5);
+            TopK actual = loaded.search(query, 5);
+            assertEquals(expected.size(), actual.size(), "The loaded index should give the same number of results");
+            for (int i = 0 ; i < expected.size() ; i++) {
+                assertEquals(expected.getID(i), actual.getID(i), "The loaded index should give the same results");
+                assertEquals(expected.getDistance(i), actual.getDistance(i), 0.0001,
+                             "The loaded index should give the same distances");
+            }
+
+            assertThrows(IOException.class, () -> QuantizedIndex.load(
+                    codesFile, vectors, Quantizer.TYPE_PRODUCT, 8, 0, executor, 2),
+                         "Loading with another number of subspaces should fail");
+            assertThrows(IOException.class, () -> QuantizedIndex.load(
+                    codesFile, vectors, Quantizer.TYPE_SCALAR, dimensions, 0, executor, 2),
+                         "Loading with another quantizer type should fail");
+        } finally {
+            Files.deleteIfExists(codesFile);
+            executor.shutdown();
+        }
+    }
+}